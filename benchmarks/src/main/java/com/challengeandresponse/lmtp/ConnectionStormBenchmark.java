@@ -0,0 +1,137 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.challengeandresponse.lmtp.bench.NullLMTP;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Connections per second, the way an MTA that has just restarted makes them: many clients at once, each connecting,
+ * taking the greeting, saying LHLO and QUIT and going, over and over. That's all accept() and session setup, so it
+ * shows how much more acceptors (LMTP.ACCEPTORS) help. Runs 32 clients; change that with -t.
+ * <p>The clients close with a reset once they have the 221, so the benchmark doesn't run out of local ports to
+ * TIME_WAIT.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(32)
+@Fork(1)
+public class ConnectionStormBenchmark {
+
+    private static final byte[] LHLO_QUIT = "LHLO bench.client\r\nQUIT\r\n".getBytes(Charset.forName("US-ASCII"));
+
+    /** the server, one per trial */
+    @State(Scope.Benchmark)
+    public static class Server {
+        /** one of the LMTP.ENGINE_ values */
+        @Param({ "1", "2" })
+        public int engine;
+        /** the server's acceptors, see LMTP.ACCEPTORS */
+        @Param({ "1", "4" })
+        public int acceptors;
+
+        NullLMTP server;
+
+        @Setup(Level.Trial)
+        public void setUp()
+        throws IOException {
+            LMTP.ACCEPT_BACKLOG = 1024;
+            server = new NullLMTP(new LMTPEngine(engine), 0, null, acceptors, NullLMTP.benchConfig());
+            server.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            server.getEngine().stop();
+            // how the connections were spread over the acceptors
+            String[] lines = server.getEngine().getMetrics().snapshot().split("\n");
+            System.out.println();
+            for (int i = 0; i < lines.length; i++)
+                if (lines[i].startsWith("ACCEPTOR_") && lines[i].contains(".accepted "))
+                    System.out.println(lines[i]);
+        }
+    }
+
+
+    /**
+     * One connection: connect, greeting, LHLO and QUIT pipelined, their replies
+     */
+    @Benchmark
+    public int connection(Server _server)
+    throws IOException {
+        Socket s = new Socket(InetAddress.getByName("127.0.0.1"), _server.server.getPort());
+        try {
+            s.setTcpNoDelay(true);
+            s.setSoLinger(true, 0);
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            int greeting = replyCode(in);
+            if (greeting != 220)
+                throw new IOException("refused: "+greeting);
+            out.write(LHLO_QUIT);
+            int lhlo = replyCode(in);
+            if (lhlo != 250)
+                throw new IOException("LHLO refused: "+lhlo);
+            return replyCode(in);
+        }
+        finally {
+            s.close();
+        }
+    }
+
+
+    /**
+     * @return the code of the next reply, whose lines are read and thrown away
+     */
+    private static int replyCode(InputStream _in)
+    throws IOException {
+        int code = 0;
+        int position = 0;
+        boolean more = false;
+        while (true) {
+            int c = _in.read();
+            if (c < 0)
+                throw new IOException("the server closed the connection");
+            if (c == '\n') {
+                if (! more)
+                    return code;
+                code = 0;
+                position = 0;
+                continue;
+            }
+            if (position < 3)
+                code = code * 10 + (c - '0');
+            else if (position == 3)
+                more = (c == '-');
+            position++;
+        }
+    }
+
+}
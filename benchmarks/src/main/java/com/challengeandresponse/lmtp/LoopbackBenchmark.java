@@ -0,0 +1,171 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.challengeandresponse.lmtp.bench.NullLMTP;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * End to end, in one process: messages per second through a NullLMTP (whose deliver() does nothing) on loopback
+ * TCP and on a Unix domain socket, for each engine. Every benchmark thread has a connection of its own and sends one
+ * pipelined MAIL / RCPT / DATA / body transaction at a time, waiting for the replies. Run it with -t to have several
+ * clients at once.
+ * <p>ENGINE_THREADS sleeps LOOP_SLEEP_MSEC between reads, so expect it to be far behind the other two over TCP.
+ * Unix domain connections are served by NIO loops on every engine, so with "unix" the three should be close.</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    /** the server, one per trial */
+    @State(Scope.Benchmark)
+    public static class Server {
+        /** one of the LMTP.ENGINE_ values */
+        @Param({ "0", "1", "2" })
+        public int engine;
+        /** "tcp" for 127.0.0.1, "unix" for a Unix domain socket in a temporary directory */
+        @Param({ "tcp", "unix" })
+        public String transport;
+
+        NullLMTP server;
+        File directory;
+
+        @Setup(Level.Trial)
+        public void setUp()
+        throws IOException {
+            if (transport.equals("unix")) {
+                directory = Files.createTempDirectory("lmtp_bench").toFile();
+                server = NullLMTP.start(engine, -1, new File(directory, "lmtp.sock"));
+            }
+            else
+                server = NullLMTP.start(engine, 0);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            server.getEngine().stop();
+            if (directory != null)
+                directory.delete();
+        }
+    }
+
+    /** one client connection per benchmark thread */
+    @State(Scope.Thread)
+    public static class Client {
+        private static final byte[] TRANSACTION = ("MAIL FROM:<sender@example.com>\r\n"
+                + "RCPT TO:<user@"+NullLMTP.DOMAIN+">\r\n"
+                + "DATA\r\n"
+                + "Subject: loopback benchmark\r\n"
+                + "\r\n"
+                + "hello\r\n"
+                + ".\r\n").getBytes(Charset.forName("US-ASCII"));
+
+        Closeable socket;
+        OutputStream out;
+        BufferedReader in;
+
+        @Setup(Level.Trial)
+        public void setUp(Server _server)
+        throws IOException {
+            if (_server.server.getSocketPath() != null) {
+                SocketChannel sc = SocketChannel.open(UnixDomainSocketAddress.of(_server.server.getSocketPath().toPath()));
+                socket = sc;
+                // the channel's stream writes straight through, so buffer it to send the transaction in one write
+                out = new BufferedOutputStream(Channels.newOutputStream(sc), 1024);
+                in = new BufferedReader(new InputStreamReader(Channels.newInputStream(sc), Charset.forName("US-ASCII")));
+            }
+            else {
+                Socket s = new Socket(InetAddress.getByName("127.0.0.1"), _server.server.getPort());
+                s.setTcpNoDelay(true);
+                socket = s;
+                out = s.getOutputStream();
+                in = new BufferedReader(new InputStreamReader(s.getInputStream(), Charset.forName("US-ASCII")));
+            }
+            reply(); // the greeting
+            out.write("LHLO bench.client\r\n".getBytes(Charset.forName("US-ASCII")));
+            out.flush();
+            reply();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown()
+        throws IOException {
+            try {
+                out.write("QUIT\r\n".getBytes(Charset.forName("US-ASCII")));
+                out.flush();
+            }
+            catch (IOException ioe) {
+                // the server's trial state may be torn down first, and a Unix domain socket says so
+            }
+            socket.close();
+        }
+
+        /**
+         * @return the last line of the next reply
+         */
+        String reply()
+        throws IOException {
+            String line;
+            do {
+                line = in.readLine();
+                if (line == null)
+                    throw new IOException("the server closed the connection");
+            } while ((line.length() > 3) && (line.charAt(3) == '-'));
+            return line;
+        }
+    }
+
+
+    /**
+     * One message, sent and delivered
+     */
+    @Benchmark
+    public String message(Server _server, Client _client)
+    throws IOException {
+        _client.out.write(Client.TRANSACTION);
+        _client.out.flush();
+        _client.reply(); // MAIL
+        _client.reply(); // RCPT
+        _client.reply(); // 354
+        String status = _client.reply(); // the delivery
+        if (status.charAt(0) != '2')
+            throw new IOException("message refused: "+status);
+        return status;
+    }
+
+}
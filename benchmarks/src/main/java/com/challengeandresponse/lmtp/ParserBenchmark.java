@@ -0,0 +1,108 @@
+package com.challengeandresponse.lmtp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * The parsers on the command path: Utils.parseEmailAddress() and the reusable ParsedAddress it wraps,
+ * Utils.parseInetAddress() on address literals (never host names, which would time the DNS), and the command line
+ * parsing of LMTPSession. Each benchmark runs once over a set of typical inputs, so the scores are per set.
+ * <p>In com.challengeandresponse.lmtp so it can reach the package-private CommandLine.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+
+    private static final String[] ADDRESSES = {
+        "<user@example.com>",
+        "<First.Last+tag@Mail.Example.ORG>",
+        "<postmaster@bench.test>",
+        "<a@b>",
+        "<>",
+        "no brackets at all",
+        "<someone.with.a.rather.long.local.part@a.deeply.nested.sub.domain.example.co.uk>"
+    };
+
+    private static final String[] INET_ADDRESSES = {
+        "127.0.0.1",
+        "10.20.30.40",
+        "2001:db8:0:0:0:0:0:1"
+    };
+
+    private static final String[] COMMANDS = {
+        "LHLO client.example.com",
+        "MAIL FROM:<sender@example.com> SIZE=1024",
+        "RCPT TO:<user@bench.test>",
+        "rcpt to:<other@bench.test>",
+        "DATA",
+        "RSET",
+        "NOOP",
+        "QUIT",
+        "BDAT 4096 LAST",
+        "HELO not.lmtp"
+    };
+
+    private final byte[][] commandBytes = new byte[COMMANDS.length][];
+    private final CommandLine commandLine = new CommandLine();
+    private final ParsedAddress parsedAddress = new ParsedAddress();
+
+    public ParserBenchmark() {
+        for (int i = 0; i < COMMANDS.length; i++)
+            commandBytes[i] = COMMANDS[i].getBytes(Charset.forName("US-ASCII"));
+    }
+
+
+    @Benchmark
+    public void parseEmailAddress(Blackhole _bh) {
+        for (int i = 0; i < ADDRESSES.length; i++)
+            _bh.consume(Utils.parseEmailAddress(ADDRESSES[i]));
+    }
+
+    @Benchmark
+    public void parsedAddressReused(Blackhole _bh) {
+        for (int i = 0; i < ADDRESSES.length; i++) {
+            _bh.consume(parsedAddress.parse(ADDRESSES[i]));
+            _bh.consume(parsedAddress.domain);
+        }
+    }
+
+    @Benchmark
+    public void parseInetAddress(Blackhole _bh)
+    throws UnknownHostException {
+        for (int i = 0; i < INET_ADDRESSES.length; i++) {
+            InetAddress a = Utils.parseInetAddress(INET_ADDRESSES[i]);
+            _bh.consume(a);
+        }
+    }
+
+    @Benchmark
+    public void parseCommand(Blackhole _bh) {
+        for (int i = 0; i < commandBytes.length; i++) {
+            commandLine.parse(commandBytes[i], 0, commandBytes[i].length);
+            _bh.consume(commandLine.verb());
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.challengeandresponse.lmtp.bench.NullLMTP;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * The session state machine on its own, with no sockets: one whole MAIL / RCPT / DATA transaction fed to an
+ * LMTPSession line by line, the body accumulated and handed to a NullLMTP, for several message sizes. The
+ * replies go to a sink that only counts them.
+ * <p>The sizes are all below SPOOL_THRESHOLD_BYTES, so this is the in-memory DATA path.</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SessionBenchmark {
+
+    /** the message body size, in bytes */
+    @Param({ "1024", "65536", "524288" })
+    public int size;
+
+    private LMTPEngine engine;
+    private LMTPSession session;
+    private byte[][] lines;
+    private int replies;
+    private String lastReply;
+
+
+    @Setup(Level.Trial)
+    public void setUp()
+    throws IOException {
+        ServerConfig config = NullLMTP.benchConfig();
+        engine = new LMTPEngine(LMTP.ENGINE_THREADS);
+        NullLMTP server = new NullLMTP(engine, 0, config);
+        session = new LMTPSession(server, 0, new LMTPSession.ReplySink() {
+            public void send(String _s) {
+                replies++;
+                lastReply = _s;
+            }
+            public void flush() {
+            }
+            public void startTls()
+            throws IOException {
+                throw new IOException("no TLS in the session benchmark");
+            }
+            public void configChanged(ServerConfig _config) {
+            }
+        });
+        // the greeting and the LHLO, once for the whole run
+        session.process(null);
+        session.process("LHLO bench.client");
+
+        String line = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789abcd";
+        int bodyLines = Math.max(1, size / (line.length() + 2));
+        lines = new byte[bodyLines + 6][];
+        Charset ascii = Charset.forName("US-ASCII");
+        int n = 0;
+        lines[n++] = "MAIL FROM:<sender@example.com>".getBytes(ascii);
+        lines[n++] = ("RCPT TO:<user@"+NullLMTP.DOMAIN+">").getBytes(ascii);
+        lines[n++] = "DATA".getBytes(ascii);
+        lines[n++] = "Subject: session benchmark".getBytes(ascii);
+        lines[n++] = new byte[0];
+        for (int i = 0; i < bodyLines; i++)
+            lines[n++] = line.getBytes(ascii);
+        lines[n++] = ".".getBytes(ascii);
+
+        transaction();
+        if ((lastReply == null) || (! lastReply.startsWith("250")))
+            throw new IllegalStateException("the transaction wasn't accepted: "+lastReply);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        engine.stop();
+    }
+
+
+    /**
+     * @return the number of replies so far, so the work can't be optimized away
+     */
+    @Benchmark
+    public int transaction()
+    throws IOException {
+        for (int i = 0; i < lines.length; i++)
+            session.processLine(lines[i], 0, lines[i].length);
+        return replies;
+    }
+
+}
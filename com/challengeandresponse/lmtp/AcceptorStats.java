@@ -0,0 +1,73 @@
+package com.challengeandresponse.lmtp;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * How many connections one acceptor has taken off its listening socket: all told, and in the last whole second.
+ * Only the acceptor's own thread counts, so plain volatile fields do; the Metrics read them whenever they're asked.
+ * Comparing the acceptors of a listener shows how evenly the kernel is spreading connections over them.
+ */
+class AcceptorStats {
+
+    /** the acceptor, as it appears in the metrics: letters, digits and underscores only */
+    final String name;
+    private volatile long accepted = 0;
+    // the second being counted, from System.currentTimeMillis() / 1000, its count so far, and the one before's
+    private volatile long second = 0;
+    private volatile int thisSecond = 0;
+    private volatile int lastSecond = 0;
+
+
+    AcceptorStats(String _name) {
+        name = normalize(_name);
+    }
+
+
+    /**
+     * @return _name as it appears in the metrics, with everything but letters, digits and underscores made an underscore
+     */
+    static String normalize(String _name) {
+        return _name.replaceAll("[^A-Za-z0-9_]", "_");
+    }
+
+
+    /**
+     * Count one connection accepted. Called by the acceptor only
+     */
+    void accepted() {
+        accepted++;
+        long now = System.currentTimeMillis() / 1000;
+        if (now != second) {
+            lastSecond = (now == second + 1) ? thisSecond : 0;
+            thisSecond = 0;
+            second = now;
+        }
+        thisSecond++;
+    }
+
+
+    /**
+     * @return connections accepted since the server started
+     */
+    long getAccepted() {
+        return accepted;
+    }
+
+
+    /**
+     * @return connections accepted in the last whole second, which is 0 if nothing has come in for a while
+     */
+    long getLastSecond() {
+        long now = System.currentTimeMillis() / 1000;
+        long s = second;
+        if (now == s)
+            return lastSecond;
+        if (now == s + 1)
+            return thisSecond;
+        return 0;
+    }
+
+}
@@ -0,0 +1,178 @@
+package com.challengeandresponse.lmtp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * The approved hosts: a set of IPv4 and IPv6 ranges in CIDR form (10.0.0.0/8, 2001:db8::/32), single addresses
+ * and host names, checked against every connection the server accepts.
+ * <p>Each address family has a binary prefix trie, with the nodes kept in plain int arrays. A range is a path
+ * of its prefix length from the root, marked at its end. Checking an address walks its bits from the top until it
+ * reaches a mark (approved) or a missing branch (not), so a check is at most 32 or 128 steps whatever the size of
+ * the list. The address is read with getAddress(), which makes a copy of its 4 or 16 bytes, the only allocation a
+ * check makes. Lists of tens of thousands of ranges are fine.</p>
+ */
+class AddressMatcher {
+
+    /**
+     * A binary trie over the top bits of a 128 bit key, held as two longs. An IPv4 address is the top 32 bits of hi.
+     */
+    private static class PrefixTrie {
+        // node 0 is the root, so 0 can also mean "no child": the root is nobody's child
+        private int[] zero = new int[64];
+        private int[] one = new int[64];
+        private boolean[] terminal = new boolean[64];
+        private int nodes = 1;
+
+        private static int bit(long _hi, long _lo, int _i) {
+            return (int) ((_i < 64) ? (_hi >>> (63 - _i)) : (_lo >>> (127 - _i))) & 1;
+        }
+
+        void insert(long _hi, long _lo, int _length) {
+            int node = 0;
+            for (int i = 0; i < _length; i++) {
+                // a shorter range already covers this one
+                if (terminal[node])
+                    return;
+                int[] next = (bit(_hi, _lo, i) == 0) ? zero : one;
+                if (next[node] == 0) {
+                    grow();
+                    // grow() may have replaced the arrays
+                    next = (bit(_hi, _lo, i) == 0) ? zero : one;
+                    next[node] = nodes++;
+                }
+                node = next[node];
+            }
+            terminal[node] = true;
+        }
+
+        boolean contains(long _hi, long _lo, int _bits) {
+            int node = 0;
+            for (int i = 0; i < _bits; i++) {
+                if (terminal[node])
+                    return true;
+                node = (bit(_hi, _lo, i) == 0) ? zero[node] : one[node];
+                if (node == 0)
+                    return false;
+            }
+            return terminal[node];
+        }
+
+        private void grow() {
+            if (nodes < zero.length)
+                return;
+            int size = zero.length * 2;
+            int[] z = new int[size];
+            int[] o = new int[size];
+            boolean[] t = new boolean[size];
+            System.arraycopy(zero, 0, z, 0, nodes);
+            System.arraycopy(one, 0, o, 0, nodes);
+            System.arraycopy(terminal, 0, t, 0, nodes);
+            zero = z;
+            one = o;
+            terminal = t;
+        }
+
+        int nodeCount() {
+            return nodes;
+        }
+    }
+
+
+    private final PrefixTrie v4 = new PrefixTrie();
+    private final PrefixTrie v6 = new PrefixTrie();
+    private int ranges = 0;
+
+
+    /**
+     * Add an approved host or range
+     * @param _entry an IPv4 or IPv6 address, either one followed by /prefix-length, or a host name (looked up now, once)
+     * @throws UnknownHostException if the host name doesn't resolve or the address can't be parsed
+     * @throws NumberFormatException if the prefix length isn't a number, is negative, or is too long for the address
+     */
+    void add(String _entry)
+    throws UnknownHostException, NumberFormatException {
+        String host = _entry.trim();
+        int prefix = -1;
+        int slash = host.indexOf('/');
+        if (slash >= 0) {
+            prefix = Integer.parseInt(host.substring(slash + 1).trim());
+            if (prefix < 0)
+                throw new NumberFormatException("prefix /"+prefix+" is negative");
+            host = host.substring(0, slash).trim();
+        }
+        InetAddress addr = InetAddress.getByName(host);
+        int bits = addr.getAddress().length * 8;
+        if (prefix < 0)
+            prefix = bits;
+        if (prefix > bits)
+            throw new NumberFormatException("prefix /"+prefix+" is longer than the address");
+        add(addr, prefix);
+    }
+
+
+    /**
+     * Add the range of _prefixLength leading bits of _addr
+     */
+    void add(InetAddress _addr, int _prefixLength) {
+        byte[] a = _addr.getAddress();
+        if (a.length == 4)
+            v4.insert(high(a), 0, _prefixLength);
+        else
+            v6.insert(high(a), low(a), _prefixLength);
+        ranges++;
+    }
+
+
+    /**
+     * @return true if _addr is in one of the ranges
+     */
+    boolean contains(InetAddress _addr) {
+        byte[] a = _addr.getAddress();
+        if (a.length == 4)
+            return v4.contains(high(a), 0, 32);
+        return v6.contains(high(a), low(a), 128);
+    }
+
+
+    /**
+     * @return the number of ranges and addresses added
+     */
+    int size() {
+        return ranges;
+    }
+
+    /**
+     * @return the number of trie nodes in use, for both families together
+     */
+    int nodeCount() {
+        return v4.nodeCount() + v6.nodeCount();
+    }
+
+
+    /**
+     * @return the first 8 bytes of the address (all 4 of an IPv4 one, at the top) as a long
+     */
+    private static long high(byte[] _a) {
+        long result = 0;
+        for (int i = 0; i < 8; i++)
+            result = (result << 8) | ((i < _a.length) ? (_a[i] & 0xff) : 0);
+        return result;
+    }
+
+    /**
+     * @return bytes 8 to 15 of an IPv6 address as a long
+     */
+    private static long low(byte[] _a) {
+        long result = 0;
+        for (int i = 8; i < 16; i++)
+            result = (result << 8) | (_a[i] & 0xff);
+        return result;
+    }
+
+}
@@ -0,0 +1,205 @@
+package com.challengeandresponse.lmtp;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Decides which accepted connections get served. A semaphore holds one permit per session that may run at once.
+ * A connection that gets a permit is started right away. One that doesn't waits in a small bounded queue until
+ * a running session ends and hands over its permit. When the queue is full too, the connection is refused, and
+ * the acceptor answers it with a 421 and closes it. A connection that waits too long is given up on the same way,
+ * as are all those still waiting when the engine stops. The waits are timed on a thread of Admission's own, which
+ * is the one that gives up on them, so the giving up must not block (see LMTP.refuseBusy()).
+ * <p>The acceptor never sleeps or spins, so it keeps draining the kernel's backlog even when the server is
+ * saturated; clients that can't be served hear so at once instead of timing out in the backlog.</p>
+ */
+class Admission {
+
+    /** a connection waiting for a slot */
+    private static class Waiting {
+        final Runnable start;
+        final Runnable giveUp;
+        /** gives up on it when it has waited too long. null if it may wait as long as it takes */
+        volatile ScheduledFuture <?> timeout = null;
+
+        Waiting(Runnable _start, Runnable _giveUp) {
+            start = _start;
+            giveUp = _giveUp;
+        }
+    }
+
+    private final Semaphore permits;
+    private final ArrayBlockingQueue <Waiting> waiting;
+    /** times the waits. Its thread only runs while there are some */
+    private final ScheduledThreadPoolExecutor timer;
+    private volatile boolean shutdown = false;
+
+    private final AtomicLong admitted = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong queued = new AtomicLong(0);
+    private final AtomicInteger active = new AtomicInteger(0);
+
+
+    /**
+     * @param _maxSessions the most sessions served at once. 0 or less means no limit
+     * @param _maxQueued the most connections that may wait for a session slot. 0 or less means none wait: a connection
+     * that can't start right away is refused
+     */
+    Admission(int _maxSessions, int _maxQueued) {
+        permits = new Semaphore((_maxSessions > 0) ? _maxSessions : Integer.MAX_VALUE);
+        waiting = (_maxQueued > 0) ? new ArrayBlockingQueue <Waiting> (_maxQueued) : null;
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable _r) {
+                Thread t = new Thread(_r, "lmtp_admission");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        // a connection that is started in time takes its timeout off the queue with it
+        timer.setRemoveOnCancelPolicy(true);
+        timer.setKeepAliveTime(1, TimeUnit.SECONDS);
+        timer.allowCoreThreadTimeOut(true);
+    }
+
+
+    /**
+     * Offer a newly accepted connection
+     * @param _start starts serving the connection. Run now if there's a free slot, or later, from whichever thread
+     * calls release(), if the connection has to wait. It must not block
+     * @param _giveUp tells the connection the server is too busy and closes it. Run instead of _start if the
+     * connection waits longer than _timeoutMsec, on Admission's timer thread, or is still waiting when the engine
+     * stops. It must not block
+     * @param _timeoutMsec how long the connection may wait, without a greeting, for a slot. 0 for as long as it takes
+     * @return false if the connection was refused and neither will ever run. The caller sends the 421 and closes it
+     */
+    boolean offer(Runnable _start, Runnable _giveUp, long _timeoutMsec) {
+        if (shutdown) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        if (permits.tryAcquire()) {
+            admitted.incrementAndGet();
+            active.incrementAndGet();
+            _start.run();
+            return true;
+        }
+        final Waiting w = new Waiting(_start, _giveUp);
+        if ((waiting != null) && waiting.offer(w)) {
+            queued.incrementAndGet();
+            if (_timeoutMsec > 0) {
+                try {
+                    w.timeout = timer.schedule(new Runnable() {
+                        public void run() {
+                            giveUp(w);
+                        }
+                    }, _timeoutMsec, TimeUnit.MILLISECONDS);
+                }
+                catch (RejectedExecutionException ree) {
+                    // the engine is stopping, and it's given up on below
+                }
+            }
+            // a session may have ended between the tryAcquire() and the offer(), with nobody waiting to take its permit
+            startWaiting();
+            // or the engine stopped, and its drain() has been and gone
+            if (shutdown)
+                giveUp(w);
+            return true;
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+
+    /**
+     * A session has ended. Its permit goes to the connection that has waited longest, if any
+     */
+    void release() {
+        active.decrementAndGet();
+        permits.release();
+        startWaiting();
+    }
+
+
+    /**
+     * The engine is stopping: give up on every connection still waiting, and refuse any more
+     */
+    void shutdown() {
+        shutdown = true;
+        timer.shutdownNow();
+        if (waiting == null)
+            return;
+        Waiting w;
+        while ((w = waiting.poll()) != null) {
+            rejected.incrementAndGet();
+            w.giveUp.run();
+        }
+    }
+
+
+    private void startWaiting() {
+        if (waiting == null)
+            return;
+        while ((! shutdown) && (! waiting.isEmpty()) && permits.tryAcquire()) {
+            Waiting w = waiting.poll();
+            if (w == null) {
+                permits.release(); // another thread got to it first
+                continue;
+            }
+            admitted.incrementAndGet();
+            active.incrementAndGet();
+            ScheduledFuture <?> t = w.timeout;
+            if (t != null)
+                t.cancel(false);
+            w.start.run();
+        }
+    }
+
+    /**
+     * Give up on a waiting connection, unless it has been started or given up on already
+     */
+    private void giveUp(Waiting _w) {
+        if (waiting.remove(_w)) {
+            rejected.incrementAndGet();
+            _w.giveUp.run();
+        }
+    }
+
+
+    /** @return the number of connections that have been started, including those that waited first */
+    long admittedCount() {
+        return admitted.get();
+    }
+
+    /** @return the number of connections refused with a 421, at once or after waiting */
+    long rejectedCount() {
+        return rejected.get();
+    }
+
+    /** @return the number of connections that had to wait for a slot before they were started */
+    long queuedCount() {
+        return queued.get();
+    }
+
+    /** @return the number of sessions being served right now */
+    int activeNow() {
+        return active.get();
+    }
+
+    /** @return the number of connections waiting for a slot right now */
+    int waitingNow() {
+        return (waiting == null) ? 0 : waiting.size();
+    }
+
+}
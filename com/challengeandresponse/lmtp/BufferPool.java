@@ -0,0 +1,142 @@
+package com.challengeandresponse.lmtp;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Byte arrays kept for reuse, by size class. A buffer is leased when a transaction or a connection needs one and
+ * released when it's done with it, so a long-lived connection sending message after message gets the same few
+ * buffers back each time instead of making new ones for the garbage collector. Any thread can lease and release.
+ * <p>lease() hands out an array of the smallest class that's big enough; one bigger than every class is allocated
+ * and never pooled. The pool keeps at most a set number of bytes; what's released past that is left to the
+ * garbage collector. Every lease is counted as a hit (reused) or a miss (allocated) in the Metrics.</p>
+ */
+class BufferPool {
+
+    /** one size of buffer, and the ones of that size waiting to be leased */
+    private static class SizeClass {
+        final int size;
+        final ConcurrentLinkedQueue <byte[]> free = new ConcurrentLinkedQueue <byte[]> ();
+
+        SizeClass(int _size) {
+            size = _size;
+        }
+    }
+
+    private final SizeClass[] classes; // smallest first
+    private final long maxPooledBytes;
+    private final AtomicLong pooledBytes = new AtomicLong(0);
+    private final Metrics metrics;
+    private final Metrics.Counter reused;
+    private final Metrics.Counter allocated;
+
+
+    /**
+     * @param _sizes the size classes, in bytes, in any order
+     * @param _maxPooledBytes the most bytes to keep, over all the classes. 0 or less keeps nothing
+     * @param _metrics where the leases are counted
+     * @param _reused the counter for leases the pool could serve
+     * @param _allocated the counter for leases that had to allocate
+     */
+    BufferPool(int[] _sizes, long _maxPooledBytes, Metrics _metrics, Metrics.Counter _reused, Metrics.Counter _allocated) {
+        int[] sizes = _sizes.clone();
+        Arrays.sort(sizes);
+        int n = 0;
+        for (int i = 0; i < sizes.length; i++)
+            if ((i == 0) || (sizes[i] != sizes[i-1]))
+                sizes[n++] = sizes[i];
+        classes = new SizeClass[n];
+        for (int i = 0; i < n; i++)
+            classes[i] = new SizeClass(sizes[i]);
+        maxPooledBytes = _maxPooledBytes;
+        metrics = _metrics;
+        reused = _reused;
+        allocated = _allocated;
+    }
+
+
+    /**
+     * @return size classes from _smallest, doubling, up to _largest, which is always the last one
+     */
+    static int[] doubling(int _smallest, int _largest) {
+        int n = 1;
+        for (long s = _smallest; s < _largest; s *= 2)
+            n++;
+        int[] sizes = new int[n];
+        long s = _smallest;
+        for (int i = 0; i < n - 1; i++, s *= 2)
+            sizes[i] = (int) s;
+        sizes[n - 1] = Math.max(_smallest, _largest);
+        return sizes;
+    }
+
+
+    /**
+     * @return the size of the array lease(_atLeast) would hand out
+     */
+    int sizeFor(int _atLeast) {
+        SizeClass c = classFor(_atLeast);
+        return (c != null) ? c.size : _atLeast;
+    }
+
+    private SizeClass classFor(int _atLeast) {
+        for (int i = 0; i < classes.length; i++)
+            if (classes[i].size >= _atLeast)
+                return classes[i];
+        return null;
+    }
+
+
+    /**
+     * @return an array of at least _atLeast bytes, from the pool if there's one there. Its contents are whatever
+     * its last user left in it
+     */
+    byte[] lease(int _atLeast) {
+        SizeClass c = classFor(_atLeast);
+        if (c == null) {
+            metrics.count(allocated);
+            return new byte[_atLeast];
+        }
+        byte[] b = c.free.poll();
+        if (b != null) {
+            pooledBytes.addAndGet(-b.length);
+            metrics.count(reused);
+            return b;
+        }
+        metrics.count(allocated);
+        return new byte[c.size];
+    }
+
+
+    /**
+     * Give an array back, to be leased again. One that isn't the size of a class, or that would take the pool past
+     * its limit, is left to the garbage collector. The caller must not use it after this.
+     */
+    void release(byte[] _b) {
+        if (_b == null)
+            return;
+        SizeClass c = classFor(_b.length);
+        if ((c == null) || (c.size != _b.length))
+            return;
+        if (pooledBytes.addAndGet(_b.length) > maxPooledBytes) {
+            pooledBytes.addAndGet(-_b.length);
+            return;
+        }
+        c.free.add(_b);
+    }
+
+
+    /**
+     * @return the bytes held in the pool right now, waiting to be leased
+     */
+    long pooledBytes() {
+        return pooledBytes.get();
+    }
+
+}
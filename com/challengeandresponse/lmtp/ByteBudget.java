@@ -0,0 +1,70 @@
+package com.challengeandresponse.lmtp;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * A count of bytes shared by all the sessions of a server, used to cap the heap held by message bodies that are
+ * being received. A MessageBody reserves bytes here before it grows its in-memory buffer; when the reservation is
+ * refused it spools to disk instead, and it gives its bytes back when it spills or is disposed of.
+ */
+class ByteBudget {
+
+    private final long limit;
+    private final AtomicLong inUse = new AtomicLong(0);
+
+
+    /**
+     * @param _limit the most bytes that can be reserved at once. 0 or less means no limit (but the count is still kept)
+     */
+    ByteBudget(long _limit) {
+        limit = _limit;
+    }
+
+
+    /**
+     * Try to take _bytes from the budget
+     * @return true if they were reserved, false if that would have gone over the limit (and nothing was reserved)
+     */
+    boolean reserve(long _bytes) {
+        if (limit <= 0) {
+            inUse.addAndGet(_bytes);
+            return true;
+        }
+        while (true) {
+            long current = inUse.get();
+            if (current + _bytes > limit)
+                return false;
+            if (inUse.compareAndSet(current, current + _bytes))
+                return true;
+        }
+    }
+
+
+    /**
+     * Give back bytes taken with reserve()
+     */
+    void release(long _bytes) {
+        inUse.addAndGet(-_bytes);
+    }
+
+
+    /**
+     * @return the number of bytes reserved right now
+     */
+    long inUse() {
+        return inUse.get();
+    }
+
+    /**
+     * @return the limit given to the constructor
+     */
+    long limit() {
+        return limit;
+    }
+
+}
@@ -0,0 +1,227 @@
+package com.challengeandresponse.lmtp;
+
+import java.nio.charset.Charset;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * One command line from the client, parsed straight from the bytes it arrived in. Each session keeps one of these
+ * and reuses it for every line, so parsing a command allocates nothing: the verb is matched case-insensitively
+ * against the Verb table in place, and the argument is only made into a String if the command needs it. The
+ * parameters of MAIL FROM and BDAT are looked at in place too, a word at a time, with nextWord().
+ * <p>The line is split the way it always was: surrounding whitespace is ignored, the verb is everything up to the
+ * first space, and the argument is the next space-delimited word.</p>
+ */
+class CommandLine {
+
+    /**
+     * The commands the session knows. Every one of them but STARTTLS is four letters long, which lets a verb be
+     * matched by packing its four bytes into an int. STARTTLS is matched on its own.
+     */
+    enum Verb {
+        LHLO, MAIL, RCPT, DATA, BDAT, RSET, NOOP, QUIT, VRFY, EXPN, TURN, STARTTLS,
+        /** anything else, including MAIL and RCPT without their FROM: and TO: */
+        UNKNOWN;
+
+        /** the four lowercase letters of the verb, packed into an int. 0 for UNKNOWN */
+        final int key;
+
+        Verb() {
+            String n = name().toLowerCase();
+            key = (n.length() == 4) ? pack(n.charAt(0), n.charAt(1), n.charAt(2), n.charAt(3)) : 0;
+        }
+
+        private static final Verb[] ALL = values();
+    }
+
+    /** what has to follow the MAIL verb, lowercase, with the space */
+    private static final byte[] FROM = " from:".getBytes(Charset.forName("US-ASCII"));
+    /** what has to follow the RCPT verb */
+    private static final byte[] TO = " to:".getBytes(Charset.forName("US-ASCII"));
+    private static final byte[] STARTTLS = "starttls".getBytes(Charset.forName("US-ASCII"));
+
+    private byte[] buf;
+    private int start; // the first byte of the trimmed line
+    private int end; // just past its last byte
+    private int verbEnd;
+    private int argStart;
+    private int argEnd;
+    private Verb verb = Verb.UNKNOWN;
+    // the word nextWord() last found
+    private int wordStart;
+    private int wordEnd;
+
+
+    private static int pack(int _a, int _b, int _c, int _d) {
+        return ((_a & 0xff) << 24) | ((_b & 0xff) << 16) | ((_c & 0xff) << 8) | (_d & 0xff);
+    }
+
+    /**
+     * Lowercase an ASCII letter. Setting 0x20 only turns A-Z into a-z; no other byte becomes a lowercase letter
+     */
+    private static int lower(byte _b) {
+        return (_b | 0x20) & 0xff;
+    }
+
+
+    /**
+     * Parse a line. The bytes are not copied, so they must stay put until the caller is done with this line.
+     * @param _buf holds the line, without its line ending
+     * @param _off where the line starts in _buf
+     * @param _len its length
+     * @return false if the line is blank, so there is no command in it
+     */
+    boolean parse(byte[] _buf, int _off, int _len) {
+        buf = _buf;
+        start = _off;
+        end = _off + _len;
+        // trim(), as the old tokenizing did
+        while ((start < end) && ((buf[start] & 0xff) <= ' '))
+            start++;
+        while ((end > start) && ((buf[end-1] & 0xff) <= ' '))
+            end--;
+        if (start == end) {
+            verb = Verb.UNKNOWN;
+            return false;
+        }
+
+        verbEnd = start;
+        while ((verbEnd < end) && (buf[verbEnd] != ' '))
+            verbEnd++;
+        wordEnd = verbEnd;
+        argStart = verbEnd;
+        while ((argStart < end) && (buf[argStart] == ' '))
+            argStart++;
+        argEnd = argStart;
+        while ((argEnd < end) && (buf[argEnd] != ' '))
+            argEnd++;
+
+        verb = Verb.UNKNOWN;
+        if (verbEnd - start == 4) {
+            int key = pack(lower(buf[start]), lower(buf[start+1]), lower(buf[start+2]), lower(buf[start+3]));
+            for (int i = 0; i < Verb.ALL.length; i++) {
+                if (Verb.ALL[i].key == key) {
+                    verb = Verb.ALL[i];
+                    break;
+                }
+            }
+        }
+        else if (verbEnd - start == STARTTLS.length) {
+            verb = Verb.STARTTLS;
+            for (int i = 0; i < STARTTLS.length; i++) {
+                if (lower(buf[start + i]) != STARTTLS[i]) {
+                    verb = Verb.UNKNOWN;
+                    break;
+                }
+            }
+        }
+        // MAIL and RCPT only count as such when the line starts "mail from:" or "rcpt to:"
+        if ( ((verb == Verb.MAIL) && (! followedBy(FROM))) || ((verb == Verb.RCPT) && (! followedBy(TO))) )
+            verb = Verb.UNKNOWN;
+        return true;
+    }
+
+
+    /**
+     * @return true if the verb is followed by _lowerText, compared ignoring case
+     */
+    private boolean followedBy(byte[] _lowerText) {
+        return matches(verbEnd, end, _lowerText);
+    }
+
+    /**
+     * @return true if the bytes from _at, up to _limit, start with _lowerText, compared ignoring case
+     */
+    private boolean matches(int _at, int _limit, byte[] _lowerText) {
+        if (_limit - _at < _lowerText.length)
+            return false;
+        for (int i = 0; i < _lowerText.length; i++) {
+            byte b = buf[_at + i];
+            byte t = _lowerText[i];
+            if ((b == t) || ((t >= 'a') && (t <= 'z') && (lower(b) == t)))
+                continue;
+            return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * Go through the words after the verb, the parameters of MAIL FROM and BDAT, without making Strings of them.
+     * The first call after parse() finds the first word after the verb, each call after that the next one.
+     * @return false if there are no more
+     */
+    boolean nextWord() {
+        wordStart = wordEnd;
+        while ((wordStart < end) && (buf[wordStart] == ' '))
+            wordStart++;
+        if (wordStart == end) {
+            wordEnd = end;
+            return false;
+        }
+        wordEnd = wordStart;
+        while ((wordEnd < end) && (buf[wordEnd] != ' '))
+            wordEnd++;
+        return true;
+    }
+
+    /**
+     * @return true if the word nextWord() found starts with _lowerPrefix, compared ignoring case, and has more after it
+     */
+    boolean wordHasPrefix(byte[] _lowerPrefix) {
+        return (wordEnd - wordStart > _lowerPrefix.length) && matches(wordStart, wordEnd, _lowerPrefix);
+    }
+
+    /**
+     * @return true if the word nextWord() found is _lowerText from _skip bytes in, compared ignoring case
+     */
+    boolean wordIs(int _skip, byte[] _lowerText) {
+        return (wordEnd - wordStart - _skip == _lowerText.length) && matches(wordStart + _skip, wordEnd, _lowerText);
+    }
+
+    /**
+     * @return the word nextWord() found, from _skip bytes in, as a decimal number, or -1 if it's anything else or too
+     * big for a long
+     */
+    long wordNumber(int _skip) {
+        int from = wordStart + _skip;
+        if (from >= wordEnd)
+            return -1;
+        long n = 0;
+        for (int i = from; i < wordEnd; i++) {
+            int d = buf[i] - '0';
+            if ((d < 0) || (d > 9) || (n > (Long.MAX_VALUE - d) / 10))
+                return -1;
+            n = n * 10 + d;
+        }
+        return n;
+    }
+
+
+    /**
+     * @return the command of the last line parsed
+     */
+    Verb verb() {
+        return verb;
+    }
+
+    /**
+     * @return the verb as sent, lowercased, for error messages
+     */
+    String verbText() {
+        return new String(buf, start, verbEnd - start, Charset.defaultCharset()).toLowerCase();
+    }
+
+    /**
+     * @return the argument (the word after the verb), or null if there was none
+     */
+    String argument() {
+        if (argStart == argEnd)
+            return null;
+        return new String(buf, argStart, argEnd - argStart, Charset.defaultCharset());
+    }
+
+}
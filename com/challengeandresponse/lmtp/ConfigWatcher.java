@@ -0,0 +1,102 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Watches a configuration file and reconfigures the server whenever it changes. A daemon thread waits on a
+ * WatchService for the file's directory, and when the file is written (or replaced, or created) it reads it into
+ * a new ServerConfig made from the one the server was started with and swaps that in, so a setting taken out of the
+ * file goes back to its startup value rather than keeping whatever the last reload set. A file that can't be read or
+ * has a bad number in it is reported and ignored: the server keeps the configuration it has.
+ */
+class ConfigWatcher extends Thread {
+
+    /** After a change, wait this long for more changes before reading the file, so an editor's several writes make one reload */
+    private static final long	SETTLE_MSEC = 100;
+
+    private final LMTP server;
+    private final File file;
+    private final WatchService watcher;
+
+
+    /**
+     * @param _server the server to reconfigure
+     * @param _file the configuration file
+     * @throws IOException if the file's directory can't be watched
+     */
+    ConfigWatcher(LMTP _server, File _file)
+    throws IOException {
+        super("lmtp_config");
+        setDaemon(true);
+        server = _server;
+        file = _file.getAbsoluteFile();
+        watcher = FileSystems.getDefault().newWatchService();
+        file.getParentFile().toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+
+    /**
+     * Read the file and swap in the configuration it describes
+     * @return true if the server was reconfigured
+     */
+    boolean reload() {
+        try {
+            server.reconfigure(server.getStartupConfig().with(file));
+            Log.info("Configuration reloaded from {}", file);
+            return true;
+        }
+        catch (IOException ioe) {
+            Log.warn("Could not read configuration file {}, keeping the current configuration. {}", file, ioe.getMessage());
+        }
+        catch (NumberFormatException nfe) {
+            Log.warn("Bad setting in configuration file {}, keeping the current configuration. {}", file, nfe.getMessage());
+        }
+        return false;
+    }
+
+
+    public void run() {
+        Path name = file.toPath().getFileName();
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                // the events for the directory may be about any file in it
+                do {
+                    for (WatchEvent <?> event : key.pollEvents()) {
+                        if (name.equals(event.context()))
+                            changed = true;
+                    }
+                    if (! key.reset())
+                        return; // the directory is gone
+                    key = watcher.poll(SETTLE_MSEC, TimeUnit.MILLISECONDS);
+                } while (key != null);
+                if (changed)
+                    reload();
+            }
+        }
+        catch (InterruptedException ie) {
+            // stopped
+        }
+        finally {
+            try {
+                watcher.close();
+            }
+            catch (IOException ioe) { }
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+package com.challengeandresponse.lmtp;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * The domains this server accepts mail for, indexed by their labels from the right: com, then example, then mail
+ * for mail.example.com. Three kinds of rule can be added:
+ * <ul>
+ * <li>example.com - just that domain</li>
+ * <li>*.example.com - any domain under example.com, but not example.com itself</li>
+ * <li>.example.com - example.com and any domain under it</li>
+ * </ul>
+ * <p>contains() walks the labels of the domain it's given from the right, one trie node per label, and stops at
+ * the first rule that settles it, so a check costs at most one step per label however many domains are indexed.
+ * The labels are looked up in place in the domain string: each node has a small open-addressing table of its
+ * children, hashed and compared over the label's characters, so no substrings are made.</p>
+ * <p>Domains are matched as given; both the rules and the domains checked are expected in lowercase.</p>
+ */
+class DomainIndex {
+
+    /**
+     * One label, and the labels that can come before it
+     */
+    private static class Node {
+        boolean exact; // the domain ending at this node is served
+        boolean below; // every domain under this node is served
+        String[] labels = null; // open addressing table of the children, by label
+        Node[] children = null;
+        int count = 0;
+
+        /**
+         * @return the child for the label _s[_start,_end), or null
+         */
+        Node find(String _s, int _start, int _end) {
+            if (labels == null)
+                return null;
+            int len = _end - _start;
+            int mask = labels.length - 1;
+            for (int i = hash(_s, _start, _end) & mask; labels[i] != null; i = (i + 1) & mask) {
+                if ((labels[i].length() == len) && labels[i].regionMatches(0, _s, _start, len))
+                    return children[i];
+            }
+            return null;
+        }
+
+        /**
+         * @return the child for _label, created if needed
+         */
+        Node add(String _label) {
+            Node n = find(_label, 0, _label.length());
+            if (n != null)
+                return n;
+            if ((labels == null) || ((count + 1) * 2 > labels.length))
+                resize();
+            n = new Node();
+            put(_label, n);
+            count++;
+            return n;
+        }
+
+        private void put(String _label, Node _n) {
+            int mask = labels.length - 1;
+            int i = hash(_label, 0, _label.length()) & mask;
+            while (labels[i] != null)
+                i = (i + 1) & mask;
+            labels[i] = _label;
+            children[i] = _n;
+        }
+
+        /**
+         * Double the table (keeping it at most half full), or make the first one
+         */
+        private void resize() {
+            String[] oldLabels = labels;
+            Node[] oldChildren = children;
+            int size = (labels == null) ? 4 : labels.length * 2;
+            labels = new String[size];
+            children = new Node[size];
+            if (oldLabels != null) {
+                for (int i = 0; i < oldLabels.length; i++)
+                    if (oldLabels[i] != null)
+                        put(oldLabels[i], oldChildren[i]);
+            }
+        }
+    }
+
+
+    private final Node root = new Node();
+    private int rules = 0;
+
+
+    /**
+     * String.hashCode() of _s.substring(_start, _end), without making the substring
+     */
+    private static int hash(String _s, int _start, int _end) {
+        int h = 0;
+        for (int i = _start; i < _end; i++)
+            h = 31 * h + _s.charAt(i);
+        // spread the high bits into the low ones the table indexes by
+        return h ^ (h >>> 16);
+    }
+
+
+    /**
+     * Add a rule
+     * @param _rule "domain.tld" for just that domain, "*.domain.tld" for the domains under it, or ".domain.tld" for both
+     */
+    void add(String _rule) {
+        String rule = _rule.trim().toLowerCase();
+        boolean exact = true;
+        boolean below = false;
+        if (rule.startsWith("*.")) {
+            rule = rule.substring(2);
+            exact = false;
+            below = true;
+        }
+        else if (rule.startsWith(".")) {
+            rule = rule.substring(1);
+            below = true;
+        }
+
+        Node node = root;
+        int end = rule.length();
+        while (true) {
+            int start = rule.lastIndexOf('.', end - 1) + 1;
+            node = node.add(rule.substring(start, end));
+            if (start == 0)
+                break;
+            end = start - 1;
+        }
+        node.exact |= exact;
+        node.below |= below;
+        rules++;
+    }
+
+
+    /**
+     * @param _domain a domain, lowercase, as it came after the @
+     * @return true if a rule says the server accepts mail for it
+     */
+    boolean contains(String _domain) {
+        Node node = root;
+        int end = _domain.length();
+        while (true) {
+            int start = (end == 0) ? 0 : _domain.lastIndexOf('.', end - 1) + 1;
+            node = node.find(_domain, start, end);
+            if (node == null)
+                return false;
+            if (start == 0)
+                return node.exact;
+            // there's more of the domain to the left, so it's under this node
+            if (node.below)
+                return true;
+            end = start - 1;
+        }
+    }
+
+
+    /**
+     * @return the number of rules added
+     */
+    int size() {
+        return rules;
+    }
+
+}
@@ -0,0 +1,27 @@
+package com.challengeandresponse.lmtp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Looks up a host name, for the LIVE_NET_LOOKUPS check on MAIL FROM. The server puts a ResolverCache in front of
+ * whichever resolver LMTP.RESOLVER is set to, so an implementation only needs to do the plain, blocking lookup;
+ * it's called from the cache's own lookup threads, never from a session.
+ * <p>The default goes to the system resolver through Utils.parseInetAddress(). Set LMTP.RESOLVER to a
+ * StaticResolver to answer from a table instead, without touching DNS.</p>
+ */
+public interface DomainResolver {
+
+    /**
+     * @param _host a host name, or an IPv4 or IPv6 address
+     * @return its address
+     * @throws UnknownHostException if it doesn't exist
+     */
+    InetAddress resolve(String _host) throws UnknownHostException;
+
+}
@@ -0,0 +1,133 @@
+package com.challengeandresponse.lmtp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * A latency histogram that any number of threads can record into at once, without locks and without allocating.
+ * Like an HDR histogram, the buckets are log-linear: every power of two is cut into 16 equal buckets, so a value is
+ * known to within 1/16 (6.25%) of itself, from 1 to 2^63, in under a thousand buckets. Recording a value is one
+ * bucket index computation and a few atomic adds.
+ * <p>The percentiles are read from the counts as they are at the time, so while values are being recorded a
+ * reading may be a value or two behind; it's never wrong by more than that.</p>
+ */
+public class Histogram {
+
+    /** log2 of the number of buckets each power of two is cut into */
+    private static final int	SUB_BITS = 4;
+    private static final int	SUB_COUNT = 1 << SUB_BITS;
+    /** enough buckets for any positive long */
+    private static final int	BUCKETS = (64 - SUB_BITS + 1) * SUB_COUNT;
+
+    private final String name;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong(0);
+
+
+    /**
+     * @param _name what's measured, for the snapshot
+     */
+    public Histogram(String _name) {
+        name = _name;
+    }
+
+
+    /**
+     * @param _value a value, usually nanoseconds. Values below 0 count as 0
+     */
+    public void record(long _value) {
+        long v = (_value < 0) ? 0 : _value;
+        counts.incrementAndGet(bucket(v));
+        count.increment();
+        sum.add(v);
+        long m;
+        while (v > (m = max.get())) {
+            if (max.compareAndSet(m, v))
+                break;
+        }
+    }
+
+
+    /**
+     * @return the index of the bucket _v goes in
+     */
+    static int bucket(long _v) {
+        if (_v < SUB_COUNT)
+            return (int) _v;
+        int exp = 63 - Long.numberOfLeadingZeros(_v); // at least SUB_BITS
+        int sub = (int) (_v >>> (exp - SUB_BITS)) & (SUB_COUNT - 1);
+        return ((exp - SUB_BITS + 1) << SUB_BITS) + sub;
+    }
+
+    /**
+     * @return the highest value that goes in bucket _i
+     */
+    static long highestValue(int _i) {
+        if (_i < SUB_COUNT)
+            return _i;
+        int exp = (_i >>> SUB_BITS) + SUB_BITS - 1;
+        long sub = _i & (SUB_COUNT - 1);
+        long lowest = (SUB_COUNT + sub) << (exp - SUB_BITS);
+        return lowest + (1L << (exp - SUB_BITS)) - 1;
+    }
+
+
+    /**
+     * @return the name given to the constructor
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the mean of the values recorded, or 0 if there are none
+     */
+    public long getMean() {
+        long n = count.sum();
+        return (n == 0) ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * @return the biggest value recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param _percentile 0 to 100
+     * @return a value that _percentile percent of the values recorded are no bigger than (to within the bucket
+     * size), or 0 if there are none
+     */
+    public long getPercentile(double _percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts.get(i);
+        if (total == 0)
+            return 0;
+        long wanted = Math.max(1, (long) Math.ceil(total * (_percentile / 100.0)));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= wanted)
+                return Math.min(highestValue(i), max.get());
+        }
+        return max.get();
+    }
+
+}
@@ -13,21 +13,32 @@ package com.challengeandresponse.lmtp;
  *     super(approvedHosts, domainsServed);
  * }
  * </p> 
+ * <p>That constructor serves forever and never returns. For a server that can be started and stopped, provide this
+ * one as well, and call start() on what it makes. Several servers, each with its own port and ServerConfig, can share one LMTPEngine:<br>
+ *  public MyLMTP(LMTPEngine engine, int port, ServerConfig config) {
+ *     super(engine, port, config);
+ * }
+ * </p>
+ * <p>When the MTA is on the same host, the server can listen on a Unix domain socket too, or instead, with the
+ * (engine, port, socket file, config) constructor or SOCKET_PATH. That skips the loopback TCP stack, and who can
+ * connect is up to the permissions on the socket file (UNIX_SOCKET_PERMISSIONS, UNIX_SOCKET_GROUP) and, if it's
+ * set, APPROVED_PEERS, checked against the user and group of the process at the other end.</p>
  * <p><strong>Hey again!</strong> The DELIVER method... don't forget. It's abstract here.  Your
  * class won't complile without one. Nyeh.<br>
  * String deliver(String _mailFrom, String _mailTo, String _message);<br>
+ * If you expect big messages, override deliver(String _mailFrom, String _mailTo, InputStream _message) as well,
+ * which gets the body as a stream (spooled to disk above SPOOL_THRESHOLD_BYTES) and is what the server really calls.<br>
  * 
  * <p>There are several configurable parameters, set here as static vars ... you can override them
- * with new values in the subclass.</p>
+ * with new values in the subclass. The hosts, domains and per-session limits can also be changed while the server
+ * runs, with reconfigure() or by pointing CONFIG_FILE at a file that's edited (see ServerConfig).</p>
  * <p>Here is an example of the main() method for a subclass of LMTP:<br>
  * <pre>
  public static void main (String[] args)
     {
         // these settings change the defaults
         SOCKET_NUM = 9901;
-        SOFT_MAX_THREADS = 150;
         HARD_MAX_THREADS = 200;
-        BUSY_NEW_THREAD_DELAY = 100;
         MY_HOST = "megasuperhost.net";
         INACTIVITY_TIMEOUT_MSEC = 15000;
         MAX_ERRORS_BEFORE_DISCONNECT = 2;
@@ -54,10 +65,9 @@ package com.challengeandresponse.lmtp;
  * and as such, its RFC mostly discusses the differences against the SMTP RFC, rather than repeating or 
  * restating what's already there. Construction of an LMTP server requires integration of both documents.
  * 
- * TODO: So it doesn't actually check the domain name, but the ENTIRE chunk after the @ sign... which could be a host.domain.tld
- * or even host.host.domain.tld or worse. So, that's wrong. Redo this, parsing from the right to just get the DOMAIN.TLD part. so sorry!
- * 
- * TODO: it advertises both the PIPELINING and SIZE commands, but doesn't implement either of them
+ * The domains served are matched from the right, label by label, against the whole chunk after the @ sign. An entry
+ * "example.com" accepts just that domain, "*.example.com" any host.example.com (or host.host.example.com...) but not
+ * example.com itself, and ".example.com" both.
  * 
  * TODO: it goes into pipelining mode w/out being asked. this isn't necessarily a bad thing, but the state
  * transitions are not entirely correct. There is also a special case where it demands an LHLO as the first
@@ -65,36 +75,105 @@ package com.challengeandresponse.lmtp;
  */
 
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.BindException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
 import java.net.UnknownHostException;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.StringTokenizer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.net.ssl.SSLContext;
 
 
 
 public abstract class LMTP {
     
     /// THESE ARE DEFAULTS FOR THE CONFIGURABLE PARAMETERS
-    /** The socket number to listen on for connection requests. The IANA assigned port for local mail delivery is 2424, but we don't need a privileged port for this.<br>Default 2424*/
+    /** The socket number to listen on for connection requests. The IANA assigned port for local mail delivery is 2424, but we don't need a privileged port for this.
+     * Set to -1 to listen on SOCKET_PATH only.<br>Default 2424*/
     public static int				SOCKET_NUM	= 2424;
-    /** when this many threads are alive, begin slowing down between accepts. <br>Default 100 */
+    /**
+     * A Unix domain socket to listen on as well as (or, with SOCKET_NUM -1, instead of) the TCP port. A socket file
+     * left behind by a server that's gone is replaced; one that a running server is listening on is not.
+     * <br>Default: null (no Unix domain socket)
+     */
+    public static File				SOCKET_PATH = null;
+    /** The permissions the Unix domain socket file is given once it's made, as for ls -l. <br>Default: rw-rw---- */
+    public static String			UNIX_SOCKET_PERMISSIONS = "rw-rw----";
+    /** The group the Unix domain socket file is given, so the MTA's group can connect. null leaves it as made. <br>Default: null */
+    public static String			UNIX_SOCKET_GROUP = null;
+    /**
+     * The users, and groups written @group, whose processes may connect over the Unix domain socket, checked with
+     * the socket's peer credentials. Empty leaves it to the file permissions. Doesn't apply to TCP connections,
+     * which are checked against the approved hosts.
+     * <br>Default: empty
+     */
+    public static Vector <String>	APPROVED_PEERS = new Vector <String> ();
+    /** @deprecated no longer used. The acceptor doesn't slow down any more: HARD_MAX_THREADS and MAX_QUEUED_CONNECTIONS decide who is served. <br>Default 100 */
+    @Deprecated
     public static int				SOFT_MAX_THREADS = 100;
-    /** when this many threads are alive, don't accept any more connections. <br>Default 150*/
+    /** The most connections served at once by ENGINE_THREADS (one thread each). Further connections wait in a queue of MAX_QUEUED_CONNECTIONS, and when that's full they get a 421. <br>Default 150*/
     public static int 				HARD_MAX_THREADS = 150;
-    /** The delay in msec before re-attempting to listen for a server connection, if ?_MAX_THREADS threads are active right now. 
-     * This is done to avoid soaking the server if a giant load should occur suddenly. 
+    /** @deprecated no longer used. The acceptor never sleeps; connections that can't be served are answered with a 421 at once.
      * <br>Default 200
      */
+    @Deprecated
     public static int				BUSY_NEW_THREAD_DELAY = 200;
+    /** The most connections served at once by ENGINE_NIO and ENGINE_VIRTUAL, which don't need a thread each. Set to 0 for no limit. <br>Default: 10000 */
+    public static int				MAX_SESSIONS = 10000;
+    /**
+     * Accepted connections that find every session slot taken wait in a queue of this size for one to free up,
+     * without a greeting, for up to INACTIVITY_TIMEOUT_MSEC; then they get a "421 Service busy" and are closed, as are
+     * those still waiting when the engine stops. Connections that arrive when the queue is full too get the 421 right away.
+     * Set to 0 to refuse every connection that can't start at once.
+     * <br>Default: 50
+     */
+    public static int				MAX_QUEUED_CONNECTIONS = 50;
+    /** Length of the listen backlog the kernel keeps for connections the server hasn't accepted yet. <br>Default: 50 */
+    public static int				ACCEPT_BACKLOG = 50;
+    /**
+     * Number of threads accepting TCP connections for each server. Above 1, each one has a listening socket of its
+     * own, all bound to the same port with SO_REUSEPORT, and the kernel spreads new connections across them, so the
+     * storm of connections from an MTA that has just restarted isn't queued up behind one accept(). On ENGINE_NIO each
+     * acceptor deals its connections out to I/O loops of its own. Where SO_REUSEPORT isn't available the acceptors
+     * take turns on one socket. Note that with SO_REUSEPORT other processes of the same user can bind the port too.
+     * This is the number for a server made without one of its own; servers sharing an engine can each be given
+     * their own with the constructor that takes a number of acceptors. It's read when the server is made.
+     * <br>Default: 1
+     */
+    public static int				ACCEPTORS = 1;
+    /**
+     * A configuration file (see ServerConfig) to read at startup, and again whenever it changes, to change the hosts,
+     * domains and limits while the server runs. Its settings override the static ones. null means none.
+     * <br>Default: null
+     */
+    public static File				CONFIG_FILE = null;
     /** The host this server is answering for. Default ""*/
     public static String 		MY_HOST = "";
     /** Inactivity timeout -- how long to wait with nothing received from the other side. Set to 0 to disable this check.<br>Default 30000*/
@@ -116,524 +195,778 @@ public abstract class LMTP {
      * <br>Default: true
      */
     public static boolean		LIVE_NET_LOOKUPS = true;
+    /**
+     * Does the host name lookups for LIVE_NET_LOOKUPS. The server caches its answers and runs it on lookup threads of
+     * its own, so a slow resolver doesn't hold up the sessions. Replace it (with a StaticResolver, say) to test without DNS.
+     * <br>Default: the system resolver, through Utils.parseInetAddress()
+     */
+    public static DomainResolver	RESOLVER = new DomainResolver() {
+        public InetAddress resolve(String _host)
+        throws UnknownHostException {
+            return Utils.parseInetAddress(_host);
+        }
+    };
+    /** How long a host name that resolved is remembered, in msec. <br>Default: 300000 (5 minutes) */
+    public static long			RESOLVER_POSITIVE_TTL_MSEC = 300000;
+    /** How long a host name that didn't resolve is remembered, in msec. <br>Default: 60000 (1 minute) */
+    public static long			RESOLVER_NEGATIVE_TTL_MSEC = 60000;
+    /** The most host names remembered at once. The least recently used one goes first. <br>Default: 10000 */
+    public static int				RESOLVER_CACHE_SIZE = 10000;
+    /** How long a MAIL FROM waits for its lookup before it gets a 451, in msec. 0 waits as long as it takes. <br>Default: 5000 */
+    public static long			RESOLVER_TIMEOUT_MSEC = 5000;
+    /** Number of lookups that can run at once. <br>Default: 4 */
+    public static int				RESOLVER_THREADS = 4;
+    /**
+     * Number of lookups that may wait for a lookup thread. When the resolver stalls and the queue fills up, a MAIL FROM
+     * for a host that isn't cached gets a 451 at once, rather than queueing yet another lookup.
+     * <br>Default: 1000
+     */
+    public static int				RESOLVER_QUEUE_SIZE = 1000;
+    /**
+     * Which engine runs the client connections. ENGINE_THREADS starts a thread for every connection
+     * (at most HARD_MAX_THREADS at once). ENGINE_NIO runs all the connections
+     * on NIO_LOOPS selector threads instead, which scales to many more concurrent connections. ENGINE_VIRTUAL starts
+     * a virtual thread (Java 21) for every connection and uses plain blocking reads, so there is no polling delay
+     * between a command arriving and the reply going out. ENGINE_NIO and ENGINE_VIRTUAL serve up to MAX_SESSIONS at once.
+     * <br>Default: ENGINE_THREADS
+     */
+    public static int				ENGINE = LMTP.ENGINE_THREADS;
+    /** Number of I/O loops (threads) the NIO engine runs. Only used when ENGINE is ENGINE_NIO. <br>Default: the number of processors */
+    public static int				NIO_LOOPS = Runtime.getRuntime().availableProcessors();
+    
+    /** Maximum number of recipients accepted for one message. Further RCPTs get a 452 and the client sends them in another transaction. Set to 0 for no limit. <br>Default: 100 */
+    public static int				MAX_RECIPIENTS = 100;
+    /**
+     * Number of threads in the delivery pool. When this is more than 0, deliver() runs on the pool instead of on the
+     * thread serving the connection, and the recipients of a message are delivered in parallel. Set to 0 to call
+     * deliver() for each recipient in turn, on the thread serving the connection. That is only done on ENGINE_THREADS
+     * and ENGINE_VIRTUAL: the I/O loops (ENGINE_NIO, and Unix domain socket listeners) must go on serving other
+     * connections while a slow deliver() finishes, so with 0 they get a pool of twice NIO_LOOPS threads (at least 4).
+     * <br>Default: 0
+     */
+    public static int				DELIVERY_THREADS = 0;
+    /**
+     * Number of deliveries (one per recipient) that may wait for a delivery pool thread. When the queue is full,
+     * new transactions get a 451 at MAIL FROM, new connections get a 421, and deliveries that still don't fit get a 451.
+     * Only used when there is a delivery pool, see DELIVERY_THREADS.
+     * <br>Default: 1000
+     */
+    public static int				DELIVERY_QUEUE_SIZE = 1000;
+    
+    /** Message bodies bigger than this many bytes are spooled to a temporary file instead of being held in memory. <br>Default: 1048576 (1 MB) */
+    public static int				SPOOL_THRESHOLD_BYTES = 1024 * 1024;
+    /** Directory for the spool files of big messages. null means the system temp directory. <br>Default: null */
+    public static File				SPOOL_DIRECTORY = null;
+    
+    /**
+     * The biggest message this server accepts, in bytes. It's advertised with SIZE; a MAIL FROM that declares a bigger
+     * SIZE= is refused with 552 right away, and a DATA that runs over it is read to the end, thrown away and refused with 552.
+     * Set to 0 for no limit.
+     * <br>Default: 0
+     */
+    public static long			MAX_MESSAGE_SIZE = 0;
+    /**
+     * The longest line of message text a DATA may have, in bytes, not counting its line ending. A line is held whole
+     * while it's being put together, so this bounds what one client can make the server hold, whatever MAX_MESSAGE_SIZE
+     * is. A DATA with a longer line is read to the end, thrown away and refused with 552, like one over MAX_MESSAGE_SIZE.
+     * Command lines are held to 1000 bytes (RFC 5321 4.5.3.1) whatever this is.
+     * <br>Default: 1048576 (1 MB)
+     */
+    public static int				MAX_LINE_LENGTH = 1024 * 1024;
+    /**
+     * The most heap all the message bodies being received may hold at once, in bytes. A body that would push the total
+     * over this is spooled to disk early, whatever its size. Set to 0 for no limit.
+     * <br>Default: 67108864 (64 MB)
+     */
+    public static long			MAX_BODY_MEMORY_BYTES = 64L * 1024 * 1024;
+    /**
+     * The most bytes of buffers kept for reuse when transactions and connections end: the in-memory buffers of
+     * message bodies (in sizes from 4 KB doubling up to SPOOL_THRESHOLD_BYTES as it is when the LMTPEngine is made)
+     * and the connections' read buffers.
+     * The next transaction or connection leases one of these instead of allocating. Set to 0 to keep none.
+     * <br>Default: 16777216 (16 MB)
+     */
+    public static long			BUFFER_POOL_BYTES = 16L * 1024 * 1024;
+    
+    /**
+     * A key store holding the server's certificate and private key. If set, STARTTLS (RFC 3207) is offered, so
+     * senders on other hosts can encrypt. Read when an LMTPEngine is made.
+     * <br>Default: null (no STARTTLS)
+     */
+    public static File				TLS_KEYSTORE = null;
+    /** The password of TLS_KEYSTORE and of the key in it. <br>Default: null (none) */
+    public static String			TLS_KEYSTORE_PASSWORD = null;
+    /** The type of TLS_KEYSTORE. <br>Default: PKCS12 */
+    public static String			TLS_KEYSTORE_TYPE = "PKCS12";
+    /** An SSLContext to use for STARTTLS instead of one made from TLS_KEYSTORE, already initialized. <br>Default: null */
+    public static SSLContext		TLS_CONTEXT = null;
+    /** The TLS versions allowed, or null for the JDK's defaults. <br>Default: TLSv1.3, TLSv1.2 */
+    public static String[]		TLS_PROTOCOLS = { "TLSv1.3", "TLSv1.2" };
+    /**
+     * How many TLS sessions the server keeps so senders that reconnect can resume them instead of doing a full
+     * handshake. TLS 1.3 senders resume with tickets, which the server doesn't have to keep.
+     * <br>Default: 10000
+     */
+    public static int				TLS_SESSION_CACHE_SIZE = 10000;
+    /** How long a TLS session can be resumed for, in seconds, whether from the cache or a ticket. <br>Default: 86400 (a day) */
+    public static int				TLS_SESSION_TIMEOUT_SEC = 86400;
+    /**
+     * How many of each of the 16 KB buffers a TLS connection uses (records and plaintext) are kept when connections
+     * close, for the next ones to use. The pool holds up to this many of each size's worth of bytes.
+     * <br>Default: 256
+     */
+    public static int				TLS_BUFFER_POOL_SIZE = 256;
+    /**
+     * How many threads run the slow steps of the TLS handshakes (the certificate and key work an SSLEngine hands out
+     * as delegated tasks) for all the connections on an LMTPEngine. An I/O loop goes on serving its other connections
+     * while a handshake's steps run. Read when an LMTPEngine is made.
+     * <br>Default: the number of processors
+     */
+    public static int				TLS_TASK_THREADS = Runtime.getRuntime().availableProcessors();
+    
+    /**
+     * If true, each LMTPEngine registers its Metrics with the platform MBean server when it starts, as
+     * com.challengeandresponse.lmtp:type=Metrics,engine=N (N counting from 0 in the order the engines were made).
+     * <br>Default: true
+     */
+    public static boolean		METRICS_JMX = true;
+    
+    /**
+     * The most detailed messages that are logged, one of Log.ERROR, Log.WARN, Log.INFO, Log.DEBUG or Log.TRACE.
+     * DEBUG logs every connection, TRACE every state transition of every session. Can be changed at any time.
+     * <br>Default: Log.INFO
+     */
+    public static volatile int	LOG_LEVEL = Log.INFO;
+    /**
+     * How many messages the log holds waiting for the writer thread; more than that are dropped. Read when the first
+     * message is logged.
+     * <br>Default: 8192
+     */
+    public static int				LOG_BUFFER_SIZE = 8192;
+    /**
+     * If set, what the client sent in every session is appended to this file, as a SessionTrace, to be played back
+     * against a server later with bench.Replay. Commands are recorded as they were sent, message bodies only as their
+     * sizes. Read when an LMTPEngine is made.
+     * <br>Default: null (nothing is recorded)
+     */
+    public static File				RECORD_SESSIONS = null;
     
+    /** Value for ENGINE: one thread per client connection */
+    public static final int		ENGINE_THREADS = 0;
+    /** Value for ENGINE: a few selector-driven event loops share all the client connections */
+    public static final int		ENGINE_NIO = 1;
+    /** Value for ENGINE: one virtual thread per client connection, with blocking reads */
+    public static final int		ENGINE_VIRTUAL = 2;
     
     
-    /** The capabilities that are advertised to the connecting server. separate capabilities with newlines (\n). Do not supply a trailing newline. The println() command will provide that */
-    private String 	CAPABILITIES = "250-"+MY_HOST+"\n250-PIPELINING\n250 SIZE";
     
-    private  HashSet <String> DOMAINS_SERVED =null;
-    private  HashSet <InetAddress> APPROVED_HOSTS = null;
+    /** the hosts, domains and limits in force. Swapped whole by reconfigure(), never changed in place */
+    private final AtomicReference <ServerConfig> config = new AtomicReference <ServerConfig> ();
+    /** the configuration the server was made with. A configuration file's settings are applied to this one, not to the one in force */
+    private final ServerConfig startupConfig;
     
     
 //// THESE ARE EVIL HARDCODED VALUES THAT ARE NOT CONFIGURABLE    
     /** Number of msec to sleep between loop iterations in the server... to avoid madness when nothing is happening */
     private static final int		LOOP_SLEEP_MSEC = 5;
-    /** A name for the thread group containing all the active threads */
-    private static final String 	THREAD_GROUP_NAME = "lmtp_threads";
-    /** Number of milliseconds to wait for a read on a BufferedReader  */
+    /** Number of milliseconds to wait for a read on a LineReader  */
     private static final long		READ_DEFER_TIME_MSEC = 250;
     
     
     
+    /** the threads, pools and limits this listener shares with the others on the same engine */
+    final LMTPEngine engine;
+    /** the port to listen on. 0 picks a free one when the server starts, -1 means no TCP */
+    private final int port;
+    /** the Unix domain socket to listen on. null for none */
+    private final File socketPath;
+    /** the number of threads accepting TCP connections, see ACCEPTORS */
+    private final int acceptorCount;
+    // set while the server is started. only one of the first two is used, depending on the engine. there's one
+    // TCP socket, or one for each of the acceptorCount acceptors with SO_REUSEPORT
+    private ServerSocket[] serverSockets = null;
+    private ServerSocketChannel[] serverChannels = null;
+    private ServerSocketChannel unixChannel = null;
+    private Thread[] acceptors = null;
+    private Thread unixAcceptor = null;
+    private ConfigWatcher watcher = null;
+    
+    
+    /**
+     * The constructor for LMTP needs a list of hosts it is allowed to talk to, a list of
+     * domains for which it will accept mail, and some options.
+     * <p>This one makes a server of its own, with an LMTPEngine of its own, listening on SOCKET_NUM, and serves
+     * forever: it never returns. To run a server that can be stopped, or several on one engine, use the other constructor and start().</p>
+     * <p>Serving from here means the subclass's constructor never gets past super(), so its own fields are never
+     * initialized: deliver() mustn't depend on them. The other constructor doesn't have that problem. What it
+     * runs is private to LMTP, so a subclass that overrides start(), watchConfig() or awaitStop() isn't called
+     * half-made; handing the server to its acceptor threads is the one escape left, and the reason for this constructor.</p>
+     * @param approvedHosts a Vector of all the hosts that can connect to this server. Can be IPv4 address, IPv6 address, host name, or a CIDR range of addresses like 10.0.0.0/8
+     * @param domainsServed a Vector of the domain names for which this server will accept mail: example.com, *.example.com for the domains under it, or .example.com for both
+     */
+    @SuppressWarnings("this-escape")
+    public LMTP(Vector <String> approvedHosts, Vector <String> domainsServed) {
+        // collect the operating parameters for this server instance, from the constructor: the table of hosts that can connect
+        // and the table of domains for which we accept mail, and the rest from the static settings
+        this(new LMTPEngine(), SOCKET_NUM, SOCKET_PATH, ServerConfig.fromDefaults(approvedHosts, domainsServed));
+        if (CONFIG_FILE != null)
+            watch(CONFIG_FILE);
+        try {
+            listen();
+        }
+        catch(IOException ioe) {
+            Log.error("Could not create server socket at {} . Quitting. {}", describe(SOCKET_NUM, SOCKET_PATH), ioe.getMessage());
+            Log.flush();
+            System.exit(-1);
+        }
+        waitForStop();
+    }
+    
+    
+    /**
+     * Make a server that listens on _port with the configuration _config, on the threads of _engine. Nothing happens
+     * until start() is called. Any number of servers can share one engine.
+     * @param _engine runs the connections. Its sizes come from the static settings when it's made
+     * @param _port the port to listen on. 0 picks a free one, see getPort()
+     * @param _config the hosts, domains and limits. See ServerConfig.fromDefaults() and ServerConfig.with()
+     */
+    protected LMTP(LMTPEngine _engine, int _port, ServerConfig _config) {
+        this(_engine, _port, null, _config);
+    }
+    
+    
+    /**
+     * Make a server that listens on a TCP port, a Unix domain socket or both, with the configuration _config, on the
+     * threads of _engine. Nothing happens until start() is called.
+     * <p>Unix domain connections are always served by NIO loops (java.net.Socket can't make them, and a blocking
+     * read of a channel can't time out), so on an ENGINE_THREADS or ENGINE_VIRTUAL engine the first such listener
+     * to start starts NIO_LOOPS loops for them.</p>
+     * @param _engine runs the connections. Its sizes come from the static settings when it's made
+     * @param _port the port to listen on. 0 picks a free one, see getPort(). -1 for no TCP
+     * @param _socketPath the Unix domain socket to listen on, or null for none. See SOCKET_PATH
+     * @param _config the hosts, domains and limits. See ServerConfig.fromDefaults() and ServerConfig.with()
+     */
+    protected LMTP(LMTPEngine _engine, int _port, File _socketPath, ServerConfig _config) {
+        this(_engine, _port, _socketPath, ACCEPTORS, _config);
+    }
+
+
+    /**
+     * Make a server like the one above, with a number of acceptors of its own instead of ACCEPTORS. Servers on one
+     * engine can each have their own, for the ports that take storms of connections and the ones that don't.
+     * @param _engine runs the connections. Its sizes come from the static settings when it's made
+     * @param _port the port to listen on. 0 picks a free one, see getPort(). -1 for no TCP
+     * @param _socketPath the Unix domain socket to listen on, or null for none. See SOCKET_PATH
+     * @param _acceptors the number of threads accepting TCP connections, see ACCEPTORS. Less than 1 means 1
+     * @param _config the hosts, domains and limits. See ServerConfig.fromDefaults() and ServerConfig.with()
+     */
+    protected LMTP(LMTPEngine _engine, int _port, File _socketPath, int _acceptors, ServerConfig _config) {
+        if ((_engine == null) || (_config == null))
+            throw new IllegalArgumentException("engine and configuration are required");
+        if ((_port < 0) && (_socketPath == null))
+            throw new IllegalArgumentException("nothing to listen on: no port and no socket path");
+        engine = _engine;
+        port = _port;
+        socketPath = _socketPath;
+        acceptorCount = Math.max(1, _acceptors);
+        startupConfig = _config;
+        config.set(_config);
+    }
+    
+    
+    /**
+     * Open the server sockets and start accepting connections, on threads of the server's own. Returns as soon as
+     * the server is listening. Starts the engine too if it isn't running yet.
+     * @throws IOException if a server socket could not be opened
+     * @throws IllegalStateException if the server is already started, or its engine has been stopped
+     */
+    public synchronized void start()
+    throws IOException {
+        listen();
+    }
+
+    /**
+     * What start() does, for the legacy constructor, which mustn't call a method a subclass could override
+     */
+    private synchronized void listen()
+    throws IOException {
+        if ((acceptors != null) || (unixAcceptor != null))
+            throw new IllegalStateException("already started");
+        engine.start();
+        if (socketPath != null)
+            openUnixSocket();
+        try {
+            if (port >= 0)
+                openTcpSocket();
+            engine.addListener(this);
+        }
+        catch (IOException ioe) {
+            closeServerSocket();
+            acceptors = null;
+            unixAcceptor = null;
+            throw ioe;
+        }
+        catch (IllegalStateException ise) {
+            closeServerSocket();
+            acceptors = null;
+            unixAcceptor = null;
+            throw ise;
+        }
+        if (acceptors != null)
+            for (int i = 0; i < acceptors.length; i++)
+                acceptors[i].start();
+        if (unixAcceptor != null)
+            unixAcceptor.start();
+        Log.info("Server ready. Listening for clients on {}", describe(getPort(), socketPath));
+        if ((acceptors != null) && (acceptors.length > 1)) {
+            int sockets = (serverSockets != null) ? serverSockets.length : serverChannels.length;
+            Log.info("{} acceptors, {}", Integer.valueOf(acceptors.length),
+                    (sockets > 1) ? "each with a socket of its own (SO_REUSEPORT)" : "sharing one socket (no SO_REUSEPORT here)");
+        }
+    }
+    
+    
+    /**
+     * Bind the TCP socket, or one for each of the acceptorCount acceptors if SO_REUSEPORT can be used, and make their acceptors.
+     * With port 0 the first socket gets a free port and the others are bound to it too.
+     */
+    private void openTcpSocket()
+    throws IOException {
+        final int n = acceptorCount;
+        acceptors = new Thread[n];
+        if (engine.type == ENGINE_NIO) {
+            ServerSocketChannel first = ServerSocketChannel.open();
+            boolean reusePort = (n > 1) && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            // closed by start() if one of them can't be bound
+            serverChannels = new ServerSocketChannel[reusePort ? n : 1];
+            serverChannels[0] = first;
+            for (int i = 0; i < serverChannels.length; i++) {
+                if (serverChannels[i] == null)
+                    serverChannels[i] = ServerSocketChannel.open();
+                if (reusePort)
+                    serverChannels[i].setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
+                serverChannels[i].bind(new InetSocketAddress((i == 0) ? port : getPort()), ACCEPT_BACKLOG);
+            }
+            final NioEngine loops = engine.loops();
+            for (int i = 0; i < n; i++) {
+                final ServerSocketChannel ssc = serverChannels[i % serverChannels.length];
+                final int acceptorNum = i;
+                final AcceptorStats stats = engine.metrics.acceptor("tcp_"+getPort()+"_"+i);
+                acceptors[i] = new Thread(acceptorName(i)) {
+                    public void run() {
+                        loops.accept(LMTP.this, ssc, acceptorNum, n, stats);
+                    }
+                };
+            }
+        }
+        else {
+            ServerSocket first = new ServerSocket();
+            boolean reusePort = (n > 1) && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            serverSockets = new ServerSocket[reusePort ? n : 1];
+            serverSockets[0] = first;
+            for (int i = 0; i < serverSockets.length; i++) {
+                if (serverSockets[i] == null)
+                    serverSockets[i] = new ServerSocket();
+                if (reusePort)
+                    serverSockets[i].setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
+                serverSockets[i].bind(new InetSocketAddress((i == 0) ? port : getPort()), ACCEPT_BACKLOG);
+            }
+            for (int i = 0; i < n; i++) {
+                final ServerSocket ss = serverSockets[i % serverSockets.length];
+                final int acceptorNum = i;
+                final AcceptorStats stats = engine.metrics.acceptor("tcp_"+getPort()+"_"+i);
+                acceptors[i] = new Thread(acceptorName(i)) {
+                    public void run() {
+                        serveThreads(ss, acceptorNum, n, stats);
+                    }
+                };
+            }
+        }
+    }
+    
+    private String acceptorName(int _acceptorNum) {
+        if (acceptors.length == 1)
+            return "lmtp_accept_"+getPort();
+        return "lmtp_accept_"+getPort()+"_"+_acceptorNum;
+    }
+    
+    
     /**
-     * Convert a vector of domain names into an easily searchable HashSet of domains for which this server accepts mail (user@domain).
-     * If LIVE_NET_LOOKUPS is true, the names are checked before they're added and invalid names are skipped.
-     * @param _domains a Vector of the domain names to add to the list
-     * @return a HashSet of the domains containing all names if LIVE_NET_LOOKUPS is false, or just the valid names, if LIVE_NET_LOOKUPS IS true
+     * Bind the Unix domain socket, replacing a socket file left behind by a server that's gone, and give the file
+     * its permissions and group
      */
-    private static HashSet <String> buildDomainsServedSet(Vector <String> _domains) {
-        HashSet <String> result = new HashSet <String> ();
-        String oneDomain = null; // the domain being worked on 
-        Iterator <String> i = _domains.iterator();
-        while (i.hasNext()) {
-            oneDomain = (i.next()).trim().toLowerCase();
+    private void openUnixSocket()
+    throws IOException {
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(socketPath.toPath());
+        if (socketPath.exists()) {
+            // if something answers, it's in use. if not, it's stale
+            boolean inUse;
             try {
-                if (LIVE_NET_LOOKUPS) // only test net address of this domain if we're supposed to
-                		// this will thrown an exception if the host lookup fails
-                    Utils.parseInetAddress(oneDomain);
-                result.add(oneDomain);
+                SocketChannel probe = SocketChannel.open(address);
+                probe.close();
+                inUse = true;
+            }
+            catch (IOException ioe) {
+                inUse = false;
             }
-            catch (UnknownHostException uhe) {
-                System.out.println("Could not add domain: "+oneDomain+" to domains served list. Unknown host.");
+            if (inUse)
+                throw new BindException("Unix domain socket "+socketPath+" is in use by another server");
+            Files.delete(socketPath.toPath());
+        }
+        final ServerSocketChannel ssc = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            ssc.bind(address, ACCEPT_BACKLOG);
+            if (UNIX_SOCKET_PERMISSIONS != null)
+                Files.setPosixFilePermissions(socketPath.toPath(), PosixFilePermissions.fromString(UNIX_SOCKET_PERMISSIONS));
+            if (UNIX_SOCKET_GROUP != null) {
+                GroupPrincipal group = socketPath.toPath().getFileSystem().getUserPrincipalLookupService().lookupPrincipalByGroupName(UNIX_SOCKET_GROUP);
+                Files.getFileAttributeView(socketPath.toPath(), PosixFileAttributeView.class).setGroup(group);
             }
         }
-        return result;
+        catch (IOException ioe) {
+            ssc.close();
+            Files.deleteIfExists(socketPath.toPath());
+            throw ioe;
+        }
+        catch (RuntimeException re) {
+            // a bad UNIX_SOCKET_PERMISSIONS, or a file system without POSIX permissions
+            ssc.close();
+            Files.deleteIfExists(socketPath.toPath());
+            throw new IOException("Could not set the permissions of "+socketPath+": "+re.getMessage());
+        }
+        unixChannel = ssc;
+        final NioEngine loops = engine.loops();
+        final AcceptorStats stats = engine.metrics.acceptor("unix_"+socketPath.getName());
+        unixAcceptor = new Thread("lmtp_accept_"+socketPath.getName()) {
+            public void run() {
+                loops.accept(LMTP.this, ssc, 0, 1, stats);
+            }
+        };
     }
     
     
     /**
-     * Converts a Vector of IP addresses and host names into an easily searchable HashSet of approved host addresses 
-     * in InetAddress objects. In the course of parsing the addresses, the names or addresses must be checked in the course of conversion
-     * to InetAddress objects (this behavior can't be disabled). However these checks will mostly fail if the machine on which
-     * the code is running can't reach the Internet.
-     * 
-     * @param _hostlist A Vector of host names or addresses (IPV4 or IPV6) to add to the list of hosts that are allowed to connect to this server.
-     * @return a HashSet of the host addresses in InetAddress objects, containing all hosts from _hostlist if LIVE_NET_LOOKUPS is false, or just the valid hosts, if LIVE_NET_LOOKUPS IS true
-     */
-    private static HashSet <InetAddress> buildApprovedHostsSet(Vector <String> _hostlist)
-    throws NumberFormatException {
-        HashSet <InetAddress> result = new HashSet <InetAddress> ();
-        InetAddress addr = null; // a composed address to add to the access list stored in result and returned to the caller
-        String oneHost = null; // the host being processed
-        
-        Iterator <String> i = _hostlist.iterator();
-        while (i.hasNext()) {
-            oneHost = ((i.next())).trim();
+     * @return the port, the socket path, or both, for the log
+     */
+    private static String describe(int _port, File _socketPath) {
+        if (_socketPath == null)
+            return "port "+_port;
+        if (_port < 0)
+            return "socket "+_socketPath;
+        return "port "+_port+" and socket "+_socketPath;
+    }
+    
+    
+    /**
+     * Stop accepting connections and close the server socket. The sessions already running are left to finish;
+     * LMTPEngine.stop() closes them too. A stopped server can't be started again.
+     */
+    public void stop() {
+        Thread[] a;
+        Thread u;
+        String listening;
+        synchronized (this) {
+            if (((acceptors == null) && (unixAcceptor == null)) || (! isRunning()))
+                return;
+            listening = describe(getPort(), socketPath);
+            closeServerSocket();
+            if (watcher != null)
+                watcher.interrupt();
+            a = acceptors;
+            u = unixAcceptor;
+        }
+        engine.removeListener(this);
+        try {
+            if (a != null)
+                for (int i = 0; i < a.length; i++)
+                    a[i].join();
+            if (u != null)
+                u.join();
+        }
+        catch (InterruptedException ie) { }
+        Log.info("Server on {} stopped", listening);
+    }
+    
+    
+    private void closeServerSocket() {
+        for (int i = 0; (serverSockets != null) && (i < serverSockets.length); i++) {
             try {
-                addr = Utils.parseInetAddress(oneHost);
-                result.add(addr);
+                if (serverSockets[i] != null)
+                    serverSockets[i].close();
             }
-            catch (NumberFormatException nfe) {
-                // this error would occur on startup, try keep going if possible
-                System.out.println("Could not add address or host: "+oneHost+" to approved hosts list. Invalid numeric format. Be sure to use digits only and IPV6 format nn:nn:nn:nn:nn:nn");
+            catch (IOException ioe) { }
+        }
+        for (int i = 0; (serverChannels != null) && (i < serverChannels.length); i++) {
+            try {
+                if (serverChannels[i] != null)
+                    serverChannels[i].close();
             }
-            catch (UnknownHostException uhe) {
-                // this error would occur on startup, try keep going if possible
-                System.out.println("Could not add address or host: "+oneHost+" to approved hosts list. Unknown host.");
+            catch (IOException ioe) { }
+        }
+        if (unixChannel != null) {
+            try {
+                unixChannel.close();
+                Files.deleteIfExists(socketPath.toPath());
             }
+            catch (IOException ioe) { }
         }
-        return result;
     }
     
     
+    /**
+     * Wait until the server has been stopped
+     */
+    public void awaitStop() {
+        waitForStop();
+    }
 
-    // launch the server 
-    ServerSocket m_ServerSocket;
-    ThreadGroup threads;
+    /**
+     * What awaitStop() does, for the legacy constructor
+     */
+    private void waitForStop() {
+        Thread[] a;
+        Thread u;
+        synchronized (this) {
+            a = acceptors;
+            u = unixAcceptor;
+        }
+        try {
+            if (a != null)
+                for (int i = 0; i < a.length; i++)
+                    a[i].join();
+            if (u != null)
+                u.join();
+        }
+        catch (InterruptedException ie) { }
+    }
+    
     
     /**
-     * The constructor for LMTP needs a list of hosts it is allowed to talk to, a list of
-     * domains for which it will accept mail, and some options
-     * @param approvedHosts a Vector of all the hosts that can connect to this server. Can be IPv4 address, IPv6 address or host name
-     * @param domainsServed a Vector of the domain names for which this server will accept mail
-     * @param options See the LMTP.OPTION_ for options
+     * @return true if the server has been started and not stopped
      */
-    public LMTP(Vector <String> approvedHosts, Vector <String> domainsServed) {
-        
-        // collect the operating parameters for this server instance, from the constructor
-        // build the table of hosts that can connect
-        APPROVED_HOSTS = buildApprovedHostsSet(approvedHosts);
-        // build the table of domains for which we accept mail
-        DOMAINS_SERVED = buildDomainsServedSet(domainsServed);
-        
+    public synchronized boolean isRunning() {
+        if ((serverSockets != null) && (! serverSockets[0].isClosed()))
+            return true;
+        if ((serverChannels != null) && serverChannels[0].isOpen())
+            return true;
+        return (unixChannel != null) && unixChannel.isOpen();
+    }
+    
+    
+    /**
+     * @return the port the server listens on. Once started, the actual port, even if it was made with port 0.
+     * -1 if it only listens on a Unix domain socket
+     */
+    public synchronized int getPort() {
+        if (serverSockets != null)
+            return serverSockets[0].getLocalPort();
+        if (serverChannels != null)
+            return serverChannels[0].socket().getLocalPort();
+        return port;
+    }
+    
+    
+    /**
+     * @return the Unix domain socket the server listens on, or null if it doesn't
+     */
+    public File getSocketPath() {
+        return socketPath;
+    }
+    
+    
+    /**
+     * @return the engine this server runs on
+     */
+    public LMTPEngine getEngine() {
+        return engine;
+    }
+    
+    
+    /**
+     * Read a configuration file (see ServerConfig) now if it exists, and again whenever it changes, until the server is stopped
+     * @param _file the file
+     */
+    public synchronized void watchConfig(File _file) {
+        watch(_file);
+    }
+
+    /**
+     * What watchConfig() does, for the legacy constructor
+     */
+    private synchronized void watch(File _file) {
+        if (watcher != null)
+            watcher.interrupt();
         try {
-            // Create the server socket for listening for connection attempts from clients
-            m_ServerSocket = new ServerSocket(SOCKET_NUM);
+            watcher = new ConfigWatcher(this, _file);
+            if (_file.exists())
+                watcher.reload();
+            watcher.start();
         }
-        catch(IOException ioe) {
-            System.out.println("Could not create server socket at "+SOCKET_NUM+" . Quitting.");
-            System.out.println(ioe.getMessage());
-            System.exit(-1);
+        catch (IOException ioe) {
+            watcher = null;
+            Log.warn("Could not watch configuration file {}. Carrying on without it. {}", _file, ioe.getMessage());
         }
-        System.out.println("Server ready. Listening for clients on port "+SOCKET_NUM);
-        // Successfully created Server Socket. Now wait for connections.
-        threads = new ThreadGroup(THREAD_GROUP_NAME);
-        int id = 0;
-        while(true) 
+    }
+    
+    
+    /**
+     * The ENGINE_THREADS and ENGINE_VIRTUAL accept loop. Accepts connections until the server socket is closed, and
+     * offers each one from an approved host to admission control, which starts a ClientServiceThread (or a virtual
+     * thread running a VirtualClientService) for it now or once a slot frees up, or refuses it.
+     * @param _ss the server socket, bound
+     * @param _acceptorNum which of the server's acceptors this is, from 0
+     * @param _acceptors how many there are. Each numbers its connections _acceptorNum, _acceptorNum + _acceptors... so
+     * the numbers are unique for the server
+     * @param _stats where this acceptor counts its connections
+     */
+    private void serveThreads(ServerSocket _ss, int _acceptorNum, int _acceptors, AcceptorStats _stats) {
+        int id = _acceptorNum;
+        while (! _ss.isClosed()) 
         {                        
             // Accept incoming connections. Accept() blocks until a client connects to the server.
             try {
-                // if the number of threads is over the soft limit, slow down acceptance rate (and the loop rate)
-                if (threads.activeCount() > SOFT_MAX_THREADS) {
-                    Thread.sleep(BUSY_NEW_THREAD_DELAY);
+                final Socket clientSocket = _ss.accept();
+                _stats.accepted();
+                InetAddress clientAddress = clientSocket.getInetAddress();
+                // if this connection is not from an approved host, drop it.
+                // otherwise it's up to admission control whether it's served now, later, or not at all
+                if (! getConfig().approvedHosts.contains(clientAddress)) {
+                    engine.metrics.count(Metrics.Counter.CONNECTIONS_UNAPPROVED);
+                    clientSocket.close();
+                    Log.info("Rejected unapproved host: {}", clientAddress);
+                    continue;
                 }
-                
-                // only look for a connection request if we have threads available to service it
-                if (threads.activeCount() < HARD_MAX_THREADS) {
-                    Socket clientSocket = m_ServerSocket.accept();
-                    InetAddress clientAddress = clientSocket.getInetAddress();
-                    // if this connection is not from an approved host, drop it.
-                    // otherwise dispatch a service thread
-                    if (APPROVED_HOSTS.contains(clientAddress)) {
-                        ClientServiceThread cliThread = new ClientServiceThread(clientSocket, id++);
-                        cliThread.start();
-                        System.out.println("Started service for host: "+clientAddress.toString());
+                final int clientID = id;
+                id += _acceptors;
+                engine.metrics.count(Metrics.Counter.CONNECTIONS_ACCEPTED);
+                // the replies are already batched per command group, so Nagle would only hold back the last one of each
+                clientSocket.setTcpNoDelay(true);
+                boolean admitted = engine.admission.offer(new Runnable() {
+                    public void run() {
+                        // virtual threads are cheap, so they don't go in the thread group
+                        if (engine.type == ENGINE_VIRTUAL)
+                            Thread.ofVirtual().name(""+clientID).start(new VirtualClientService(clientSocket, clientID));
+                        else
+                            new ClientServiceThread(clientSocket, clientID).start();
                     }
-                    else {
-                        clientSocket.close();
-                        System.out.println("Rejected unapproved host: "+clientAddress.toString());
+                }, new Runnable() {
+                    public void run() {
+                        refuseBusy(clientSocket);
                     }
-                }
-            }
-            catch (InterruptedException ie) {
-                // nothing happens on a Thread.sleep interrupt... (other than sleeping stops)
+                }, getConfig().inactivityTimeoutMsec);
+                if (admitted)
+                    Log.debug("Admitted host: {}", clientAddress);
+                else
+                    refuseBusy(clientSocket);
             }
             catch(IOException ioe) {
-                System.out.println("Exception encountered on accept. Ignoring. Stack Trace :");
-                ioe.printStackTrace();
+                if (_ss.isClosed())
+                    break; // the server was stopped
+                Log.warn("Exception encountered on accept. Ignoring.", ioe);
             }
         }
     }
     
       
+    /**
+     * The thread-per-connection engine (ENGINE_THREADS). Owns the socket and the blocking reader and writer,
+     * and keeps feeding lines to the connection's LMTPSession until the session stops.
+     */
     class ClientServiceThread extends Thread
     {
-        static final int 	STATE_START = 10;
-        static final int	STATE_RSET = 20;
-        static final int 	STATE_EXPECT_LHLO= 30;
-        static final int 	STATE_CAPABILITIES = 40;
-        static final int 	STATE_PIPELINING = 50;
-        static final int 	STATE_DATA = 60;
-        static final int	STATE_PROCESS = 70;
-        
-        static final int	STATE_STOP = 90;
-        static final int	STATE_STOPPED = 99;
-        
         Socket m_clientSocket;        
         int m_clientID = -1;
-        boolean m_bRunThread = true;
-        
-        /**
-         * This is just a convenience class to hold the results of a command-fetch
-         * @author jim
-         */
-        class ClientCommandBlock {
-            String fullLine;
-            String command;
-            String arguments;
-            int nextState;
-            
-            public ClientCommandBlock() {
-                fullLine = null;				command = null;
-                arguments = null;			nextState = STATE_START;
-            }
-        }
-
         
         ClientServiceThread(Socket s, int clientID)
-        {	super(threads,""+clientID);
+        {	super(engine.threads,""+clientID);
             m_clientSocket = s;
             m_clientID = clientID;
        }
 
-        
-        /**
-         * Convenience method to write a string to the output stream AND flush it. Gotta flush!
-         * @param _pw the Printwriter that's ready for characters
-         * @param _s The string to write
-         * @throws IOException the caller should catch this... exception if the write failed
-         */
-        private void printNFlush(PrintWriter _pw, String _s)
-        throws IOException {
-            _pw.println(_s);
-            _pw.flush();
-        }
-        
-        /**
-         * Looks for a command from the client in the next line of input. Returns it and some other info, if found,
-         * in a nice ClientCommandBlock. If a command could not be found (or hte input had no data) the 
-         * method returns null.<br>
-         * If a commandBlock is returned, the command field is lowercased.
-         * @return a ClientCommandBlock with the parsed-out command (the command is lowercased), or null if there was an error reading the client command
-         */
-        private ClientCommandBlock getClientCommand(BufferedReader _in)
-        throws IOException {
-            ClientCommandBlock ccb = new ClientCommandBlock();
-            ccb.fullLine = nonBlockingPatientRead(_in,READ_DEFER_TIME_MSEC);
-            if (ccb.fullLine == null) {
-                return null;
-            }
-            
-            StringTokenizer st = new StringTokenizer(ccb.fullLine," ");
-            if (st.hasMoreTokens())
-                ccb.command = st.nextToken().toLowerCase().trim();
-            else {
-    	        return null;
-            }
-            if (st.hasMoreTokens())
-                ccb.arguments = st.nextToken().trim();
-            
-	        return ccb;
-        }
-
          
         /**
-         * Non-blocking readLine() -- returns null if no data are ready, or a String if data are ready.
+         * Non-blocking readLine() -- returns -1 if no data are ready, or the length of the line (left in _in.lineBuffer() from _in.lineOffset()) if data are ready,
+         * or LineReader.TOO_LONG if the line was longer than _maxLength.
          * With optional timer to allow a delay and retry in case some data comes
          * @todo this needs to be rewritten using a socket timeout... properly... this approach works but it's kinda incorrect as it's not interruptible on data, but rather sleeps for the whole sleep-time whenever the server is running ahead of the client
          * 
-         * @param _in the BufferedReader to read from
+         * @param _in the LineReader to read from
+         * @param _maxLength the longest line to take
          * @param _delayOnFail positive number of milliseconds to sleep before a single retry, if _in is NOT ready() on the first attempt. If this is &lt;= 1, no retry will be attempted and this method will return immedately, either with data or NULL
          */
-        private String nonBlockingPatientRead(BufferedReader _in, long _delayOnFail) {
-            String result = null;
+        private int nonBlockingPatientRead(LineReader _in, int _maxLength, long _delayOnFail) {
+            int result = -1;
             try {
                 if (! _in.ready()) {
                     if ( _delayOnFail > 0)
                         Thread.sleep(_delayOnFail);
                 }
                 if (! _in.ready())
-                    result = null;
+                    result = -1;
                 else
-                    result = _in.readLine().trim();
+                    result = _in.readLine(_maxLength);
             }
             catch (InterruptedException ie) { }
-            catch (IOException ioe) { return null; }
+            catch (IOException ioe) { return -1; }
             
             return result;
         }
-        
-        
-        
-        
-        
-        
-        
+
+
+        /**
+         * Hand the session the line nonBlockingPatientRead() got, or nothing if it got none
+         */
+        private void processRead(LMTPSession _session, LineReader _in, int _length)
+        throws IOException {
+            if (_length == LineReader.TOO_LONG)
+                _session.lineTooLong();
+            else if (_length < 0)
+                _session.process(null);
+            else
+                _session.processLine(_in.lineBuffer(), _in.lineOffset(), _length);
+        }
         
         
         public void run()
         {            
             // Obtain the input stream and the output stream for the socket
-            // A good practice is to encapsulate them with a BufferedReader
-            // and a PrintWriter as shown below.
-            BufferedReader in = null; 
-            PrintWriter out = null;
-            int state = STATE_START;
-            int nextState = STATE_START;
-            ClientCommandBlock ccb = null; // content of the last handled client command, if any
-            String mailFrom = null;
-            String mailTo = null;
-            StringBuffer dataBlock = null; // all the data received from a DATA command
-            String helloName = null; // set to the name received w/ the LHLO command, also signals that LHLO has been received
+            // A good practice is to encapsulate them with a LineReader
+            // and a buffered stream, as BlockingConnection does.
+            BlockingConnection conn = null;
+            LMTPSession session = null;
             
-            long lastActivityTime; // last time something non-null was received from the other side 
-            int errors; // number of errors that occurred, is reset on an RSET
-            int noops; // number of noop ('for keepalive') received, is reset on an RSET
-            int rsets; // number of rsets received -- is NOT reset on an RSET
-            
-            
-            // Print out details of this connection
-            System.out.println("Servicing client: " + m_clientID + " at "+m_clientSocket.getInetAddress().getHostName()+" ("+m_clientSocket.getInetAddress().toString()+")");
-            System.out.println("threads running: "+threads.activeCount());
+            // no reverse lookup of the client's name here: it would hold up every connection for the sake of a log line
+            if (Log.isEnabled(Log.DEBUG))
+                Log.debug("Servicing client: {} at {}, sessions running: {}", Integer.valueOf(m_clientID),
+                        m_clientSocket.getInetAddress(), Integer.valueOf(engine.admission.activeNow()));
             
             try
             {                                
-                in = new BufferedReader(new InputStreamReader(m_clientSocket.getInputStream()));
-                out = new PrintWriter(new OutputStreamWriter(m_clientSocket.getOutputStream()));
-                // these are set 0 on entry for the traps just below here, and are cleared on any RSET command
-                lastActivityTime = System.currentTimeMillis();
-                errors = 0;
-                noops = 0;
-                // this counter is NEVER cleared for a transaction. it enforces a limit on the number of RSETs permitted
-                rsets = 0;
+                engine.connectionOpened(m_clientSocket);
+                conn = new BlockingConnection(m_clientSocket, m_clientID);
+                session = new LMTPSession(LMTP.this, m_clientID, conn);
+                // sends the greeting
+                session.process(null);
                 
-                while(m_bRunThread)
+                while(! session.isStopped())
                 {
                     // a very brief sleep, even when we are running full bore, to avoid grabbing too much resources
                     Thread.sleep(LOOP_SLEEP_MSEC);
-                    
-                    // test for timeouts and thresholds that were exceeded
-                    // if so, return the error and change the state to STOP before going into the switch block, so we stop immediately
-        	        if ( (INACTIVITY_TIMEOUT_MSEC > 0) && (lastActivityTime +INACTIVITY_TIMEOUT_MSEC) < System.currentTimeMillis()) {
-        	            printNFlush(out, "500 Timeout");
-        	            state = STATE_STOP;
-        	        }
-        	        if ((MAX_ERRORS_BEFORE_DISCONNECT > 0) && (errors > MAX_ERRORS_BEFORE_DISCONNECT) ) {
-        	            printNFlush(out, "500 Too many errors");
-        	            state = STATE_STOP;
-        	        }
-        	        if ( (MAX_NOOPS_BEFORE_DISCONNECT > 0) && (noops > MAX_NOOPS_BEFORE_DISCONNECT) ) {
-        	            printNFlush(out, "500 Too many NOOPs and/or unimplemented commands");
-        	            state = STATE_STOP;
-        	        }
-        	        if ( (MAX_RSETS_BEFORE_DISCONNECT > 0) && (rsets > MAX_RSETS_BEFORE_DISCONNECT) ) {
-        	            printNFlush(out, "500 Too many RSETs");
-        	            state = STATE_STOP;
-        	        }
-                    
-                    switch (state) {
-                    
-                    	// if just starting for the first time, send greeting
-                    	case STATE_START:
-                    	    printNFlush(out,"220 "+MY_HOST+" microLMTP server ready");
-                    	    nextState = STATE_RSET;
-                    	    break;
-                    	    
-                        	// regardless, whenever the protocol starts or the connection is RSET, clear all the state variables then start pipelining
-                    	    // per RFC 2821, all state variables are cleared by an RSET
-                    	    // however we count and limit the number of rsets permitted, and that counter does not reset here :)
-                    	case STATE_RSET:
-                    	    ccb = null;
-                    	    mailFrom = null;
-                    	    mailTo = null;
-                    	    dataBlock = new StringBuffer();
-                    	    lastActivityTime = System.currentTimeMillis();
-                    	    errors = 0;
-                    	    noops = 0;
-                    	    rsets++; 
-                    	    nextState = STATE_PIPELINING;
-                    	    break;
-                    	    
-                    	case STATE_CAPABILITIES:
-                    	    printNFlush(out,CAPABILITIES);
-                    	    nextState = STATE_PIPELINING;
-                    	    break;
-                    	    
-                    	    // while pipelining, any commands may come in any order, until one of the terminal commands is received
-                    	    // per RFC: The EHLO, DATA, VRFY, EXPN, TURN,QUIT, and NOOP commands can only appear as the last command
-                    	    // and must produce a change of state
-                    	case STATE_PIPELINING:
-                    	    ccb = getClientCommand(in);
-                    	    // refresh the timeout timer on receipt of a command, and definitely drop out if not pipelining if there was no command read
-                    	    if (ccb != null)
-                	            lastActivityTime = System.currentTimeMillis();
-                    	    else {
-                    	        // bail if null command block was returned
-                    	        nextState = state;
-                    	        break;
-                    	    }
-                    	    
-                    	    // if command is not LHLO and LHLO has not been received, that's an error -- we want an LHLO first
-                    	    if ( (! ccb.command.equals("lhlo")) && (helloName == null) ) {
-                	            printNFlush(out,"503 Please say LHLO first");
-                	            nextState = state;
-                	            break;
-                    	    }
-
-                    	    // now process the received command
-                    	    if (ccb.command.equals("quit"))
-                    	        nextState = STATE_STOP;
-                    	    else if (ccb.command.equals("rset")) {
-                    	        printNFlush(out,"250 OK");
-                    	        nextState = STATE_RSET;
-                    	    }
-                    	    else if (ccb.command.equals("lhlo")) {
-                    	        helloName = ccb.arguments;
-                    	        nextState = STATE_CAPABILITIES;
-                    	    }
-                    	    else if (ccb.command.equals("quit"))
-                    	        nextState = STATE_STOP;
-                    	    else if (ccb.command.equals("data"))  {
-                    	        // fails with 503 per RFC if there was no RCPT successfully set
-                    	        if (mailTo == null) {
-                    	            errors++;
-                    	            printNFlush(out,"503 need RCPT (recipient)");
-                            	    nextState = STATE_PIPELINING;
-                    	        }
-                    	        else if (mailFrom == null) {
-                    	            errors++;
-                    	            printNFlush(out,"503 need MAIL FROM");
-                            	    nextState = STATE_PIPELINING;
-                    	        }
-                    	        else {
-                        	        printNFlush(out,"354 Start mail input; end with <CRLF>.<CRLF>");
-                    	            nextState = STATE_DATA;
-                        	    }
-                    	    }
-                    	    // and the TERMINAL commands we sinply NOOPS. They terminate PIPELINE mode.. but it doesn't mean much
-                    	    else if  (ccb.command.equals("noop")) {
-                    	        noops++;
-                    	        nextState = STATE_PIPELINING;
-                    	        printNFlush(out,"250 OK");
-                    	    }
-                    	    // unimplemented commands count against the NOOP counter
-                    	    else if (
-                    	            (ccb.command.equals("vrfy")) ||
-                    	            (ccb.command.equals("expn")) ||
-                    	            (ccb.command.equals("turn"))
-                    	    ) {
-                    	        noops++;
-                    	        nextState = STATE_PIPELINING;
-                    	        printNFlush(out,"502 Command not implemented");
-                    	    }
-                    	    
-                    	    // the actual pipelined commands that we can accumulate
-                    	    else if (ccb.fullLine.toLowerCase().startsWith("mail from:"))
-                    	        if (mailFrom != null) {
-                    	            errors++;
-                    	            printNFlush(out,"503 Sender already specified");
-                    	        }
-                    	        else if (Utils.parseEmailAddress(ccb.arguments) == null) {
-                    	            errors++;
-                    	            printNFlush(out,"501 Invalid email address");
-                    	        }
-                    	        else {
-                    	            // parse out the sender's address
-                    	            String[] parsedEmail = Utils.parseEmailAddress(ccb.arguments);
-                    	            // confirm that the domain is real in the world
-                    	            try {
-                    	                if (LIVE_NET_LOOKUPS) // only test net address if we're supposed to
-                    	                    Utils.parseInetAddress(parsedEmail[3]);
-                    	                mailFrom = parsedEmail[4];
-                    	                printNFlush(out,"250 "+mailFrom+" Sender ok");
-                    	            }
-                    	            catch (UnknownHostException uhe) {
-                    	                errors++;
-                    	                printNFlush(out,"501 Invalid host name");
-                    	            }
-                    	        }
-                    	    else if (ccb.fullLine.toLowerCase().startsWith("rcpt to:")) {
-                    	        // cleanup the email address, parsing and such are very strict
-                    	        ccb.arguments = ccb.arguments.trim().toLowerCase();
-                    	        if (mailTo != null) {
-                    	            errors++;
-                    	            printNFlush(out,"503 Recipient already specified");
-                    	        }
-                    	        else if (Utils.parseEmailAddress(ccb.arguments) == null) {
-                    	            errors++;
-                    	            printNFlush(out,"501 Invalid email address");
-                    	        }
-                    	        else {
-                    	        	// be sure this a domain we handle
-                    	            String[] parsedEmail = Utils.parseEmailAddress(ccb.arguments);
-                    	            if (! DOMAINS_SERVED.contains(parsedEmail[3])) {
-                    	                errors++;
-                    	                printNFlush(out,"551 We do not relay and we do not accept mail for "+parsedEmail[3]);
-                    	            }
-                    	            else {
-                        	            mailTo = parsedEmail[4];
-                    	                printNFlush(out,"250 "+mailTo+" Recipient ok");
-                    	            }
-                    	        }
-                    	    }
-                    	    // command totally unrecognized
-                    	    else {
-                    	        errors++;
-                    	        nextState = state;
-                    	        printNFlush(out,"500 Command unrecognized: "+ccb.command);
-                    	    }
-
-                    	    break;
-                    	    
-                    
-                    	case STATE_DATA:
-                    	    String line = nonBlockingPatientRead(in,READ_DEFER_TIME_MSEC);
-                    	    // roll the inactivity timer forward -- we've received something
-                    	    if (line != null) {
-                    	        lastActivityTime = System.currentTimeMillis();
-                    	        // just keep loading lines until EOD
-                    	        if (line.startsWith(".") && (line.length() == 1 ) ) {
-                    	            nextState= STATE_PROCESS;
-                    	        }
-                    	        else {
-                    	            dataBlock.append(line+"\n");
-                    	        }
-                    	    }
-                    	    break;
-                    	    
-                    	// act on the accumulated commands and crap
-                    	case STATE_PROCESS:
-                    	    printNFlush(out,deliver(mailFrom,mailTo,dataBlock.toString()));
-
-                    	    // not entirely sure what the RFC wants here. SMTP stays hot for another message until 'quit' is received but we are not getting a quit from the LMTP in the test postfix server
-                    	     nextState = STATE_RSET;
-// now i think it's supposed to stay open. eventually the client shoudl QUIT if the server doesn't
-                    	     //                    	    nextState = STATE_STOP;
-                    	    break;
-
-                    	    
-                       case STATE_STOP:
-                           m_bRunThread = false;   
-                           printNFlush(out,"221 "+MY_HOST+" closing connection");
-                           nextState = STATE_STOPPED;
-                           break;
+                    // conn.in is a new reader after a STARTTLS
+                    if (session.bytesWanted() > 0) {
+                        if (session.processBytes(conn.in) <= 0)
+                            break; // the client went away in the middle of a chunk
+                    }
+                    else
+                        processRead(session, conn.in, nonBlockingPatientRead(conn.in,session.maxLineLength(),READ_DEFER_TIME_MSEC));
+                    // pipelining: handle everything the client has already sent before the buffered replies go out
+                    while ((! session.isStopped()) && conn.in.ready()) {
+                        if (session.bytesWanted() > 0)
+                            session.processBytes(conn.in);
+                        else
+                            processRead(session, conn.in, nonBlockingPatientRead(conn.in,session.maxLineLength(),0));
                     }
-                    // OUT OF THE CASE BLOCK...
-                    // set the nextState and respond if a reply is needed
-                    if (state != nextState) 
-                        System.out.println("state transition, "+state+" --> "+nextState);
-                    state = nextState;
+                    conn.flush();
                 }
          
                }
@@ -641,22 +974,26 @@ public abstract class LMTP {
             }
             catch(IOException ioe)
             {            
-                try { printNFlush(out,"451 Server error"); } catch (IOException ioe2) { ioe2.printStackTrace(); }
-                nextState = STATE_STOP;
-                ioe.printStackTrace();
+                if (session != null)
+                    session.abort();
+                Log.warn("Connection {} failed", Integer.valueOf(m_clientID), ioe);
             }
             finally
             {
                 // Clean up
                 try  {                    
-                    in.close();
-                    out.close();
+                    if (conn != null)
+                        conn.close();
                     m_clientSocket.close();
-                    System.out.println("Thread "+this.getName()+" stopped, socket closed");
+                    Log.debug("Thread {} stopped, socket closed", this.getName());
                 }
                 catch(IOException ioe) {
-                    ioe.printStackTrace();
+                    Log.warn("Could not close connection {}", Integer.valueOf(m_clientID), ioe);
                 }
+                engine.connectionClosed(m_clientSocket);
+                if (session != null)
+                    session.ended();
+                engine.admission.release();
             }
         }
     }
@@ -664,6 +1001,427 @@ public abstract class LMTP {
 
     
     
+    /**
+     * The connection of a session on ENGINE_THREADS or ENGINE_VIRTUAL: a LineReader and a buffered output stream on
+     * the socket's streams, swapped for ones on a TlsChannel after a STARTTLS. The service reads conn.in afresh each
+     * time for that reason. Replies go out with CRLF line endings, as on ENGINE_NIO, whatever the platform's are.
+     */
+    private class BlockingConnection implements LMTPSession.ReplySink {
+        private final Socket socket;
+        private final int clientID;
+        LineReader in;
+        private OutputStream out;
+        private TlsChannel tls = null;
+        /** after a STARTTLS, the reader from before it. Its buffer goes back to the pool when the connection closes */
+        private LineReader cleartextIn = null;
+
+        BlockingConnection(Socket _socket, int _clientID)
+        throws IOException {
+            socket = _socket;
+            clientID = _clientID;
+            in = new LineReader(socket.getInputStream(), engine.buffers);
+            out = new BufferedOutputStream(socket.getOutputStream());
+        }
+
+        public void send(String _s)
+        throws IOException {
+            out.write((_s.replace("\n", "\r\n")+"\r\n").getBytes(Charset.defaultCharset()));
+        }
+
+        public void flush()
+        throws IOException {
+            // Gotta flush!
+            out.flush();
+        }
+
+        public void startTls()
+        throws IOException {
+            out.flush();
+            tls = engine.tls.open(Channels.newChannel(socket.getInputStream()), Channels.newChannel(socket.getOutputStream()), clientID, null);
+            // anything sent in the clear after the STARTTLS goes with the old reader (RFC 3207)
+            cleartextIn = in;
+            in = new LineReader(tls.inputStream(socket.getInputStream()), engine.buffers);
+            out = new BufferedOutputStream(Channels.newOutputStream(tls));
+        }
+
+        /**
+         * The blocking reads time out after INACTIVITY_TIMEOUT_MSEC with SO_TIMEOUT, so the socket gets the session's
+         * timeout when it starts, and again whenever a reloaded configuration changes it. ENGINE_THREADS only reads
+         * lines once they're ready(), but the raw bytes of a BDAT chunk are read blocking, and a client that stalls
+         * in the middle of one mustn't hold the thread forever. 0 disables the timeout, the same as INACTIVITY_TIMEOUT_MSEC
+         */
+        public void configChanged(ServerConfig _config)
+        throws IOException {
+            socket.setSoTimeout((int) Math.min(_config.inactivityTimeoutMsec, Integer.MAX_VALUE));
+        }
+
+        /**
+         * Close the streams, and TLS if it was started. The caller closes the socket
+         */
+        void close()
+        throws IOException {
+            try {
+                out.close();
+            }
+            catch (IOException ioe) {
+                // the client has gone, and whatever was still buffered for it with it. the rest must be closed all the same
+            }
+            if (tls != null)
+                tls.close();
+            if (cleartextIn != null)
+                cleartextIn.release();
+            in.close();
+        }
+    }
+
+
+    /**
+     * The ENGINE_VIRTUAL service for one connection. Meant to run on a virtual thread, so it simply blocks in readLine()
+     * until the client sends something: the reply goes out as soon as the line arrives, instead of after the
+     * LOOP_SLEEP_MSEC and READ_DEFER_TIME_MSEC naps ClientServiceThread takes. The inactivity timeout is enforced
+     * with the socket's SO_TIMEOUT.
+     */
+    class VirtualClientService implements Runnable
+    {
+        Socket m_clientSocket;
+        int m_clientID = -1;
+
+        VirtualClientService(Socket s, int clientID) {
+            m_clientSocket = s;
+            m_clientID = clientID;
+        }
+
+        public void run()
+        {
+            BlockingConnection conn = null;
+            LMTPSession session = null;
+
+            if (Log.isEnabled(Log.DEBUG))
+                Log.debug("Servicing client: {} at {}", Integer.valueOf(m_clientID), m_clientSocket.getInetAddress());
+
+            try
+            {
+                engine.connectionOpened(m_clientSocket);
+                conn = new BlockingConnection(m_clientSocket, m_clientID);
+                session = new LMTPSession(LMTP.this, m_clientID, conn);
+                // sends the greeting
+                session.process(null);
+
+                while (! session.isStopped()) {
+                    try {
+                        // conn.in is a new reader after a STARTTLS
+                        if (session.bytesWanted() > 0) {
+                            // the raw bytes of a BDAT chunk
+                            if (session.processBytes(conn.in) <= 0)
+                                break; // the client went away in the middle of a chunk
+                        }
+                        else {
+                            LineReader in = conn.in;
+                            int length = in.readLine(session.maxLineLength());
+                            if (length == LineReader.TOO_LONG)
+                                session.lineTooLong();
+                            else if (length < 0) {
+                                // the client went away without a QUIT
+                                break;
+                            }
+                            else
+                                session.processLine(in.lineBuffer(), in.lineOffset(), length);
+                        }
+                    }
+                    catch (SocketTimeoutException ste) {
+                        // nothing for INACTIVITY_TIMEOUT_MSEC. the session sees that it timed out and says goodbye
+                        session.process(null);
+                        continue;
+                    }
+                    // pipelining: the replies only go out once everything the client already sent has been handled
+                    if (! conn.in.ready())
+                        conn.flush();
+                }
+            }
+            catch(IOException ioe)
+            {
+                if (session != null)
+                    session.abort();
+                Log.warn("Connection {} failed", Integer.valueOf(m_clientID), ioe);
+            }
+            finally
+            {
+                try  {
+                    if (conn != null)
+                        conn.close();
+                    m_clientSocket.close();
+                    Log.debug("Virtual thread {} stopped, socket closed", Integer.valueOf(m_clientID));
+                }
+                catch(IOException ioe) {
+                    Log.warn("Could not close connection {}", Integer.valueOf(m_clientID), ioe);
+                }
+                engine.connectionClosed(m_clientSocket);
+                if (session != null)
+                    session.ended();
+                engine.admission.release();
+            }
+        }
+    }
+
+
+
+
+    /**
+     * @return the hosts, domains and limits in force now
+     */
+    public ServerConfig getConfig() {
+        return config.get();
+    }
+
+    /**
+     * @return the hosts, domains and limits the server was made with
+     */
+    ServerConfig getStartupConfig() {
+        return startupConfig;
+    }
+
+    /**
+     * Put a new configuration in force, without stopping the server. New connections are checked against it at once;
+     * sessions already running pick it up at the end of the transaction they're in.
+     * @param _config the new configuration, usually made from getConfig() with ServerConfig.with()
+     */
+    public void reconfigure(ServerConfig _config) {
+        if (_config == null)
+            throw new IllegalArgumentException("null configuration");
+        config.set(_config);
+    }
+
+
+    /**
+     * Tell a connection admission control refused that the server is too busy, and close it. This is called on the
+     * acceptor and on Admission's timer thread, so it mustn't block: the 421 is one non-blocking write, and a client
+     * that can't take even that much doesn't hear it.
+     * @param _sc the connection, not yet registered with an I/O loop
+     */
+    void refuseBusy(SocketChannel _sc) {
+        try {
+            _sc.configureBlocking(false);
+            _sc.write(ByteBuffer.wrap(busyReply()));
+        }
+        catch (IOException ioe) {
+            // it's being closed anyway
+        }
+        try { _sc.close(); } catch (IOException ioe) { }
+    }
+
+    /**
+     * What refuseBusy(SocketChannel) does, for the ENGINE_THREADS and ENGINE_VIRTUAL sockets, which can't be made
+     * non-blocking. Nothing has been written to the socket yet, so the 421 goes straight into its empty send buffer
+     * whether the client reads or not, and close() doesn't linger.
+     * @param _s the connection, not yet being served
+     */
+    void refuseBusy(Socket _s) {
+        try {
+            OutputStream out = _s.getOutputStream();
+            out.write(busyReply());
+            out.flush();
+        }
+        catch (IOException ioe) {
+            // it's being closed anyway
+        }
+        try { _s.close(); } catch (IOException ioe) { }
+    }
+
+    /**
+     * Count and log a refused connection
+     * @return the 421 to send it
+     */
+    private byte[] busyReply() {
+        engine.metrics.count(Metrics.Counter.CONNECTIONS_REFUSED_BUSY);
+        Log.info("Refused connection, server busy. Rejected so far: {}", Long.valueOf(engine.admission.rejectedCount()));
+        return ("421 "+getConfig().myHost+" Service busy, try again later\r\n").getBytes(Charset.defaultCharset());
+    }
+
+
+    /**
+     * @return the number of connections that have been served (or are being served) since the engine started, on all its listeners
+     */
+    public long getAdmittedConnections() {
+        return engine.getAdmittedConnections();
+    }
+
+    /**
+     * @return the number of connections refused with a 421 because the engine was saturated
+     */
+    public long getRejectedConnections() {
+        return engine.getRejectedConnections();
+    }
+
+    /**
+     * @return the number of connections that had to wait for a free slot before being served
+     */
+    public long getQueuedConnections() {
+        return engine.getQueuedConnections();
+    }
+
+
+    /**
+     * @return true if the delivery pool's queue is full, so new work should be turned away until it drains
+     */
+    boolean deliveryQueueFull() {
+        return engine.deliveryQueueFull();
+    }
+    
+    
+    /**
+     * Deliver one message to each of its recipients, by calling deliverAsync() once per recipient.
+     * @param _mailFrom the sender
+     * @param _mailTo the accepted recipients
+     * @param _message the message body, received once for all of them
+     * @return a future for one SMTP status line per recipient, in the same order as _mailTo. It never completes
+     * exceptionally; a delivery that failed, or whose status was null or not a status line, gets a 451 line
+     */
+    CompletableFuture <String[]> deliverToAll(String _mailFrom, Vector <String> _mailTo, MessageBody _message) {
+        final Vector <CompletableFuture <String>> pending = new Vector <CompletableFuture <String>> ();
+        final Metrics metrics = engine.metrics;
+        for (int i = 0; i < _mailTo.size(); i++) {
+            final String oneRecipient = _mailTo.get(i);
+            final long start = System.nanoTime();
+            CompletableFuture <String> f;
+            try {
+                f = deliverAsync(_mailFrom, oneRecipient, _message);
+            }
+            catch (RuntimeException re) {
+                f = new CompletableFuture <String> ();
+                f.completeExceptionally(re);
+            }
+            pending.add(f.exceptionally(new Function <Throwable, String> () {
+                public String apply(Throwable _t) {
+                    Log.warn("deliver() failed for {}", oneRecipient, _t);
+                    return "451 Error delivering message";
+                }
+            }).thenApply(new Function <String, String> () {
+                public String apply(String _status) {
+                    metrics.time(Metrics.Phase.DELIVER_RECIPIENT, start);
+                    String status = statusLine(_status);
+                    if (status == null) {
+                        Log.warn("deliver() gave a malformed status for {}: {}", oneRecipient, _status);
+                        status = "451 Error delivering message";
+                    }
+                    char c = status.charAt(0);
+                    metrics.count((c == '2') ? Metrics.Counter.DELIVERIES_OK
+                            : (c == '5') ? Metrics.Counter.DELIVERIES_PERMFAIL : Metrics.Counter.DELIVERIES_TEMPFAIL);
+                    return status;
+                }
+            }));
+        }
+        
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture <?> [pending.size()])).thenApply(new Function <Void, String[]> () {
+            public String[] apply(Void _v) {
+                String[] result = new String[pending.size()];
+                for (int i = 0; i < result.length; i++)
+                    result[i] = pending.get(i).join();
+                return result;
+            }
+        });
+    }
+    
+    
+    /**
+     * RFC 2033 wants exactly one status line per recipient, so what deliver() returns is checked before it's sent
+     * @param _status a status from deliverAsync()
+     * @return _status without any trailing line ending, if it's one line starting with a 2xx to 5xx reply code, otherwise null
+     */
+    static String statusLine(String _status) {
+        if (_status == null)
+            return null;
+        int end = _status.length();
+        while ((end > 0) && ((_status.charAt(end - 1) == '\n') || (_status.charAt(end - 1) == '\r')))
+            end--;
+        if ((end < 3) || (_status.charAt(0) < '2') || (_status.charAt(0) > '5')
+                || (_status.charAt(1) < '0') || (_status.charAt(1) > '9') || (_status.charAt(2) < '0') || (_status.charAt(2) > '9')
+                || ((end > 3) && (_status.charAt(3) != ' ')))
+            return null;
+        for (int i = 3; i < end; i++) {
+            char c = _status.charAt(i);
+            if ((c == '\n') || (c == '\r'))
+                return null;
+        }
+        return (end == _status.length()) ? _status : _status.substring(0, end);
+    }
+
+
+    /**
+     * Start delivering the message to one recipient, and return at once. The server calls this for each recipient
+     * and sends the status lines to the client when all the futures have completed. The thread that called it goes
+     * on to serve other connections meanwhile (with ENGINE_NIO), so this must not block.
+     * <p>By default it runs deliver(String, String, InputStream) on the delivery pool (DELIVERY_THREADS), or right
+     * here if there is no pool, which is only on ENGINE_THREADS and ENGINE_VIRTUAL. When the pool's queue is full the future completes with a 451 at once. Override this
+     * to hand messages to a delivery backend that has its own asynchronous API. The body must not be used after the
+     * future completes; it is thrown away then.</p>
+     * @param _mailFrom The FROM address
+     * @param _mailTo The TO address, just one of the recipients
+     * @param _message the body. Read it with openStream()
+     * @return a future for the SMTP status line, following the same rules as deliver(). If it completes
+     * exceptionally, the client gets a 451 for this recipient
+     */
+    protected CompletableFuture <String> deliverAsync(final String _mailFrom, final String _mailTo, final MessageBody _message) {
+        ThreadPoolExecutor pool = engine.deliveryPool;
+        if (pool == null)
+            return CompletableFuture.completedFuture(deliverBody(_mailFrom, _mailTo, _message));
+        try {
+            return CompletableFuture.supplyAsync(new Supplier <String> () {
+                public String get() {
+                    return deliverBody(_mailFrom, _mailTo, _message);
+                }
+            }, pool);
+        }
+        catch (RejectedExecutionException ree) {
+            return CompletableFuture.completedFuture("451 Delivery queue full, try again later");
+        }
+    }
+    
+    
+    /**
+     * Open a stream over the body and hand it to deliver() for one recipient
+     * @return the status line from deliver(), or a 451 if the body could not be read
+     */
+    private String deliverBody(String _mailFrom, String _mailTo, MessageBody _message) {
+        InputStream in = null;
+        try {
+            in = _message.openStream();
+            return deliver(_mailFrom, _mailTo, in);
+        }
+        catch (IOException ioe) {
+            Log.warn("Could not read message body for {}: {}", _mailTo, ioe.getMessage());
+            return "451 Error reading message";
+        }
+        finally {
+            if (in != null)
+                try { in.close(); } catch (IOException ioe) { }
+        }
+    }
+    
+    
+    /**
+     * DELIVER the message just received, as a stream. This is what the server calls for each recipient. 
+     * By default it reads the whole stream into a String and calls deliver(String, String, String), so the simple
+     * String version is all most servers need. Override this one instead to handle big messages without holding
+     * them in memory: bodies over SPOOL_THRESHOLD_BYTES come from a spool file on disk.
+     * <p>The same rules as the String version apply for the reply. The stream is closed by the caller when this returns.</p>
+     * 
+     * @param _mailFrom The FROM address - who sent this message?  (username@host.domain.tld)
+     * @param _mailTo The TO address -- to whom was this addressed? (username@host.domain.tld)
+     * @param _message The entire e-mail message, in the platform charset with lines ending in \n
+     * @throws IOException if the stream can't be read. The client gets a 451 for this recipient
+     */
+    protected String deliver(String _mailFrom, String _mailTo, InputStream _message)
+    throws IOException {
+        // a body's stream knows how long it is, so the whole of it fits without growing
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(32, _message.available()));
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = _message.read(buf)) > 0)
+            bytes.write(buf, 0, n);
+        return deliver(_mailFrom, _mailTo, new String(bytes.toByteArray(), Charset.defaultCharset()));
+    }
+    
+    
    /**
     * DELIVER the message just received... implementers must provide a method that really does something useful.
     * <p>The method must return an SMTP response string suitable for sending back to the client.
@@ -677,6 +1435,10 @@ public abstract class LMTP {
     * failures, and the sending server will try to send the message again. 5xx messages are permanent failures (for
     * example, the addressee does not exist).
     * </p>
+    * <p>A message with several recipients is received once, then deliver() is called once for each recipient. If
+    * there is a delivery pool (DELIVERY_THREADS is more than 0, or the server runs on I/O loops) those calls happen on
+    * it, in parallel, so deliver() has to be thread safe.
+    * </p>
     * Note: the mailTo and mailFrom addresses are passed without the surrounding &lt; and &gt; marks. 
     * As well, the addresses will be lowercased and leading/trailing spaces will be trimmed.
     * So, the servers pass addresses like this: &lt;x(at)y.com&gt;, and the addressed handed to deliver() are: x(at)y.com
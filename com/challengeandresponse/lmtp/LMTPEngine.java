@@ -0,0 +1,317 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * What the LMTP servers in a process can share: the engine that runs the client connections (the NIO loops, or the
+ * service threads), the delivery pool, admission control, the host name lookups and the heap budget for message
+ * bodies. Each LMTP is one listener, with its own port, configuration and deliver(); any number of them can be
+ * started on one engine, so one JVM can serve several ports (one per tenant, say, each with its own MY_HOST and
+ * domains) on one set of threads.
+ * <p>The sizes are taken from the LMTP static settings (ENGINE, NIO_LOOPS, DELIVERY_THREADS, HARD_MAX_THREADS or
+ * MAX_SESSIONS, MAX_QUEUED_CONNECTIONS, the RESOLVER_ settings and MAX_BODY_MEMORY_BYTES) when the engine is made.
+ * The session limit and the body budget are for all the listeners together.</p>
+ * <pre>
+ * LMTPEngine engine = new LMTPEngine(LMTP.ENGINE_NIO);
+ * new MyLMTP(engine, 2424, ServerConfig.fromDefaults(hosts, domainsA)).start();
+ * new MyLMTP(engine, 2425, ServerConfig.fromDefaults(hosts, domainsB)).start();
+ * ...
+ * engine.stop();
+ * </pre>
+ */
+public final class LMTPEngine {
+
+    /** one of the LMTP.ENGINE_ values */
+    final int type;
+    /** the ENGINE_THREADS service threads */
+    final ThreadGroup threads;
+    /**
+     * runs the per-recipient deliver() calls when DELIVERY_THREADS &gt; 0, or when there are I/O loops, which must never
+     * call deliver() themselves. Otherwise null. Made with the loops if it isn't there already, see loops()
+     */
+    volatile ThreadPoolExecutor deliveryPool;
+    /** decides which accepted connections are served now, which wait and which are refused */
+    final Admission admission;
+    /** the cached, asynchronous host lookups for LIVE_NET_LOOKUPS */
+    final ResolverCache resolver;
+    /** the heap held by the message bodies of all sessions, capped at MAX_BODY_MEMORY_BYTES */
+    final ByteBudget bodyBudget;
+    /** the I/O loops, for ENGINE_NIO and for Unix domain socket listeners on any engine. null until needed, see loops() */
+    private NioEngine nio = null;
+    /** the counters and histograms of every listener on the engine */
+    final Metrics metrics;
+    /** writes the sessions to LMTP.RECORD_SESSIONS. null if they aren't being recorded */
+    final SessionRecorder recorder;
+    /** the certificate, session cache and buffers for STARTTLS. null if TLS isn't set up */
+    final TlsContext tls;
+    /** the message bodies' in-memory buffers and the connections' read buffers, kept for reuse up to BUFFER_POOL_BYTES */
+    final BufferPool buffers;
+
+    /** The delivery pool made for the I/O loops when DELIVERY_THREADS is 0 has twice NIO_LOOPS threads, and at least this many */
+    private static final int LOOP_DELIVERY_THREADS_MIN = 4;
+
+    private static final AtomicInteger engineCount = new AtomicInteger(0);
+    private final int engineNumber = engineCount.getAndIncrement();
+    private ObjectName mbeanName = null;
+
+    private final Vector <LMTP> listeners = new Vector <LMTP> ();
+    // the sockets of the ENGINE_THREADS and ENGINE_VIRTUAL sessions, so stop() can close them
+    private final HashSet <Closeable> connections = new HashSet <Closeable> ();
+    private boolean started = false;
+    private volatile boolean stopped = false;
+
+
+    /**
+     * An engine of the type in LMTP.ENGINE
+     */
+    public LMTPEngine() {
+        this(LMTP.ENGINE);
+    }
+
+    /**
+     * @param _engine one of the LMTP.ENGINE_ values
+     */
+    public LMTPEngine(int _engine) {
+        type = _engine;
+        threads = new ThreadGroup("lmtp_threads");
+        deliveryPool = (LMTP.DELIVERY_THREADS > 0) ? newDeliveryPool(LMTP.DELIVERY_THREADS) : null;
+        resolver = new ResolverCache(LMTP.RESOLVER, LMTP.RESOLVER_POSITIVE_TTL_MSEC, LMTP.RESOLVER_NEGATIVE_TTL_MSEC,
+                LMTP.RESOLVER_CACHE_SIZE, LMTP.RESOLVER_TIMEOUT_MSEC, LMTP.RESOLVER_THREADS, LMTP.RESOLVER_QUEUE_SIZE);
+        admission = new Admission((type == LMTP.ENGINE_THREADS) ? LMTP.HARD_MAX_THREADS : LMTP.MAX_SESSIONS, LMTP.MAX_QUEUED_CONNECTIONS);
+        bodyBudget = new ByteBudget(LMTP.MAX_BODY_MEMORY_BYTES);
+        metrics = new Metrics(this);
+        recorder = openRecorder();
+        tls = TlsContext.open(metrics);
+        buffers = new BufferPool(BufferPool.doubling(MessageBody.INITIAL_BUFFER_SIZE, Math.max(LMTP.SPOOL_THRESHOLD_BYTES, LineReader.BUFFER_SIZE)),
+                LMTP.BUFFER_POOL_BYTES, metrics, Metrics.Counter.BUFFERS_REUSED, Metrics.Counter.BUFFERS_ALLOCATED);
+    }
+    
+    
+    /**
+     * @return the I/O loops, made and started the first time they're needed. An ENGINE_NIO engine starts them when
+     * it starts; the other engines only when a listener on a Unix domain socket needs them
+     */
+    synchronized NioEngine loops() {
+        if (nio == null) {
+            // a deliver() on a loop would hold up every connection on it, so the loops always have a pool to call it on
+            if (deliveryPool == null)
+                deliveryPool = newDeliveryPool(Math.max(LOOP_DELIVERY_THREADS_MIN, 2 * LMTP.NIO_LOOPS));
+            nio = new NioEngine(this, LMTP.NIO_LOOPS);
+            nio.start();
+        }
+        return nio;
+    }
+
+
+    /**
+     * @param _threads the number of threads
+     * @return a delivery pool of that size, its queue DELIVERY_QUEUE_SIZE long
+     */
+    private static ThreadPoolExecutor newDeliveryPool(int _threads) {
+        return new ThreadPoolExecutor(_threads, _threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue <Runnable> (Math.max(1, LMTP.DELIVERY_QUEUE_SIZE)));
+    }
+
+
+    private static SessionRecorder openRecorder() {
+        if (LMTP.RECORD_SESSIONS == null)
+            return null;
+        try {
+            return new SessionRecorder(LMTP.RECORD_SESSIONS);
+        }
+        catch (IOException ioe) {
+            Log.warn("Could not open {} to record sessions. Carrying on without. {}", LMTP.RECORD_SESSIONS, ioe.getMessage());
+            return null;
+        }
+    }
+
+
+    /**
+     * Start the engine's threads. LMTP.start() does this for the first listener, so there's usually no need to call it
+     * @throws IllegalStateException if the engine has been stopped
+     */
+    public synchronized void start() {
+        if (stopped)
+            throw new IllegalStateException("engine has been stopped");
+        if (started)
+            return;
+        if (type == LMTP.ENGINE_NIO)
+            loops();
+        if (LMTP.METRICS_JMX) {
+            try {
+                ObjectName name = new ObjectName("com.challengeandresponse.lmtp:type=Metrics,engine="+engineNumber);
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+                mbeanName = name;
+            }
+            catch (JMException jme) {
+                Log.warn("Could not register the metrics with JMX. Carrying on without. {}", jme.getMessage());
+            }
+        }
+        started = true;
+    }
+
+
+    /**
+     * Stop every listener on this engine, close every connection and shut the threads down. An engine can't be
+     * started again once it's stopped.
+     */
+    public void stop() {
+        LMTP[] l;
+        synchronized (this) {
+            if (stopped)
+                return;
+            stopped = true;
+            l = listeners.toArray(new LMTP[listeners.size()]);
+        }
+        for (int i = 0; i < l.length; i++)
+            l[i].stop();
+        // nothing waiting for a slot gets one now: each is told the server is busy and closed
+        admission.shutdown();
+        NioEngine n;
+        synchronized (this) {
+            n = nio;
+        }
+        if (n != null)
+            n.stop();
+        Closeable[] c;
+        synchronized (connections) {
+            c = connections.toArray(new Closeable[connections.size()]);
+        }
+        // the service threads blocked on these fail out of their reads and clean up
+        for (int i = 0; i < c.length; i++) {
+            try {
+                c[i].close();
+            }
+            catch (IOException ioe) { }
+        }
+        ThreadPoolExecutor d = deliveryPool;
+        if (d != null)
+            d.shutdown();
+        resolver.shutdown();
+        if (tls != null)
+            tls.shutdown();
+        if (recorder != null)
+            recorder.close();
+        if (mbeanName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+            }
+            catch (JMException jme) { }
+        }
+        Log.info("Engine stopped");
+    }
+
+
+    /**
+     * @return true if the engine has been started and not stopped
+     */
+    public synchronized boolean isRunning() {
+        return started && (! stopped);
+    }
+
+
+    /**
+     * @return the counters, gauges and histograms of all the listeners on this engine
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+
+    /**
+     * @return the listeners started on this engine and not stopped
+     */
+    public Vector <LMTP> getListeners() {
+        return new Vector <LMTP> (listeners);
+    }
+
+
+    synchronized void addListener(LMTP _server) {
+        if (stopped)
+            throw new IllegalStateException("engine has been stopped");
+        listeners.add(_server);
+    }
+
+    void removeListener(LMTP _server) {
+        listeners.remove(_server);
+    }
+
+
+    /**
+     * Keep track of the socket of a session started on a service thread, until connectionClosed(). If the engine
+     * has stopped, which a connection that waited for a slot can find, the socket is closed at once instead
+     */
+    void connectionOpened(Closeable _socket) {
+        synchronized (connections) {
+            if (! stopped) {
+                connections.add(_socket);
+                return;
+            }
+        }
+        try {
+            _socket.close();
+        }
+        catch (IOException ioe) { }
+    }
+
+    void connectionClosed(Closeable _socket) {
+        synchronized (connections) {
+            connections.remove(_socket);
+        }
+    }
+
+
+    /**
+     * @return true if the delivery pool's queue is full, so new work should be turned away until it drains
+     */
+    boolean deliveryQueueFull() {
+        ThreadPoolExecutor d = deliveryPool;
+        return (d != null) && (d.getQueue().remainingCapacity() == 0);
+    }
+
+
+    /**
+     * @return the number of connections that have been served (or are being served) since the engine started, on all its listeners
+     */
+    public long getAdmittedConnections() {
+        return admission.admittedCount();
+    }
+
+    /**
+     * @return the number of connections refused with a 421 because the engine was saturated
+     */
+    public long getRejectedConnections() {
+        return admission.rejectedCount();
+    }
+
+    /**
+     * @return the number of connections that had to wait for a free slot before being served
+     */
+    public long getQueuedConnections() {
+        return admission.queuedCount();
+    }
+
+    /**
+     * @return the number of sessions being served right now, on all the listeners
+     */
+    public int getActiveSessions() {
+        return admission.activeNow();
+    }
+
+}
@@ -0,0 +1,965 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * The LMTP conversation with one connected client: the LHLO/MAIL/RCPT/DATA state machine that used to live
+ * inside ClientServiceThread.run(). It doesn't do any I/O of its own... whoever owns the connection hands it
+ * lines with processLine() and it sends its replies through a ReplySink. That way the same state machine is driven
+ * by a thread per connection or by one of the NIO event loops, whichever engine the server was started with.
+ * <p>A session is not thread safe. Exactly one thread at a time may call into it.</p>
+ */
+class LMTPSession {
+    static final int 	STATE_START = 10;
+    static final int	STATE_RSET = 20;
+    static final int 	STATE_EXPECT_LHLO= 30;
+    static final int 	STATE_CAPABILITIES = 40;
+    static final int 	STATE_PIPELINING = 50;
+    static final int 	STATE_LOOKUP = 55;
+    static final int 	STATE_DATA = 60;
+    static final int 	STATE_BDAT = 65;
+    static final int	STATE_PROCESS = 70;
+    static final int	STATE_DELIVERING = 75;
+
+    static final int	STATE_STOP = 90;
+    static final int	STATE_STOPPED = 99;
+
+    /** the longest command line taken, in bytes, not counting its line ending (RFC 5321 4.5.3.1) */
+    static final int	MAX_COMMAND_LENGTH = 1000;
+
+    // the parameters of MAIL FROM (RFC 1870, RFC 6152, RFC 3030) and BDAT, lowercase, as CommandLine matches them
+    private static final byte[] SIZE_PARAMETER = ascii("size=");
+    private static final byte[] BODY_PARAMETER = ascii("body=");
+    private static final byte[] BODY_7BIT = ascii("7bit");
+    private static final byte[] BODY_8BITMIME = ascii("8bitmime");
+    private static final byte[] BODY_BINARYMIME = ascii("binarymime");
+    private static final byte[] BDAT_LAST = ascii("last");
+
+    private static byte[] ascii(String _s) {
+        return _s.getBytes(Charset.forName("US-ASCII"));
+    }
+
+
+    /**
+     * @return every STATE_ number
+     */
+    static int[] allStates() {
+        return new int[] { STATE_START, STATE_RSET, STATE_EXPECT_LHLO, STATE_CAPABILITIES, STATE_PIPELINING, STATE_LOOKUP,
+                STATE_DATA, STATE_BDAT, STATE_PROCESS, STATE_DELIVERING, STATE_STOP, STATE_STOPPED };
+    }
+
+    /**
+     * @return the name of a STATE_ number, without the STATE_
+     */
+    static String stateName(int _state) {
+        switch (_state) {
+        case STATE_START: return "START";
+        case STATE_RSET: return "RSET";
+        case STATE_EXPECT_LHLO: return "EXPECT_LHLO";
+        case STATE_CAPABILITIES: return "CAPABILITIES";
+        case STATE_PIPELINING: return "PIPELINING";
+        case STATE_LOOKUP: return "LOOKUP";
+        case STATE_DATA: return "DATA";
+        case STATE_BDAT: return "BDAT";
+        case STATE_PROCESS: return "PROCESS";
+        case STATE_DELIVERING: return "DELIVERING";
+        case STATE_STOP: return "STOP";
+        case STATE_STOPPED: return "STOPPED";
+        default: return ""+_state;
+        }
+    }
+
+
+    /**
+     * Where a session sends its replies. send() may just buffer the reply; nothing has to reach the client
+     * until flush() is called. The session flushes at the end of every RFC 2920 command group (after the reply to
+     * LHLO, DATA, QUIT, NOOP or RSET) and the engine flushes whenever it has run out of input from the client, so
+     * a pipelined MAIL/RCPT.../DATA burst gets all its replies in one write.
+     */
+    interface ReplySink {
+        /**
+         * @param _s the reply to send. May hold several lines separated by \n. No trailing newline is supplied, the sink provides that
+         * @throws IOException if the write failed
+         */
+        void send(String _s) throws IOException;
+
+        /**
+         * Push everything sent so far out to the client
+         * @throws IOException if the write failed
+         */
+        void flush() throws IOException;
+
+        /**
+         * Switch the connection to TLS after a STARTTLS, once the 220 has been flushed. What the client sends from
+         * now on is a TLS handshake and then TLS records, and whatever it already sent in the clear that hasn't
+         * been handled is thrown away (RFC 3207). Only called if the engine has a TlsContext
+         * @throws IOException if TLS couldn't be started
+         */
+        void startTls() throws IOException;
+
+        /**
+         * The session's configuration: the one it starts with, before the greeting, and each new one it takes up
+         * between transactions. A connection that enforces INACTIVITY_TIMEOUT_MSEC itself, with a socket timeout,
+         * applies it; the rest have nothing to do
+         * @param _config the session's configuration from now on
+         * @throws IOException if the new settings couldn't be applied
+         */
+        void configChanged(ServerConfig _config) throws IOException;
+    }
+
+
+    private final LMTP server;
+    private ServerConfig config; // the server's configuration as it was at the start of this transaction
+    private final ReplySink out;
+    private final int clientID;
+    private final CommandLine command = new CommandLine(); // reused for every command line
+    private final ParsedAddress address = new ParsedAddress(); // reused for every MAIL FROM and RCPT TO
+    private final Metrics metrics;
+
+    private int state = STATE_START;
+    private String mailFrom = null;
+    private Vector <String> mailTo = new Vector <String> (); // every accepted recipient, in the order they were given
+    private MessageBody dataBlock = null; // all the data received from a DATA command. reset and reused for the next transaction
+    private String helloName = null; // set to the name received w/ the LHLO command, also signals that LHLO has been received
+    private boolean oversize = false; // set when the DATA went past MAX_MESSAGE_SIZE or had a line past MAX_LINE_LENGTH. the rest of it is read and thrown away
+    private boolean binaryMime = false; // MAIL FROM said BODY=BINARYMIME, so the body must come with BDAT
+    private boolean chunking = false; // a BDAT has been received in this transaction, so DATA is not allowed
+    private long chunkSize = 0; // size of the BDAT chunk being received
+    private long chunkRemaining = 0; // bytes of that chunk still to come
+    private boolean chunkLast = false; // it was BDAT ... LAST
+    private boolean tlsActive = false; // STARTTLS has been done, so it's not offered again
+    private String chunkError = null; // if the chunk is being thrown away because the BDAT was refused, the reply to send once it has been read
+    private final ByteBuffer discardBuffer = ByteBuffer.allocate(4096); // for reading chunks that are thrown away
+    private CompletableFuture <String[]> pendingDelivery = null; // the deliveries of the message just received, while they run
+    private CompletableFuture <InetAddress> pendingLookup = null; // the lookup of the MAIL FROM host, while it runs
+    private String pendingSender = null; // the MAIL FROM address waiting for that lookup
+    private Runnable resumer = null; // how the engine wants to be told that the deliveries or the lookup are done. null means wait for them
+    private boolean resumeScheduled = false; // the resumer has been hooked to pendingDelivery or pendingLookup
+
+    private long lastActivityTime; // last time something non-null was received from the other side
+    private int errors = 0; // number of errors that occurred, is reset on an RSET
+    private int noops = 0; // number of noop ('for keepalive') received, is reset on an RSET
+    private int rsets = 0; // number of rsets received -- is NOT reset on an RSET
+
+    // System.nanoTime() at the start of things being timed, for the metrics
+    private final long startNanos; // the session
+    private long stateNanos; // the current state
+    private long greetingNanos = 0; // the greeting went out
+    private long transactionNanos = 0; // the MAIL FROM came in
+    private long dataNanos = 0; // the body started
+    private long lookupNanos = 0; // the MAIL FROM lookup started
+    private long deliveryNanos = 0; // the deliveries started
+    private boolean ended = false; // ended() has been called
+    private final SessionTrace trace; // what the client sends, for LMTP.RECORD_SESSIONS. null if not recording
+
+
+    /**
+     * @param _server the server this session belongs to. Supplies the configuration, domains served and the deliver() method
+     * @param _clientID a number identifying this connection, for the log
+     * @param _out where the replies go
+     */
+    LMTPSession(LMTP _server, int _clientID, ReplySink _out) {
+        server = _server;
+        clientID = _clientID;
+        out = _out;
+        config = _server.getConfig();
+        metrics = _server.engine.metrics;
+        lastActivityTime = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        stateNanos = startNanos;
+        trace = (_server.engine.recorder != null) ? new SessionTrace() : null;
+    }
+
+
+    /**
+     * @return true once the session has said goodbye to the client and the connection should be closed
+     */
+    boolean isStopped() {
+        return (state == STATE_STOPPED);
+    }
+
+    /**
+     * Tell the session how to hand control back when it has to wait for its deliveries, or for the host name lookup of
+     * a MAIL FROM. Without a resumer, process() just blocks until they finish, which is fine for an engine with a thread
+     * per connection. With one, process() returns while they run (isBusy() is true), and the resumer is run, on some
+     * delivery or lookup thread, once they are done. The engine should then call process(null) again, from its own
+     * thread, to send the replies.
+     * @param _resumer run when the deliveries or the lookup are done
+     */
+    void setResumer(Runnable _resumer) {
+        resumer = _resumer;
+    }
+
+    /**
+     * @return true while the session is waiting for its deliveries or a lookup to finish. It takes no input meanwhile,
+     * so the engine should hold on to anything more the client sends until this is false
+     */
+    boolean isBusy() {
+        return (state == STATE_DELIVERING) || (state == STATE_LOOKUP);
+    }
+
+    /**
+     * @return the number of raw bytes of a BDAT chunk the session is waiting for. While this is more than 0, the engine
+     * must hand the session bytes with processBytes(), not lines
+     */
+    long bytesWanted() {
+        return (state == STATE_BDAT) ? chunkRemaining : 0;
+    }
+
+    /**
+     * @return the longest line the session takes next, not counting its line ending: the configuration's maxLineLength
+     * in a DATA, MAX_COMMAND_LENGTH otherwise. The engine throws away a longer one as it arrives and calls lineTooLong()
+     * instead of processLine()
+     */
+    int maxLineLength() {
+        return (state == STATE_DATA) ? config.maxLineLength : MAX_COMMAND_LENGTH;
+    }
+
+    /**
+     * The client sent a line longer than maxLineLength(), which the engine has thrown away. A command gets a 500 and
+     * counts as an error; in a DATA the message is refused, the same as one over MAX_MESSAGE_SIZE, once its end comes.
+     * @throws IOException if a reply could not be sent. The caller should drop the connection.
+     */
+    void lineTooLong()
+    throws IOException {
+        lastActivityTime = System.currentTimeMillis();
+        if (state == STATE_DATA) {
+            if (! oversize) {
+                oversize = true;
+                disposeBody();
+            }
+            return;
+        }
+        errors++;
+        metrics.count(Metrics.Counter.REJECT_SYNTAX);
+        out.send("500 Line too long");
+        // too many errors ends the session
+        processLine(null, 0, 0);
+    }
+
+    /**
+     * @return the id passed to the constructor
+     */
+    int getClientID() {
+        return clientID;
+    }
+
+
+    /**
+     * Looks at the parameters on a MAIL FROM line. A SIZE=nnn parameter refuses the message if it is declared bigger
+     * than MAX_MESSAGE_SIZE. BODY=BINARYMIME means the body will come with BDAT (RFC 3030). Sends the refusal itself.
+     * The parameters are read from the command's bytes, in place.
+     * @return true if the message may be sent, false if it was refused
+     */
+    private boolean checkMailParameters()
+    throws IOException {
+        binaryMime = false;
+        while (command.nextWord()) {
+            if (command.wordHasPrefix(SIZE_PARAMETER)) {
+                long declared = command.wordNumber(SIZE_PARAMETER.length);
+                if (declared < 0) {
+                    errors++;
+                    metrics.count(Metrics.Counter.REJECT_SYNTAX);
+                    out.send("501 Syntax error in SIZE parameter");
+                    return false;
+                }
+                if ((config.maxMessageSize > 0) && (declared > config.maxMessageSize)) {
+                    metrics.count(Metrics.Counter.REJECT_SIZE);
+                    out.send("552 Message size exceeds fixed maximum message size");
+                    return false;
+                }
+            }
+            else if (command.wordHasPrefix(BODY_PARAMETER)) {
+                if (command.wordIs(BODY_PARAMETER.length, BODY_BINARYMIME))
+                    binaryMime = true;
+                else if (! (command.wordIs(BODY_PARAMETER.length, BODY_7BIT) || command.wordIs(BODY_PARAMETER.length, BODY_8BITMIME)) ) {
+                    errors++;
+                    metrics.count(Metrics.Counter.REJECT_SYNTAX);
+                    out.send("501 Syntax error in BODY parameter");
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Handles a BDAT command (RFC 3030): BDAT &lt;size&gt; [LAST]. Sets the session up to receive the chunk, which
+     * comes next as raw bytes. If the BDAT can't be accepted the chunk still has to be read, so it's read and thrown
+     * away and the refusal is sent after it. The size and LAST are read from the command's bytes, in place.
+     * @return the next state
+     */
+    private int startChunk()
+    throws IOException {
+        chunkSize = command.nextWord() ? command.wordNumber(0) : -1;
+        chunkLast = false;
+        if ((chunkSize >= 0) && command.nextWord()) {
+            if (command.wordIs(0, BDAT_LAST))
+                chunkLast = true;
+            else
+                chunkSize = -1;
+        }
+        if (chunkSize < 0) {
+            // can't tell how many bytes follow, so there's nothing to skip
+            errors++;
+            metrics.count(Metrics.Counter.REJECT_SYNTAX);
+            out.send("501 Syntax error. Use BDAT <size> [LAST]");
+            return STATE_PIPELINING;
+        }
+
+        chunkRemaining = chunkSize;
+        chunkError = null;
+        if (mailFrom == null) {
+            errors++;
+            metrics.count(Metrics.Counter.REJECT_SEQUENCE);
+            chunkError = "503 need MAIL FROM";
+        }
+        else if (mailTo.isEmpty()) {
+            errors++;
+            metrics.count(Metrics.Counter.REJECT_SEQUENCE);
+            chunkError = "503 need RCPT (recipient)";
+        }
+        else {
+            if (! chunking)
+                dataNanos = System.nanoTime();
+            chunking = true;
+            // the chunk size is known up front, so a message that's going to be too big can be dropped now
+            if ((! oversize) && (config.maxMessageSize > 0) && (dataBlock.length() + chunkSize > config.maxMessageSize)) {
+                oversize = true;
+                disposeBody();
+            }
+        }
+        return STATE_BDAT;
+    }
+
+
+    /**
+     * Take bytes of the BDAT chunk being received from _src, as many as it has (the rest of the chunk at most).
+     * The bytes go to the body, or nowhere if the chunk is being thrown away. When the chunk is complete the
+     * state machine runs on, just as process() does.
+     * @return the number of bytes taken, or -1 at the end of the stream. 0 can also mean end of stream if _src is blocking.
+     * @throws IOException if _src or the body failed, or a reply could not be sent
+     */
+    long processBytes(ReadableByteChannel _src)
+    throws IOException {
+        long n;
+        if ((chunkError != null) || (dataBlock == null)) {
+            discardBuffer.clear();
+            if (chunkRemaining < discardBuffer.capacity())
+                discardBuffer.limit((int) chunkRemaining);
+            n = _src.read(discardBuffer);
+        }
+        else {
+            n = dataBlock.transferFrom(_src, chunkRemaining);
+        }
+        if (n > 0)
+            chunkTaken(n);
+        return n;
+    }
+
+
+    /**
+     * Take bytes of the BDAT chunk being received from the buffer, as many as it has (the rest of the chunk at most).
+     * Like processBytes(ReadableByteChannel), for an engine that has already read the bytes into a heap buffer.
+     * @param _src the buffer. Its position is moved past the bytes taken
+     */
+    void processBytes(ByteBuffer _src)
+    throws IOException {
+        int n = (int) Math.min(_src.remaining(), chunkRemaining);
+        if ((chunkError == null) && (dataBlock != null))
+            dataBlock.write(_src.array(), _src.arrayOffset() + _src.position(), n);
+        _src.position(_src.position() + n);
+        if (n > 0)
+            chunkTaken(n);
+    }
+
+
+    private void chunkTaken(long _n)
+    throws IOException {
+        if (trace != null)
+            trace.chunk(_n);
+        chunkRemaining -= _n;
+        lastActivityTime = System.currentTimeMillis();
+        if (chunkRemaining == 0)
+            process(null);
+    }
+
+
+    /**
+     * Test for timeouts and thresholds that were exceeded. If so, return the error and change the state to STOP,
+     * so we stop immediately
+     */
+    private void checkThresholds()
+    throws IOException {
+        if ( (config.inactivityTimeoutMsec > 0) && (lastActivityTime + config.inactivityTimeoutMsec) < System.currentTimeMillis()) {
+            metrics.count(Metrics.Counter.DISCONNECT_TIMEOUT);
+            out.send("500 Timeout");
+            state = STATE_STOP;
+        }
+        if ((config.maxErrorsBeforeDisconnect > 0) && (errors > config.maxErrorsBeforeDisconnect) ) {
+            metrics.count(Metrics.Counter.DISCONNECT_ERRORS);
+            out.send("500 Too many errors");
+            state = STATE_STOP;
+        }
+        if ( (config.maxNoopsBeforeDisconnect > 0) && (noops > config.maxNoopsBeforeDisconnect) ) {
+            metrics.count(Metrics.Counter.DISCONNECT_NOOPS);
+            out.send("500 Too many NOOPs and/or unimplemented commands");
+            state = STATE_STOP;
+        }
+        if ( (config.maxRsetsBeforeDisconnect > 0) && (rsets > config.maxRsetsBeforeDisconnect) ) {
+            metrics.count(Metrics.Counter.DISCONNECT_RSETS);
+            out.send("500 Too many RSETs");
+            state = STATE_STOP;
+        }
+    }
+
+
+    /**
+     * Run the state machine forward with a line given as a String. The engines hand over the bytes instead, with
+     * processLine(); this is mostly for process(null), which just sends the greeting at the start and checks the
+     * timeouts and thresholds while nothing is arriving.
+     * @param _line one line received from the client, without its line ending, or null if nothing was received
+     * @throws IOException if a reply could not be sent. The caller should drop the connection.
+     */
+    void process(String _line)
+    throws IOException {
+        if (_line == null) {
+            processLine(null, 0, 0);
+        }
+        else {
+            byte[] b = _line.getBytes(Charset.defaultCharset());
+            processLine(b, 0, b.length);
+        }
+    }
+
+
+    /**
+     * Run the state machine forward. States that don't need anything from the client (greeting, RSET, capabilities,
+     * delivery, stop) are run straight through; the method returns when the session is waiting for input and
+     * the line has been used up, or when the session has stopped.
+     * <p>The line is used in place: commands are parsed from it without copying it, and a line of DATA goes
+     * into the message body as the bytes that were received. The session doesn't keep it after returning.</p>
+     * @param _buf holds one line received from the client, without its line ending, or null if nothing was received
+     * @param _off where the line starts in _buf
+     * @param _len the length of the line
+     * @throws IOException if a reply could not be sent. The caller should drop the connection.
+     */
+    void processLine(byte[] _buf, int _off, int _len)
+    throws IOException {
+        byte[] line = _buf;
+        int nextState = state;
+
+        if (line != null) {
+            lastActivityTime = System.currentTimeMillis();
+            if (trace != null) {
+                // the body is recorded as its line lengths, the "." that ends it as it is
+                if ((state == STATE_DATA) && (! ((_len == 1) && (line[_off] == '.'))))
+                    trace.dataLine(_len);
+                else
+                    trace.line(line, _off, _len);
+            }
+        }
+
+        while (state != STATE_STOPPED) {
+            // waiting for deliver() or a lookup is our doing, not the client's, so the timeout doesn't run meanwhile
+            if ((state == STATE_DELIVERING) || (state == STATE_LOOKUP)) {
+                CompletableFuture <?> pending = (state == STATE_DELIVERING) ? pendingDelivery : pendingLookup;
+                if (! pending.isDone()) {
+                    if (resumer == null) {
+                        try {
+                            pending.join();
+                        }
+                        catch (CompletionException ce) {
+                            // the case below looks at how it failed
+                        }
+                    }
+                    else {
+                        if (! resumeScheduled) {
+                            resumeScheduled = true;
+                            final Runnable r = resumer;
+                            pending.whenComplete(new BiConsumer <Object, Throwable> () {
+                                public void accept(Object _result, Throwable _t) {
+                                    r.run();
+                                }
+                            });
+                        }
+                        return;
+                    }
+                }
+            }
+            else if (state != STATE_STOP)
+                checkThresholds();
+
+            // the states that read something from the client can't go on without a line
+            if ( ((state == STATE_PIPELINING) || (state == STATE_DATA)) && (line == null) )
+                return;
+            // and BDAT can't go on until the whole chunk is in
+            if ((state == STATE_BDAT) && (chunkRemaining > 0))
+                return;
+
+            switch (state) {
+
+            	// if just starting for the first time, send greeting
+            	case STATE_START:
+            	    out.configChanged(config);
+            	    // backpressure: while the deliveries can't keep up, don't take on any more clients
+            	    if (server.deliveryQueueFull()) {
+            	        metrics.count(Metrics.Counter.CONNECTIONS_REFUSED_BUSY);
+            	        out.send("421 "+config.myHost+" Service busy, try again later");
+            	        out.flush();
+            	        nextState = STATE_STOPPED;
+            	        break;
+            	    }
+            	    out.send("220 "+config.myHost+" microLMTP server ready");
+            	    greetingNanos = System.nanoTime();
+            	    out.flush();
+            	    nextState = STATE_RSET;
+            	    break;
+
+                	// regardless, whenever the protocol starts or the connection is RSET, clear all the state variables then start pipelining
+            	    // per RFC 2821, all state variables are cleared by an RSET
+            	    // however we count and limit the number of rsets permitted, and that counter does not reset here :)
+            	case STATE_RSET:
+            	    resetTransaction();
+            	    rsets++;
+            	    nextState = STATE_PIPELINING;
+            	    break;
+
+            	case STATE_CAPABILITIES:
+            	    out.send(((server.engine.tls != null) && (! tlsActive)) ? config.capabilitiesStartTls : config.capabilities);
+            	    out.flush();
+            	    nextState = STATE_PIPELINING;
+            	    break;
+
+            	    // while pipelining, any commands may come in any order, until one of the terminal commands is received
+            	    // per RFC: The EHLO, DATA, VRFY, EXPN, TURN,QUIT, and NOOP commands can only appear as the last command
+            	    // and must produce a change of state
+            	    // the replies to the other commands are only buffered here. they go out with the reply that ends the group,
+            	    // or when the engine finds no more input waiting
+            	case STATE_PIPELINING:
+            	    boolean hasCommand = command.parse(line, _off, _len);
+            	    line = null;
+            	    // bail if there was no command in the line
+            	    if (! hasCommand) {
+            	        nextState = state;
+            	        break;
+            	    }
+            	    metrics.count(Metrics.Counter.COMMANDS);
+
+            	    // if command is not LHLO and LHLO has not been received, that's an error -- we want an LHLO first
+            	    if ( (command.verb() != CommandLine.Verb.LHLO) && (helloName == null) ) {
+        	            metrics.count(Metrics.Counter.REJECT_SEQUENCE);
+        	            out.send("503 Please say LHLO first");
+        	            nextState = state;
+        	            break;
+            	    }
+
+            	    // now process the received command
+            	    switch (command.verb()) {
+            	    case QUIT:
+            	        metrics.count(Metrics.Counter.SESSIONS_QUIT);
+            	        nextState = STATE_STOP;
+            	        break;
+
+            	    case RSET:
+            	        out.send("250 OK");
+            	        out.flush();
+            	        nextState = STATE_RSET;
+            	        break;
+
+            	    case LHLO:
+            	        if (helloName == null)
+            	            metrics.time(Metrics.Phase.GREETING_TO_LHLO, greetingNanos);
+            	        helloName = command.argument();
+            	        nextState = STATE_CAPABILITIES;
+            	        break;
+
+            	    case DATA:
+            	        // fails with 503 per RFC if there was no RCPT successfully set
+            	        if (mailTo.isEmpty()) {
+            	            errors++;
+            	            metrics.count(Metrics.Counter.REJECT_SEQUENCE);
+            	            out.send("503 need RCPT (recipient)");
+            	            out.flush();
+                    	    nextState = STATE_PIPELINING;
+            	        }
+            	        else if (mailFrom == null) {
+            	            errors++;
+            	            metrics.count(Metrics.Counter.REJECT_SEQUENCE);
+            	            out.send("503 need MAIL FROM");
+            	            out.flush();
+                    	    nextState = STATE_PIPELINING;
+            	        }
+            	        // RFC 3030: a BINARYMIME body, or one already partly sent with BDAT, can't be sent with DATA
+            	        else if (binaryMime || chunking) {
+            	            errors++;
+            	            metrics.count(Metrics.Counter.REJECT_SEQUENCE);
+            	            out.send("503 BDAT required for this message");
+            	            out.flush();
+            	            nextState = STATE_PIPELINING;
+            	        }
+            	        else {
+                	        out.send("354 Start mail input; end with <CRLF>.<CRLF>");
+                	        out.flush();
+                	        dataNanos = System.nanoTime();
+            	            nextState = STATE_DATA;
+                	    }
+            	        break;
+
+            	    // BDAT chunks are pipelined like MAIL and RCPT; the bytes of the chunk come next
+            	    case BDAT:
+            	        nextState = startChunk();
+            	        break;
+
+            	    // and the TERMINAL commands we sinply NOOPS. They terminate PIPELINE mode.. but it doesn't mean much
+            	    case NOOP:
+            	        noops++;
+            	        nextState = STATE_PIPELINING;
+            	        out.send("250 OK");
+            	        out.flush();
+            	        break;
+
+            	    // unimplemented commands count against the NOOP counter
+            	    case VRFY:
+            	    case EXPN:
+            	    case TURN:
+            	        noops++;
+            	        metrics.count(Metrics.Counter.REJECT_NOT_IMPLEMENTED);
+            	        nextState = STATE_PIPELINING;
+            	        out.send("502 Command not implemented");
+            	        out.flush();
+            	        break;
+
+            	    // the actual pipelined commands that we can accumulate
+            	    case MAIL:
+            	        if (mailFrom != null) {
+            	            errors++;
+            	            metrics.count(Metrics.Counter.REJECT_SEQUENCE);
+            	            out.send("503 Sender already specified");
+            	        }
+            	        // SIZE extension (RFC 1870): turn the message away before any of it is sent
+            	        else if (! checkMailParameters()) {
+            	            // checkMailParameters() sent the reply
+            	        }
+            	        // backpressure: refuse the transaction before the client sends the body, rather than after
+            	        else if (server.deliveryQueueFull()) {
+            	            metrics.count(Metrics.Counter.REJECT_QUEUE_FULL);
+            	            out.send("451 Delivery queue full, try again later");
+            	        }
+            	        // parse out the sender's address
+            	        else if (! address.parse(command.argument())) {
+            	            errors++;
+            	            metrics.count(Metrics.Counter.REJECT_SYNTAX);
+            	            out.send("501 Invalid email address");
+            	        }
+            	        // confirm that the domain is real in the world, if we're supposed to. the lookup is answered in STATE_LOOKUP,
+            	        // right away if the answer is cached
+            	        else if (config.liveNetLookups) {
+            	            pendingSender = address.address;
+            	            transactionNanos = System.nanoTime();
+            	            lookupNanos = transactionNanos;
+            	            pendingLookup = server.engine.resolver.lookup(address.domain);
+            	            resumeScheduled = false;
+            	            nextState = STATE_LOOKUP;
+            	        }
+            	        else {
+            	            transactionNanos = System.nanoTime();
+            	            mailFrom = address.address;
+            	            metrics.count(Metrics.Counter.MAIL_ACCEPTED);
+            	            out.send("250 "+mailFrom+" Sender ok");
+            	        }
+            	        break;
+
+            	    case RCPT:
+            	        // LMTP takes any number of recipients for one message (RFC 2033), up to a sane limit
+            	        if ((config.maxRecipients > 0) && (mailTo.size() >= config.maxRecipients)) {
+            	            metrics.count(Metrics.Counter.REJECT_TOO_MANY_RECIPIENTS);
+            	            out.send("452 Too many recipients");
+            	        }
+            	        // the address is trimmed and lowercased by the parse, parsing and such are very strict
+            	        else if (! address.parse(command.argument())) {
+            	            errors++;
+            	            metrics.count(Metrics.Counter.REJECT_SYNTAX);
+            	            out.send("501 Invalid email address");
+            	        }
+            	        else {
+            	        	// be sure this a domain we handle
+            	            if (! config.domainsServed.contains(address.domain)) {
+            	                errors++;
+            	                metrics.count(Metrics.Counter.REJECT_RELAY);
+            	                out.send("551 We do not relay and we do not accept mail for "+address.domain);
+            	            }
+            	            else {
+                	            mailTo.add(address.address);
+                	            metrics.count(Metrics.Counter.RCPT_ACCEPTED);
+            	                out.send("250 "+address.address+" Recipient ok");
+            	            }
+            	        }
+            	        break;
+
+            	    // RFC 3207. like the other commands that end a group, it's answered at once
+            	    case STARTTLS:
+            	        if (server.engine.tls == null) {
+            	            noops++;
+            	            metrics.count(Metrics.Counter.REJECT_NOT_IMPLEMENTED);
+            	            out.send("502 Command not implemented");
+            	        }
+            	        else if (tlsActive) {
+            	            errors++;
+            	            metrics.count(Metrics.Counter.REJECT_SEQUENCE);
+            	            out.send("503 TLS already started");
+            	        }
+            	        else if (command.argument() != null) {
+            	            errors++;
+            	            metrics.count(Metrics.Counter.REJECT_SYNTAX);
+            	            out.send("501 Syntax error (no parameters allowed)");
+            	        }
+            	        else {
+            	            out.send("220 Ready to start TLS");
+            	            out.flush();
+            	            out.startTls();
+            	            tlsActive = true;
+            	            // everything the client said before TLS is forgotten, so it has to LHLO again. that's not
+            	            // the client asking for a RSET, so it doesn't count against MAX_RSETS_BEFORE_DISCONNECT
+            	            helloName = null;
+            	            resetTransaction();
+            	            nextState = STATE_PIPELINING;
+            	            break;
+            	        }
+            	        out.flush();
+            	        nextState = STATE_PIPELINING;
+            	        break;
+
+            	    // command totally unrecognized
+            	    default:
+            	        errors++;
+            	        metrics.count(Metrics.Counter.REJECT_UNKNOWN_COMMAND);
+            	        nextState = state;
+            	        out.send("500 Command unrecognized: "+command.verbText());
+            	        break;
+            	    }
+            	    break;
+
+
+            	// the MAIL FROM host lookup is done (the top of the loop waited, or returned, until it was)
+            	case STATE_LOOKUP:
+            	    metrics.time(Metrics.Phase.LOOKUP, lookupNanos);
+            	    try {
+            	        pendingLookup.join();
+            	        mailFrom = pendingSender;
+            	        metrics.count(Metrics.Counter.MAIL_ACCEPTED);
+            	        out.send("250 "+mailFrom+" Sender ok");
+            	    }
+            	    catch (CompletionException ce) {
+            	        if (ce.getCause() instanceof TimeoutException) {
+            	            // not the client's fault, and it may well work next time
+            	            metrics.count(Metrics.Counter.LOOKUP_TIMEOUT);
+            	            out.send("451 Timed out looking up host name, try again later");
+            	        }
+            	        else {
+            	            errors++;
+            	            metrics.count(Metrics.Counter.REJECT_SYNTAX);
+            	            out.send("501 Invalid host name");
+            	        }
+            	    }
+            	    pendingLookup = null;
+            	    pendingSender = null;
+            	    lastActivityTime = System.currentTimeMillis();
+            	    nextState = STATE_PIPELINING;
+            	    break;
+
+
+            	case STATE_DATA:
+            	    // just keep loading lines until EOD. the lines are stored as they came, apart from the line ending and
+            	    // the dot that the client doubled at the start of any line beginning with a dot (RFC 2821 4.5.2)
+            	    if ((_len == 1) && (line[_off] == '.')) {
+            	        nextState= STATE_PROCESS;
+            	    }
+            	    else if (! oversize) {
+            	        if ((_len > 0) && (line[_off] == '.'))
+            	            dataBlock.writeLine(line, _off + 1, _len - 1);
+            	        else
+            	            dataBlock.writeLine(line, _off, _len);
+            	        // too big: drop what we have and just read on to the dot, then refuse it
+            	        if ((config.maxMessageSize > 0) && (dataBlock.length() > config.maxMessageSize)) {
+            	            oversize = true;
+            	            disposeBody();
+            	        }
+            	    }
+            	    line = null;
+            	    break;
+
+            	// a chunk has been completely received
+            	case STATE_BDAT:
+            	    if (chunkError != null) {
+            	        out.send(chunkError);
+            	        chunkError = null;
+            	        nextState = STATE_PIPELINING;
+            	    }
+            	    else if (chunkLast) {
+            	        nextState = STATE_PROCESS;
+            	    }
+            	    else {
+            	        out.send("250 "+chunkSize+" octets received");
+            	        nextState = STATE_PIPELINING;
+            	    }
+            	    break;
+
+            	// act on the accumulated commands and crap
+            	case STATE_PROCESS:
+            	    metrics.time(Metrics.Phase.DATA_RECEIVE, dataNanos);
+            	    // the body came in once; every accepted recipient gets its own delivery and its own status line (RFC 2033)
+            	    if (oversize) {
+            	        metrics.count(Metrics.Counter.REJECT_SIZE);
+            	        for (int i = 0; i < mailTo.size(); i++)
+            	            out.send("552 Message exceeds fixed maximum message size");
+            	        out.flush();
+            	        nextState = STATE_RSET;
+            	    }
+            	    else {
+            	        metrics.count(Metrics.Counter.MESSAGES_RECEIVED);
+            	        metrics.add(Metrics.Counter.BYTES_RECEIVED, dataBlock.length());
+            	        resumeScheduled = false;
+            	        deliveryNanos = System.nanoTime();
+            	        pendingDelivery = server.deliverToAll(mailFrom,mailTo,dataBlock);
+            	        nextState = STATE_DELIVERING;
+            	    }
+            	    break;
+
+            	// the deliveries are done (the top of the loop waited, or returned, until they were)
+            	case STATE_DELIVERING:
+            	    String[] statuses = pendingDelivery.join();
+            	    pendingDelivery = null;
+            	    metrics.time(Metrics.Phase.DELIVERY, deliveryNanos);
+            	    metrics.time(Metrics.Phase.TRANSACTION, transactionNanos);
+            	    lastActivityTime = System.currentTimeMillis();
+            	    for (int i = 0; i < statuses.length; i++)
+            	        out.send(statuses[i]);
+            	    out.flush();
+
+            	    // not entirely sure what the RFC wants here. SMTP stays hot for another message until 'quit' is received but we are not getting a quit from the LMTP in the test postfix server
+            	     nextState = STATE_RSET;
+// now i think it's supposed to stay open. eventually the client shoudl QUIT if the server doesn't
+            	     //                    	    nextState = STATE_STOP;
+            	    break;
+
+
+               case STATE_STOP:
+                   disposeBody();
+                   out.send("221 "+config.myHost+" closing connection");
+                   out.flush();
+                   nextState = STATE_STOPPED;
+                   break;
+            }
+            // OUT OF THE CASE BLOCK...
+            // set the nextState
+            if (state != nextState) {
+                long now = System.nanoTime();
+                metrics.timeState(state, now - stateNanos);
+                stateNanos = now;
+                if (Log.isEnabled(Log.TRACE))
+                    Log.trace("Client {} state transition, {} --> {}", Integer.valueOf(clientID), stateName(state), stateName(nextState));
+            }
+            state = nextState;
+        }
+    }
+
+
+    /**
+     * Clear everything the transaction has collected, ready for the next one, and take up any new configuration.
+     * Done for a RSET, at the start and after each message, and when STARTTLS starts the session over
+     * @throws IOException if the connection couldn't take the new configuration
+     */
+    private void resetTransaction()
+    throws IOException {
+        // between transactions: take up any new configuration. one read of the current one, no locking
+        ServerConfig current = server.getConfig();
+        if (current != config) {
+            config = current;
+            out.configChanged(config);
+            // the body was made for the old spool settings. the next one is made for the new ones
+            disposeBody();
+        }
+        mailFrom = null;
+        mailTo.clear();
+        // the last transaction's deliveries are done by now, so its body can be emptied and used again
+        if (dataBlock != null)
+            dataBlock.reset();
+        else
+            dataBlock = new MessageBody(config.spoolThresholdBytes, config.spoolDirectory, server.engine.bodyBudget, server.engine.buffers);
+        oversize = false;
+        binaryMime = false;
+        chunking = false;
+        lastActivityTime = System.currentTimeMillis();
+        errors = 0;
+        noops = 0;
+    }
+
+
+    /**
+     * Throw away the body of the current transaction, if any, which gets rid of its spool file
+     */
+    private void disposeBody() {
+        if (dataBlock == null)
+            return;
+        // deliveries still reading the body get to finish first
+        if ((pendingDelivery != null) && (! pendingDelivery.isDone())) {
+            final MessageBody body = dataBlock;
+            pendingDelivery.whenComplete(new BiConsumer <String[], Throwable> () {
+                public void accept(String[] _statuses, Throwable _t) {
+                    body.dispose();
+                }
+            });
+        }
+        else {
+            dataBlock.dispose();
+        }
+        dataBlock = null;
+    }
+
+
+    /**
+     * Called by the engine once the connection has been closed, however the session ended. Only the first call
+     * counts the session, and records it if LMTP.RECORD_SESSIONS is set
+     */
+    void ended() {
+        if (ended)
+            return;
+        ended = true;
+        metrics.count(Metrics.Counter.SESSIONS_ENDED);
+        metrics.time(Metrics.Phase.SESSION, startNanos);
+        if (trace != null)
+            server.engine.recorder.record(trace);
+    }
+
+
+    /**
+     * Used when the connection failed underneath the session. Tells the client (if it can still hear us) and
+     * marks the session stopped.
+     */
+    void abort() {
+        disposeBody();
+        if (state == STATE_STOPPED)
+            return;
+        metrics.count(Metrics.Counter.SESSIONS_ABORTED);
+        try { out.send("451 Server error"); out.flush(); } catch (IOException ioe2) { }
+        state = STATE_STOPPED;
+    }
+
+
+}
@@ -0,0 +1,236 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Reads from a client socket's InputStream for the blocking engines. Does what BufferedReader did (lines, and ready())
+ * but works on bytes, so the same buffered input can also be read raw: after a BDAT command the chunk is read
+ * through the ReadableByteChannel side, starting with whatever bytes were already buffered, without any of it
+ * passing through a charset decoder.
+ * <p>A line ends at \n, and a \r just before it is dropped. Nothing else is stripped. How long a line can get is
+ * up to the caller, so a client that never sends a line ending can't make it hold more than that.</p>
+ * <p>The read buffer is leased from the engine's BufferPool and given back by close() or release(). A line that
+ * arrived whole is handed out right where it is in the read buffer; only one split across two reads is copied.</p>
+ */
+class LineReader implements ReadableByteChannel {
+
+    /** Size of the read buffer */
+    static final int	BUFFER_SIZE = 8192;
+    /** readLine() found a line longer than it was allowed to take, and threw it away */
+    static final int	TOO_LONG = -2;
+
+    private final InputStream in;
+    private final BufferPool pool;
+    private byte[] buf;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean open = true;
+
+    // a line split across reads is assembled here. kept here, not in readLine(), so a read that times out halfway through a line doesn't lose it
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+    // set while the rest of a line that got too long is being thrown away
+    private boolean discarding = false;
+    // where the line last returned is: in buf, or at the start of line
+    private byte[] lineBuffer = line;
+    private int lineOffset = 0;
+
+
+    /**
+     * @param _in the stream to read
+     * @param _pool the read buffer is leased from this, or null to allocate it
+     */
+    LineReader(InputStream _in, BufferPool _pool) {
+        in = _in;
+        pool = _pool;
+        buf = (pool != null) ? pool.lease(BUFFER_SIZE) : new byte[BUFFER_SIZE];
+    }
+
+
+    /**
+     * Refill the buffer from the stream. Blocks until at least one byte arrives.
+     * @return false at end of stream
+     */
+    private boolean fill()
+    throws IOException {
+        if (buf == null)
+            return false; // released
+        int n = in.read(buf, 0, buf.length);
+        if (n < 0)
+            return false;
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+
+    /**
+     * @return true if a read would find something without blocking (though maybe not a whole line)
+     */
+    boolean ready()
+    throws IOException {
+        return (pos < limit) || (in.available() > 0);
+    }
+
+
+    /**
+     * Read one line, blocking until it is complete. The line is left in lineBuffer() from lineOffset(), without its
+     * line ending, until the next call; nothing is decoded, and it's only copied if it was split across reads.
+     * A line longer than _maxLength is thrown away as it arrives, without being kept, up to and including its line
+     * ending, and TOO_LONG is returned for it.
+     * @param _maxLength the longest line to take, not counting its line ending
+     * @return the length of the line, TOO_LONG, or -1 at the end of the stream
+     */
+    int readLine(int _maxLength)
+    throws IOException {
+        while (true) {
+            if (pos == limit) {
+                if (! fill()) {
+                    if ((lineLength == 0) && (! discarding))
+                        return -1;
+                    return takeLine();
+                }
+            }
+            int eol = pos;
+            while ((eol < limit) && (buf[eol] != '\n'))
+                eol++;
+            if (eol == limit) {
+                // the rest of the line is still to come
+                append(pos, limit - pos, _maxLength);
+                pos = limit;
+                continue;
+            }
+            int start = pos;
+            pos = eol + 1;
+            if ((lineLength == 0) && (! discarding)) {
+                // the whole line is in the read buffer: hand it out from there
+                int length = eol - start;
+                if ((length > 0) && (buf[eol-1] == '\r'))
+                    length--;
+                if (length > _maxLength)
+                    return TOO_LONG;
+                lineBuffer = buf;
+                lineOffset = start;
+                return length;
+            }
+            append(start, eol - start, _maxLength);
+            if ((lineLength > 0) && (line[lineLength-1] == '\r'))
+                lineLength--;
+            if (lineLength > _maxLength) {
+                discarding = true;
+                lineLength = 0;
+            }
+            return takeLine();
+        }
+    }
+
+    /**
+     * Add _len bytes of the read buffer, from _off, to the line being assembled, or start throwing the line away if
+     * that makes it longer than _maxLength and the \r that may end it
+     */
+    private void append(int _off, int _len, int _maxLength) {
+        if (discarding)
+            return;
+        long most = _maxLength + 1L;
+        if ((long) lineLength + _len > most) {
+            discarding = true;
+            lineLength = 0;
+            return;
+        }
+        if (lineLength + _len > line.length) {
+            byte[] bigger = new byte[(int) Math.min(Math.max(line.length * 2L, lineLength + _len), Math.max(most, line.length))];
+            System.arraycopy(line, 0, bigger, 0, lineLength);
+            line = bigger;
+        }
+        System.arraycopy(buf, _off, line, lineLength, _len);
+        lineLength += _len;
+    }
+
+    private int takeLine() {
+        if (discarding) {
+            discarding = false;
+            return TOO_LONG;
+        }
+        int result = lineLength;
+        lineLength = 0;
+        lineBuffer = line;
+        lineOffset = 0;
+        return result;
+    }
+
+
+    /**
+     * @return the buffer holding the line last returned by readLine()
+     */
+    byte[] lineBuffer() {
+        return lineBuffer;
+    }
+
+    /**
+     * @return where in lineBuffer() the line last returned by readLine() starts
+     */
+    int lineOffset() {
+        return lineOffset;
+    }
+
+
+    /**
+     * Raw read. Hands out the buffered bytes first, then reads the stream straight into _dst. Blocks until at least one byte is read.
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    public int read(ByteBuffer _dst)
+    throws IOException {
+        if (! _dst.hasRemaining())
+            return 0;
+        if (pos < limit) {
+            int n = Math.min(_dst.remaining(), limit - pos);
+            _dst.put(buf, pos, n);
+            pos += n;
+            return n;
+        }
+        if (_dst.hasArray()) {
+            int n = in.read(_dst.array(), _dst.arrayOffset() + _dst.position(), _dst.remaining());
+            if (n > 0)
+                _dst.position(_dst.position() + n);
+            return n;
+        }
+        if (! fill())
+            return -1;
+        return read(_dst);
+    }
+
+
+    public boolean isOpen() {
+        return open;
+    }
+
+
+    /**
+     * Give the read buffer back to the pool, without closing the stream. Nothing more can be read after this
+     */
+    void release() {
+        if (buf == null)
+            return;
+        open = false;
+        if (pool != null)
+            pool.release(buf);
+        buf = null;
+        pos = limit = 0;
+    }
+
+
+    public void close()
+    throws IOException {
+        release();
+        in.close();
+    }
+
+}
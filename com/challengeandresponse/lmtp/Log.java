@@ -0,0 +1,270 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * The server's log. Messages at or above LMTP.LOG_LEVEL go into a ring buffer, and a background thread takes them out
+ * and writes them to System.out (or wherever setOut() says), so the threads serving clients never wait on the synchronized PrintStream or on
+ * the terminal. A message below the level costs one comparison: it's never formatted.
+ * <p>Messages are patterns with a {} for each argument, put together by the writer thread, so the caller doesn't
+ * build strings either:</p>
+ * <pre>
+ * Log.debug("Servicing client: {} at {}", clientID, address);
+ * </pre>
+ * <p>A Throwable as the last argument has its stack trace written after the message. If the ring buffer is full
+ * the message is dropped rather than holding up the caller, and the writer reports how many were dropped.</p>
+ */
+public final class Log {
+
+    /** Level: something failed, and the server may not be working right */
+    public static final int ERROR = 0;
+    /** Level: something failed, and the server carried on */
+    public static final int WARN = 1;
+    /** Level: the server starting, stopping and being reconfigured */
+    public static final int INFO = 2;
+    /** Level: each connection, as it's accepted, served and closed */
+    public static final int DEBUG = 3;
+    /** Level: every state transition of every session */
+    public static final int TRACE = 4;
+
+    private static final String[] LEVEL_NAMES = { "ERROR", "WARN ", "INFO ", "DEBUG", "TRACE" };
+
+    /** the most messages the writer writes before it flushes System.out, when more keep coming */
+    private static final int BATCH_SIZE = 256;
+
+    /** one message, reused each time around the ring */
+    private static final class Slot {
+        /** the sequence number of the message in the slot; written last, when the message is ready */
+        volatile long published = -1;
+        int level;
+        long time;
+        String thread;
+        String pattern;
+        Object a, b, c;
+        int argc;
+    }
+
+    private static final Slot[] ring;
+    private static final int mask;
+    /** the sequence number the next message gets */
+    private static final AtomicLong head = new AtomicLong(0);
+    /** the sequence number of the next message the writer will write */
+    private static final AtomicLong tail = new AtomicLong(0);
+    private static final AtomicLong dropped = new AtomicLong(0);
+    private static final Thread writer;
+    /** set while the writer is parked, or about to park, with the ring empty. A message published meanwhile unparks it */
+    private static volatile boolean writerIdle = false;
+    /** flush() waits on this; the writer notifies it each time it has written and flushed a batch */
+    private static final Object flushed = new Object();
+    /** the sequence number of the first message not yet written and flushed. tail moves on before a message is written */
+    private static volatile long flushedTo = 0;
+    /** where the writer writes */
+    private static volatile PrintStream out = System.out;
+
+    static {
+        int size = 1;
+        while (size < Math.max(16, LMTP.LOG_BUFFER_SIZE))
+            size <<= 1;
+        ring = new Slot[size];
+        for (int i = 0; i < size; i++)
+            ring[i] = new Slot();
+        mask = size - 1;
+        writer = new Thread("lmtp_log") {
+            public void run() {
+                drain();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread("lmtp_log_flush") {
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    private Log() {
+    }
+
+
+    /**
+     * @return true if messages at _level are being logged
+     */
+    public static boolean isEnabled(int _level) {
+        return _level <= LMTP.LOG_LEVEL;
+    }
+
+    public static void error(String _pattern) { log(ERROR, _pattern, 0, null, null, null); }
+    public static void error(String _pattern, Object _a) { log(ERROR, _pattern, 1, _a, null, null); }
+    public static void error(String _pattern, Object _a, Object _b) { log(ERROR, _pattern, 2, _a, _b, null); }
+
+    public static void warn(String _pattern) { log(WARN, _pattern, 0, null, null, null); }
+    public static void warn(String _pattern, Object _a) { log(WARN, _pattern, 1, _a, null, null); }
+    public static void warn(String _pattern, Object _a, Object _b) { log(WARN, _pattern, 2, _a, _b, null); }
+    public static void warn(String _pattern, Object _a, Object _b, Object _c) { log(WARN, _pattern, 3, _a, _b, _c); }
+
+    public static void info(String _pattern) { log(INFO, _pattern, 0, null, null, null); }
+    public static void info(String _pattern, Object _a) { log(INFO, _pattern, 1, _a, null, null); }
+    public static void info(String _pattern, Object _a, Object _b) { log(INFO, _pattern, 2, _a, _b, null); }
+
+    public static void debug(String _pattern, Object _a) { log(DEBUG, _pattern, 1, _a, null, null); }
+    public static void debug(String _pattern, Object _a, Object _b) { log(DEBUG, _pattern, 2, _a, _b, null); }
+    public static void debug(String _pattern, Object _a, Object _b, Object _c) { log(DEBUG, _pattern, 3, _a, _b, _c); }
+
+    public static void trace(String _pattern, Object _a, Object _b, Object _c) { log(TRACE, _pattern, 3, _a, _b, _c); }
+
+
+    private static void log(int _level, String _pattern, int _argc, Object _a, Object _b, Object _c) {
+        if (_level > LMTP.LOG_LEVEL)
+            return;
+        // claim a slot, unless the writer is a whole ring behind
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail.get() >= ring.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (! head.compareAndSet(seq, seq + 1));
+        Slot s = ring[(int) seq & mask];
+        s.level = _level;
+        s.time = System.currentTimeMillis();
+        s.thread = Thread.currentThread().getName();
+        s.pattern = _pattern;
+        s.a = _a;
+        s.b = _b;
+        s.c = _c;
+        s.argc = _argc;
+        s.published = seq;
+        if (writerIdle)
+            LockSupport.unpark(writer);
+    }
+
+
+    /**
+     * Write the log to _out instead, from the next message on
+     * @return where it was written before
+     */
+    static PrintStream setOut(PrintStream _out) {
+        PrintStream before = out;
+        out = _out;
+        return before;
+    }
+
+
+    /**
+     * Wait until everything logged so far has been written and flushed, for up to a second
+     */
+    public static void flush() {
+        long until = head.get();
+        long deadline = System.currentTimeMillis() + 1000;
+        synchronized (flushed) {
+            long left;
+            while ((flushedTo < until) && ((left = deadline - System.currentTimeMillis()) > 0) && writer.isAlive()) {
+                try {
+                    flushed.wait(left);
+                }
+                catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        out.flush();
+    }
+
+
+    /**
+     * The writer thread: takes the messages out of the ring in order and writes them. The stream is flushed once a
+     * batch has been written, and when the ring is empty the writer parks until log() publishes the next message.
+     */
+    private static void drain() {
+        PrintStream o = out;
+        SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+        Date date = new Date();
+        StringBuilder sb = new StringBuilder(256);
+        long reportedDrops = 0;
+        int written = 0;
+        while (true) {
+            long seq = tail.get();
+            Slot s = ring[(int) seq & mask];
+            // a batch goes all to the one stream
+            if (written == 0)
+                o = out;
+            if ((s.published != seq) || (written == BATCH_SIZE)) {
+                // nothing new, or the next message is still being filled in, or a batch is done: that's what we have
+                long d = dropped.get();
+                if (d != reportedDrops) {
+                    date.setTime(System.currentTimeMillis());
+                    o.println(timeFormat.format(date)+" "+LEVEL_NAMES[WARN]+" [lmtp_log] "+(d - reportedDrops)+" log messages dropped, the log buffer was full");
+                    reportedDrops = d;
+                    written++;
+                }
+                if (written > 0) {
+                    o.flush();
+                    written = 0;
+                    flushedTo = seq;
+                    synchronized (flushed) {
+                        flushed.notifyAll();
+                    }
+                    continue;
+                }
+                // say we're going to sleep before looking once more, so a message published in between isn't missed
+                writerIdle = true;
+                if (s.published != seq)
+                    LockSupport.park();
+                writerIdle = false;
+                continue;
+            }
+            sb.setLength(0);
+            date.setTime(s.time);
+            sb.append(timeFormat.format(date)).append(' ').append(LEVEL_NAMES[s.level]).append(" [").append(s.thread).append("] ");
+            Throwable t = format(sb, s.pattern, s.argc, s.a, s.b, s.c);
+            // let go of the arguments before the slot is handed back
+            s.a = s.b = s.c = null;
+            tail.lazySet(seq + 1);
+            o.println(sb);
+            if (t != null)
+                t.printStackTrace(o);
+            written++;
+        }
+    }
+
+
+    /**
+     * Put the arguments in place of the {}s in _pattern, appending to _sb. Arguments left over are appended after
+     * the message, except a Throwable at the end, which is returned for its stack trace
+     */
+    static Throwable format(StringBuilder _sb, String _pattern, int _argc, Object _a, Object _b, Object _c) {
+        Throwable t = null;
+        int argc = _argc;
+        Object last = (argc == 3) ? _c : (argc == 2) ? _b : (argc == 1) ? _a : null;
+        if (last instanceof Throwable) {
+            t = (Throwable) last;
+            argc--;
+        }
+        int used = 0;
+        int from = 0;
+        int at;
+        while ((used < argc) && ((at = _pattern.indexOf("{}", from)) >= 0)) {
+            _sb.append(_pattern, from, at);
+            _sb.append((used == 0) ? _a : (used == 1) ? _b : _c);
+            used++;
+            from = at + 2;
+        }
+        _sb.append(_pattern, from, _pattern.length());
+        for (; used < argc; used++)
+            _sb.append(' ').append((used == 0) ? _a : (used == 1) ? _b : _c);
+        return t;
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * An LMTP server that delivers into Maildir mailboxes with a MaildirStore, so no deliver() needs writing.
+ * Set MAILDIR_ROOT (and the other MAILDIR_ settings if the defaults don't suit) before constructing it.
+ * <p>Each recipient gets its own 250 or 451, as LMTP expects, once its copy is safely in its mailbox's
+ * new/ directory. The store has its own writer threads and queues, so DELIVERY_THREADS isn't needed here.</p>
+ * <p>The MAILDIR_ settings are static for the constructor that serves forever, which never returns, so a subclass
+ * can't set up fields of its own there. That store is created on the first delivery. The other constructor takes
+ * a MaildirStore instead, so servers on one engine can each have their own tree, or share one. The store made on
+ * the first delivery is closed when the server stops; one given to the constructor is closed by whoever made it.</p>
+ */
+public class MaildirLMTP extends LMTP {
+
+    /** Directory the mailboxes go under. <br>Default: "maildir" in the working directory */
+    public static File				MAILDIR_ROOT = new File("maildir");
+    /** When to fsync: MaildirStore.DURABILITY_NONE, _MESSAGE or _BATCH. <br>Default: MaildirStore.DURABILITY_BATCH */
+    public static int				MAILDIR_DURABILITY = MaildirStore.DURABILITY_BATCH;
+    /** Number of writer threads. Each mailbox is always written by the same one. <br>Default: the number of processors */
+    public static int				MAILDIR_WRITERS = Runtime.getRuntime().availableProcessors();
+    /** Messages that may wait for each writer. One more gets a 451. <br>Default: 1000 */
+    public static int				MAILDIR_QUEUE_SIZE = 1000;
+
+    private static MaildirStore store = null;
+    // the store given to the constructor, or null to use the static one
+    private final MaildirStore mailboxes;
+
+
+    public MaildirLMTP(Vector <String> approvedHosts, Vector <String> domainsServed) {
+        super(approvedHosts, domainsServed);
+        mailboxes = null;
+    }
+
+    /**
+     * A server to start() on _engine, that delivers into _store
+     * @param _engine runs the connections
+     * @param _port the port to listen on
+     * @param _config the hosts, domains and limits
+     * @param _store the mailboxes
+     */
+    public MaildirLMTP(LMTPEngine _engine, int _port, ServerConfig _config, MaildirStore _store) {
+        super(_engine, _port, _config);
+        mailboxes = _store;
+    }
+
+
+    private MaildirStore getStore() {
+        if (mailboxes != null)
+            return mailboxes;
+        return getStaticStore();
+    }
+
+    private static synchronized MaildirStore getStaticStore() {
+        if (store == null)
+            store = new MaildirStore(MAILDIR_ROOT, MAILDIR_DURABILITY, MAILDIR_WRITERS, MAILDIR_QUEUE_SIZE);
+        return store;
+    }
+
+    private static void closeStaticStore() {
+        MaildirStore s;
+        synchronized (MaildirLMTP.class) {
+            s = store;
+            store = null;
+        }
+        if (s != null)
+            s.close();
+    }
+
+
+    /**
+     * Stop the server, and then the store it made for itself once the messages queued for it are written
+     */
+    public void stop() {
+        super.stop();
+        if (mailboxes == null)
+            closeStaticStore();
+    }
+
+
+    /**
+     * Hands the message to the store, which writes it on the recipient mailbox's own writer thread
+     */
+    protected CompletableFuture <String> deliverAsync(String _mailFrom, String _mailTo, MessageBody _message) {
+        return getStore().store(_mailTo, _message);
+    }
+
+
+    /**
+     * Only used if something calls deliver() directly: stores the message and waits for it to be written
+     */
+    protected String deliver(String _mailFrom, String _mailTo, String _message) {
+        MessageBody body = new MessageBody(Integer.MAX_VALUE, null, null);
+        try {
+            byte[] b = _message.getBytes(Charset.defaultCharset());
+            body.write(b, 0, b.length);
+            return getStore().store(_mailTo, body).join();
+        }
+        catch (IOException ioe) {
+            return "451 Error saving message";
+        }
+        finally {
+            body.dispose();
+        }
+    }
+
+}
@@ -0,0 +1,398 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Writes messages into Maildir mailboxes: each message is written to a new file in the mailbox's tmp/ directory
+ * and then renamed into new/, so a reader never sees half a message.
+ * <p>Mailboxes live under the root, sharded two levels deep by a hash of the mailbox name
+ * (root/3f/a0/user@domain.tld/{tmp,new,cur}) so no directory gets enormous. A "+detail" on the local part
+ * is dropped, so user+lists@domain.tld goes to the user@domain.tld mailbox.</p>
+ * <p>The work is split across a fixed set of writer threads, and every mailbox always goes to the same writer.
+ * A writer owns its mailboxes outright, so there are no locks, and each writer reuses one copy buffer for
+ * every message. A writer takes a batch of whatever is queued for it at once, which is what makes
+ * DURABILITY_BATCH cheap: the whole batch shares its fsyncs.</p>
+ * <p>close() stops the writers once they have written everything queued for them.</p>
+ */
+public class MaildirStore {
+
+    /** Don't fsync anything. Fastest; a crash can lose messages that were already acknowledged */
+    public static final int		DURABILITY_NONE = 0;
+    /** fsync every message file before its rename, and the new/ directory after it, before acknowledging the message */
+    public static final int		DURABILITY_MESSAGE = 1;
+    /** Like DURABILITY_MESSAGE, but for a whole batch of messages at a time, and each new/ directory just once per batch */
+    public static final int		DURABILITY_BATCH = 2;
+
+    /** The most messages a writer takes in one batch */
+    private static final int	MAX_BATCH = 64;
+    /** Size of each writer's copy buffer */
+    private static final int	COPY_BUFFER_SIZE = 64 * 1024;
+    /** The most mailboxes a writer remembers having made the directories of, before it forgets them all and starts over */
+    private static final int	KNOWN_MAILBOXES_MAX = 10000;
+
+    private final File root;
+    private final int durability;
+    private final Writer[] writers;
+
+    /** for the unique part of the file names */
+    private final AtomicLong sequence = new AtomicLong(0);
+    private final String pid;
+    private final String hostName;
+
+
+    /**
+     * Creates the store and starts its writer threads
+     * @param _root the directory the mailboxes go under. Created if it doesn't exist
+     * @param _durability one of the DURABILITY_ values
+     * @param _writers number of writer threads. Values below 1 are treated as 1
+     * @param _queueSize number of messages that may wait for each writer. A message that doesn't fit is refused with a 451
+     */
+    public MaildirStore(File _root, int _durability, int _writers, int _queueSize) {
+        root = _root;
+        durability = _durability;
+        root.mkdirs();
+
+        // Maildir file names want the pid and the host name, with the characters that mean something in them escaped
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        pid = (name.indexOf('@') > 0) ? name.substring(0, name.indexOf('@')) : "0";
+        String h;
+        try {
+            h = InetAddress.getLocalHost().getHostName();
+        }
+        catch (IOException ioe) {
+            h = "localhost";
+        }
+        hostName = h.replace("/", "\\057").replace(":", "\\072");
+
+        writers = new Writer[Math.max(1, _writers)];
+        for (int i = 0; i < writers.length; i++) {
+            writers[i] = new Writer(i, Math.max(1, _queueSize));
+            writers[i].start();
+        }
+    }
+
+
+    /**
+     * One message for one mailbox, waiting for its writer
+     */
+    private static class Job {
+        final String mailbox;
+        final MessageBody body;
+        final CompletableFuture <String> result = new CompletableFuture <String> ();
+        File tmpFile;
+        File newFile;
+
+        Job(String _mailbox, MessageBody _body) {
+            mailbox = _mailbox;
+            body = _body;
+        }
+    }
+
+
+    /**
+     * Store a message in a mailbox. Returns at once; the message is written by the mailbox's writer.
+     * @param _address the recipient address. The mailbox is this, lowercased, without any +detail
+     * @param _body the message. It must stay readable until the future completes
+     * @return a future for the SMTP status line: 250 once the message is in new/ (and synced, depending on the
+     * durability), 451 if it couldn't be saved, the writer's queue was full or the store has been closed
+     */
+    public CompletableFuture <String> store(String _address, MessageBody _body) {
+        String mailbox = mailboxName(_address);
+        Job job = new Job(mailbox, _body);
+        Writer w = writers[(mailbox.hashCode() & 0x7fffffff) % writers.length];
+        synchronized (w) {
+            if (w.closed)
+                job.result.complete("451 Mailbox store closed, try again later");
+            else if (! w.queue.offer(job))
+                job.result.complete("451 Mailbox store busy, try again later");
+            else
+                w.pending++;
+        }
+        return job.result;
+    }
+
+
+    /**
+     * Refuse any more messages, wait for the writers to write the ones already queued, then stop them. Each
+     * writer is interrupted only once it's waiting on an empty queue, so no message is cut off in the middle
+     */
+    public void close() {
+        for (int i = 0; i < writers.length; i++) {
+            synchronized (writers[i]) {
+                writers[i].closed = true;
+            }
+        }
+        try {
+            for (int i = 0; i < writers.length; i++) {
+                synchronized (writers[i]) {
+                    while (writers[i].pending > 0)
+                        writers[i].wait();
+                }
+                writers[i].interrupt();
+                writers[i].join();
+            }
+        }
+        catch (InterruptedException ie) {
+            // stop waiting. the writers carry on with what they have, and stop when they're done
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * @return the mailbox name for an address: lowercased, "+detail" dropped, and made safe to use as a directory name
+     */
+    static String mailboxName(String _address) {
+        String a = _address.trim().toLowerCase();
+        int at = a.lastIndexOf('@');
+        String local = (at >= 0) ? a.substring(0, at) : a;
+        String domain = (at >= 0) ? a.substring(at) : "";
+        int plus = local.indexOf('+');
+        if (plus >= 0)
+            local = local.substring(0, plus);
+        String result = (local + domain).replace('/', '_').replace('\\', '_');
+        if (result.startsWith("."))
+            result = "_" + result.substring(1);
+        return result;
+    }
+
+
+    /**
+     * @return the directory of a mailbox: root/xx/yy/mailbox, where xx and yy come from a hash of the name
+     */
+    private File mailboxDirectory(String _mailbox) {
+        int h = _mailbox.hashCode();
+        String shard1 = Integer.toHexString(0x100 | (h & 0xff)).substring(1);
+        String shard2 = Integer.toHexString(0x100 | ((h >>> 8) & 0xff)).substring(1);
+        return new File(new File(new File(root, shard1), shard2), _mailbox);
+    }
+
+
+    /**
+     * Flush a file or directory to disk
+     */
+    private static void fsync(File _f, boolean _directory)
+    throws IOException {
+        FileChannel fc = FileChannel.open(_f.toPath(), _directory ? StandardOpenOption.READ : StandardOpenOption.WRITE);
+        try {
+            fc.force(true);
+        }
+        finally {
+            fc.close();
+        }
+    }
+
+
+    /**
+     * A writer thread and the queue of messages for the mailboxes it owns
+     */
+    private class Writer extends Thread {
+        final ArrayBlockingQueue <Job> queue;
+        private final byte[] copyBuffer = new byte[COPY_BUFFER_SIZE];
+        // mailboxes whose directories are known to exist. Emptied when it grows past KNOWN_MAILBOXES_MAX, and a mailbox
+        // is taken out when a message for it fails, in case its directories were removed from under the server
+        private final HashSet <String> knownMailboxes = new HashSet <String> ();
+        // both guarded by the writer: set by close(), and the number of messages queued or being written
+        boolean closed = false;
+        int pending = 0;
+
+        Writer(int _num, int _queueSize) {
+            super("lmtp_maildir_"+_num);
+            setDaemon(true);
+            queue = new ArrayBlockingQueue <Job> (_queueSize);
+        }
+
+        public void run() {
+            Vector <Job> batch = new Vector <Job> ();
+            while (true) {
+                try {
+                    batch.clear();
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    writeBatch(batch);
+                }
+                catch (InterruptedException ie) {
+                    // close(): everything queued has been written
+                    return;
+                }
+                catch (RuntimeException re) {
+                    // whatever went wrong, the writer carries on, and no session is left waiting on this batch
+                    Log.error("Maildir writer failed on a batch of {}", Integer.valueOf(batch.size()), re);
+                    for (int i = 0; i < batch.size(); i++)
+                        batch.get(i).result.complete("451 Error saving message");
+                }
+                done(batch.size());
+            }
+        }
+
+        /**
+         * Count a batch as done, and tell close() if it was the last of what was queued
+         */
+        private synchronized void done(int _jobs) {
+            pending -= _jobs;
+            if (pending == 0)
+                notifyAll();
+        }
+
+        /**
+         * Write each message of the batch to tmp/, sync as the durability says, rename them into new/, and only
+         * then complete their futures
+         */
+        private void writeBatch(Vector <Job> _batch) {
+            Vector <Job> written = new Vector <Job> ();
+            for (int i = 0; i < _batch.size(); i++) {
+                Job job = _batch.get(i);
+                try {
+                    writeTmp(job);
+                    if (durability == DURABILITY_MESSAGE) {
+                        fsync(job.tmpFile, false);
+                        moveToNew(job);
+                        syncNewDirectory(job.newFile.getParentFile());
+                        job.result.complete("250 Message delivered to "+job.mailbox);
+                    }
+                    else {
+                        written.add(job);
+                    }
+                }
+                catch (IOException ioe) {
+                    fail(job, ioe);
+                }
+                catch (RuntimeException re) {
+                    // a mailbox name that makes a bad path, a body that can't be read...
+                    fail(job, re);
+                }
+            }
+            if (written.isEmpty())
+                return;
+
+            if (durability == DURABILITY_BATCH) {
+                // every file is on disk before any is renamed, so a crash can't leave an empty message in new/
+                for (int i = written.size() - 1; i >= 0; i--) {
+                    try {
+                        fsync(written.get(i).tmpFile, false);
+                    }
+                    catch (IOException ioe) {
+                        fail(written.remove(i), ioe);
+                    }
+                }
+            }
+            HashSet <File> newDirs = new HashSet <File> ();
+            for (int i = written.size() - 1; i >= 0; i--) {
+                try {
+                    moveToNew(written.get(i));
+                    newDirs.add(written.get(i).newFile.getParentFile());
+                }
+                catch (IOException ioe) {
+                    fail(written.remove(i), ioe);
+                }
+            }
+            if (durability == DURABILITY_BATCH) {
+                for (File dir : newDirs)
+                    syncNewDirectory(dir);
+            }
+            for (int i = 0; i < written.size(); i++)
+                written.get(i).result.complete("250 Message delivered to "+written.get(i).mailbox);
+        }
+
+        /**
+         * Copy the message into a new file in the mailbox's tmp/ directory, through this writer's copy buffer
+         */
+        private void writeTmp(Job _job)
+        throws IOException {
+            File dir = mailboxDirectory(_job.mailbox);
+            if (! knownMailboxes.contains(_job.mailbox))
+                makeMailbox(_job.mailbox, dir);
+
+            long now = System.currentTimeMillis();
+            String unique = (now / 1000)+".M"+((now % 1000) * 1000)+"P"+pid+"Q"+sequence.incrementAndGet()+"."+hostName;
+            _job.tmpFile = new File(new File(dir, "tmp"), unique);
+            _job.newFile = new File(new File(dir, "new"), unique);
+
+            FileChannel fc;
+            try {
+                fc = FileChannel.open(_job.tmpFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            }
+            catch (NoSuchFileException nsfe) {
+                // the mailbox was removed while the server ran. make it again, once
+                makeMailbox(_job.mailbox, dir);
+                fc = FileChannel.open(_job.tmpFile.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            }
+            InputStream in = null;
+            try {
+                in = _job.body.openStream();
+                int n;
+                while ((n = in.read(copyBuffer)) > 0) {
+                    ByteBuffer bb = ByteBuffer.wrap(copyBuffer, 0, n);
+                    while (bb.hasRemaining())
+                        fc.write(bb);
+                }
+            }
+            finally {
+                if (in != null)
+                    in.close();
+                fc.close();
+            }
+        }
+
+        /**
+         * Make a mailbox's tmp/, new/ and cur/ directories if they aren't there, and remember that they are
+         */
+        private void makeMailbox(String _mailbox, File _dir) {
+            new File(_dir, "tmp").mkdirs();
+            new File(_dir, "new").mkdirs();
+            new File(_dir, "cur").mkdirs();
+            if (knownMailboxes.size() >= KNOWN_MAILBOXES_MAX)
+                knownMailboxes.clear();
+            knownMailboxes.add(_mailbox);
+        }
+
+        /**
+         * Sync a new/ directory after messages were renamed into it. A failure isn't the messages' failure: they're
+         * already in new/, and refusing them now would only have them delivered twice
+         */
+        private void syncNewDirectory(File _dir) {
+            try {
+                fsync(_dir, true);
+            }
+            catch (IOException ioe) {
+                // the renames may not survive a crash, but the messages are there. still worth a mention
+                Log.warn("Could not sync maildir directory {}: {}", _dir, ioe.getMessage());
+            }
+        }
+
+        private void moveToNew(Job _job)
+        throws IOException {
+            Files.move(_job.tmpFile.toPath(), _job.newFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private void fail(Job _job, Exception _e) {
+            Log.warn("Could not save message for {}: {}", _job.mailbox, _e.toString());
+            // whatever it was, the next message makes sure the directories are there
+            knownMailboxes.remove(_job.mailbox);
+            if (_job.tmpFile != null)
+                _job.tmpFile.delete();
+            _job.result.complete("451 Error saving message");
+        }
+    }
+
+}
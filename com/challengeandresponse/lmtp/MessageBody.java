@@ -0,0 +1,310 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * The body of one message, as received after DATA. Small bodies are kept in memory. Once a body grows past
+ * the spool threshold, what has been received so far is written to a temporary spool file and the rest of the body
+ * goes straight to that file, so a big message costs disk rather than heap. The in-memory buffers of all the
+ * bodies on a server also share one ByteBudget: a body that can't get more memory from it spools early. The buffers
+ * themselves are leased from the server's BufferPool and given back to it, so a session sending message after
+ * message reuses the same few buffers.
+ * <p>Write the body first, then read it back with openStream() as many times as needed (once per recipient,
+ * possibly from several threads at once). Call dispose() when done with it, which deletes the spool file if there
+ * is one.</p>
+ */
+public class MessageBody {
+
+    /** Size of the in-memory buffer a body starts with. It doubles from here up to the spool threshold */
+    static final int			INITIAL_BUFFER_SIZE = 4096;
+    private static final byte[]	NEWLINE = { '\n' };
+
+    private final int spoolThreshold;
+    private final File spoolDirectory;
+    private final ByteBudget budget;
+    private final BufferPool pool;
+
+    private byte[] memory = null;
+    private int memoryLength = 0;
+    private File spoolFile = null;
+    private OutputStream spoolOut = null;
+    private FileChannel spoolChannel = null; // the channel of the file under spoolOut
+    private long length = 0;
+
+
+    /**
+     * @param _spoolThreshold bodies larger than this many bytes are moved to a spool file. 0 or less spools every body
+     * @param _spoolDirectory where the spool files go, or null for the system temp directory
+     * @param _budget the in-memory buffer is reserved from this, or null to not count it anywhere
+     */
+    MessageBody(int _spoolThreshold, File _spoolDirectory, ByteBudget _budget) {
+        this(_spoolThreshold, _spoolDirectory, _budget, null);
+    }
+
+    /**
+     * @param _spoolThreshold bodies larger than this many bytes are moved to a spool file. 0 or less spools every body
+     * @param _spoolDirectory where the spool files go, or null for the system temp directory
+     * @param _budget the in-memory buffer is reserved from this, or null to not count it anywhere
+     * @param _pool the in-memory buffer is leased from this and given back to it, or null to allocate it
+     */
+    MessageBody(int _spoolThreshold, File _spoolDirectory, ByteBudget _budget, BufferPool _pool) {
+        spoolThreshold = _spoolThreshold;
+        spoolDirectory = _spoolDirectory;
+        budget = _budget;
+        pool = _pool;
+    }
+
+
+    /**
+     * Lease or grow the in-memory buffer to at least _size bytes (the pool may round it up), if the budget allows it
+     * @return false if the budget said no. The buffer is unchanged in that case
+     */
+    private boolean growMemory(int _size) {
+        int current = (memory == null) ? 0 : memory.length;
+        int size = (pool != null) ? pool.sizeFor(_size) : _size;
+        if ((budget != null) && (! budget.reserve(size - current)))
+            return false;
+        byte[] bigger = (pool != null) ? pool.lease(size) : new byte[size];
+        if (memoryLength > 0)
+            System.arraycopy(memory, 0, bigger, 0, memoryLength);
+        if (pool != null)
+            pool.release(memory);
+        memory = bigger;
+        return true;
+    }
+
+
+    /**
+     * Drop the in-memory buffer, back to the pool, and give its bytes back to the budget
+     */
+    private void releaseMemory() {
+        if ((memory != null) && (budget != null))
+            budget.release(memory.length);
+        if (pool != null)
+            pool.release(memory);
+        memory = null;
+        memoryLength = 0;
+    }
+
+
+    /**
+     * Add bytes to the end of the body
+     * @throws IOException if the spool file could not be created or written
+     */
+    void write(byte[] _b, int _off, int _len)
+    throws IOException {
+        if (_len <= 0)
+            return;
+        makeRoom(_len);
+
+        if (spoolOut != null) {
+            spoolOut.write(_b, _off, _len);
+        }
+        else {
+            System.arraycopy(_b, _off, memory, memoryLength, _len);
+            memoryLength += _len;
+        }
+        length += _len;
+    }
+
+
+    /**
+     * Add bytes read straight from a channel to the end of the body, as many as the channel has (up to _count).
+     * A spooled body uses FileChannel.transferFrom(), so the bytes go from the channel to the file without passing
+     * through a Java array when the channel allows it; a body still in memory reads them straight into its buffer.
+     * @param _src where the bytes come from. Blocking or not
+     * @param _count the most bytes to take
+     * @return the number of bytes taken. -1 (in memory) or 0 (spooled) at the end of the stream
+     * @throws IOException if the channel or the spool file failed
+     */
+    long transferFrom(ReadableByteChannel _src, long _count)
+    throws IOException {
+        if (_count <= 0)
+            return 0;
+        makeRoom(_count);
+
+        long n;
+        if (spoolOut != null) {
+            spoolOut.flush();
+            n = spoolChannel.transferFrom(_src, length, _count);
+            // transferFrom() doesn't move the file position, and later write()s go through the stream
+            spoolChannel.position(length + n);
+        }
+        else {
+            n = _src.read(ByteBuffer.wrap(memory, memoryLength, (int) _count));
+            if (n > 0)
+                memoryLength += (int) n;
+        }
+        if (n > 0)
+            length += n;
+        return n;
+    }
+
+
+    /**
+     * Get ready to take _len more bytes: spill to disk if they would take the body past the threshold or the
+     * budget won't give it the memory, otherwise grow the in-memory buffer to fit them.
+     */
+    private void makeRoom(long _len)
+    throws IOException {
+        if ((spoolOut == null) && (memoryLength + _len > spoolThreshold))
+            spill();
+
+        if (spoolOut == null) {
+            int capacity = (memory == null) ? 0 : memory.length;
+            if (memoryLength + _len > capacity) {
+                int size = (int) Math.min(Math.max(Math.max(capacity * 2, INITIAL_BUFFER_SIZE), memoryLength + _len), spoolThreshold);
+                // out of budget: this body goes to disk from here on, like a big one would
+                if (! growMemory(size))
+                    spill();
+            }
+        }
+    }
+
+
+    /**
+     * Add one line, as the bytes received from the client, and a \n, to the end of the body
+     * @throws IOException if the spool file could not be created or written
+     */
+    void writeLine(byte[] _b, int _off, int _len)
+    throws IOException {
+        write(_b, _off, _len);
+        write(NEWLINE, 0, 1);
+    }
+
+
+    /**
+     * Move what's in memory to a new spool file, and send all further writes there
+     */
+    private void spill()
+    throws IOException {
+        spoolFile = File.createTempFile("lmtp", ".spool", spoolDirectory);
+        FileOutputStream fos = new FileOutputStream(spoolFile);
+        spoolChannel = fos.getChannel();
+        spoolOut = new BufferedOutputStream(fos);
+        if (memoryLength > 0)
+            spoolOut.write(memory, 0, memoryLength);
+        releaseMemory();
+    }
+
+
+    /**
+     * @return the number of bytes in the body
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @return true if the body went over the threshold and is held in a spool file
+     */
+    public boolean isSpooled() {
+        return (spoolFile != null);
+    }
+
+
+    /**
+     * Opens a new stream over the whole body. Each call gets its own stream, starting from the beginning; the caller
+     * should close it. Nothing more may be written to the body after the first call.
+     * @return a stream that reads the body
+     * @throws IOException if the spool file could not be opened
+     */
+    public synchronized InputStream openStream()
+    throws IOException {
+        if (spoolFile != null) {
+            if (spoolOut != null) {
+                spoolOut.close();
+                spoolOut = null;
+                spoolChannel = null;
+            }
+            return new FileInputStream(spoolFile);
+        }
+        if (memory == null)
+            return new ByteArrayInputStream(new byte[0]);
+        return new ByteArrayInputStream(memory, 0, memoryLength);
+    }
+
+
+    /**
+     * @return the whole body as a String, decoded with the platform charset. This puts the whole message in memory, so
+     * avoid it for big ones.
+     * @throws UncheckedIOException if the spool file can't be read. From deliverAsync(), or a deliver() it calls,
+     * that gets the client a 451 for the recipient rather than an empty message delivered
+     */
+    public String toString() {
+        try {
+            InputStream in = openStream();
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(length, Integer.MAX_VALUE));
+                byte[] buf = new byte[8192];
+                int n;
+                while ((n = in.read(buf)) > 0)
+                    bytes.write(buf, 0, n);
+                return new String(bytes.toByteArray(), Charset.defaultCharset());
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ioe) {
+            throw new UncheckedIOException("could not read the message body", ioe);
+        }
+    }
+
+
+    /**
+     * Empty the body so it can take the next message. The spool file, if any, is deleted. With a pool the buffer goes
+     * back to it, so an idle session doesn't sit on one and the next message leases one of the size it needs;
+     * without one a buffer of the initial size is kept, and a bigger one goes back to the budget.
+     */
+    synchronized void reset() {
+        if ((memory != null) && ((pool != null) || (memory.length > INITIAL_BUFFER_SIZE)))
+            releaseMemory();
+        memoryLength = 0;
+        length = 0;
+        deleteSpoolFile();
+    }
+
+
+    /**
+     * Throw the body away, deleting the spool file if there is one. The body can't be used after this.
+     */
+    synchronized void dispose() {
+        releaseMemory();
+        length = 0;
+        deleteSpoolFile();
+    }
+
+
+    private void deleteSpoolFile() {
+        if (spoolOut != null) {
+            try { spoolOut.close(); } catch (IOException ioe) { }
+            spoolOut = null;
+            spoolChannel = null;
+        }
+        if (spoolFile != null) {
+            if (! spoolFile.delete())
+                Log.warn("Could not delete spool file {}", spoolFile);
+            spoolFile = null;
+        }
+    }
+
+}
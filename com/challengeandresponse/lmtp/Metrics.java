@@ -0,0 +1,389 @@
+package com.challengeandresponse.lmtp;
+
+import java.util.Vector;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * The counters, gauges and latency histograms of one LMTPEngine, for all its listeners together.
+ * <p>Counters are LongAdders, so threads counting the same thing at once don't fight over one cache line, and
+ * histograms are Histograms; counting or recording is a few atomic adds on an array slot picked by an enum, with no
+ * locks, no map lookups and no allocation. Gauges are read from the engine when they're asked for.</p>
+ * <p>Read them with snapshot(), as text, one "name value" line each, or over JMX: the engine registers this
+ * as an MBean (see LMTP.METRICS_JMX) with one attribute per line of the snapshot.</p>
+ * <p>Every time is in microseconds in the snapshot. Besides the named phases there is a histogram for each
+ * state of the session, of how long sessions stay in it each time.</p>
+ * <p>Each acceptor of each listener counts the connections it takes in an AcceptorStats of its own, shown as
+ * ACCEPTOR_name.accepted and ACCEPTOR_name.last_second, the connections it accepted in the last whole second.</p>
+ */
+public class Metrics implements DynamicMBean {
+
+    /** The things counted */
+    public enum Counter {
+        /** connections accepted from approved hosts and handed to admission control */
+        CONNECTIONS_ACCEPTED,
+        /** connections closed at once because the host isn't approved */
+        CONNECTIONS_UNAPPROVED,
+        /** connections turned away with a 421 because the server was saturated */
+        CONNECTIONS_REFUSED_BUSY,
+        /** sessions that have ended, however they ended */
+        SESSIONS_ENDED,
+        /** sessions ended by a QUIT */
+        SESSIONS_QUIT,
+        /** sessions ended because the connection failed underneath them */
+        SESSIONS_ABORTED,
+        /** sessions closed for INACTIVITY_TIMEOUT_MSEC */
+        DISCONNECT_TIMEOUT,
+        /** sessions closed for MAX_ERRORS_BEFORE_DISCONNECT */
+        DISCONNECT_ERRORS,
+        /** sessions closed for MAX_NOOPS_BEFORE_DISCONNECT */
+        DISCONNECT_NOOPS,
+        /** sessions closed for MAX_RSETS_BEFORE_DISCONNECT */
+        DISCONNECT_RSETS,
+        /** commands received */
+        COMMANDS,
+        /** senders accepted with a 250 */
+        MAIL_ACCEPTED,
+        /** recipients accepted with a 250 */
+        RCPT_ACCEPTED,
+        /** messages received in full, to be delivered */
+        MESSAGES_RECEIVED,
+        /** bytes of the message bodies received */
+        BYTES_RECEIVED,
+        /** recipient deliveries that got a 2xx */
+        DELIVERIES_OK,
+        /** recipient deliveries that got a 4xx, or failed */
+        DELIVERIES_TEMPFAIL,
+        /** recipient deliveries that got a 5xx */
+        DELIVERIES_PERMFAIL,
+        /** 500: commands that weren't recognized */
+        REJECT_UNKNOWN_COMMAND,
+        /** 501: bad addresses, host names and parameters */
+        REJECT_SYNTAX,
+        /** 503: commands out of order */
+        REJECT_SEQUENCE,
+        /** 502: commands that aren't implemented */
+        REJECT_NOT_IMPLEMENTED,
+        /** 551: recipients in domains that aren't served */
+        REJECT_RELAY,
+        /** 452: recipients over MAX_RECIPIENTS */
+        REJECT_TOO_MANY_RECIPIENTS,
+        /** 552: messages over MAX_MESSAGE_SIZE */
+        REJECT_SIZE,
+        /** 451: transactions refused because the delivery queue was full */
+        REJECT_QUEUE_FULL,
+        /** 451: host name lookups that timed out */
+        LOOKUP_TIMEOUT,
+        /** STARTTLS commands answered with a 220, so a handshake was started */
+        TLS_STARTED,
+        /** TLS handshakes finished in full */
+        TLS_HANDSHAKES,
+        /** TLS handshakes finished by resuming an earlier session, from the session cache or a ticket */
+        TLS_RESUMED,
+        /** TLS handshakes that failed, or whose connection closed before they were finished */
+        TLS_FAILED,
+        /** TLS buffers leased from the pool */
+        TLS_BUFFERS_REUSED,
+        /** TLS buffers that had to be allocated because the pool was empty */
+        TLS_BUFFERS_ALLOCATED,
+        /** body and read buffers leased from the pool: hits */
+        BUFFERS_REUSED,
+        /** body and read buffers that had to be allocated because the pool had none of the size: misses */
+        BUFFERS_ALLOCATED
+    }
+
+    /** The phases timed */
+    public enum Phase {
+        /** from the greeting going out to the LHLO coming in */
+        GREETING_TO_LHLO,
+        /** from the MAIL FROM coming in to the delivery replies going out */
+        TRANSACTION,
+        /** from the 354 (or the first BDAT) to the whole body being in */
+        DATA_RECEIVE,
+        /** the MAIL FROM host name lookup */
+        LOOKUP,
+        /** delivering one message to all its recipients */
+        DELIVERY,
+        /** delivering one message to one recipient: deliverAsync(), or deliver() in the end */
+        DELIVER_RECIPIENT,
+        /** from the connection being accepted to it being closed */
+        SESSION,
+        /** from the 220 to a STARTTLS to the TLS handshake being finished */
+        TLS_HANDSHAKE
+    }
+
+
+    private final LMTPEngine engine;
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private final Histogram[] phases = new Histogram[Phase.values().length];
+    // indexed by the session's state number
+    private final Histogram[] states = new Histogram[LMTPSession.STATE_STOPPED + 1];
+    private final int[] stateNumbers;
+    private final Vector <AcceptorStats> acceptors = new Vector <AcceptorStats> ();
+
+
+    /**
+     * @param _engine where the gauges are read from
+     */
+    Metrics(LMTPEngine _engine) {
+        engine = _engine;
+        for (int i = 0; i < counters.length; i++)
+            counters[i] = new LongAdder();
+        Phase[] p = Phase.values();
+        for (int i = 0; i < p.length; i++)
+            phases[i] = new Histogram(p[i].name());
+        stateNumbers = LMTPSession.allStates();
+        for (int i = 0; i < stateNumbers.length; i++)
+            states[stateNumbers[i]] = new Histogram("STATE_"+LMTPSession.stateName(stateNumbers[i]));
+    }
+
+
+    /**
+     * Count one _c
+     */
+    public void count(Counter _c) {
+        counters[_c.ordinal()].increment();
+    }
+
+    /**
+     * Count _n of _c
+     */
+    public void add(Counter _c, long _n) {
+        counters[_c.ordinal()].add(_n);
+    }
+
+    /**
+     * @param _p the phase
+     * @param _startNanos when it started, from System.nanoTime(). The time is taken from then to now
+     */
+    public void time(Phase _p, long _startNanos) {
+        phases[_p.ordinal()].record(System.nanoTime() - _startNanos);
+    }
+
+    /**
+     * @param _state one of the LMTPSession.STATE_ numbers
+     * @param _nanos how long a session was in it
+     */
+    void timeState(int _state, long _nanos) {
+        Histogram h = states[_state];
+        if (h != null)
+            h.record(_nanos);
+    }
+
+
+    /**
+     * @return the stats of the acceptor called _name, made now if there aren't any yet. A listener started again on
+     * the same port carries on with its predecessor's
+     */
+    AcceptorStats acceptor(String _name) {
+        synchronized (acceptors) {
+            AcceptorStats a = findAcceptor(AcceptorStats.normalize(_name));
+            if (a == null) {
+                a = new AcceptorStats(_name);
+                acceptors.add(a);
+            }
+            return a;
+        }
+    }
+
+    private AcceptorStats findAcceptor(String _name) {
+        synchronized (acceptors) {
+            for (int i = 0; i < acceptors.size(); i++)
+                if (acceptors.get(i).name.equals(_name))
+                    return acceptors.get(i);
+            return null;
+        }
+    }
+
+
+    /**
+     * @return the count so far
+     */
+    public long get(Counter _c) {
+        return counters[_c.ordinal()].sum();
+    }
+
+    /**
+     * @return the histogram of a phase, in nanoseconds
+     */
+    public Histogram get(Phase _p) {
+        return phases[_p.ordinal()];
+    }
+
+
+    /**
+     * All the metrics as text, one per line: "name value". The histograms give name.count, name.mean, name.p50,
+     * name.p90, name.p99 and name.max, in microseconds.
+     */
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        String[] names = names();
+        for (int i = 0; i < names.length; i++)
+            sb.append(names[i]).append(' ').append(value(names[i])).append('\n');
+        return sb.toString();
+    }
+
+
+    private static final String[] HISTOGRAM_FIELDS = { "count", "mean", "p50", "p90", "p99", "max" };
+    private static final String[] ACCEPTOR_FIELDS = { "accepted", "last_second" };
+    private static final String[] GAUGES = { "SESSIONS_ACTIVE", "CONNECTIONS_WAITING", "CONNECTIONS_ADMITTED_TOTAL",
+        "CONNECTIONS_QUEUED_TOTAL", "DELIVERY_QUEUE_DEPTH", "BODY_MEMORY_BYTES", "BUFFER_POOL_BYTES" };
+
+    /**
+     * @return the names of everything in the snapshot, in order
+     */
+    private String[] names() {
+        Counter[] c = Counter.values();
+        AcceptorStats[] a = acceptors.toArray(new AcceptorStats[0]);
+        int n = GAUGES.length + c.length + (phases.length + stateNumbers.length) * HISTOGRAM_FIELDS.length
+                + a.length * ACCEPTOR_FIELDS.length;
+        String[] result = new String[n];
+        int k = 0;
+        for (int i = 0; i < GAUGES.length; i++)
+            result[k++] = GAUGES[i];
+        for (int i = 0; i < c.length; i++)
+            result[k++] = c[i].name();
+        for (int i = 0; i < phases.length; i++)
+            for (int j = 0; j < HISTOGRAM_FIELDS.length; j++)
+                result[k++] = phases[i].getName()+"."+HISTOGRAM_FIELDS[j];
+        for (int i = 0; i < stateNumbers.length; i++)
+            for (int j = 0; j < HISTOGRAM_FIELDS.length; j++)
+                result[k++] = states[stateNumbers[i]].getName()+"."+HISTOGRAM_FIELDS[j];
+        for (int i = 0; i < a.length; i++)
+            for (int j = 0; j < ACCEPTOR_FIELDS.length; j++)
+                result[k++] = "ACCEPTOR_"+a[i].name+"."+ACCEPTOR_FIELDS[j];
+        return result;
+    }
+
+
+    /**
+     * @return the value of the metric called _name, or null if there's no such metric
+     */
+    private Long value(String _name) {
+        if (_name.equals("SESSIONS_ACTIVE"))
+            return Long.valueOf(engine.admission.activeNow());
+        if (_name.equals("CONNECTIONS_WAITING"))
+            return Long.valueOf(engine.admission.waitingNow());
+        if (_name.equals("CONNECTIONS_ADMITTED_TOTAL"))
+            return Long.valueOf(engine.admission.admittedCount());
+        if (_name.equals("CONNECTIONS_QUEUED_TOTAL"))
+            return Long.valueOf(engine.admission.queuedCount());
+        if (_name.equals("DELIVERY_QUEUE_DEPTH")) {
+            ThreadPoolExecutor d = engine.deliveryPool;
+            return Long.valueOf((d == null) ? 0 : d.getQueue().size());
+        }
+        if (_name.equals("BODY_MEMORY_BYTES"))
+            return Long.valueOf(engine.bodyBudget.inUse());
+        if (_name.equals("BUFFER_POOL_BYTES"))
+            return Long.valueOf(engine.buffers.pooledBytes());
+
+        int dot = _name.lastIndexOf('.');
+        if (dot < 0) {
+            try {
+                return Long.valueOf(get(Counter.valueOf(_name)));
+            }
+            catch (IllegalArgumentException iae) {
+                return null;
+            }
+        }
+        String field = _name.substring(dot + 1);
+        if (_name.startsWith("ACCEPTOR_")) {
+            AcceptorStats a = findAcceptor(_name.substring("ACCEPTOR_".length(), dot));
+            if (a == null)
+                return null;
+            if (field.equals("accepted"))
+                return Long.valueOf(a.getAccepted());
+            if (field.equals("last_second"))
+                return Long.valueOf(a.getLastSecond());
+            return null;
+        }
+        Histogram h = histogram(_name.substring(0, dot));
+        if (h == null)
+            return null;
+        if (field.equals("count"))
+            return Long.valueOf(h.getCount());
+        if (field.equals("mean"))
+            return Long.valueOf(h.getMean() / 1000);
+        if (field.equals("p50"))
+            return Long.valueOf(h.getPercentile(50) / 1000);
+        if (field.equals("p90"))
+            return Long.valueOf(h.getPercentile(90) / 1000);
+        if (field.equals("p99"))
+            return Long.valueOf(h.getPercentile(99) / 1000);
+        if (field.equals("max"))
+            return Long.valueOf(h.getMax() / 1000);
+        return null;
+    }
+
+    private Histogram histogram(String _name) {
+        for (int i = 0; i < phases.length; i++)
+            if (phases[i].getName().equals(_name))
+                return phases[i];
+        for (int i = 0; i < stateNumbers.length; i++)
+            if (states[stateNumbers[i]].getName().equals(_name))
+                return states[stateNumbers[i]];
+        return null;
+    }
+
+
+    //// JMX: every metric is a read-only attribute of type Long, and there's a Snapshot attribute with all of them as text
+
+    public Object getAttribute(String _attribute)
+    throws AttributeNotFoundException {
+        if (_attribute.equals("Snapshot"))
+            return snapshot();
+        Long v = value(_attribute);
+        if (v == null)
+            throw new AttributeNotFoundException(_attribute);
+        return v;
+    }
+
+    public AttributeList getAttributes(String[] _attributes) {
+        AttributeList result = new AttributeList();
+        for (int i = 0; i < _attributes.length; i++) {
+            try {
+                result.add(new Attribute(_attributes[i], getAttribute(_attributes[i])));
+            }
+            catch (AttributeNotFoundException anfe) {
+                // left out, as the interface says
+            }
+        }
+        return result;
+    }
+
+    public void setAttribute(Attribute _attribute)
+    throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("read only: "+_attribute.getName());
+    }
+
+    public AttributeList setAttributes(AttributeList _attributes) {
+        return new AttributeList();
+    }
+
+    public Object invoke(String _actionName, Object[] _params, String[] _signature) {
+        throw new UnsupportedOperationException(_actionName);
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        String[] names = names();
+        MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[names.length + 1];
+        attributes[0] = new MBeanAttributeInfo("Snapshot", "java.lang.String", "all the metrics, one per line", true, false, false);
+        for (int i = 0; i < names.length; i++)
+            attributes[i + 1] = new MBeanAttributeInfo(names[i], "java.lang.Long", names[i], true, false, false);
+        return new MBeanInfo(getClass().getName(), "LMTP server metrics", attributes, null, new MBeanOperationInfo[0], null);
+    }
+
+}
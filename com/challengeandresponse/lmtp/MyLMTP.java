@@ -19,6 +19,13 @@ public class MyLMTP extends LMTP {
         super(approvedHosts, domainsServed);
     }        
     
+    /**
+     * This is the constructor for a server that's start()ed and can be stop()ped, on an engine that can be shared with other servers
+     */
+    public MyLMTP(LMTPEngine engine, int port, ServerConfig config) {
+        super(engine, port, config);
+    }
+    
     
     /**
      * The deliver() method is called by the service threads, to actually do something with a received message.
@@ -43,9 +50,7 @@ public class MyLMTP extends LMTP {
     {
         // these settings change the defaults
         SOCKET_NUM = 12000;
-        SOFT_MAX_THREADS = 2;
         HARD_MAX_THREADS = 20;
-        BUSY_NEW_THREAD_DELAY = 200;
         MY_HOST = "electricdays.com";
         INACTIVITY_TIMEOUT_MSEC = 30000;
         MAX_ERRORS_BEFORE_DISCONNECT = 3;
@@ -63,7 +68,17 @@ public class MyLMTP extends LMTP {
         	approvedHosts.add("agentzero.com");
         	approvedHosts.add("0:0:0:0:0:0:0:1");
    
-        	new MyLMTP(approvedHosts,domainsServed);    
+        // one engine runs the connections of every server started on it
+        LMTPEngine engine = new LMTPEngine();
+        MyLMTP server = new MyLMTP(engine, SOCKET_NUM, ServerConfig.fromDefaults(approvedHosts, domainsServed));
+        try {
+            server.start();
+        }
+        catch (java.io.IOException ioe) {
+            System.out.println("Could not start the server: "+ioe.getMessage());
+            return;
+        }
+        server.awaitStop();
     }
 
     
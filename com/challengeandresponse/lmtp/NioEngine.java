@@ -0,0 +1,725 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import jdk.net.ExtendedSocketOptions;
+import jdk.net.UnixDomainPrincipal;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * The event-loop engine, used by an LMTPEngine of type LMTP.ENGINE_NIO. Instead of a thread per client, a small fixed
+ * set of IoLoop threads (LMTP.NIO_LOOPS, one per core by default) each own a Selector and a share of the
+ * non-blocking client channels, from all the listeners on the engine. Bytes that arrive are cut into lines and fed to that connection's LMTPSession,
+ * and the replies it sends are queued up and written out as the socket can take them.
+ * <p>A session that has received a message parks while its deliveries run on the delivery pool (the engine makes
+ * one with the loops if LMTP.DELIVERY_THREADS didn't): the loop stops reading from that client, keeps whatever it
+ * already sent, and goes on serving the others. When the deliveries are done the session is resumed on its loop.
+ * deliver() is never called on a loop, so a slow one holds up only its own connection.</p>
+ * <p>Unix domain socket listeners are served by these loops whatever the engine's type, so an engine of another
+ * type makes them when the first such listener starts.</p>
+ */
+class NioEngine {
+
+    /** How long a loop blocks in select() before it wakes up to check the sessions for timeouts, in msec */
+    private static final long	SWEEP_INTERVAL_MSEC = 1000;
+    /** Size of the buffer each connection reads into, leased from the engine's BufferPool */
+    private static final int	READ_BUFFER_SIZE = LineReader.BUFFER_SIZE;
+
+    private final LMTPEngine engine;
+    private final IoLoop[] loops;
+    private int nextLoop = 0;
+
+
+    /**
+     * @param _engine the engine whose admission control this runs under
+     * @param _loops number of I/O loops (threads) to run. Values below 1 are treated as 1
+     */
+    NioEngine(LMTPEngine _engine, int _loops) {
+        engine = _engine;
+        loops = new IoLoop[Math.max(1, _loops)];
+        for (int i = 0; i < loops.length; i++)
+            loops[i] = new IoLoop(i);
+    }
+
+
+    /**
+     * Start the loops
+     */
+    void start() {
+        for (int i = 0; i < loops.length; i++)
+            loops[i].start();
+        Log.info("Started {} I/O loops", Integer.valueOf(loops.length));
+    }
+
+
+    /**
+     * Stop the loops. Each one closes all its connections and ends
+     */
+    void stop() {
+        for (int i = 0; i < loops.length; i++)
+            loops[i].shutdown();
+    }
+
+
+    /**
+     * Accept connections for one listener until its server socket is closed. TCP connections from hosts that aren't
+     * approved, and Unix domain connections from peers that aren't, are closed right away. The rest are dealt out to
+     * the loops round-robin as admission control lets them in. Every listener on the engine shares the same loops;
+     * a listener with several acceptors gives each one a share of them of its own, so they don't take turns on a lock.
+     * @param _server the listener
+     * @param _ssc its server socket, TCP or Unix domain, bound and in blocking mode
+     * @param _acceptorNum which of the listener's acceptors this is, from 0
+     * @param _acceptors how many it has. Each numbers its connections _acceptorNum, _acceptorNum + _acceptors...
+     * @param _stats where this acceptor counts its connections
+     */
+    void accept(final LMTP _server, ServerSocketChannel _ssc, int _acceptorNum, int _acceptors, AcceptorStats _stats) {
+        IoLoop[] share = loopsFor(_acceptorNum, _acceptors);
+        int next = 0;
+        int id = _acceptorNum;
+        while (_ssc.isOpen()) {
+            try {
+                final SocketChannel sc = _ssc.accept();
+                _stats.accepted();
+                Object client;
+                if (sc.getRemoteAddress() instanceof InetSocketAddress) {
+                    InetAddress clientAddress = ((InetSocketAddress) sc.getRemoteAddress()).getAddress();
+                    if (! _server.getConfig().approvedHosts.contains(clientAddress)) {
+                        engine.metrics.count(Metrics.Counter.CONNECTIONS_UNAPPROVED);
+                        sc.close();
+                        Log.info("Rejected unapproved host: {}", clientAddress);
+                        continue;
+                    }
+                    // the replies are already batched per command group, so Nagle would only hold back the last one of each
+                    sc.socket().setTcpNoDelay(true);
+                    client = clientAddress;
+                }
+                else {
+                    // a Unix domain socket: whoever got through the file permissions, if the peer is approved
+                    UnixDomainPrincipal peer = peerOf(sc);
+                    if (! _server.getConfig().peerApproved(peer)) {
+                        engine.metrics.count(Metrics.Counter.CONNECTIONS_UNAPPROVED);
+                        sc.close();
+                        Log.info("Rejected unapproved peer: {}", describe(peer));
+                        continue;
+                    }
+                    client = describe(peer);
+                }
+                // the loop is picked now, on this thread, even if the connection has to wait before it's added
+                final IoLoop loop;
+                if (share == loops)
+                    loop = nextLoop();
+                else {
+                    loop = share[next];
+                    next = (next + 1) % share.length;
+                }
+                final int clientID = id;
+                id += _acceptors;
+                engine.metrics.count(Metrics.Counter.CONNECTIONS_ACCEPTED);
+                boolean admitted = engine.admission.offer(new Runnable() {
+                    public void run() {
+                        loop.add(sc, clientID, _server);
+                    }
+                }, new Runnable() {
+                    public void run() {
+                        _server.refuseBusy(sc);
+                    }
+                }, _server.getConfig().inactivityTimeoutMsec);
+                if (admitted)
+                    Log.debug("Admitted host: {}", client);
+                else
+                    _server.refuseBusy(sc);
+            }
+            catch (ClosedChannelException cce) {
+                // the listener was stopped
+                return;
+            }
+            catch (IOException ioe) {
+                Log.warn("Exception encountered on accept. Ignoring.", ioe);
+            }
+        }
+    }
+
+
+    /**
+     * @return the user and group of the process at the other end of a Unix domain connection, or null if the
+     * platform can't say
+     */
+    private static UnixDomainPrincipal peerOf(SocketChannel _sc) {
+        try {
+            return _sc.getOption(ExtendedSocketOptions.SO_PEERCRED);
+        }
+        catch (IOException ioe) {
+            return null;
+        }
+        catch (UnsupportedOperationException uoe) {
+            return null;
+        }
+    }
+    
+    
+    private static String describe(UnixDomainPrincipal _peer) {
+        if (_peer == null)
+            return "unknown peer";
+        return _peer.user().getName()+":"+_peer.group().getName();
+    }
+
+
+    /**
+     * @return the loops acceptor _acceptorNum of _acceptors deals its connections out to: every _acceptors'th one,
+     * starting at loop _acceptorNum, or just one if there are more acceptors than loops. All of them for a lone acceptor
+     */
+    private IoLoop[] loopsFor(int _acceptorNum, int _acceptors) {
+        if (_acceptors <= 1)
+            return loops;
+        if (_acceptors >= loops.length)
+            return new IoLoop[] { loops[_acceptorNum % loops.length] };
+        IoLoop[] share = new IoLoop[(loops.length - _acceptorNum + _acceptors - 1) / _acceptors];
+        for (int i = 0; i < share.length; i++)
+            share[i] = loops[_acceptorNum + i * _acceptors];
+        return share;
+    }
+
+
+    /**
+     * @return the loop to give the next connection to. Called from the lone acceptors of all the listeners
+     */
+    private synchronized IoLoop nextLoop() {
+        IoLoop loop = loops[nextLoop];
+        nextLoop = (nextLoop + 1) % loops.length;
+        return loop;
+    }
+
+
+    /**
+     * Everything the loop knows about one client: its channel, its session, the bytes of a line that hasn't
+     * been completed yet and the replies that haven't been written yet. Attached to the channel's SelectionKey.
+     * The read buffer is leased from the engine's BufferPool and given back when the connection is closed.
+     * After a STARTTLS, reads and writes go through its TlsChannel instead of straight to the channel.
+     */
+    private static class Connection implements LMTPSession.ReplySink {
+        final SocketChannel channel;
+        final SelectionKey key;
+        private final TlsContext tlsContext;
+        LMTPSession session;
+        /** null once the connection is closed */
+        ByteBuffer readBuffer;
+        byte[] partialLine = new byte[256];
+        int partialLength = 0;
+        /** set while the rest of a line that got longer than the session takes is being thrown away */
+        boolean discarding = false;
+        final LinkedList <ByteBuffer> pendingWrites = new LinkedList <ByteBuffer> ();
+        /** after a STARTTLS: the replies from before it that haven't been written yet, which go out in the clear */
+        final LinkedList <ByteBuffer> cleartextWrites = new LinkedList <ByteBuffer> ();
+        /** null until a STARTTLS */
+        TlsChannel tls = null;
+        /** set by a STARTTLS, for the read loop to throw away the rest of what arrived in the clear */
+        boolean discardInput = false;
+        /** hands the connection back to its loop when TLS handshake steps running on a task thread are done */
+        Runnable handshakeResumer;
+
+        Connection(SocketChannel _channel, SelectionKey _key, TlsContext _tlsContext, BufferPool _buffers) {
+            channel = _channel;
+            key = _key;
+            tlsContext = _tlsContext;
+            readBuffer = ByteBuffer.wrap(_buffers.lease(READ_BUFFER_SIZE), 0, READ_BUFFER_SIZE);
+        }
+
+        /**
+         * Queue a reply. It goes out with the next flush().
+         */
+        public void send(String _s) {
+            pendingWrites.add(ByteBuffer.wrap((_s.replace("\n", "\r\n")+"\r\n").getBytes(Charset.defaultCharset())));
+        }
+
+        public void flush()
+        throws IOException {
+            flushWrites();
+        }
+
+        public void startTls()
+        throws IOException {
+            cleartextWrites.addAll(pendingWrites);
+            pendingWrites.clear();
+            tls = tlsContext.open(channel, channel, session.getClientID(), handshakeResumer);
+            discardInput = true;
+        }
+
+        /**
+         * Nothing to do: the loop's sweep times sessions out by their own configuration
+         */
+        public void configChanged(ServerConfig _config) {
+        }
+
+        /**
+         * Write as much of the pending output as the socket will take, all queued replies in one gathering write,
+         * and ask for OP_WRITE if some is left.
+         */
+        void flushWrites()
+        throws IOException {
+            if (tls == null)
+                write(pendingWrites, channel);
+            else if (write(cleartextWrites, channel) && tls.flush())
+                write(pendingWrites, tls);
+            if (key.isValid()) {
+                // a busy session takes no input, so leave the client's bytes with the kernel until it's done. the same
+                // while TLS handshake steps run: the loop reads on when they're done, see IoLoop.continueHandshakes()
+                boolean waiting = session.isBusy() || ((tls != null) && tls.tasksRunning());
+                int ops = waiting ? 0 : SelectionKey.OP_READ;
+                if (canWrite())
+                    ops |= SelectionKey.OP_WRITE;
+                key.interestOps(ops);
+            }
+        }
+
+        /**
+         * @return true if there's output the socket could take now. Replies for TLS wait while its handshake steps run
+         */
+        private boolean canWrite() {
+            if ((tls != null) && tls.tasksRunning())
+                return (! cleartextWrites.isEmpty()) || tls.hasPendingOutput();
+            return writesPending();
+        }
+
+        /**
+         * @return true if all of _queue was written
+         */
+        private static boolean write(LinkedList <ByteBuffer> _queue, GatheringByteChannel _to)
+        throws IOException {
+            if (_queue.isEmpty())
+                return true;
+            ByteBuffer[] bbs = _queue.toArray(new ByteBuffer[_queue.size()]);
+            _to.write(bbs);
+            while ((! _queue.isEmpty()) && (! _queue.getFirst().hasRemaining()))
+                _queue.removeFirst();
+            return _queue.isEmpty();
+        }
+
+        /**
+         * @return true if there's output the socket hasn't taken yet
+         */
+        boolean writesPending() {
+            return (! pendingWrites.isEmpty()) || (! cleartextWrites.isEmpty()) || ((tls != null) && tls.hasPendingOutput());
+        }
+
+        /**
+         * Forget the output that hasn't been written, for a client that has gone away
+         */
+        void discardWrites() {
+            pendingWrites.clear();
+            cleartextWrites.clear();
+            if (tls != null)
+                tls.discardOutput();
+        }
+
+        /**
+         * Read from the client, through TLS if it has been started
+         */
+        int read(ByteBuffer _dst)
+        throws IOException {
+            return (tls != null) ? tls.read(_dst) : channel.read(_dst);
+        }
+
+        /**
+         * Add bytes to the line being assembled, growing the line buffer if needed, or start throwing the line away
+         * if that makes it longer than _maxLength and the \r that may end it
+         */
+        void appendToLine(byte[] _b, int _off, int _len, int _maxLength) {
+            if (discarding)
+                return;
+            long most = _maxLength + 1L;
+            if ((long) partialLength + _len > most) {
+                discarding = true;
+                partialLength = 0;
+                return;
+            }
+            if (partialLength + _len > partialLine.length) {
+                byte[] bigger = new byte[(int) Math.min(Math.max(partialLine.length * 2L, partialLength + _len), Math.max(most, partialLine.length))];
+                System.arraycopy(partialLine, 0, bigger, 0, partialLength);
+                partialLine = bigger;
+            }
+            System.arraycopy(_b, _off, partialLine, partialLength, _len);
+            partialLength += _len;
+        }
+    }
+
+
+    /**
+     * One event loop. Owns a selector and every connection registered with it; all the sessions on this loop are
+     * only ever touched from this thread.
+     */
+    private class IoLoop extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue <Object[]> newConnections = new ConcurrentLinkedQueue <Object[]> ();
+        private final ConcurrentLinkedQueue <Connection> resumed = new ConcurrentLinkedQueue <Connection> ();
+        private final ConcurrentLinkedQueue <Connection> handshakes = new ConcurrentLinkedQueue <Connection> ();
+        private volatile boolean stopping = false;
+
+        IoLoop(int _loopNum) {
+            super("lmtp_io_"+_loopNum);
+            setDaemon(false);
+            try {
+                selector = Selector.open();
+            }
+            catch (IOException ioe) {
+                throw new IllegalStateException("Could not open a selector: "+ioe.getMessage());
+            }
+        }
+
+        /**
+         * Hand a newly accepted channel to this loop. Called from the acceptor thread, or whichever thread admission
+         * control starts a waiting connection from; the actual registration happens on the loop's own thread. A loop
+         * that has been shut down closes the channel instead.
+         */
+        void add(SocketChannel _sc, int _clientID, LMTP _server) {
+            Object[] nc = new Object[] { _sc, Integer.valueOf(_clientID), _server };
+            newConnections.add(nc);
+            // closeAll() takes whatever was added before it ran. one added after is ours to close
+            if (stopping && newConnections.remove(nc)) {
+                try { _sc.close(); } catch (IOException ioe) { }
+                engine.admission.release();
+                return;
+            }
+            selector.wakeup();
+        }
+
+        /**
+         * Tell the loop to close its connections and end
+         */
+        void shutdown() {
+            stopping = true;
+            selector.wakeup();
+        }
+
+        /**
+         * Queue a connection whose deliveries are done, to be picked up by the loop. Called from a delivery thread.
+         */
+        void resume(Connection _c) {
+            resumed.add(_c);
+            selector.wakeup();
+        }
+
+        /**
+         * Queue a connection whose TLS handshake steps are done, to be picked up by the loop. Called from a TLS task thread.
+         */
+        void resumeHandshake(Connection _c) {
+            handshakes.add(_c);
+            selector.wakeup();
+        }
+
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            while (! stopping) {
+                try {
+                    selector.select(SWEEP_INTERVAL_MSEC);
+                    if (stopping)
+                        break;
+                    registerNewConnections();
+                    resumeSessions();
+                    continueHandshakes();
+
+                    Iterator <SelectionKey> i = selector.selectedKeys().iterator();
+                    while (i.hasNext()) {
+                        SelectionKey key = i.next();
+                        i.remove();
+                        Connection c = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                c.flushWrites();
+                                // a TLS handshake waits for its records to go out before it reads on
+                                if ((c.tls != null) && (! key.isReadable()))
+                                    readAndProcess(c);
+                            }
+                            if (key.isValid() && key.isReadable())
+                                readAndProcess(c);
+                            closeIfStopped(c);
+                        }
+                        catch (IOException ioe) {
+                            c.session.abort();
+                            close(c);
+                        }
+                    }
+
+                    // now and then, give every session a chance to notice it has timed out
+                    if (System.currentTimeMillis() - lastSweep >= SWEEP_INTERVAL_MSEC) {
+                        lastSweep = System.currentTimeMillis();
+                        sweep();
+                    }
+                }
+                catch (IOException ioe) {
+                    Log.warn("Exception in I/O loop {}. Ignoring.", getName(), ioe);
+                }
+            }
+            closeAll();
+        }
+
+        /**
+         * Close every connection on this loop, and the ones still waiting to be registered, then the selector
+         */
+        private void closeAll() {
+            Iterator <SelectionKey> i = selector.keys().iterator();
+            while (i.hasNext()) {
+                Connection c = (Connection) i.next().attachment();
+                if ((c != null) && (c.session != null)) {
+                    c.session.abort();
+                    try { c.flushWrites(); } catch (IOException ioe) { }
+                    close(c);
+                }
+            }
+            Object[] nc;
+            while ((nc = newConnections.poll()) != null) {
+                try { ((SocketChannel) nc[0]).close(); } catch (IOException ioe) { }
+                engine.admission.release();
+            }
+            try {
+                selector.close();
+            }
+            catch (IOException ioe) { }
+        }
+
+        private void registerNewConnections() {
+            Object[] nc;
+            while ((nc = newConnections.poll()) != null) {
+                SocketChannel sc = (SocketChannel) nc[0];
+                int clientID = ((Integer) nc[1]).intValue();
+                LMTP server = (LMTP) nc[2];
+                Connection c = null;
+                try {
+                    sc.configureBlocking(false);
+                    SelectionKey key = sc.register(selector, SelectionKey.OP_READ);
+                    c = new Connection(sc, key, engine.tls, engine.buffers);
+                    key.attach(c);
+                    c.session = new LMTPSession(server, clientID, c);
+                    final Connection resumable = c;
+                    c.session.setResumer(new Runnable() {
+                        public void run() {
+                            resume(resumable);
+                        }
+                    });
+                    c.handshakeResumer = new Runnable() {
+                        public void run() {
+                            resumeHandshake(resumable);
+                        }
+                    };
+                    if (Log.isEnabled(Log.DEBUG))
+                        Log.debug("Servicing client: {} at {}", Integer.valueOf(clientID), sc.getRemoteAddress());
+                    // sends the greeting
+                    c.session.process(null);
+                }
+                catch (IOException ioe) {
+                    if (c != null)
+                        close(c);
+                    else {
+                        try { sc.close(); } catch (IOException ioe2) { }
+                        engine.admission.release();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Let the sessions whose deliveries are done send their replies, then carry on with whatever their clients
+         * sent in the meantime
+         */
+        private void resumeSessions() {
+            Connection c;
+            while ((c = resumed.poll()) != null) {
+                if (! c.channel.isOpen())
+                    continue;
+                try {
+                    c.session.process(null);
+                    drain(c);
+                    closeIfStopped(c);
+                }
+                catch (IOException ioe) {
+                    c.session.abort();
+                    close(c);
+                }
+            }
+        }
+
+        /**
+         * Carry on with the TLS handshakes whose steps are done: write what they have to send, read what the clients
+         * sent in the meantime, and ask for reads again
+         */
+        private void continueHandshakes() {
+            Connection c;
+            while ((c = handshakes.poll()) != null) {
+                if (! c.channel.isOpen())
+                    continue;
+                try {
+                    c.flushWrites();
+                    if (c.key.isValid() && (! c.session.isBusy()))
+                        readAndProcess(c);
+                    closeIfStopped(c);
+                }
+                catch (IOException ioe) {
+                    c.session.abort();
+                    close(c);
+                }
+            }
+        }
+
+        /**
+         * Read whatever has arrived and hand it to the session.
+         * If the session is in the middle of a BDAT chunk and nothing is left over in the read buffer, the chunk goes
+         * straight from the channel to the message body instead, unless it's coming through TLS.
+         */
+        private void readAndProcess(Connection _c)
+        throws IOException {
+            ByteBuffer bb = _c.readBuffer;
+            if ((_c.session.bytesWanted() > 0) && (bb.position() == 0) && (_c.tls == null)) {
+                // 0 could be the end of the stream. the ordinary read below will find out
+                if ((_c.session.processBytes(_c.channel) > 0) && (_c.session.bytesWanted() > 0)) {
+                    _c.flushWrites();
+                    return;
+                }
+            }
+
+            int n = _c.read(bb);
+            if (n < 0) {
+                // the client went away without a QUIT. nobody is left to read whatever is still queued
+                _c.session.abort();
+                _c.discardWrites();
+                return;
+            }
+            drain(_c);
+        }
+
+        /**
+         * Feed what's in the read buffer to the session: cut into lines the way BufferedReader.readLine() would have
+         * (a line ends at \n, and a \r before it is dropped), or raw while the session is in the middle of a BDAT
+         * chunk. Stops early if the session gets busy with its deliveries; the rest stays in the buffer for later.
+         * A line that's all in the read buffer is handed to the session from there, so a DATA line is copied once,
+         * into the message body; only a line split across reads is put together in partialLine first. A line longer
+         * than the session takes is thrown away as it arrives, and the session told with lineTooLong().
+         */
+        private void drain(Connection _c)
+        throws IOException {
+            ByteBuffer bb = _c.readBuffer;
+            while (true) {
+                bb.flip();
+                while (bb.hasRemaining() && (! _c.session.isStopped()) && (! _c.session.isBusy())) {
+                    if (_c.session.bytesWanted() > 0) {
+                        _c.session.processBytes(bb);
+                        continue;
+                    }
+                    byte[] a = bb.array();
+                    int start = bb.arrayOffset() + bb.position();
+                    int end = bb.arrayOffset() + bb.limit();
+                    int max = _c.session.maxLineLength();
+                    int eol = start;
+                    while ((eol < end) && (a[eol] != '\n'))
+                        eol++;
+                    if (eol == end) {
+                        // the rest of the line is still to come
+                        _c.appendToLine(a, start, end - start, max);
+                        bb.position(bb.limit());
+                        break;
+                    }
+                    bb.position(eol + 1 - bb.arrayOffset());
+                    if ((_c.partialLength == 0) && (! _c.discarding)) {
+                        int len = eol - start;
+                        if ((len > 0) && (a[eol-1] == '\r'))
+                            len--;
+                        if (len > max)
+                            _c.session.lineTooLong();
+                        else
+                            _c.session.processLine(a, start, len);
+                    }
+                    else {
+                        _c.appendToLine(a, start, eol - start, max);
+                        int len = _c.partialLength;
+                        if ((len > 0) && (_c.partialLine[len-1] == '\r'))
+                            len--;
+                        _c.partialLength = 0;
+                        if (_c.discarding || (len > max)) {
+                            _c.discarding = false;
+                            _c.session.lineTooLong();
+                        }
+                        else
+                            _c.session.processLine(_c.partialLine, 0, len);
+                    }
+                    if (_c.discardInput) {
+                        // STARTTLS: nothing sent in the clear after it counts (RFC 3207)
+                        _c.discardInput = false;
+                        bb.position(bb.limit());
+                    }
+                }
+                bb.compact();
+                // TLS may have unwrapped more than fitted in the read buffer, and the socket won't say so again
+                if ((_c.tls == null) || _c.session.isStopped() || _c.session.isBusy() || (! _c.tls.hasBufferedInput()))
+                    break;
+                if (_c.tls.read(bb) <= 0)
+                    break;
+            }
+            // everything that arrived has been handled, so this is where the pipelined replies go out
+            _c.flushWrites();
+        }
+
+        private void sweep() {
+            Iterator <SelectionKey> i = selector.keys().iterator();
+            while (i.hasNext()) {
+                SelectionKey key = i.next();
+                Connection c = (Connection) key.attachment();
+                if ((c == null) || (c.session == null))
+                    continue;
+                try {
+                    c.session.process(null);
+                    c.flushWrites();
+                    closeIfStopped(c);
+                }
+                catch (IOException ioe) {
+                    c.session.abort();
+                    close(c);
+                }
+            }
+        }
+
+        /**
+         * Close the connection once the session is done and everything it said has been written
+         */
+        private void closeIfStopped(Connection _c) {
+            if (_c.session.isStopped() && (! _c.writesPending()))
+                close(_c);
+        }
+
+        private void close(Connection _c) {
+            if (! _c.channel.isOpen())
+                return;
+            _c.key.cancel();
+            if (_c.tls != null)
+                _c.tls.close();
+            engine.buffers.release(_c.readBuffer.array());
+            _c.readBuffer = null;
+            try {
+                _c.channel.close();
+            }
+            catch (ClosedChannelException cce) { }
+            catch (IOException ioe) {
+                Log.warn("Could not close connection {}", Integer.valueOf(_c.session.getClientID()), ioe);
+            }
+            if (Log.isEnabled(Log.DEBUG))
+                Log.debug("Connection {} stopped, socket closed", Integer.valueOf(_c.session.getClientID()));
+            _c.session.ended();
+            engine.admission.release();
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package com.challengeandresponse.lmtp;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * An email address taken apart by a hand-written scanner instead of the regular expressions
+ * Utils.parseEmailAddress() used to compile and run on every call. An object can be reused: parse() overwrites
+ * whatever the last call left.
+ * <p>The results are exactly what the regex version gave, field for field, including its quirks: the part
+ * inside the first &lt;...&gt; gives the local part and domain, while the normalized address is the first
+ * run of address characters around an @ that starts after a &lt; or white space and ends at a &gt; or
+ * white space.</p>
+ */
+public class ParsedAddress {
+
+    /** everything before the @ inside the &lt;&gt;, with the +detail. String[0] of the old result */
+    public String local;
+    /** the local part without the +detail. String[1] */
+    public String user;
+    /** what followed the first + in the local part, or null if there was no +. String[2] */
+    public String detail;
+    /** everything after the @ inside the &lt;&gt;. String[3] */
+    public String domain;
+    /** the whole address, without the &lt;&gt;. String[4] */
+    public String address;
+
+
+    /**
+     * Parse an address, lowercased, in the form "&lt;user+detail@host.tld&gt;", with anything before or after it.
+     * The +detail is optional.
+     * @param _fullEmailAddress the text to parse
+     * @return true if an address was found. On false the fields are all null
+     */
+    public boolean parse(String _fullEmailAddress) {
+        local = user = detail = domain = address = null;
+        String s = _fullEmailAddress.trim().toLowerCase();
+        int n = s.length();
+
+        // the first <, the first @ after it and the first > after that. no line terminators anywhere,
+        // since the old pattern's dots didn't match them
+        int lt = -1, at = -1, gt = -1;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if ((c == '\n') || (c == '\r') || (c == '\u0085') || (c == '\u2028') || (c == '\u2029'))
+                return false;
+            if (lt < 0) {
+                if (c == '<')
+                    lt = i;
+            }
+            else if (at < 0) {
+                if (c == '@')
+                    at = i;
+            }
+            else if ((gt < 0) && (c == '>')) {
+                gt = i;
+            }
+        }
+        if (gt < 0)
+            return false;
+
+        // the normalized address: after a < or white space, address characters, @, host characters, then > or white space.
+        // a failed try can only restart at the character that stopped it, so this is one pass as well
+        int d = 0;
+        while ((d < n) && (address == null)) {
+            char c = s.charAt(d);
+            if ((c != '<') && (! isSpace(c))) {
+                d++;
+                continue;
+            }
+            int p = d + 1;
+            while ((p < n) && isLocalChar(s.charAt(p)))
+                p++;
+            if ((p < n) && (s.charAt(p) == '@')) {
+                int q = p + 1;
+                while ((q < n) && isHostChar(s.charAt(q)))
+                    q++;
+                if ((q < n) && ((s.charAt(q) == '>') || isSpace(s.charAt(q))))
+                    address = s.substring(d + 1, q);
+                p = q;
+            }
+            d = p;
+        }
+        if (address == null)
+            return false;
+
+        local = s.substring(lt + 1, at);
+        domain = s.substring(at + 1, gt);
+        int plus = local.indexOf('+');
+        if (plus >= 0) {
+            user = local.substring(0, plus);
+            detail = local.substring(plus + 1);
+        }
+        else {
+            user = local;
+        }
+        return true;
+    }
+
+
+    /**
+     * @return the fields in the order Utils.parseEmailAddress() returns them
+     */
+    public String[] toArray() {
+        return new String[] { local, user, detail, domain, address };
+    }
+
+
+    /** \s in a regex: space, tab, vertical tab, form feed (the line terminators are already ruled out) */
+    private static boolean isSpace(char _c) {
+        return (_c == ' ') || (_c == '\t') || (_c == '\u000B') || (_c == '\f');
+    }
+
+    private static boolean isHostChar(char _c) {
+        return ((_c >= 'a') && (_c <= 'z')) || ((_c >= 'A') && (_c <= 'Z')) || ((_c >= '0') && (_c <= '9')) || (_c == '_') || (_c == '.');
+    }
+
+    private static boolean isLocalChar(char _c) {
+        return isHostChar(_c) || (_c == '+') || (_c == '-');
+    }
+
+}
@@ -0,0 +1,171 @@
+package com.challengeandresponse.lmtp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Host name lookups for the sessions, without blocking them. lookup() answers at once from the cache when it
+ * can; otherwise the lookup runs on one of the cache's own threads and the session waits for the future, the way
+ * it waits for its deliveries. Any number of sessions asking for the same host while its lookup is running share
+ * that one lookup.
+ * <p>Answers are cached for their own TTL: a host that resolved for the positive TTL, one that didn't for the
+ * negative TTL. The cache holds a fixed number of hosts and drops the least recently used one when full.
+ * A caller that doesn't get an answer by the deadline gets a TimeoutException instead, but the lookup runs on
+ * and its answer is still cached for the next one to ask.</p>
+ * <p>Only so many lookups wait for a thread. When the resolver stalls and they pile up, a lookup that would have
+ * to wait fails at once with a TimeoutException, as if its deadline had passed, and nothing is cached for it.</p>
+ */
+class ResolverCache {
+
+    /**
+     * A cached answer
+     */
+    private static class Entry {
+        final InetAddress address; // null if the host doesn't exist
+        final long expires;
+
+        Entry(InetAddress _address, long _expires) {
+            address = _address;
+            expires = _expires;
+        }
+    }
+
+    private final DomainResolver resolver;
+    private final long positiveTtlMsec;
+    private final long negativeTtlMsec;
+    private final long timeoutMsec;
+    private final LinkedHashMap <String, Entry> cache;
+    private final HashMap <String, CompletableFuture <InetAddress>> inFlight = new HashMap <String, CompletableFuture <InetAddress>> ();
+    private final ThreadPoolExecutor lookups;
+
+
+    /**
+     * @param _resolver does the actual lookups
+     * @param _positiveTtlMsec how long a host that resolved is remembered
+     * @param _negativeTtlMsec how long a host that didn't resolve is remembered
+     * @param _maxEntries the most hosts remembered at once
+     * @param _timeoutMsec how long a caller waits for an answer. 0 or less waits as long as the lookup takes
+     * @param _threads number of lookups that can run at once
+     * @param _queueSize number of lookups that can wait for a thread
+     */
+    ResolverCache(DomainResolver _resolver, long _positiveTtlMsec, long _negativeTtlMsec, final int _maxEntries, long _timeoutMsec, int _threads,
+            int _queueSize) {
+        resolver = _resolver;
+        positiveTtlMsec = _positiveTtlMsec;
+        negativeTtlMsec = _negativeTtlMsec;
+        timeoutMsec = _timeoutMsec;
+        // in access order, so the eldest entry is the least recently used one
+        cache = new LinkedHashMap <String, Entry> (16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(Map.Entry <String, Entry> _eldest) {
+                return size() > _maxEntries;
+            }
+        };
+        lookups = new ThreadPoolExecutor(Math.max(1, _threads), Math.max(1, _threads), 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue <Runnable> (Math.max(1, _queueSize)), new ThreadFactory() {
+                    private int count = 0;
+                    public synchronized Thread newThread(Runnable _r) {
+                        Thread t = new Thread(_r, "lmtp_dns_"+(count++));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+
+    /**
+     * Look up a host
+     * @param _host the host name, lowercase
+     * @return a future for its address. It fails with an UnknownHostException if the host doesn't exist, or with a
+     * TimeoutException if there was no answer within the deadline
+     */
+    CompletableFuture <InetAddress> lookup(final String _host) {
+        final CompletableFuture <InetAddress> f;
+        boolean start = false;
+        synchronized (this) {
+            Entry e = cache.get(_host);
+            if ((e != null) && (e.expires > System.currentTimeMillis())) {
+                if (e.address != null)
+                    return CompletableFuture.completedFuture(e.address);
+                return CompletableFuture.failedFuture(new UnknownHostException(_host));
+            }
+            CompletableFuture <InetAddress> running = inFlight.get(_host);
+            if (running == null) {
+                running = new CompletableFuture <InetAddress> ();
+                inFlight.put(_host, running);
+                start = true;
+            }
+            f = running;
+        }
+
+        if (start) {
+            try {
+                lookups.execute(new Runnable() {
+                    public void run() {
+                        resolve(_host, f);
+                    }
+                });
+            }
+            catch (RejectedExecutionException ree) {
+                synchronized (this) {
+                    inFlight.remove(_host);
+                }
+                // the queue is full, or the cache is shut down. the host may well be fine, so this is a try-again-later
+                f.completeExceptionally(new TimeoutException(_host+" (could not start the lookup)"));
+            }
+        }
+        // each caller gets its own copy, so one timing out doesn't fail the lookup for the others
+        if (timeoutMsec > 0)
+            return f.copy().orTimeout(timeoutMsec, TimeUnit.MILLISECONDS);
+        return f.copy();
+    }
+
+
+    /**
+     * Stop the lookup threads. Lookups still running are interrupted, and new ones fail at once
+     */
+    void shutdown() {
+        lookups.shutdownNow();
+    }
+
+
+    /**
+     * Run on a lookup thread: ask the resolver, cache the answer and hand it to everyone waiting
+     */
+    private void resolve(String _host, CompletableFuture <InetAddress> _f) {
+        InetAddress address = null;
+        Exception failure = null;
+        try {
+            address = resolver.resolve(_host);
+        }
+        catch (Exception e) {
+            // a malformed address literal is as unknown as a host that doesn't exist
+            failure = e;
+        }
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            cache.put(_host, new Entry(address, now + ((address != null) ? positiveTtlMsec : negativeTtlMsec)));
+            inFlight.remove(_host);
+        }
+        if (address != null)
+            _f.complete(address);
+        else
+            _f.completeExceptionally((failure instanceof UnknownHostException) ? failure : new UnknownHostException(_host+" ("+failure+")"));
+    }
+
+}
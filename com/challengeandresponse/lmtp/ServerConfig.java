@@ -0,0 +1,306 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.Vector;
+
+import jdk.net.UnixDomainPrincipal;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * The settings a running server can change without being restarted: who may connect, which domains it takes mail for,
+ * the name it answers with and the per-session limits. A ServerConfig never changes once it's made. The server holds
+ * the current one and swaps in a whole new one to reconfigure (LMTP.reconfigure(), or by editing LMTP.CONFIG_FILE),
+ * so nothing that reads it needs a lock: the acceptor looks at the current one for every connection, and each session
+ * takes the current one when it starts and again at every transaction boundary (after a RSET or a delivery), so a
+ * transaction runs start to finish under one set of rules.
+ * <p>The rest of the settings (SOCKET_NUM, ENGINE, the thread and queue sizes) are only read when the server starts.</p>
+ * <p>A configuration file is a Properties file whose keys are the names of the settings below. Any key that's left out
+ * keeps the value the server was started with. APPROVED_HOSTS, DOMAINS_SERVED and APPROVED_PEERS are lists separated by commas or white space:</p>
+ * <pre>
+ * MY_HOST = mail.example.com
+ * APPROVED_HOSTS = 127.0.0.1, 10.0.0.0/8
+ * DOMAINS_SERVED = example.com, .example.org
+ * MAX_RECIPIENTS = 50
+ * APPROVED_PEERS = postfix, @mail
+ * </pre>
+ */
+public final class ServerConfig {
+
+    /** see LMTP.MY_HOST */
+    public final String		myHost;
+    /** see LMTP.INACTIVITY_TIMEOUT_MSEC */
+    public final long			inactivityTimeoutMsec;
+    /** see LMTP.MAX_ERRORS_BEFORE_DISCONNECT */
+    public final int			maxErrorsBeforeDisconnect;
+    /** see LMTP.MAX_NOOPS_BEFORE_DISCONNECT */
+    public final int			maxNoopsBeforeDisconnect;
+    /** see LMTP.MAX_RSETS_BEFORE_DISCONNECT */
+    public final int			maxRsetsBeforeDisconnect;
+    /** see LMTP.LIVE_NET_LOOKUPS */
+    public final boolean		liveNetLookups;
+    /** see LMTP.MAX_RECIPIENTS */
+    public final int			maxRecipients;
+    /** see LMTP.MAX_MESSAGE_SIZE */
+    public final long			maxMessageSize;
+    /** see LMTP.MAX_LINE_LENGTH */
+    public final int			maxLineLength;
+    /** see LMTP.SPOOL_THRESHOLD_BYTES */
+    public final int			spoolThresholdBytes;
+    /** see LMTP.SPOOL_DIRECTORY. null for the system temp directory */
+    public final File			spoolDirectory;
+
+    /** The capabilities that are advertised to the connecting server, separated by newlines (\n), without a trailing newline */
+    final String				capabilities;
+    /** The same, with STARTTLS, for a server that can do TLS and a session that hasn't started it yet */
+    final String				capabilitiesStartTls;
+    /** the hosts that can connect */
+    final AddressMatcher		approvedHosts;
+    /** the domains mail is accepted for */
+    final DomainIndex			domainsServed;
+    // the users, and the groups (without their @), that can connect over a Unix domain socket. Both empty for anyone
+    private final HashSet <String> approvedPeerUsers = new HashSet <String> ();
+    private final HashSet <String> approvedPeerGroups = new HashSet <String> ();
+    // kept as they were given, for the next snapshot made from this one
+    private final Vector <String> approvedHostsList;
+    private final Vector <String> domainsServedList;
+    private final Vector <String> approvedPeersList;
+
+
+    private ServerConfig(String _myHost, Vector <String> _approvedHosts, Vector <String> _domainsServed,
+            Vector <String> _approvedPeers, long _inactivityTimeoutMsec, int _maxErrors, int _maxNoops, int _maxRsets, boolean _liveNetLookups,
+            int _maxRecipients, long _maxMessageSize, int _maxLineLength, int _spoolThresholdBytes, File _spoolDirectory) {
+        myHost = _myHost;
+        inactivityTimeoutMsec = _inactivityTimeoutMsec;
+        maxErrorsBeforeDisconnect = _maxErrors;
+        maxNoopsBeforeDisconnect = _maxNoops;
+        maxRsetsBeforeDisconnect = _maxRsets;
+        liveNetLookups = _liveNetLookups;
+        maxRecipients = _maxRecipients;
+        maxMessageSize = _maxMessageSize;
+        maxLineLength = _maxLineLength;
+        spoolThresholdBytes = _spoolThresholdBytes;
+        spoolDirectory = _spoolDirectory;
+        approvedHostsList = new Vector <String> (_approvedHosts);
+        domainsServedList = new Vector <String> (_domainsServed);
+        approvedHosts = buildApprovedHostsSet(approvedHostsList);
+        domainsServed = buildDomainsServedSet(domainsServedList, liveNetLookups);
+        approvedPeersList = new Vector <String> (_approvedPeers);
+        for (int i = 0; i < approvedPeersList.size(); i++) {
+            String peer = approvedPeersList.get(i).trim();
+            if (peer.startsWith("@"))
+                approvedPeerGroups.add(peer.substring(1));
+            else if (peer.length() > 0)
+                approvedPeerUsers.add(peer);
+        }
+        capabilities = "250-"+myHost+"\n250-PIPELINING\n250-CHUNKING\n250-BINARYMIME\n250 SIZE"+((maxMessageSize > 0) ? " "+maxMessageSize : "");
+        capabilitiesStartTls = "250-"+myHost+"\n250-PIPELINING\n250-STARTTLS"+capabilities.substring(capabilities.indexOf("\n250-CHUNKING"));
+    }
+
+
+    /**
+     * Make the first configuration of a server, from the LMTP static settings
+     * @param _approvedHosts the hosts that can connect, as for the LMTP constructor
+     * @param _domainsServed the domains mail is accepted for, as for the LMTP constructor
+     */
+    public static ServerConfig fromDefaults(Vector <String> _approvedHosts, Vector <String> _domainsServed) {
+        return new ServerConfig(LMTP.MY_HOST, _approvedHosts, _domainsServed, LMTP.APPROVED_PEERS, LMTP.INACTIVITY_TIMEOUT_MSEC,
+                LMTP.MAX_ERRORS_BEFORE_DISCONNECT, LMTP.MAX_NOOPS_BEFORE_DISCONNECT, LMTP.MAX_RSETS_BEFORE_DISCONNECT,
+                LMTP.LIVE_NET_LOOKUPS, LMTP.MAX_RECIPIENTS, LMTP.MAX_MESSAGE_SIZE, LMTP.MAX_LINE_LENGTH,
+                LMTP.SPOOL_THRESHOLD_BYTES, LMTP.SPOOL_DIRECTORY);
+    }
+
+
+    /**
+     * Make a new configuration from this one, with the settings in _p changed
+     * @param _p settings keyed by name, as in a configuration file
+     * @return the new configuration. This one is unchanged
+     * @throws NumberFormatException if a number setting isn't a number
+     */
+    public ServerConfig with(Properties _p)
+    throws NumberFormatException {
+        return new ServerConfig(
+                _p.getProperty("MY_HOST", myHost).trim(),
+                listProperty(_p, "APPROVED_HOSTS", approvedHostsList),
+                listProperty(_p, "DOMAINS_SERVED", domainsServedList),
+                listProperty(_p, "APPROVED_PEERS", approvedPeersList),
+                longProperty(_p, "INACTIVITY_TIMEOUT_MSEC", inactivityTimeoutMsec),
+                (int) longProperty(_p, "MAX_ERRORS_BEFORE_DISCONNECT", maxErrorsBeforeDisconnect),
+                (int) longProperty(_p, "MAX_NOOPS_BEFORE_DISCONNECT", maxNoopsBeforeDisconnect),
+                (int) longProperty(_p, "MAX_RSETS_BEFORE_DISCONNECT", maxRsetsBeforeDisconnect),
+                Boolean.valueOf(_p.getProperty("LIVE_NET_LOOKUPS", ""+liveNetLookups).trim()).booleanValue(),
+                (int) longProperty(_p, "MAX_RECIPIENTS", maxRecipients),
+                longProperty(_p, "MAX_MESSAGE_SIZE", maxMessageSize),
+                (int) longProperty(_p, "MAX_LINE_LENGTH", maxLineLength),
+                (int) longProperty(_p, "SPOOL_THRESHOLD_BYTES", spoolThresholdBytes),
+                fileProperty(_p, "SPOOL_DIRECTORY", spoolDirectory));
+    }
+
+
+    /**
+     * Make a new configuration from this one, with the settings in a configuration file changed
+     * @param _file a Properties file, see the class description
+     * @return the new configuration. This one is unchanged
+     * @throws IOException if the file can't be read
+     * @throws NumberFormatException if a number setting isn't a number
+     */
+    public ServerConfig with(File _file)
+    throws IOException, NumberFormatException {
+        Properties p = new Properties();
+        InputStream in = new FileInputStream(_file);
+        try {
+            p.load(in);
+        }
+        finally {
+            in.close();
+        }
+        return with(p);
+    }
+
+
+    /**
+     * @return the hosts that can connect, as they were given
+     */
+    public Vector <String> getApprovedHosts() {
+        return new Vector <String> (approvedHostsList);
+    }
+
+    /**
+     * @return the domains mail is accepted for, as they were given
+     */
+    public Vector <String> getDomainsServed() {
+        return new Vector <String> (domainsServedList);
+    }
+
+
+    /**
+     * @return the users (and @groups) that can connect over a Unix domain socket, as they were given
+     */
+    public Vector <String> getApprovedPeers() {
+        return new Vector <String> (approvedPeersList);
+    }
+
+
+    /**
+     * @param _peer the user and group of the process at the other end of a Unix domain socket, or null if they
+     * couldn't be found out
+     * @return true if it may connect: APPROVED_PEERS is empty, or it names the user or (with an @) the group
+     */
+    boolean peerApproved(UnixDomainPrincipal _peer) {
+        if (approvedPeerUsers.isEmpty() && approvedPeerGroups.isEmpty())
+            return true;
+        if (_peer == null)
+            return false;
+        return approvedPeerUsers.contains(_peer.user().getName()) || approvedPeerGroups.contains(_peer.group().getName());
+    }
+
+
+    private static long longProperty(Properties _p, String _key, long _default)
+    throws NumberFormatException {
+        String value = _p.getProperty(_key);
+        if (value == null)
+            return _default;
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException nfe) {
+            throw new NumberFormatException(_key+" is not a number: "+value);
+        }
+    }
+
+    /**
+     * @return the file named by _key, _default if it isn't there, or null if it's there but empty
+     */
+    private static File fileProperty(Properties _p, String _key, File _default) {
+        String value = _p.getProperty(_key);
+        if (value == null)
+            return _default;
+        value = value.trim();
+        return (value.length() > 0) ? new File(value) : null;
+    }
+
+    private static Vector <String> listProperty(Properties _p, String _key, Vector <String> _default) {
+        String value = _p.getProperty(_key);
+        if (value == null)
+            return _default;
+        Vector <String> result = new Vector <String> ();
+        StringTokenizer st = new StringTokenizer(value, ", \t\r\n");
+        while (st.hasMoreTokens())
+            result.add(st.nextToken());
+        return result;
+    }
+
+
+    /**
+     * Convert a vector of domain names into a DomainIndex of the domains for which this server accepts mail (user@domain).
+     * An entry can be a domain (example.com), the domains under one (*.example.com), or a domain and the domains under it (.example.com).
+     * If _liveNetLookups is true, the names are checked before they're added and invalid names are skipped. Only the domain
+     * itself is looked up for the *. and . forms; the hosts under it can't all be checked in advance.
+     * @param _domains a Vector of the domain names to add to the list
+     * @param _liveNetLookups true to check the names
+     * @return a DomainIndex of the domains containing all names if _liveNetLookups is false, or just the valid names, if it's true
+     */
+    private static DomainIndex buildDomainsServedSet(Vector <String> _domains, boolean _liveNetLookups) {
+        DomainIndex result = new DomainIndex();
+        String oneDomain = null; // the domain being worked on
+        Iterator <String> i = _domains.iterator();
+        while (i.hasNext()) {
+            oneDomain = (i.next()).trim().toLowerCase();
+            try {
+                if (_liveNetLookups) // only test net address of this domain if we're supposed to
+                		// this will thrown an exception if the host lookup fails
+                    Utils.parseInetAddress(oneDomain.startsWith("*.") ? oneDomain.substring(2) : oneDomain.startsWith(".") ? oneDomain.substring(1) : oneDomain);
+                result.add(oneDomain);
+            }
+            catch (UnknownHostException uhe) {
+                Log.warn("Could not add domain: {} to domains served list. Unknown host.", oneDomain);
+            }
+        }
+        return result;
+    }
+
+
+    /**
+     * Converts a Vector of IP addresses and host names into an AddressMatcher, a prefix trie of approved address ranges
+     * that every accepted connection is checked against. In the course of parsing the addresses, the names must be looked up
+     * (this behavior can't be disabled). However these checks will mostly fail if the machine on which
+     * the code is running can't reach the Internet.
+     *
+     * @param _hostlist A Vector of host names or addresses (IPV4 or IPV6) to add to the list of hosts that are allowed to connect to this server.
+     * Ranges in CIDR form (10.0.0.0/8, 2001:db8::/32) are taken as well.
+     * @return an AddressMatcher holding all the valid hosts and ranges from _hostlist
+     */
+    private static AddressMatcher buildApprovedHostsSet(Vector <String> _hostlist) {
+        AddressMatcher result = new AddressMatcher();
+        String oneHost = null; // the host being processed
+
+        Iterator <String> i = _hostlist.iterator();
+        while (i.hasNext()) {
+            oneHost = ((i.next())).trim();
+            try {
+                result.add(oneHost);
+            }
+            catch (NumberFormatException nfe) {
+                // this error would occur on startup, try keep going if possible
+                Log.warn("Could not add address or host: {} to approved hosts list. Invalid prefix length after the /", oneHost);
+            }
+            catch (UnknownHostException uhe) {
+                // this error would occur on startup, try keep going if possible
+                Log.warn("Could not add address or host: {} to approved hosts list. Unknown host.", oneHost);
+            }
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,88 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Appends the SessionTrace of every session that ends to a trace file, for LMTP.RECORD_SESSIONS. The writing is
+ * done on a thread of its own, so a session ending on an I/O loop doesn't wait for the disk.
+ */
+class SessionRecorder {
+
+    private final File file;
+    private final DataOutputStream out;
+    private final ThreadPoolExecutor writer;
+
+
+    /**
+     * @param _file the trace file. Sessions are appended to it if it already exists
+     * @throws IOException if it can't be opened
+     */
+    SessionRecorder(File _file)
+    throws IOException {
+        file = _file;
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_file, true)));
+        writer = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue <Runnable> (),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable _r) {
+                        Thread t = new Thread(_r, "lmtp_recorder");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+
+    /**
+     * Write a session that has ended, soon
+     */
+    void record(final SessionTrace _trace) {
+        try {
+            writer.execute(new Runnable() {
+                public void run() {
+                    try {
+                        _trace.writeTo(out);
+                        out.flush();
+                    }
+                    catch (IOException ioe) {
+                        Log.warn("Could not record session to {}: {}", file, ioe.getMessage());
+                    }
+                }
+            });
+        }
+        catch (RuntimeException re) {
+            // shut down: the engine is stopping, and this session missed the boat
+        }
+    }
+
+
+    /**
+     * Write the sessions still waiting and close the file
+     */
+    void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ie) { }
+        try {
+            out.close();
+        }
+        catch (IOException ioe) {
+            Log.warn("Could not close session trace {}: {}", file, ioe.getMessage());
+        }
+    }
+
+}
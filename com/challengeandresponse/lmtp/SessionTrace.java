@@ -0,0 +1,200 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * What a client sent in one session, and when: recorded by the server when LMTP.RECORD_SESSIONS is set, and played
+ * back against a server by bench.Replay.
+ * <p>Commands are kept as they were sent. Message bodies are not: a line of DATA is kept as its length, and a BDAT
+ * chunk as its size, so a trace of real traffic holds its shape and timing but none of the mail. Replay sends
+ * filler of the same sizes.</p>
+ * <p>A trace file is the sessions one after the other, each written whole when it ends:
+ * 'S', the start time (long, milliseconds), the number of events (int), then for each event its type (LINE,
+ * DATA_LINE or CHUNK, a byte), when it arrived (long, nanoseconds after the start), its length (int) and, for a
+ * LINE, the bytes of the line without its line ending.</p>
+ */
+public class SessionTrace {
+
+    /** Event: a command line, or the "." ending a DATA, kept as sent */
+    public static final byte LINE = 'L';
+    /** Event: a line of a message body sent with DATA, kept as its length */
+    public static final byte DATA_LINE = 'D';
+    /** Event: bytes of a BDAT chunk, kept as their number */
+    public static final byte CHUNK = 'C';
+
+    private static final byte SESSION = 'S';
+    private static final byte[] NO_BYTES = new byte[0];
+
+    private final long startMillis;
+    private final long startNanos;
+    private int count = 0;
+    private byte[] types = new byte[64];
+    private long[] times = new long[64];
+    private int[] lengths = new int[64];
+    private byte[][] lines = new byte[64][];
+
+
+    /**
+     * An empty trace, of a session starting now
+     */
+    SessionTrace() {
+        startMillis = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+    }
+
+    private SessionTrace(long _startMillis, int _capacity) {
+        startMillis = _startMillis;
+        startNanos = 0;
+        types = new byte[Math.max(1, _capacity)];
+        times = new long[types.length];
+        lengths = new int[types.length];
+        lines = new byte[types.length][];
+    }
+
+
+    /**
+     * Record a command line, as it arrives
+     */
+    void line(byte[] _buf, int _off, int _len) {
+        add(LINE, System.nanoTime() - startNanos, _len, Arrays.copyOfRange(_buf, _off, _off + _len));
+    }
+
+    /**
+     * Record a line of DATA, as it arrives
+     */
+    void dataLine(int _len) {
+        add(DATA_LINE, System.nanoTime() - startNanos, _len, NO_BYTES);
+    }
+
+    /**
+     * Record bytes of a BDAT chunk, as they arrive
+     */
+    void chunk(long _n) {
+        add(CHUNK, System.nanoTime() - startNanos, (int) _n, NO_BYTES);
+    }
+
+    private void add(byte _type, long _nanos, int _length, byte[] _line) {
+        if (count == types.length) {
+            int n = count * 2;
+            types = Arrays.copyOf(types, n);
+            times = Arrays.copyOf(times, n);
+            lengths = Arrays.copyOf(lengths, n);
+            lines = Arrays.copyOf(lines, n);
+        }
+        types[count] = _type;
+        times[count] = _nanos;
+        lengths[count] = _length;
+        lines[count] = _line;
+        count++;
+    }
+
+
+    /**
+     * @return when the session started, in milliseconds since the epoch
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * @return the number of events
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the type of event _i: LINE, DATA_LINE or CHUNK
+     */
+    public byte type(int _i) {
+        return types[_i];
+    }
+
+    /**
+     * @return when event _i arrived, in nanoseconds after the session started
+     */
+    public long nanos(int _i) {
+        return times[_i];
+    }
+
+    /**
+     * @return the length of the line, or the number of bytes of the chunk, of event _i
+     */
+    public int length(int _i) {
+        return lengths[_i];
+    }
+
+    /**
+     * @return the bytes of a LINE event, without the line ending. Empty for the other events
+     */
+    public byte[] line(int _i) {
+        return lines[_i];
+    }
+
+
+    /**
+     * Write the whole session
+     */
+    public void writeTo(DataOutputStream _out)
+    throws IOException {
+        _out.writeByte(SESSION);
+        _out.writeLong(startMillis);
+        _out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            _out.writeByte(types[i]);
+            _out.writeLong(times[i]);
+            _out.writeInt(lengths[i]);
+            if (types[i] == LINE)
+                _out.write(lines[i], 0, lengths[i]);
+        }
+    }
+
+
+    /**
+     * Read the next session from a trace file
+     * @return the session, or null at the end of the file
+     * @throws IOException if the file can't be read, or isn't a trace file
+     */
+    public static SessionTrace readFrom(DataInputStream _in)
+    throws IOException {
+        int marker = _in.read();
+        if (marker < 0)
+            return null;
+        if (marker != SESSION)
+            throw new IOException("not a session trace");
+        long start = _in.readLong();
+        int n = _in.readInt();
+        if (n < 0)
+            throw new IOException("bad event count in session trace: "+n);
+        SessionTrace result = new SessionTrace(start, n);
+        try {
+            for (int i = 0; i < n; i++) {
+                byte type = _in.readByte();
+                long nanos = _in.readLong();
+                int length = _in.readInt();
+                byte[] line = NO_BYTES;
+                if (type == LINE) {
+                    line = new byte[length];
+                    _in.readFully(line);
+                }
+                else if ((type != DATA_LINE) && (type != CHUNK))
+                    throw new IOException("bad event type in session trace: "+type);
+                result.add(type, nanos, length, line);
+            }
+        }
+        catch (EOFException eofe) {
+            throw new IOException("session trace cut short");
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.challengeandresponse.lmtp;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * A DomainResolver that answers from a table in memory, for testing and benchmarking without DNS. Every host
+ * that was add()ed resolves, anything else is unknown, and every answer can be made to take a while, to see how
+ * the server copes with a slow resolver.
+ */
+public class StaticResolver implements DomainResolver {
+
+    private final ConcurrentHashMap <String, InetAddress> hosts = new ConcurrentHashMap <String, InetAddress> ();
+    private volatile long delayMsec = 0;
+
+
+    /**
+     * Make a host resolve to an address
+     * @param _host the host name, lowercase
+     * @param _address its address
+     */
+    public void add(String _host, InetAddress _address) {
+        hosts.put(_host, _address);
+    }
+
+    /**
+     * Make a host resolve, to the loopback address
+     * @param _host the host name, lowercase
+     */
+    public void add(String _host) {
+        add(_host, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * @param _delayMsec how long every lookup takes before it answers. 0 answers at once
+     */
+    public void setDelay(long _delayMsec) {
+        delayMsec = _delayMsec;
+    }
+
+
+    public InetAddress resolve(String _host)
+    throws UnknownHostException {
+        if (delayMsec > 0) {
+            try {
+                Thread.sleep(delayMsec);
+            }
+            catch (InterruptedException ie) {
+                throw new UnknownHostException(_host+" (interrupted)");
+            }
+        }
+        InetAddress result = hosts.get(_host);
+        if (result == null)
+            throw new UnknownHostException(_host);
+        return result;
+    }
+
+}
@@ -0,0 +1,432 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Vector;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * The plaintext side of a connection after STARTTLS: an SSLEngine between the session and the TLS records going
+ * over the connection. The handshake is driven by reads and writes as they come, so the same class works on a
+ * non-blocking SocketChannel (a read or write that can't go on returns 0, and the loop tries again when the channel
+ * is ready) and on a blocking socket's streams, wrapped as channels. The slow steps of the handshake run on the
+ * TlsContext's task threads; a non-blocking channel does nothing while they run, see tasksRunning().
+ * <p>The three buffers (TLS records read, plaintext unwrapped, TLS records waiting to be written) are leased from
+ * the TlsContext and handed back by close().</p>
+ */
+class TlsChannel implements ByteChannel, GatheringByteChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final TlsContext context;
+    private final SSLEngine ssl;
+    private final ReadableByteChannel netIn;
+    private final WritableByteChannel netOut;
+    private final int clientID;
+    /** run when the handshake steps are done, for a non-blocking channel. null for a blocking one, which waits */
+    private final Runnable tasksDone;
+
+    // all three are kept ready to be filled: the data runs from 0 to the position
+    private ByteBuffer inRecords; // read from netIn, not yet unwrapped
+    private ByteBuffer plaintext; // unwrapped, not yet read
+    private ByteBuffer outRecords; // wrapped, not yet written to netOut
+
+    private boolean handshaking = true;
+    private final long handshakeStartNanos = System.nanoTime();
+    private final long handshakeStartMillis = System.currentTimeMillis();
+    private boolean open = true;
+    /** set while the handshake steps run on a task thread, for a non-blocking channel */
+    private volatile boolean tasksRunning = false;
+    private SSLException failure = null; // TLS failed, for good. every read after that fails the same way
+
+
+    TlsChannel(TlsContext _context, SSLEngine _ssl, ReadableByteChannel _netIn, WritableByteChannel _netOut, int _clientID, Runnable _tasksDone) {
+        context = _context;
+        ssl = _ssl;
+        netIn = _netIn;
+        netOut = _netOut;
+        clientID = _clientID;
+        tasksDone = _tasksDone;
+        inRecords = context.leasePacketBuffer();
+        plaintext = context.leaseApplicationBuffer();
+        outRecords = context.leasePacketBuffer();
+    }
+
+
+    /**
+     * Read plaintext, unwrapping the records that have come in and reading more as needed. Handshake records are
+     * answered along the way.
+     * @return the number of bytes read, 0 if a non-blocking channel has nothing more for now or is waiting for the
+     * handshake steps, -1 at the end of the stream or once the client has closed TLS
+     */
+    public int read(ByteBuffer _dst)
+    throws IOException {
+        if (! open)
+            throw new ClosedChannelException();
+        if (failure != null)
+            throw failure;
+        if ((! _dst.hasRemaining()) || tasksRunning)
+            return 0;
+        if (plaintext.position() > 0)
+            return take(_dst);
+        try {
+            return unwrap(_dst);
+        }
+        catch (SSLException ssle) {
+            failure = ssle;
+            throw ssle;
+        }
+    }
+
+
+    private int unwrap(ByteBuffer _dst)
+    throws IOException {
+        while (true) {
+            SSLEngineResult.HandshakeStatus hs = ssl.getHandshakeStatus();
+            if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                if (! runTasks())
+                    return 0;
+                continue;
+            }
+            if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                wrap(EMPTY);
+                if (! flush())
+                    return 0; // the rest of the handshake goes out when the channel can take it
+                continue;
+            }
+            inRecords.flip();
+            SSLEngineResult r;
+            try {
+                r = ssl.unwrap(inRecords, plaintext);
+            }
+            finally {
+                inRecords.compact();
+            }
+            handshakeStep(r);
+            if (plaintext.position() > 0)
+                return take(_dst);
+            switch (r.getStatus()) {
+            case CLOSED:
+                return -1;
+            case BUFFER_OVERFLOW:
+                // the buffer is empty, so a record must have been bigger than the session said they could be
+                plaintext = grow(plaintext, ssl.getSession().getApplicationBufferSize());
+                continue;
+            case BUFFER_UNDERFLOW:
+                break;
+            default:
+                // a handshake record, or an empty one. there may be more behind it, or something to send or do
+                if (r.bytesConsumed() > 0)
+                    continue;
+                hs = ssl.getHandshakeStatus();
+                if ((hs == SSLEngineResult.HandshakeStatus.NEED_TASK) || (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP))
+                    continue;
+                break;
+            }
+            // the rest of a record is still to come
+            if (! inRecords.hasRemaining())
+                inRecords = grow(inRecords, ssl.getSession().getPacketBufferSize());
+            int n = netIn.read(inRecords);
+            if (n < 0)
+                return -1;
+            if (n == 0)
+                return 0;
+        }
+    }
+
+
+    /**
+     * Move unwrapped plaintext to _dst
+     */
+    private int take(ByteBuffer _dst) {
+        plaintext.flip();
+        int n = Math.min(plaintext.remaining(), _dst.remaining());
+        int limit = plaintext.limit();
+        plaintext.limit(plaintext.position() + n);
+        _dst.put(plaintext);
+        plaintext.limit(limit);
+        plaintext.compact();
+        return n;
+    }
+
+
+    public int write(ByteBuffer _src)
+    throws IOException {
+        return (int) write(new ByteBuffer[] { _src }, 0, 1);
+    }
+
+    public long write(ByteBuffer[] _srcs)
+    throws IOException {
+        return write(_srcs, 0, _srcs.length);
+    }
+
+    /**
+     * Wrap plaintext into records and write them, as much as the channel will take. Several replies go out in as
+     * few records as they fit in.
+     * @return the number of plaintext bytes taken, which is less than all of them if a non-blocking channel filled up
+     * or is waiting for the handshake steps
+     * @throws IOException if the handshake isn't finished: there's nothing to write with yet
+     */
+    public long write(ByteBuffer[] _srcs, int _offset, int _length)
+    throws IOException {
+        if (! open)
+            throw new ClosedChannelException();
+        long taken = 0;
+        if (tasksRunning || (! flush()))
+            return 0;
+        while (remaining(_srcs, _offset, _length) > 0) {
+            if (ssl.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                if (! runTasks())
+                    break;
+                continue;
+            }
+            SSLEngineResult r = ssl.wrap(_srcs, _offset, _length, outRecords);
+            handshakeStep(r);
+            taken += r.bytesConsumed();
+            if (r.getStatus() == SSLEngineResult.Status.CLOSED)
+                throw new IOException("TLS closed");
+            if (r.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                if (outRecords.position() == 0)
+                    outRecords = grow(outRecords, ssl.getSession().getPacketBufferSize());
+                else if (! flush())
+                    break;
+                continue;
+            }
+            if ((r.bytesConsumed() == 0) && (r.bytesProduced() == 0))
+                throw new IOException("TLS handshake not finished");
+            if (! flush())
+                break;
+        }
+        return taken;
+    }
+
+    private static long remaining(ByteBuffer[] _srcs, int _offset, int _length) {
+        long n = 0;
+        for (int i = _offset; i < _offset + _length; i++)
+            n += _srcs[i].remaining();
+        return n;
+    }
+
+
+    /**
+     * Wrap _src, or nothing, to get the handshake's next records into outRecords
+     */
+    private void wrap(ByteBuffer _src)
+    throws IOException {
+        while (true) {
+            SSLEngineResult r = ssl.wrap(_src, outRecords);
+            handshakeStep(r);
+            if (r.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW)
+                return;
+            if (outRecords.position() == 0)
+                outRecords = grow(outRecords, ssl.getSession().getPacketBufferSize());
+            else if (! flush())
+                return;
+        }
+    }
+
+
+    /**
+     * Write the records waiting to go out
+     * @return true if they're all written. Only a non-blocking channel leaves some
+     */
+    boolean flush()
+    throws IOException {
+        if (outRecords.position() == 0)
+            return true;
+        outRecords.flip();
+        try {
+            while (outRecords.hasRemaining()) {
+                if (netOut.write(outRecords) == 0)
+                    break;
+            }
+        }
+        finally {
+            outRecords.compact();
+        }
+        return (outRecords.position() == 0);
+    }
+
+
+    /**
+     * @return true if there are records still to be written, so a non-blocking channel should wait to be writable
+     */
+    boolean hasPendingOutput() {
+        return open && (outRecords.position() > 0);
+    }
+
+    /**
+     * @return true if there are bytes read and not yet handed out: plaintext, or records to unwrap
+     */
+    boolean hasBufferedInput() {
+        return open && ((plaintext.position() > 0) || (inRecords.position() > 0));
+    }
+
+    /**
+     * Forget the records waiting to be written, for a connection that has gone away
+     */
+    void discardOutput() {
+        if (open)
+            outRecords.clear();
+    }
+
+
+    /**
+     * @return true while the handshake steps run on a task thread. Reads and writes do nothing until they're done,
+     * so a non-blocking channel should stop asking to read until then. tasksDone says when
+     */
+    boolean tasksRunning() {
+        return tasksRunning;
+    }
+
+
+    /**
+     * Run the handshake's slow steps (certificate and key work) on the TlsContext's task threads, so they don't hold up
+     * an I/O loop. A blocking channel waits for them; a non-blocking one doesn't, and tasksDone is run when they're done
+     * @return true if they're done, false if they're still running
+     */
+    private boolean runTasks()
+    throws IOException {
+        final Vector <Runnable> steps = new Vector <Runnable> ();
+        Runnable task;
+        while ((task = ssl.getDelegatedTask()) != null)
+            steps.add(task);
+        Runnable all = new Runnable() {
+            public void run() {
+                for (int i = 0; i < steps.size(); i++)
+                    steps.get(i).run();
+            }
+        };
+        if (tasksDone == null) {
+            context.runTasks(all, null);
+            return true;
+        }
+        tasksRunning = true;
+        try {
+            context.runTasks(all, new Runnable() {
+                public void run() {
+                    tasksRunning = false;
+                    tasksDone.run();
+                }
+            });
+        }
+        catch (IOException ioe) {
+            tasksRunning = false;
+            throw ioe;
+        }
+        return false;
+    }
+
+
+    /**
+     * Note the end of the handshake, in the metrics and the log
+     */
+    private void handshakeStep(SSLEngineResult _r) {
+        if ((! handshaking) || (_r.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED))
+            return;
+        handshaking = false;
+        Metrics metrics = context.metrics();
+        metrics.time(Metrics.Phase.TLS_HANDSHAKE, handshakeStartNanos);
+        SSLSession session = ssl.getSession();
+        // a resumed session was made by an earlier handshake
+        boolean resumed = (session.getCreationTime() < handshakeStartMillis);
+        metrics.count(resumed ? Metrics.Counter.TLS_RESUMED : Metrics.Counter.TLS_HANDSHAKES);
+        if (Log.isEnabled(Log.DEBUG))
+            Log.debug("Connection {} TLS started: {} {}", Integer.valueOf(clientID), session.getProtocol()+" "+session.getCipherSuite(),
+                    resumed ? "(resumed)" : "(full handshake)");
+    }
+
+
+    private ByteBuffer grow(ByteBuffer _b, int _atLeast) {
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(_atLeast, _b.capacity() * 2));
+        _b.flip();
+        bigger.put(_b);
+        context.release(_b);
+        return bigger;
+    }
+
+
+    /**
+     * An InputStream of the plaintext, for a LineReader. available() counts what's buffered here as well as what
+     * _raw, the stream the records come from, has, so LineReader.ready() says yes when there's something to work on
+     */
+    InputStream inputStream(final InputStream _raw) {
+        return new InputStream() {
+            public int read()
+            throws IOException {
+                byte[] b = new byte[1];
+                int n = read(b, 0, 1);
+                return (n <= 0) ? -1 : (b[0] & 0xff);
+            }
+
+            public int read(byte[] _b, int _off, int _len)
+            throws IOException {
+                if (_len == 0)
+                    return 0;
+                // blocking, so 0 only comes back for an empty buffer
+                return TlsChannel.this.read(ByteBuffer.wrap(_b, _off, _len));
+            }
+
+            public int available()
+            throws IOException {
+                // the threads engine only finds out about a failure here: its reads swallow exceptions
+                if (failure != null)
+                    throw failure;
+                if (! open)
+                    return 0;
+                return plaintext.position() + inRecords.position() + _raw.available();
+            }
+
+            public void close()
+            throws IOException {
+                TlsChannel.this.close();
+            }
+        };
+    }
+
+
+    public boolean isOpen() {
+        return open;
+    }
+
+
+    /**
+     * Say goodbye to the client with a close_notify, if it can go out at once, and hand the buffers back. The
+     * connection underneath is left for the caller to close.
+     */
+    public void close() {
+        if (! open)
+            return;
+        if (handshaking)
+            context.metrics().count(Metrics.Counter.TLS_FAILED);
+        try {
+            ssl.closeOutbound();
+            wrap(EMPTY);
+            flush();
+        }
+        catch (IOException ioe) {
+            // the connection is going anyway
+        }
+        open = false;
+        context.release(inRecords);
+        context.release(plaintext);
+        context.release(outRecords);
+        inRecords = plaintext = outRecords = null;
+    }
+
+}
@@ -0,0 +1,204 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * The STARTTLS side of an LMTPEngine. There is one SSLContext for all the engine's listeners, so they share its
+ * server session cache and its session ticket keys: an MTA that reconnects, to any of them, resumes its TLS session
+ * instead of doing a full handshake. Also keeps the network and application buffers of TlsChannels that have closed,
+ * for the next ones, so a busy server isn't allocating 16 KB buffers for every connection, and runs the slow steps
+ * of the handshakes on TLS_TASK_THREADS threads of its own, which the engine shuts down when it stops.
+ */
+class TlsContext {
+
+    private final SSLContext context;
+    private final Metrics metrics;
+    /** the size of a buffer that can hold any TLS record */
+    final int packetSize;
+    /** the size of a buffer that can hold the plaintext of any TLS record */
+    final int applicationSize;
+    private final BufferPool buffers;
+    /** runs the handshakes' delegated tasks */
+    private final ThreadPoolExecutor tasks;
+
+
+    private TlsContext(SSLContext _context, Metrics _metrics) {
+        context = _context;
+        metrics = _metrics;
+        SSLSessionContext sessions = context.getServerSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(LMTP.TLS_SESSION_CACHE_SIZE);
+            sessions.setSessionTimeout(LMTP.TLS_SESSION_TIMEOUT_SEC);
+        }
+        SSLEngine sample = context.createSSLEngine();
+        packetSize = sample.getSession().getPacketBufferSize();
+        applicationSize = sample.getSession().getApplicationBufferSize();
+        buffers = new BufferPool(new int[] { packetSize, applicationSize }, (long) LMTP.TLS_BUFFER_POOL_SIZE * (packetSize + applicationSize),
+                metrics, Metrics.Counter.TLS_BUFFERS_REUSED, Metrics.Counter.TLS_BUFFERS_ALLOCATED);
+        // as many as there are handshakes under way can be waiting, and no more
+        tasks = new ThreadPoolExecutor(Math.max(1, LMTP.TLS_TASK_THREADS), Math.max(1, LMTP.TLS_TASK_THREADS), 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue <Runnable> (), new ThreadFactory() {
+                    private int count = 0;
+                    public synchronized Thread newThread(Runnable _r) {
+                        Thread t = new Thread(_r, "lmtp_tls_"+(count++));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+
+    /**
+     * Make the engine's TLS context from LMTP.TLS_CONTEXT, or from the key store in LMTP.TLS_KEYSTORE
+     * @return the context, or null if TLS isn't set up or the key store couldn't be loaded. Then STARTTLS isn't offered
+     */
+    static TlsContext open(Metrics _metrics) {
+        if (LMTP.TLS_CONTEXT != null)
+            return new TlsContext(LMTP.TLS_CONTEXT, _metrics);
+        if (LMTP.TLS_KEYSTORE == null)
+            return null;
+        try {
+            char[] password = (LMTP.TLS_KEYSTORE_PASSWORD != null) ? LMTP.TLS_KEYSTORE_PASSWORD.toCharArray() : new char[0];
+            KeyStore keys = KeyStore.getInstance(LMTP.TLS_KEYSTORE_TYPE);
+            InputStream in = new FileInputStream(LMTP.TLS_KEYSTORE);
+            try {
+                keys.load(in, password);
+            }
+            finally {
+                in.close();
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keys, password);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), null, null);
+            return new TlsContext(context, _metrics);
+        }
+        catch (IOException ioe) {
+            Log.error("Could not load the TLS key store {}. STARTTLS is off. {}", LMTP.TLS_KEYSTORE, ioe.getMessage());
+        }
+        catch (GeneralSecurityException gse) {
+            Log.error("Could not set up TLS from {}. STARTTLS is off. {}", LMTP.TLS_KEYSTORE, gse.getMessage());
+        }
+        return null;
+    }
+
+
+    /**
+     * Start the server side of a TLS handshake on a connection that has just said yes to a STARTTLS
+     * @param _netIn where the TLS records come from
+     * @param _netOut where they go
+     * @param _clientID the connection, for the log
+     * @param _tasksDone for a non-blocking channel, run on a task thread when the handshake steps it was waiting for
+     * are done, so the connection can carry on with it. null for a blocking one, whose reads and writes wait for them
+     */
+    TlsChannel open(ReadableByteChannel _netIn, WritableByteChannel _netOut, int _clientID, Runnable _tasksDone)
+    throws IOException {
+        SSLEngine ssl = context.createSSLEngine();
+        ssl.setUseClientMode(false);
+        if (LMTP.TLS_PROTOCOLS != null)
+            ssl.setEnabledProtocols(LMTP.TLS_PROTOCOLS);
+        ssl.beginHandshake();
+        metrics.count(Metrics.Counter.TLS_STARTED);
+        return new TlsChannel(this, ssl, _netIn, _netOut, _clientID, _tasksDone);
+    }
+
+
+    /**
+     * Run a handshake's delegated tasks on the task threads
+     * @param _steps the tasks
+     * @param _done run on the task thread once they're done. null to wait for them here instead
+     * @throws SSLException if they can't be run because the engine has stopped, or waiting for them failed
+     */
+    void runTasks(final Runnable _steps, final Runnable _done)
+    throws SSLException {
+        try {
+            if (_done != null) {
+                tasks.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            _steps.run();
+                        }
+                        finally {
+                            _done.run();
+                        }
+                    }
+                });
+                return;
+            }
+            tasks.submit(_steps).get();
+        }
+        catch (RejectedExecutionException ree) {
+            throw new SSLException("TLS stopped");
+        }
+        catch (ExecutionException ee) {
+            throw new SSLException("TLS handshake step failed", ee.getCause());
+        }
+        catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SSLException("interrupted during the TLS handshake");
+        }
+    }
+
+
+    /**
+     * Stop the task threads. Handshakes still under way fail
+     */
+    void shutdown() {
+        tasks.shutdownNow();
+    }
+
+
+    Metrics metrics() {
+        return metrics;
+    }
+
+
+    /**
+     * @return an empty buffer of packetSize, from the pool if there's one there
+     */
+    ByteBuffer leasePacketBuffer() {
+        return ByteBuffer.wrap(buffers.lease(packetSize), 0, packetSize);
+    }
+
+    /**
+     * @return an empty buffer of applicationSize, from the pool if there's one there
+     */
+    ByteBuffer leaseApplicationBuffer() {
+        return ByteBuffer.wrap(buffers.lease(applicationSize), 0, applicationSize);
+    }
+
+
+    /**
+     * Give a buffer back, to be leased again. One that was grown past its size class, or that would take the pool
+     * past TLS_BUFFER_POOL_SIZE, is left to the garbage collector
+     */
+    void release(ByteBuffer _b) {
+        if (_b != null)
+            buffers.release(_b.array());
+    }
+
+}
@@ -5,8 +5,6 @@ import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.StringTokenizer;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /*
  * Created on Aug 1, 2005
@@ -71,47 +69,13 @@ public class Utils {
      * This expects a <> wrapped email address. It will return the parts of the address, parsed, if there was one or null if an email address could not be recognized 
      * @param _fullEmailAddress an email address in the form "<user+command@host.tld>" including the &lt; and &gt; brackets around it. the "+command" part is optional of course
      * @return a String[] array containing in order: username+command, the username, the command, the host name, the full address less <> brackets and lowercased. [2] the commandw ill be NULL if there was no command (there is not usually a command)
+     * @see ParsedAddress, which does the parsing and can be reused instead of allocating the array
      */
     public static String[] parseEmailAddress(String _fullEmailAddress) {
-        String[] result = new String[5];
-        
-        _fullEmailAddress=_fullEmailAddress.trim().toLowerCase();
-        
-        // parses <username+command@host> into username+command, host
-        final Pattern EMAIL_ADDRESS_PATTERN = Pattern.compile(".*?<(.*?)@(.*?)>.*");
-        // parses username+command into username, command
-        final Pattern EMAIL_COMMAND_PATTERN = Pattern.compile("(.*?)\\+(.*?)");
-        
-        final Pattern EMAIL_AROUND_ATSIGN = Pattern.compile(".*?(<|\\s)([a-zA-Z_0-9\\+\\-\\.]*?@[a-zA-Z_0-9\\.]*?)(\\s|>)");
-
-        Matcher m = EMAIL_ADDRESS_PATTERN.matcher(_fullEmailAddress);
-        if (m.matches()) {
-            result[0] = m.group(1);
-            result[3] = m.group(2);
-
-            Matcher m2 = EMAIL_COMMAND_PATTERN.matcher(result[0]);
-            if (m2.matches()) {
-                result[1] = m2.group(1);
-                result[2] = m2.group(2);
-            }
-            else { // no plus sign, so just copy over what's needed and null out the command as there was none
-                result[1] = result[0];
-                result[2] = null;
-            }
-            
-            // finally set the "whole" address less brackets, if any
-            Matcher mm = EMAIL_AROUND_ATSIGN.matcher(_fullEmailAddress);
-            if (mm.find()) {
-                result[4] = mm.group(2);
-            }
-            else
-                result = null;
-        }
-        else result = null;
-        
-        
-        
-        return result;
+        ParsedAddress pa = new ParsedAddress();
+        if (! pa.parse(_fullEmailAddress))
+            return null;
+        return pa.toArray();
     }
     
     
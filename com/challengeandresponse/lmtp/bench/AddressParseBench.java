@@ -0,0 +1,109 @@
+package com.challengeandresponse.lmtp.bench;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.challengeandresponse.lmtp.ParsedAddress;
+import com.challengeandresponse.lmtp.Utils;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Times the hand-written address parser against the regular expression version it replaced (kept here as
+ * regexParse(), exactly as it was in Utils): the old regex parse, Utils.parseEmailAddress() as it is now, and a
+ * reused ParsedAddress as the session uses it. That the two give the same answers is ParsedAddressTest's job.
+ * <p>Usage: AddressParseBench [iterations]. Default 1000000.</p>
+ */
+public class AddressParseBench {
+
+    private static final String[] SAMPLES = {
+        "FROM:<jim@agentzero.com>",
+        "TO:<Jim+Electric@AgentZero.com>",
+        "FROM:<bounce-12345-user=example.org@lists.example.net> SIZE=20480",
+        "<postmaster@mail.example.com>",
+        "cvhaos <jim+electric@agentzero.com>",
+        "TO:jim@agentzero.com",
+        "FROM:<>",
+        "TO:<a b@c.d>",
+    };
+
+
+    /**
+     * Utils.parseEmailAddress() as it was, with its patterns compiled on every call
+     */
+    static String[] regexParse(String _fullEmailAddress) {
+        String[] result = new String[5];
+
+        _fullEmailAddress=_fullEmailAddress.trim().toLowerCase();
+
+        final Pattern EMAIL_ADDRESS_PATTERN = Pattern.compile(".*?<(.*?)@(.*?)>.*");
+        final Pattern EMAIL_COMMAND_PATTERN = Pattern.compile("(.*?)\\+(.*?)");
+        final Pattern EMAIL_AROUND_ATSIGN = Pattern.compile(".*?(<|\\s)([a-zA-Z_0-9\\+\\-\\.]*?@[a-zA-Z_0-9\\.]*?)(\\s|>)");
+
+        Matcher m = EMAIL_ADDRESS_PATTERN.matcher(_fullEmailAddress);
+        if (m.matches()) {
+            result[0] = m.group(1);
+            result[3] = m.group(2);
+
+            Matcher m2 = EMAIL_COMMAND_PATTERN.matcher(result[0]);
+            if (m2.matches()) {
+                result[1] = m2.group(1);
+                result[2] = m2.group(2);
+            }
+            else {
+                result[1] = result[0];
+                result[2] = null;
+            }
+
+            Matcher mm = EMAIL_AROUND_ATSIGN.matcher(_fullEmailAddress);
+            if (mm.find()) {
+                result[4] = mm.group(2);
+            }
+            else
+                result = null;
+        }
+        else result = null;
+
+        return result;
+    }
+
+
+    public static void main(String[] args) {
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+
+        ParsedAddress reused = new ParsedAddress();
+        long[] ns = new long[3];
+        // two rounds: the first one warms up the JIT, the second one is reported
+        for (int round = 0; round < 2; round++) {
+            int found = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                if (regexParse(SAMPLES[i % SAMPLES.length]) != null)
+                    found++;
+            ns[0] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                if (Utils.parseEmailAddress(SAMPLES[i % SAMPLES.length]) != null)
+                    found++;
+            ns[1] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                if (reused.parse(SAMPLES[i % SAMPLES.length]))
+                    found++;
+            ns[2] = System.nanoTime() - start;
+            // use the count, so the loops can't be optimized away
+            if (found == 0)
+                System.out.println("nothing parsed?");
+        }
+
+        System.out.println(String.format("regex (old Utils)           %8.1f ns/op", (double) ns[0] / iterations));
+        System.out.println(String.format("Utils.parseEmailAddress()   %8.1f ns/op  %5.1fx", (double) ns[1] / iterations, (double) ns[0] / ns[1]));
+        System.out.println(String.format("reused ParsedAddress        %8.1f ns/op  %5.1fx", (double) ns[2] / iterations, (double) ns[0] / ns[2]));
+    }
+
+}
@@ -0,0 +1,110 @@
+package com.challengeandresponse.lmtp.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.Arrays;
+
+import com.challengeandresponse.lmtp.LMTP;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Compares command round-trip latency between the engines. For each engine it starts a NullLMTP on loopback,
+ * runs a number of MAIL/RCPT/DATA/RSET transactions over one connection, one command at a time, and reports
+ * how long the client waited for each reply.
+ * <p>Usage: LatencyBench [transactions] [first port]. The default is 25 transactions, which takes a while
+ * on ENGINE_THREADS... that is rather the point.</p>
+ */
+public class LatencyBench {
+
+    /**
+     * Send one line and wait for the (last line of the) reply.
+     * @return the round trip time in nanoseconds
+     */
+    private static long roundTrip(PrintWriter _out, BufferedReader _in, String _line)
+    throws IOException {
+        long start = System.nanoTime();
+        _out.print(_line+"\r\n");
+        _out.flush();
+        String reply;
+        do {
+            reply = _in.readLine();
+            if (reply == null)
+                throw new IOException("server closed the connection after: "+_line);
+        } while ((reply.length() > 3) && (reply.charAt(3) == '-'));
+        return System.nanoTime() - start;
+    }
+
+
+    /**
+     * @return the round trip time of every command sent, in nanoseconds
+     */
+    private static long[] runTransactions(int _port, int _transactions)
+    throws IOException {
+        String[] commands = {
+                "MAIL FROM:<sender@example.com>",
+                "RCPT TO:<user@"+NullLMTP.DOMAIN+">",
+                "DATA",
+                "Subject: latency\r\n\r\nhello\r\n.",
+                "RSET"
+        };
+        long[] result = new long[_transactions * commands.length];
+        int n = 0;
+
+        Socket s = new Socket("127.0.0.1", _port);
+        s.setTcpNoDelay(true);
+        BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream()));
+        in.readLine(); // greeting
+        roundTrip(out, in, "LHLO bench");
+        for (int i = 0; i < _transactions; i++)
+            for (int j = 0; j < commands.length; j++)
+                result[n++] = roundTrip(out, in, commands[j]);
+        roundTrip(out, in, "QUIT");
+        s.close();
+        return result;
+    }
+
+
+    private static void report(String _name, long[] _times) {
+        long[] t = _times.clone();
+        Arrays.sort(t);
+        long total = 0;
+        for (int i = 0; i < t.length; i++)
+            total += t[i];
+        System.out.println(_name+": "+t.length+" round trips"
+                +", mean "+(total / t.length / 1000)+" usec"
+                +", p50 "+(t[t.length / 2] / 1000)+" usec"
+                +", p99 "+(t[(int) (t.length * 0.99)] / 1000)+" usec"
+                +", max "+(t[t.length - 1] / 1000)+" usec");
+    }
+
+
+    public static void main(String[] args)
+    throws Exception {
+        int transactions = (args.length > 0) ? Integer.parseInt(args[0]) : 25;
+        int port = (args.length > 1) ? Integer.parseInt(args[1]) : 12424;
+
+        int[] engines = { LMTP.ENGINE_THREADS, LMTP.ENGINE_VIRTUAL, LMTP.ENGINE_NIO };
+        String[] names = { "ENGINE_THREADS", "ENGINE_VIRTUAL", "ENGINE_NIO" };
+        long[][] results = new long[engines.length][];
+        for (int i = 0; i < engines.length; i++) {
+            NullLMTP server = NullLMTP.start(engines[i], port + i);
+            // one throwaway pass so the JIT has seen the code
+            runTransactions(port + i, Math.max(1, transactions / 10));
+            results[i] = runTransactions(port + i, transactions);
+            server.getEngine().stop();
+        }
+        for (int i = 0; i < engines.length; i++)
+            report(names[i], results[i]);
+        System.exit(0);
+    }
+
+}
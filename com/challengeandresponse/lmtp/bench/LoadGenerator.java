@@ -0,0 +1,447 @@
+package com.challengeandresponse.lmtp.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.challengeandresponse.lmtp.Histogram;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * An LMTP load generator. Opens a number of connections to a server and sends messages on all of them at once,
+ * pipelining each MAIL / RCPT... / DATA group as RFC 2920 allows, at a target rate or as fast as the server takes
+ * them. Message sizes are drawn from a weighted distribution. At the end it reports the throughput and the
+ * p50/p99/p999 latency of the reply to each command.
+ * <p>Usage: LoadGenerator [option value]... The options are:</p>
+ * <pre>
+ * -host h          the server (default 127.0.0.1)
+ * -port p          its port (default 2424)
+ * -local engine    start a NullLMTP in this process on that engine (0, 1 or 2) instead, on a free port
+ * -connections n   connections at once (default 10)
+ * -rate r          messages per second over all the connections, 0 for as fast as possible (default 0)
+ * -duration s      seconds to run for (default 10)
+ * -messages n      stop after this many messages, 0 for no limit (default 0)
+ * -recipients n    recipients per message (default 1)
+ * -perConnection n messages per connection before it QUITs and reconnects, 0 to keep it (default 0)
+ * -sizes list      body sizes and their weights, size:weight,... with k and m for KB and MB (default 4k)
+ * -from a          the MAIL FROM address (default loadgen@example.com)
+ * -domain d        the domain the recipients are in (default bench.test, which is what NullLMTP accepts)
+ * </pre>
+ * <p>For example, mostly small messages with the odd big one, at 500 a second over 50 connections:</p>
+ * <pre>
+ * LoadGenerator -port 2424 -connections 50 -rate 500 -sizes 2k:80,64k:18,2m:2
+ * </pre>
+ * <p>Latencies are from the write of the group to each reply. END_OF_DATA is from the "." going out to the last
+ * delivery status coming back. If the server can't keep up with -rate, the sends that were already a whole interval
+ * late are counted, and the throughput falls short of the target.</p>
+ */
+public class LoadGenerator {
+
+    // what the latencies are kept for
+    private static final int CONNECT = 0;
+    private static final int LHLO = 1;
+    private static final int MAIL = 2;
+    private static final int RCPT = 3;
+    private static final int DATA = 4;
+    private static final int END_OF_DATA = 5;
+    private static final int QUIT = 6;
+    private static final int MESSAGE = 7;
+    private static final String[] NAMES = { "CONNECT", "LHLO", "MAIL", "RCPT", "DATA", "END_OF_DATA", "QUIT", "MESSAGE" };
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private String host = "127.0.0.1";
+    private int port = 2424;
+    private int connections = 10;
+    private double rate = 0;
+    private long durationMsec = 10000;
+    private long maxMessages = 0;
+    private int recipients = 1;
+    private int perConnection = 0;
+    private String from = "loadgen@example.com";
+    private String domain = NullLMTP.DOMAIN;
+    private int[] sizes = { 4096 };
+    private int[] weights = { 1 };
+
+    private byte[][] bodies;
+    private int totalWeight;
+    private long startNanos;
+    private long deadlineNanos;
+
+    private final Histogram[] latency = new Histogram[NAMES.length];
+    private final AtomicLong claimed = new AtomicLong(0);
+    private final AtomicLong delivered = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final AtomicLong late = new AtomicLong(0);
+    private final AtomicLong connectionErrors = new AtomicLong(0);
+    private final AtomicLong bytesSent = new AtomicLong(0);
+
+
+    public LoadGenerator() {
+        for (int i = 0; i < NAMES.length; i++)
+            latency[i] = new Histogram(NAMES[i]);
+    }
+
+
+    /**
+     * Parse a list of size:weight pairs, such as "1k:70,64k:25,1m:5". A size without a weight has weight 1
+     */
+    void setSizes(String _list) {
+        StringTokenizer st = new StringTokenizer(_list, ",");
+        int n = st.countTokens();
+        if (n == 0)
+            throw new IllegalArgumentException("no sizes in "+_list);
+        sizes = new int[n];
+        weights = new int[n];
+        for (int i = 0; i < n; i++) {
+            String one = st.nextToken().trim();
+            int colon = one.indexOf(':');
+            sizes[i] = parseSize((colon < 0) ? one : one.substring(0, colon));
+            weights[i] = (colon < 0) ? 1 : Integer.parseInt(one.substring(colon + 1).trim());
+            if (weights[i] < 0)
+                throw new IllegalArgumentException("negative weight in "+_list);
+        }
+    }
+
+    private static int parseSize(String _s) {
+        String s = _s.trim().toLowerCase();
+        int multiplier = 1;
+        if (s.endsWith("k"))
+            multiplier = 1024;
+        else if (s.endsWith("m"))
+            multiplier = 1024 * 1024;
+        if (multiplier > 1)
+            s = s.substring(0, s.length() - 1);
+        return Integer.parseInt(s) * multiplier;
+    }
+
+
+    /**
+     * A message body of about _size bytes, in lines of 76 characters, with the "." that ends it
+     */
+    private static byte[] makeBody(int _size) {
+        StringBuilder sb = new StringBuilder(_size + 64);
+        sb.append("Subject: load test, ").append(_size).append(" bytes\r\n\r\n");
+        String line = "The quick brown fox jumps over the lazy dog. 0123456789 abcdefghijklmnopqrs\r\n";
+        while (sb.length() + line.length() <= _size)
+            sb.append(line);
+        if (sb.length() < _size)
+            sb.append(line, 0, Math.max(0, _size - sb.length() - 2)).append("\r\n");
+        sb.append(".\r\n");
+        return sb.toString().getBytes(ASCII);
+    }
+
+
+    /**
+     * @return true if there's time left and the message limit hasn't been reached. Claims a message if so
+     */
+    private boolean claim() {
+        if (System.nanoTime() >= deadlineNanos)
+            return false;
+        if (maxMessages <= 0)
+            return true;
+        return claimed.incrementAndGet() <= maxMessages;
+    }
+
+
+    /**
+     * One connection, sending messages until the time or the messages run out
+     */
+    private class Client extends Thread {
+        private final int index;
+        private final Random random;
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private final byte[] lineBuffer = new byte[1024];
+
+        Client(int _index) {
+            super("loadgen_"+_index);
+            index = _index;
+            random = new Random(_index);
+        }
+
+        public void run() {
+            long interval = (rate > 0) ? (long) (connections * 1000000000.0 / rate) : 0;
+            // spread the connections out over the first interval
+            long next = startNanos + ((interval * index) / connections);
+            int onThisConnection = 0;
+            while (true) {
+                try {
+                    if (socket == null) {
+                        open();
+                        onThisConnection = 0;
+                    }
+                    if (interval > 0) {
+                        long now = System.nanoTime();
+                        if (now < next)
+                            LockSupport.parkNanos(next - now);
+                        else if (now - next > interval)
+                            late.incrementAndGet();
+                        next += interval;
+                    }
+                    if (! claim())
+                        break;
+                    sendMessage();
+                    if ((perConnection > 0) && (++onThisConnection >= perConnection))
+                        quit();
+                }
+                catch (IOException ioe) {
+                    connectionErrors.incrementAndGet();
+                    close();
+                    // don't hammer a server that's refusing us
+                    LockSupport.parkNanos(100000000L);
+                    if (System.nanoTime() >= deadlineNanos)
+                        break;
+                }
+            }
+            try {
+                if (socket != null)
+                    quit();
+            }
+            catch (IOException ioe) {
+                close();
+            }
+        }
+
+        private void open()
+        throws IOException {
+            long t = System.nanoTime();
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+            expect(reply(), '2', "greeting");
+            latency[CONNECT].record(System.nanoTime() - t);
+            t = System.nanoTime();
+            write("LHLO loadgen.example.com\r\n");
+            out.flush();
+            expect(reply(), '2', "LHLO");
+            latency[LHLO].record(System.nanoTime() - t);
+        }
+
+        private void quit()
+        throws IOException {
+            long t = System.nanoTime();
+            write("QUIT\r\n");
+            out.flush();
+            reply();
+            latency[QUIT].record(System.nanoTime() - t);
+            close();
+        }
+
+        private void close() {
+            try {
+                if (socket != null)
+                    socket.close();
+            }
+            catch (IOException ioe) { }
+            socket = null;
+        }
+
+        private void sendMessage()
+        throws IOException {
+            byte[] body = bodies[pick()];
+            // one group: MAIL, the RCPTs and DATA
+            write("MAIL FROM:<"+from+"> SIZE="+body.length+"\r\n");
+            for (int i = 0; i < recipients; i++)
+                write("RCPT TO:<user"+i+"@"+domain+">\r\n");
+            write("DATA\r\n");
+            long t0 = System.nanoTime();
+            out.flush();
+
+            int accepted = 0;
+            boolean ok = (reply()[0] == '2');
+            latency[MAIL].record(System.nanoTime() - t0);
+            for (int i = 0; i < recipients; i++) {
+                if (reply()[0] == '2')
+                    accepted++;
+                latency[RCPT].record(System.nanoTime() - t0);
+            }
+            byte dataReply = reply()[0];
+            latency[DATA].record(System.nanoTime() - t0);
+            if ((! ok) || (accepted == 0) || (dataReply != '3')) {
+                failed.incrementAndGet();
+                if (dataReply == '3') {
+                    // the server wants a body anyway. give it an empty one
+                    write(".\r\n");
+                    out.flush();
+                    for (int i = 0; i < Math.max(1, accepted); i++)
+                        reply();
+                }
+                return;
+            }
+
+            out.write(body);
+            bytesSent.addAndGet(body.length);
+            out.flush();
+            long t1 = System.nanoTime();
+            boolean allDelivered = true;
+            for (int i = 0; i < accepted; i++) {
+                if (reply()[0] != '2')
+                    allDelivered = false;
+            }
+            long end = System.nanoTime();
+            latency[END_OF_DATA].record(end - t1);
+            latency[MESSAGE].record(end - t0);
+            if (allDelivered && (accepted == recipients))
+                delivered.incrementAndGet();
+            else
+                failed.incrementAndGet();
+        }
+
+        private int pick() {
+            if (sizes.length == 1)
+                return 0;
+            int r = random.nextInt(totalWeight);
+            for (int i = 0; i < weights.length; i++) {
+                r -= weights[i];
+                if (r < 0)
+                    return i;
+            }
+            return weights.length - 1;
+        }
+
+        private void write(String _s)
+        throws IOException {
+            byte[] b = _s.getBytes(ASCII);
+            out.write(b);
+            bytesSent.addAndGet(b.length);
+        }
+
+        /**
+         * Read a whole reply, skipping the continuation lines
+         * @return the buffer holding its last line. The first byte is the reply code's first digit
+         */
+        private byte[] reply()
+        throws IOException {
+            while (true) {
+                int n = 0;
+                int c;
+                while (((c = in.read()) >= 0) && (c != '\n')) {
+                    if (n < lineBuffer.length)
+                        lineBuffer[n++] = (byte) c;
+                }
+                if (c < 0)
+                    throw new IOException("the server closed the connection");
+                if ((n < 4) || (lineBuffer[3] != '-'))
+                    return lineBuffer;
+            }
+        }
+
+        private void expect(byte[] _reply, char _first, String _what)
+        throws IOException {
+            if (_reply[0] != _first)
+                throw new IOException(_what+" refused: "+new String(_reply, 0, Math.min(60, _reply.length), ASCII).trim());
+        }
+    }
+
+
+    /**
+     * Run the load, and return when it's done
+     */
+    public void run()
+    throws InterruptedException {
+        bodies = new byte[sizes.length][];
+        totalWeight = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            bodies[i] = makeBody(sizes[i]);
+            totalWeight += weights[i];
+        }
+        if (totalWeight <= 0)
+            throw new IllegalArgumentException("the size weights add up to 0");
+
+        Client[] clients = new Client[connections];
+        startNanos = System.nanoTime();
+        deadlineNanos = startNanos + (durationMsec * 1000000L);
+        for (int i = 0; i < connections; i++) {
+            clients[i] = new Client(i);
+            clients[i].start();
+        }
+        for (int i = 0; i < connections; i++)
+            clients[i].join();
+        report(System.nanoTime() - startNanos);
+    }
+
+
+    private void report(long _elapsedNanos) {
+        double seconds = _elapsedNanos / 1e9;
+        long messages = delivered.get();
+        System.out.println(String.format("%d messages delivered in %.1f s: %.1f messages/s, %.2f MB/s sent (target %s)",
+                messages, seconds, messages / seconds, bytesSent.get() / seconds / (1024 * 1024),
+                (rate > 0) ? String.format("%.1f messages/s", rate) : "as fast as possible"));
+        System.out.println(String.format("%d failed, %d sent a whole interval late, %d connection errors",
+                failed.get(), late.get(), connectionErrors.get()));
+        System.out.println(String.format("%-12s %10s %10s %10s %10s %10s", "reply to", "count", "p50 us", "p99 us", "p999 us", "max us"));
+        for (int i = 0; i < latency.length; i++) {
+            Histogram h = latency[i];
+            if (h.getCount() == 0)
+                continue;
+            System.out.println(String.format("%-12s %10d %10d %10d %10d %10d", h.getName(), h.getCount(),
+                    h.getPercentile(50) / 1000, h.getPercentile(99) / 1000, h.getPercentile(99.9) / 1000, h.getMax() / 1000));
+        }
+    }
+
+
+    public static void main(String[] args)
+    throws Exception {
+        LoadGenerator lg = new LoadGenerator();
+        NullLMTP local = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String name = args[i];
+            String value = args[i + 1];
+            if (name.equals("-host"))
+                lg.host = value;
+            else if (name.equals("-port"))
+                lg.port = Integer.parseInt(value);
+            else if (name.equals("-local")) {
+                local = NullLMTP.start(Integer.parseInt(value), 0);
+                lg.host = "127.0.0.1";
+                lg.port = local.getPort();
+            }
+            else if (name.equals("-connections"))
+                lg.connections = Integer.parseInt(value);
+            else if (name.equals("-rate"))
+                lg.rate = Double.parseDouble(value);
+            else if (name.equals("-duration"))
+                lg.durationMsec = (long) (Double.parseDouble(value) * 1000);
+            else if (name.equals("-messages"))
+                lg.maxMessages = Long.parseLong(value);
+            else if (name.equals("-recipients"))
+                lg.recipients = Integer.parseInt(value);
+            else if (name.equals("-perConnection"))
+                lg.perConnection = Integer.parseInt(value);
+            else if (name.equals("-sizes"))
+                lg.setSizes(value);
+            else if (name.equals("-from"))
+                lg.from = value;
+            else if (name.equals("-domain"))
+                lg.domain = value;
+            else {
+                System.out.println("Unknown option "+name+". See the class documentation for the options.");
+                System.exit(1);
+            }
+        }
+        if ((args.length % 2) != 0) {
+            System.out.println("Option "+args[args.length - 1]+" has no value");
+            System.exit(1);
+        }
+        lg.run();
+        if (local != null)
+            local.getEngine().stop();
+        System.exit(0);
+    }
+
+}
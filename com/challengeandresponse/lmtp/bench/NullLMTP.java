@@ -0,0 +1,90 @@
+package com.challengeandresponse.lmtp.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Vector;
+
+import com.challengeandresponse.lmtp.LMTP;
+import com.challengeandresponse.lmtp.LMTPEngine;
+import com.challengeandresponse.lmtp.ServerConfig;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * An LMTP server whose deliver() throws the message away, for the benchmarks. Accepts mail for bench.test
+ * from 127.0.0.1, never looks anything up on the net and has all the MAX_* disconnect limits turned off.
+ */
+public class NullLMTP extends LMTP {
+
+    /** the domain the benchmark server accepts mail for */
+    public static final String DOMAIN = "bench.test";
+
+    public NullLMTP(LMTPEngine _engine, int _port, ServerConfig _config) {
+        super(_engine, _port, _config);
+    }
+
+    public NullLMTP(LMTPEngine _engine, int _port, File _socketPath, ServerConfig _config) {
+        super(_engine, _port, _socketPath, _config);
+    }
+
+    public NullLMTP(LMTPEngine _engine, int _port, File _socketPath, int _acceptors, ServerConfig _config) {
+        super(_engine, _port, _socketPath, _acceptors, _config);
+    }
+
+    protected String deliver(String mailFrom, String mailTo, String message) {
+        return "250 message accepted for delivery";
+    }
+
+
+    /**
+     * The benchmark configuration: mail for DOMAIN from 127.0.0.1, no lookups, no disconnect limits.
+     * Note that this changes LMTP's static defaults, which engines and configurations are made from.
+     */
+    public static ServerConfig benchConfig() {
+        MY_HOST = "localhost";
+        LIVE_NET_LOOKUPS = false;
+        MAX_ERRORS_BEFORE_DISCONNECT = 0;
+        MAX_NOOPS_BEFORE_DISCONNECT = 0;
+        MAX_RSETS_BEFORE_DISCONNECT = 0;
+
+        Vector <String> domainsServed = new Vector <String> ();
+        domainsServed.add(DOMAIN);
+        Vector <String> approvedHosts = new Vector <String> ();
+        approvedHosts.add("127.0.0.1");
+        return ServerConfig.fromDefaults(approvedHosts, domainsServed);
+    }
+
+
+    /**
+     * Start a NullLMTP server with benchConfig(), on an engine of its own. It is accepting connections when this
+     * returns. Stop it with getEngine().stop().
+     * @param _engine one of the LMTP.ENGINE_ values
+     * @param _port the port to listen on, or 0 for any free port (see getPort())
+     * @return the server
+     */
+    public static NullLMTP start(int _engine, int _port)
+    throws IOException {
+        return start(_engine, _port, null);
+    }
+
+
+    /**
+     * Start a NullLMTP server with benchConfig(), on an engine of its own, listening on a Unix domain socket as well
+     * as, or instead of, a port
+     * @param _engine one of the LMTP.ENGINE_ values
+     * @param _port the port to listen on, 0 for any free port, or -1 for none
+     * @param _socketPath the Unix domain socket to listen on, or null for none
+     * @return the server
+     */
+    public static NullLMTP start(int _engine, int _port, File _socketPath)
+    throws IOException {
+        ServerConfig config = benchConfig();
+        NullLMTP server = new NullLMTP(new LMTPEngine(_engine), _port, _socketPath, config);
+        server.start();
+        return server;
+    }
+
+}
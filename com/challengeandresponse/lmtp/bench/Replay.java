@@ -0,0 +1,303 @@
+package com.challengeandresponse.lmtp.bench;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.challengeandresponse.lmtp.Histogram;
+import com.challengeandresponse.lmtp.SessionTrace;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Plays the sessions in a trace file recorded with LMTP.RECORD_SESSIONS back against a server: each session on a
+ * connection of its own, starting when it started and sending what it sent when it sent it, with everything
+ * sped up by a factor. Message bodies go as filler of the recorded sizes. Run it against a server before and after
+ * a change to compare the two on the same traffic, with no network needed.
+ * <p>Usage: Replay tracefile [option value]... The options are:</p>
+ * <pre>
+ * -host h          the server (default 127.0.0.1)
+ * -port p          its port (default 2424)
+ * -local engine    start a NullLMTP in this process on that engine (0, 1 or 2) instead, on a free port
+ * -speed x         play back x times as fast as recorded, 0 for as fast as possible (default 1)
+ * -domain d        send every RCPT TO to this domain instead of the recorded one. -local sets it to bench.test
+ * </pre>
+ * <p>It reports how long the replay took, the replies by class and how long the sessions lasted.</p>
+ */
+public class Replay {
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] FILLER = new byte[8192];
+    static {
+        Arrays.fill(FILLER, (byte) 'x');
+    }
+
+    private String host = "127.0.0.1";
+    private int port = 2424;
+    private double speed = 1;
+    private String domain = null;
+
+    private final AtomicLong[] replies = new AtomicLong[6]; // by the first digit of the code, 1 to 5. 0 for nonsense
+    private final AtomicLong failedSessions = new AtomicLong(0);
+    private final AtomicLong bytesSent = new AtomicLong(0);
+    private final Histogram sessionTimes = new Histogram("SESSION");
+
+
+    public Replay() {
+        for (int i = 0; i < replies.length; i++)
+            replies[i] = new AtomicLong(0);
+    }
+
+
+    /**
+     * @return the sessions in the file, in the order they started
+     */
+    static Vector <SessionTrace> read(String _file)
+    throws IOException {
+        Vector <SessionTrace> result = new Vector <SessionTrace> ();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+        try {
+            SessionTrace t;
+            while ((t = SessionTrace.readFrom(in)) != null)
+                result.add(t);
+        }
+        finally {
+            in.close();
+        }
+        Collections.sort(result, new Comparator <SessionTrace> () {
+            public int compare(SessionTrace _a, SessionTrace _b) {
+                return Long.compare(_a.getStartMillis(), _b.getStartMillis());
+            }
+        });
+        return result;
+    }
+
+
+    /**
+     * Wait until _nanos after _start, scaled by the speed
+     */
+    private void waitUntil(long _start, long _nanos) {
+        if (speed <= 0)
+            return;
+        long due = _start + (long) (_nanos / speed);
+        long now;
+        while ((now = System.nanoTime()) < due)
+            LockSupport.parkNanos(due - now);
+    }
+
+
+    /**
+     * @return the line, with the domain of a RCPT TO replaced if -domain was given
+     */
+    private byte[] rewrite(byte[] _line) {
+        if (domain == null)
+            return _line;
+        String s = new String(_line, LATIN1);
+        if (! s.regionMatches(true, 0, "rcpt to:", 0, 8))
+            return _line;
+        int at = s.lastIndexOf('@');
+        int close = s.indexOf('>', Math.max(at, 0));
+        if ((at < 0) || (close < 0))
+            return _line;
+        return (s.substring(0, at + 1) + domain + s.substring(close)).getBytes(LATIN1);
+    }
+
+
+    /**
+     * Play one session on a connection of its own
+     */
+    private class Player extends Thread {
+        private final SessionTrace trace;
+
+        Player(SessionTrace _trace, int _index) {
+            super("replay_"+_index);
+            trace = _trace;
+        }
+
+        public void run() {
+            long start = System.nanoTime();
+            Socket socket = null;
+            try {
+                socket = new Socket(host, port);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(60000);
+                final InputStream in = new BufferedInputStream(socket.getInputStream());
+                Thread reader = new Thread(getName()+"_replies") {
+                    public void run() {
+                        readReplies(in);
+                    }
+                };
+                reader.start();
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+                for (int i = 0; i < trace.size(); i++) {
+                    // whatever is buffered goes out before waiting for the next event
+                    if ((speed > 0) && (System.nanoTime() < start + (long) (trace.nanos(i) / speed)))
+                        out.flush();
+                    waitUntil(start, trace.nanos(i));
+                    int length = trace.length(i);
+                    switch (trace.type(i)) {
+                        case SessionTrace.LINE:
+                            byte[] line = rewrite(trace.line(i));
+                            out.write(line);
+                            out.write(CRLF);
+                            length = line.length + 2;
+                            break;
+                        case SessionTrace.DATA_LINE:
+                            fill(out, length);
+                            out.write(CRLF);
+                            length += 2;
+                            break;
+                        case SessionTrace.CHUNK:
+                            fill(out, length);
+                            break;
+                    }
+                    bytesSent.addAndGet(length);
+                }
+                out.flush();
+                // the server closes the connection after a QUIT, or when it sees ours closed
+                socket.shutdownOutput();
+                reader.join();
+                sessionTimes.record(System.nanoTime() - start);
+            }
+            catch (IOException ioe) {
+                failedSessions.incrementAndGet();
+                System.out.println(getName()+" failed: "+ioe.getMessage());
+            }
+            catch (InterruptedException ie) {
+                failedSessions.incrementAndGet();
+            }
+            finally {
+                try {
+                    if (socket != null)
+                        socket.close();
+                }
+                catch (IOException ioe) { }
+            }
+        }
+
+        private void fill(OutputStream _out, int _n)
+        throws IOException {
+            for (int left = _n; left > 0; left -= FILLER.length)
+                _out.write(FILLER, 0, Math.min(left, FILLER.length));
+        }
+
+        private void readReplies(InputStream _in) {
+            try {
+                int c;
+                int position = 0;
+                int first = 0;
+                boolean continued = false;
+                while ((c = _in.read()) >= 0) {
+                    if (c == '\n') {
+                        if (! continued)
+                            replies[((first >= '1') && (first <= '5')) ? first - '0' : 0].incrementAndGet();
+                        position = 0;
+                        continued = false;
+                        continue;
+                    }
+                    if (position == 0)
+                        first = c;
+                    else if (position == 3)
+                        continued = (c == '-');
+                    position++;
+                }
+            }
+            catch (IOException ioe) {
+                // the session's thread notices too, or has already finished
+            }
+        }
+    }
+
+
+    /**
+     * Play the sessions back, and return when they're all done
+     */
+    public void run(Vector <SessionTrace> _sessions)
+    throws InterruptedException {
+        if (_sessions.isEmpty()) {
+            System.out.println("No sessions to replay");
+            return;
+        }
+        long firstStart = _sessions.get(0).getStartMillis();
+        long start = System.nanoTime();
+        Player[] players = new Player[_sessions.size()];
+        for (int i = 0; i < players.length; i++) {
+            waitUntil(start, (_sessions.get(i).getStartMillis() - firstStart) * 1000000L);
+            players[i] = new Player(_sessions.get(i), i);
+            players[i].start();
+        }
+        for (int i = 0; i < players.length; i++)
+            players[i].join();
+        long elapsed = System.nanoTime() - start;
+
+        long recorded = 0;
+        for (int i = 0; i < players.length; i++) {
+            SessionTrace t = _sessions.get(i);
+            long end = (t.getStartMillis() - firstStart) * 1000000L + ((t.size() > 0) ? t.nanos(t.size() - 1) : 0);
+            recorded = Math.max(recorded, end);
+        }
+        System.out.println(String.format("%d sessions replayed in %.2f s (recorded over %.2f s, speed %s), %d failed, %.2f MB sent",
+                players.length, elapsed / 1e9, recorded / 1e9, (speed > 0) ? ""+speed : "as fast as possible",
+                failedSessions.get(), bytesSent.get() / (1024.0 * 1024.0)));
+        System.out.println(String.format("replies: %d 2xx, %d 3xx, %d 4xx, %d 5xx, %d other",
+                replies[2].get(), replies[3].get(), replies[4].get(), replies[5].get(), replies[0].get() + replies[1].get()));
+        System.out.println(String.format("session time: p50 %d us, p99 %d us, p999 %d us, max %d us",
+                sessionTimes.getPercentile(50) / 1000, sessionTimes.getPercentile(99) / 1000,
+                sessionTimes.getPercentile(99.9) / 1000, sessionTimes.getMax() / 1000));
+    }
+
+
+    public static void main(String[] args)
+    throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: Replay tracefile [-host h] [-port p] [-local engine] [-speed x] [-domain d]");
+            System.exit(1);
+        }
+        Replay replay = new Replay();
+        NullLMTP local = null;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            String name = args[i];
+            String value = args[i + 1];
+            if (name.equals("-host"))
+                replay.host = value;
+            else if (name.equals("-port"))
+                replay.port = Integer.parseInt(value);
+            else if (name.equals("-local")) {
+                local = NullLMTP.start(Integer.parseInt(value), 0);
+                replay.host = "127.0.0.1";
+                replay.port = local.getPort();
+                if (replay.domain == null)
+                    replay.domain = NullLMTP.DOMAIN;
+            }
+            else if (name.equals("-speed"))
+                replay.speed = Double.parseDouble(value);
+            else if (name.equals("-domain"))
+                replay.domain = value;
+            else {
+                System.out.println("Unknown option "+name);
+                System.exit(1);
+            }
+        }
+        replay.run(read(args[0]));
+        if (local != null)
+            local.getEngine().stop();
+        System.exit(0);
+    }
+
+}
@@ -0,0 +1,188 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * The approved hosts: CIDR ranges at their boundaries, whole-family and single-address ranges, and the entries
+ * add() must refuse. Only literal addresses are used, so nothing here goes to DNS.
+ */
+class AddressMatcherTest {
+
+    private static AddressMatcher matcher(String... _entries)
+    throws UnknownHostException {
+        AddressMatcher m = new AddressMatcher();
+        for (int i = 0; i < _entries.length; i++)
+            m.add(_entries[i]);
+        return m;
+    }
+
+    /**
+     * add() must refuse _entry with a NumberFormatException
+     */
+    private static void assertRefused(String _entry)
+    throws UnknownHostException {
+        try {
+            new AddressMatcher().add(_entry);
+            fail("accepted "+_entry);
+        }
+        catch (NumberFormatException nfe) {
+        }
+    }
+
+    private static boolean contains(AddressMatcher _m, String _addr)
+    throws UnknownHostException {
+        return _m.contains(InetAddress.getByName(_addr));
+    }
+
+
+    @Test
+    void ipv4RangeBoundaries()
+    throws UnknownHostException {
+        AddressMatcher m = matcher("10.1.0.0/16");
+        assertTrue(contains(m, "10.1.0.0"));
+        assertTrue(contains(m, "10.1.255.255"));
+        assertFalse(contains(m, "10.0.255.255"));
+        assertFalse(contains(m, "10.2.0.0"));
+    }
+
+    @Test
+    void rangeNotOnAByteBoundary()
+    throws UnknownHostException {
+        AddressMatcher m = matcher("192.168.1.64/27");
+        assertFalse(contains(m, "192.168.1.63"));
+        assertTrue(contains(m, "192.168.1.64"));
+        assertTrue(contains(m, "192.168.1.95"));
+        assertFalse(contains(m, "192.168.1.96"));
+    }
+
+    @Test
+    void hostBitsInTheEntryAreIgnored()
+    throws UnknownHostException {
+        AddressMatcher m = matcher("172.16.5.9/12");
+        assertTrue(contains(m, "172.16.0.0"));
+        assertTrue(contains(m, "172.31.255.255"));
+        assertFalse(contains(m, "172.32.0.0"));
+    }
+
+    @Test
+    void addressesWithTheTopBitSet()
+    throws UnknownHostException {
+        // the top bit of an IPv4 address is the sign bit of an int, which sign extension would spread over the key
+        AddressMatcher m = matcher("200.1.2.0/24", "255.255.255.255");
+        assertTrue(contains(m, "200.1.2.3"));
+        assertFalse(contains(m, "200.1.3.0"));
+        assertFalse(contains(m, "72.1.2.3"));
+        assertTrue(contains(m, "255.255.255.255"));
+        assertFalse(contains(m, "255.255.255.254"));
+        assertFalse(contains(m, "127.255.255.255"));
+    }
+
+    @Test
+    void slash32IsOneAddress()
+    throws UnknownHostException {
+        AddressMatcher m = matcher("127.0.0.1/32");
+        assertTrue(contains(m, "127.0.0.1"));
+        assertFalse(contains(m, "127.0.0.0"));
+        assertFalse(contains(m, "127.0.0.2"));
+    }
+
+    @Test
+    void addressWithoutPrefixIsOneAddress()
+    throws UnknownHostException {
+        AddressMatcher m = matcher("127.0.0.1", "::1");
+        assertTrue(contains(m, "127.0.0.1"));
+        assertFalse(contains(m, "127.0.0.2"));
+        assertTrue(contains(m, "::1"));
+        assertFalse(contains(m, "::2"));
+    }
+
+    @Test
+    void slash0IsTheWholeFamily()
+    throws UnknownHostException {
+        AddressMatcher m = matcher("0.0.0.0/0");
+        assertTrue(contains(m, "0.0.0.0"));
+        assertTrue(contains(m, "255.255.255.255"));
+        assertTrue(contains(m, "8.8.8.8"));
+        // the families are kept apart
+        assertFalse(contains(m, "2001:db8::1"));
+
+        AddressMatcher m6 = matcher("::/0");
+        assertTrue(contains(m6, "2001:db8::1"));
+        assertFalse(contains(m6, "8.8.8.8"));
+    }
+
+    @Test
+    void ipv6RangeBoundaries()
+    throws UnknownHostException {
+        AddressMatcher m = matcher("2001:db8::/32", "fe80::1:0:0:0/80");
+        assertTrue(contains(m, "2001:db8::"));
+        assertTrue(contains(m, "2001:db8:ffff:ffff:ffff:ffff:ffff:ffff"));
+        assertFalse(contains(m, "2001:db9::"));
+        assertFalse(contains(m, "2001:db7:ffff:ffff:ffff:ffff:ffff:ffff"));
+        // a prefix that reaches into the low 64 bits
+        assertTrue(contains(m, "fe80::1:0:ffff:ffff"));
+        assertFalse(contains(m, "fe80::2:0:0:0"));
+        assertFalse(contains(m, "fe80::0:ffff:ffff:ffff"));
+    }
+
+    @Test
+    void slash128IsOneAddress()
+    throws UnknownHostException {
+        AddressMatcher m = matcher("2001:db8::5/128");
+        assertTrue(contains(m, "2001:db8::5"));
+        assertFalse(contains(m, "2001:db8::4"));
+        assertFalse(contains(m, "2001:db8::6"));
+    }
+
+    @Test
+    void overlappingRanges()
+    throws UnknownHostException {
+        // a narrow range added after a wide one that covers it, and the other way round
+        AddressMatcher m = matcher("10.0.0.0/8", "10.1.2.0/24", "192.168.1.0/24", "192.168.0.0/16");
+        assertTrue(contains(m, "10.200.0.1"));
+        assertTrue(contains(m, "10.1.2.3"));
+        assertTrue(contains(m, "192.168.200.1"));
+        assertFalse(contains(m, "11.0.0.0"));
+        assertEquals(4, m.size());
+    }
+
+    @Test
+    void emptyMatcherContainsNothing()
+    throws UnknownHostException {
+        AddressMatcher m = new AddressMatcher();
+        assertFalse(contains(m, "127.0.0.1"));
+        assertFalse(contains(m, "::1"));
+    }
+
+    @Test
+    void whitespaceAroundTheEntry()
+    throws UnknownHostException {
+        AddressMatcher m = matcher("  10.0.0.0 / 8  ");
+        assertTrue(contains(m, "10.9.9.9"));
+    }
+
+    @Test
+    void malformedMasksAreRefused()
+    throws UnknownHostException {
+        assertRefused("10.0.0.0/33");
+        assertRefused("2001:db8::/129");
+        assertRefused("10.0.0.0/-1");
+        assertRefused("10.0.0.0/");
+        assertRefused("10.0.0.0/8x");
+        assertRefused("10.0.0.0/255.0.0.0");
+    }
+
+}
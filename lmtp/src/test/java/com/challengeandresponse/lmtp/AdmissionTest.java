@@ -0,0 +1,208 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Admission control: a session that ends hands its permit to the connection that has waited longest, a connection
+ * that waits too long is given up on (on Admission's own timer thread), and stopping gives up on everything still
+ * waiting. What each connection hears is noted as the engines would send it: the greeting when it's started, a 421
+ * when it's given up on. Then the same on a real ENGINE_NIO connection.
+ */
+class AdmissionTest {
+
+    /** what the connections heard, in order, as "name: reply" */
+    private final Vector <String> heard = new Vector <String> ();
+    /** the thread the last connection was given up on */
+    private volatile String gaveUpOn = null;
+
+
+    private Runnable start(final String _name) {
+        return new Runnable() {
+            public void run() {
+                heard.add(_name+": 220");
+            }
+        };
+    }
+
+    private Runnable giveUp(final String _name, final CountDownLatch _latch) {
+        return new Runnable() {
+            public void run() {
+                gaveUpOn = Thread.currentThread().getName();
+                heard.add(_name+": 421");
+                if (_latch != null)
+                    _latch.countDown();
+            }
+        };
+    }
+
+    private boolean offer(Admission _a, String _name, long _timeoutMsec) {
+        return _a.offer(start(_name), giveUp(_name, null), _timeoutMsec);
+    }
+
+    private String heard() {
+        String s = heard.toString();
+        heard.clear();
+        return s;
+    }
+
+
+    @Test
+    void releaseHandsThePermitToTheLongestWaiting() {
+        Admission a = new Admission(1, 2);
+        assertTrue(offer(a, "a", 0));
+        assertTrue(offer(a, "b", 0));
+        assertTrue(offer(a, "c", 0));
+        // no slot and no room to wait: refused at once, and the caller sends the 421
+        assertFalse(offer(a, "d", 0));
+        assertEquals("[a: 220]", heard());
+        assertEquals(2, a.waitingNow());
+
+        a.release();
+        assertEquals("[b: 220]", heard());
+        assertEquals(1, a.activeNow());
+        assertEquals(1, a.waitingNow());
+        a.release();
+        assertEquals("[c: 220]", heard());
+        a.release();
+        assertEquals("[]", heard());
+        assertEquals(0, a.activeNow());
+
+        assertEquals(3, a.admittedCount());
+        assertEquals(2, a.queuedCount());
+        assertEquals(1, a.rejectedCount());
+        // and the permit is free for the next one
+        assertTrue(offer(a, "e", 0));
+        assertEquals("[e: 220]", heard());
+    }
+
+    @Test
+    void waitingTooLongGetsA421()
+    throws InterruptedException {
+        Admission a = new Admission(1, 1);
+        assertTrue(offer(a, "a", 0));
+        CountDownLatch gaveUp = new CountDownLatch(1);
+        assertTrue(a.offer(start("b"), giveUp("b", gaveUp), 50));
+        assertTrue(gaveUp.await(5, TimeUnit.SECONDS));
+        assertEquals("[a: 220, b: 421]", heard());
+        // not on the common pool, which the rest of the JVM needs
+        assertEquals("lmtp_admission", gaveUpOn);
+        assertEquals(0, a.waitingNow());
+        assertEquals(1, a.rejectedCount());
+
+        // the permit that frees up later isn't given to the connection that has gone
+        a.release();
+        assertEquals("[]", heard());
+        assertTrue(offer(a, "c", 0));
+        assertEquals("[c: 220]", heard());
+        assertEquals(2, a.admittedCount());
+    }
+
+    @Test
+    void startedInTimeIsNotGivenUpOn()
+    throws InterruptedException {
+        Admission a = new Admission(1, 1);
+        assertTrue(offer(a, "a", 0));
+        CountDownLatch gaveUp = new CountDownLatch(1);
+        assertTrue(a.offer(start("b"), giveUp("b", gaveUp), 50));
+        a.release();
+        assertFalse(gaveUp.await(200, TimeUnit.MILLISECONDS));
+        assertEquals("[a: 220, b: 220]", heard());
+        assertEquals(0, a.rejectedCount());
+    }
+
+    @Test
+    void shutdownGivesUpOnEveryoneWaiting() {
+        Admission a = new Admission(1, 3);
+        assertTrue(offer(a, "a", 0));
+        assertTrue(offer(a, "b", 0));
+        assertTrue(offer(a, "c", 0));
+        heard();
+        a.shutdown();
+        assertEquals("[b: 421, c: 421]", heard());
+        assertEquals(0, a.waitingNow());
+        assertEquals(2, a.rejectedCount());
+
+        // nothing is started or queued after that, even with a permit free
+        a.release();
+        assertFalse(offer(a, "d", 0));
+        assertEquals("[]", heard());
+        assertEquals(3, a.rejectedCount());
+        assertEquals(1, a.admittedCount());
+    }
+
+
+    /**
+     * @return the next line from _in, without its line ending
+     */
+    private static String readLine(InputStream _in)
+    throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while (((c = _in.read()) >= 0) && (c != '\n')) {
+            if (c != '\r')
+                sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    void nioConnectionWaitingTooLongGetsA421()
+    throws IOException {
+        int savedSessions = LMTP.MAX_SESSIONS;
+        int savedQueued = LMTP.MAX_QUEUED_CONNECTIONS;
+        LMTP.MAX_SESSIONS = 1;
+        LMTP.MAX_QUEUED_CONNECTIONS = 1;
+        LMTPEngine engine = new LMTPEngine(LMTP.ENGINE_NIO);
+        LMTP.MAX_SESSIONS = savedSessions;
+        LMTP.MAX_QUEUED_CONNECTIONS = savedQueued;
+        try {
+            Vector <String> hosts = new Vector <String> ();
+            hosts.add("127.0.0.1");
+            Properties p = new Properties();
+            p.setProperty("MY_HOST", "localhost");
+            p.setProperty("LIVE_NET_LOOKUPS", "false");
+            p.setProperty("DOMAINS_SERVED", SessionDriver.DOMAIN);
+            // how long a connection may wait for a slot
+            p.setProperty("INACTIVITY_TIMEOUT_MSEC", "200");
+            LMTP server = new SessionDriver.KeepingLMTP(engine, ServerConfig.fromDefaults(hosts, new Vector <String> ()).with(p));
+            server.start();
+            Socket a = new Socket(InetAddress.getByName("127.0.0.1"), server.getPort());
+            Socket b = new Socket(InetAddress.getByName("127.0.0.1"), server.getPort());
+            try {
+                a.setSoTimeout(5000);
+                b.setSoTimeout(5000);
+                assertTrue(readLine(a.getInputStream()).startsWith("220 "));
+                // b never reads until it has been given up on, and then hears why
+                assertEquals("421 localhost Service busy, try again later", readLine(b.getInputStream()));
+                assertEquals(-1, b.getInputStream().read());
+                assertEquals(1, engine.admission.rejectedCount());
+            }
+            finally {
+                a.close();
+                b.close();
+            }
+        }
+        finally {
+            engine.stop();
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * BufferPool: leases by size class, counted as reused or allocated, and a cap on what it keeps.
+ */
+class BufferPoolTest {
+
+    private final Metrics metrics = new Metrics(null);
+
+
+    private BufferPool pool(long _maxPooledBytes) {
+        return new BufferPool(new int[] { 4096, 1024, 2048, 1024 }, _maxPooledBytes, metrics,
+                Metrics.Counter.BUFFERS_REUSED, Metrics.Counter.BUFFERS_ALLOCATED);
+    }
+
+    private long reused() {
+        return metrics.get(Metrics.Counter.BUFFERS_REUSED);
+    }
+
+    private long allocated() {
+        return metrics.get(Metrics.Counter.BUFFERS_ALLOCATED);
+    }
+
+
+    @Test
+    void doublingSizes() {
+        assertArrayEquals(new int[] { 4096, 8192, 16384, 32768 }, BufferPool.doubling(4096, 32768));
+        // the largest is always there, even if it isn't a doubling
+        assertArrayEquals(new int[] { 4096, 8192, 10000 }, BufferPool.doubling(4096, 10000));
+        assertArrayEquals(new int[] { 4096 }, BufferPool.doubling(4096, 4096));
+        assertArrayEquals(new int[] { 4096 }, BufferPool.doubling(4096, 100));
+    }
+
+    @Test
+    void leasesTheSmallestClassThatFits() {
+        BufferPool p = pool(1024 * 1024);
+        assertEquals(1024, p.sizeFor(1));
+        assertEquals(1024, p.sizeFor(1024));
+        assertEquals(2048, p.sizeFor(1025));
+        assertEquals(4096, p.sizeFor(4096));
+        // bigger than every class: exactly what was asked for
+        assertEquals(5000, p.sizeFor(5000));
+        assertEquals(2048, p.lease(1500).length);
+        assertEquals(5000, p.lease(5000).length);
+        assertEquals(2, allocated());
+        assertEquals(0, reused());
+    }
+
+    @Test
+    void releasedBuffersAreReusedAndCounted() {
+        BufferPool p = pool(1024 * 1024);
+        byte[] a = p.lease(2000);
+        assertEquals(1, allocated());
+        p.release(a);
+        assertEquals(2048, p.pooledBytes());
+
+        // any request its class covers gets it back
+        assertSame(a, p.lease(1025));
+        assertEquals(1, reused());
+        assertEquals(0, p.pooledBytes());
+        // the class is empty again
+        assertNotSame(a, p.lease(2048));
+        assertEquals(2, allocated());
+        // and a smaller class isn't served from a bigger one
+        p.release(a);
+        p.lease(100);
+        assertEquals(3, allocated());
+        assertEquals(1, reused());
+    }
+
+    @Test
+    void buffersOfNoClassAreNotKept() {
+        BufferPool p = pool(1024 * 1024);
+        p.release(new byte[5000]);
+        p.release(new byte[1500]);
+        p.release(null);
+        assertEquals(0, p.pooledBytes());
+        p.lease(5000);
+        p.lease(1500);
+        assertEquals(0, reused());
+        assertEquals(2, allocated());
+    }
+
+    @Test
+    void keepsNoMoreThanItsCap() {
+        BufferPool p = pool(3 * 1024);
+        byte[] a = p.lease(1024);
+        byte[] b = p.lease(1024);
+        byte[] c = p.lease(2048);
+        p.release(a);
+        p.release(c);
+        assertEquals(3 * 1024, p.pooledBytes());
+        // full: this one goes to the garbage collector
+        p.release(b);
+        assertEquals(3 * 1024, p.pooledBytes());
+        assertSame(a, p.lease(1024));
+        assertNotSame(b, p.lease(1024));
+        assertEquals(2 * 1024, p.pooledBytes());
+
+        BufferPool none = pool(0);
+        none.release(none.lease(1024));
+        assertEquals(0, none.pooledBytes());
+    }
+
+}
@@ -0,0 +1,301 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Vector;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * BDAT and BODY=BINARYMIME in the session (RFC 3030): chunks counted by their size and put together in order, LAST,
+ * DATA refused once a message is being chunked, and chunks that are refused or too big read to their end and thrown
+ * away, so the bytes that follow are taken as commands again.
+ */
+class ChunkingSessionTest {
+
+    private static final String RCPT = "user@"+SessionDriver.DOMAIN;
+    private static final String RCPT2 = "other@"+SessionDriver.DOMAIN;
+
+    private SessionDriver d;
+
+
+    @AfterEach
+    void tearDown() {
+        if (d != null)
+            d.stop();
+    }
+
+    private void start(Properties _settings)
+    throws IOException {
+        d = new SessionDriver(_settings);
+        d.line("LHLO client.test");
+        d.said();
+    }
+
+    private void start()
+    throws IOException {
+        start(new Properties());
+    }
+
+    /**
+     * MAIL FROM with _parameters, and RCPT TO each of _rcpts, all accepted
+     */
+    private void transaction(String _parameters, String... _rcpts)
+    throws IOException {
+        d.line("MAIL FROM:<sender@example.com>"+_parameters);
+        for (int i = 0; i < _rcpts.length; i++)
+            d.line("RCPT TO:<"+_rcpts[i]+">");
+        Vector <String> r = d.replies();
+        assertEquals(_rcpts.length + 1, r.size(), r.toString());
+        for (int i = 0; i < r.size(); i++)
+            assertTrue(r.get(i).startsWith("250 "), r.get(i));
+    }
+
+    private void transaction(String _rcpt)
+    throws IOException {
+        transaction("", _rcpt);
+    }
+
+
+    @Test
+    void chunksAreCountedAndPutTogether()
+    throws IOException {
+        start();
+        d.line("LHLO client.test");
+        String capabilities = d.said();
+        assertTrue(capabilities.contains("250-CHUNKING"), capabilities);
+        assertTrue(capabilities.contains("250-BINARYMIME"), capabilities);
+
+        transaction(RCPT);
+        d.line("BDAT 6");
+        assertEquals(6, d.session.bytesWanted());
+        assertEquals("", d.said());
+        assertEquals(0, d.bytes("Hello "));
+        assertEquals(0, d.session.bytesWanted());
+        assertEquals("250 6 octets received", d.said());
+        // the bytes of a chunk are taken as they are: line endings and a lone dot are nothing special
+        d.line("BDAT 12 LAST");
+        assertEquals(0, d.bytes("world\r\n.\r\nok"));
+        assertEquals("250 "+RCPT+" delivered", d.said());
+        Vector <String> delivered = d.delivered();
+        assertEquals(1, delivered.size());
+        assertEquals(RCPT+": Hello world\r\n.\r\nok", delivered.get(0));
+
+        // and the next message starts from nothing
+        transaction(RCPT);
+        d.line("BDAT 3 LAST");
+        d.bytes("two");
+        assertEquals("250 "+RCPT+" delivered", d.said());
+        assertEquals(RCPT+": two", d.delivered().get(0));
+    }
+
+    @Test
+    void chunkCanComeInPieces()
+    throws IOException {
+        start();
+        transaction("", RCPT, RCPT2);
+        d.line("BDAT 10 LAST");
+        assertEquals(0, d.bytes("abc"));
+        assertEquals(7, d.session.bytesWanted());
+        assertEquals(0, d.bytes("defg"));
+        assertEquals(3, d.session.bytesWanted());
+        assertEquals("", d.said());
+        assertEquals(0, d.bytes("hij"));
+        // a status line for each recipient
+        assertEquals("250 "+RCPT+" delivered|250 "+RCPT2+" delivered", d.said());
+        Vector <String> delivered = d.delivered();
+        assertEquals(RCPT+": abcdefghij", delivered.get(0));
+        assertEquals(RCPT2+": abcdefghij", delivered.get(1));
+    }
+
+    @Test
+    void bytesAfterTheChunkAreLeftOver()
+    throws IOException {
+        start();
+        transaction(RCPT);
+        d.line("BDAT 4");
+        // only the chunk is taken; what follows is the next command
+        assertEquals(6, d.bytes("1234NOOP\r\n"));
+        assertEquals(0, d.session.bytesWanted());
+        assertEquals("250 4 octets received", d.said());
+    }
+
+    @Test
+    void emptyLastChunkEndsTheMessage()
+    throws IOException {
+        start();
+        transaction(RCPT);
+        d.line("BDAT 5");
+        d.bytes("whole");
+        assertEquals("250 5 octets received", d.said());
+        // nothing to read, so the message is delivered straight away
+        d.line("BDAT 0 LAST");
+        assertEquals(0, d.session.bytesWanted());
+        assertEquals("250 "+RCPT+" delivered", d.said());
+        assertEquals(RCPT+": whole", d.delivered().get(0));
+    }
+
+    @Test
+    void badBdatHasNothingToSkip()
+    throws IOException {
+        // each one is an error, and there are more of them than the default allows
+        Properties p = new Properties();
+        p.setProperty("MAX_ERRORS_BEFORE_DISCONNECT", "10");
+        start(p);
+        transaction(RCPT);
+        String[] bad = { "BDAT", "BDAT x", "BDAT -1", "BDAT 5 FIRST" };
+        for (int i = 0; i < bad.length; i++) {
+            d.line(bad[i]);
+            assertEquals("501 Syntax error. Use BDAT <size> [LAST]", d.said(), bad[i]);
+            assertEquals(0, d.session.bytesWanted(), bad[i]);
+        }
+        // the transaction goes on
+        d.line("BDAT 2 LAST");
+        d.bytes("ok");
+        assertEquals("250 "+RCPT+" delivered", d.said());
+    }
+
+    @Test
+    void refusedChunkIsReadBeforeTheRefusal()
+    throws IOException {
+        start();
+        d.line("BDAT 5");
+        assertEquals(5, d.session.bytesWanted());
+        // the refusal waits until the chunk's bytes are out of the way
+        assertEquals(0, d.bytes("12"));
+        assertEquals("", d.said());
+        assertEquals(4, d.bytes("345NOOP"));
+        assertEquals("503 need MAIL FROM", d.said());
+
+        d.line("MAIL FROM:<sender@example.com>");
+        d.said();
+        d.line("BDAT 3 LAST");
+        d.bytes("abc");
+        assertEquals("503 need RCPT (recipient)", d.said());
+        assertEquals(0, d.delivered().size());
+
+        // nothing of the refused chunks made it into the body
+        d.line("RCPT TO:<"+RCPT+">");
+        d.said();
+        d.line("BDAT 2 LAST");
+        d.bytes("ok");
+        assertEquals("250 "+RCPT+" delivered", d.said());
+        assertEquals(RCPT+": ok", d.delivered().get(0));
+    }
+
+    @Test
+    void noDataOnceChunkingHasStarted()
+    throws IOException {
+        start();
+        transaction(RCPT);
+        d.line("BDAT 4");
+        d.bytes("part");
+        d.said();
+        d.line("DATA");
+        assertEquals("503 BDAT required for this message", d.said());
+        // the chunks so far are kept
+        d.line("BDAT 4 LAST");
+        d.bytes(" two");
+        assertEquals("250 "+RCPT+" delivered", d.said());
+        assertEquals(RCPT+": part two", d.delivered().get(0));
+
+        // a new transaction may use DATA again
+        transaction(RCPT);
+        d.line("DATA");
+        assertEquals("354 Start mail input; end with <CRLF>.<CRLF>", d.said());
+        d.lines("by data", ".");
+        assertEquals("250 "+RCPT+" delivered", d.said());
+    }
+
+    @Test
+    void dataThenBdat()
+    throws IOException {
+        start();
+        transaction(RCPT);
+        d.lines("DATA", "by data", ".");
+        assertEquals("354 Start mail input; end with <CRLF>.<CRLF>|250 "+RCPT+" delivered", d.said());
+        // BDAT for the next message, on the same connection
+        transaction(RCPT);
+        d.line("BDAT 7 LAST");
+        d.bytes("by bdat");
+        assertEquals("250 "+RCPT+" delivered", d.said());
+        Vector <String> delivered = d.delivered();
+        assertEquals(2, delivered.size());
+        assertEquals(RCPT+": by bdat", delivered.get(1));
+    }
+
+    @Test
+    void binaryMimeNeedsBdat()
+    throws IOException {
+        start();
+        transaction(" BODY=BINARYMIME", RCPT);
+        d.line("DATA");
+        assertEquals("503 BDAT required for this message", d.said());
+        d.line("BDAT 4 LAST");
+        d.bytes("\u0000\u0001\r\u007f");
+        assertEquals("250 "+RCPT+" delivered", d.said());
+
+        // it's only for that message
+        transaction(" BODY=8BITMIME", RCPT);
+        d.line("DATA");
+        assertEquals("354 Start mail input; end with <CRLF>.<CRLF>", d.said());
+        d.lines("text", ".");
+        d.said();
+
+        d.line("MAIL FROM:<sender@example.com> BODY=BINARY");
+        assertEquals("501 Syntax error in BODY parameter", d.said());
+    }
+
+    @Test
+    void oversizeChunkIsDrainedAndRefused()
+    throws IOException {
+        Properties p = new Properties();
+        p.setProperty("MAX_MESSAGE_SIZE", "10");
+        start(p);
+        transaction("", RCPT, RCPT2);
+        d.line("BDAT 6");
+        d.bytes("123456");
+        assertEquals("250 6 octets received", d.said());
+        // 6 and 6 is over 10: the chunk is still read, every byte of it, and the next command after it
+        d.line("BDAT 6");
+        assertEquals(6, d.session.bytesWanted());
+        assertEquals(4, d.bytes("abcdefNOOP"));
+        assertEquals("250 6 octets received", d.said());
+        // the refusal comes at the end of the message, once for each recipient
+        d.line("BDAT 20 LAST");
+        assertEquals(20, d.session.bytesWanted());
+        assertEquals(0, d.bytes("01234567890123456789"));
+        assertEquals("552 Message exceeds fixed maximum message size|552 Message exceeds fixed maximum message size", d.said());
+        assertEquals(0, d.delivered().size());
+
+        // the next message is fine
+        transaction(RCPT);
+        d.line("BDAT 10 LAST");
+        d.bytes("0123456789");
+        assertEquals("250 "+RCPT+" delivered", d.said());
+        assertEquals(RCPT+": 0123456789", d.delivered().get(0));
+    }
+
+    @Test
+    void firstChunkTooBig()
+    throws IOException {
+        Properties p = new Properties();
+        p.setProperty("MAX_MESSAGE_SIZE", "10");
+        start(p);
+        transaction(RCPT);
+        d.line("BDAT 11 LAST");
+        assertEquals(0, d.bytes("0123456789X"));
+        assertEquals("552 Message exceeds fixed maximum message size", d.said());
+        assertEquals(0, d.delivered().size());
+    }
+
+}
@@ -0,0 +1,202 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.Charset;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Command lines parsed from their bytes: the verb table, case folding, lines too short or too odd to be a command,
+ * and the word-at-a-time look at the parameters.
+ */
+class CommandLineTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static byte[] ascii(String _s) {
+        return _s.getBytes(ASCII);
+    }
+
+    /**
+     * @return a CommandLine that has parsed _line, which is put in the middle of a bigger array so parse() has to
+     * keep to the offset and length it's given
+     */
+    private static CommandLine parsed(String _line) {
+        CommandLine c = new CommandLine();
+        assertTrue(c.parse(padded(_line), 3, _line.length()), _line);
+        return c;
+    }
+
+    private static byte[] padded(String _line) {
+        return ascii("XYZ"+_line+"QUIT");
+    }
+
+    private static CommandLine.Verb verbOf(String _line) {
+        return parsed(_line).verb();
+    }
+
+
+    @Test
+    void everyVerbIsFound() {
+        CommandLine.Verb[] verbs = CommandLine.Verb.values();
+        for (int i = 0; i < verbs.length; i++) {
+            CommandLine.Verb v = verbs[i];
+            if (v == CommandLine.Verb.UNKNOWN)
+                continue;
+            String line = v.name();
+            if (v == CommandLine.Verb.MAIL)
+                line += " FROM:<a@b>";
+            else if (v == CommandLine.Verb.RCPT)
+                line += " TO:<a@b>";
+            assertEquals(v, verbOf(line), line);
+        }
+    }
+
+    @Test
+    void verbsAreFoldedToLowercase() {
+        assertEquals(CommandLine.Verb.LHLO, verbOf("lhlo host"));
+        assertEquals(CommandLine.Verb.LHLO, verbOf("LhLo host"));
+        assertEquals(CommandLine.Verb.DATA, verbOf("data"));
+        assertEquals(CommandLine.Verb.STARTTLS, verbOf("starttls"));
+        assertEquals(CommandLine.Verb.STARTTLS, verbOf("StartTLS"));
+        assertEquals(CommandLine.Verb.MAIL, verbOf("mail from:<a@b>"));
+        assertEquals(CommandLine.Verb.RCPT, verbOf("Rcpt To:<a@b>"));
+        assertEquals("lhlo", parsed("LhLo host").verbText());
+    }
+
+    @Test
+    void mailAndRcptNeedFromAndTo() {
+        assertEquals(CommandLine.Verb.UNKNOWN, verbOf("MAIL"));
+        assertEquals(CommandLine.Verb.UNKNOWN, verbOf("MAIL <a@b>"));
+        assertEquals(CommandLine.Verb.UNKNOWN, verbOf("MAIL FROM <a@b>"));
+        assertEquals(CommandLine.Verb.UNKNOWN, verbOf("MAIL TO:<a@b>"));
+        assertEquals(CommandLine.Verb.UNKNOWN, verbOf("RCPT FROM:<a@b>"));
+        assertEquals(CommandLine.Verb.UNKNOWN, verbOf("RCPT TO"));
+        // the colon is all that has to follow
+        assertEquals(CommandLine.Verb.MAIL, verbOf("MAIL FROM:"));
+        assertEquals(CommandLine.Verb.RCPT, verbOf("RCPT TO:"));
+    }
+
+    @Test
+    void blankLinesAreNotCommands() {
+        CommandLine c = new CommandLine();
+        assertFalse(c.parse(padded(""), 3, 0));
+        assertEquals(CommandLine.Verb.UNKNOWN, c.verb());
+        assertFalse(c.parse(padded(" \t  "), 3, 4));
+        assertEquals(CommandLine.Verb.UNKNOWN, c.verb());
+    }
+
+    @Test
+    void shortAndLongVerbsAreUnknown() {
+        assertEquals(CommandLine.Verb.UNKNOWN, verbOf("L"));
+        assertEquals(CommandLine.Verb.UNKNOWN, verbOf("NO"));
+        assertEquals(CommandLine.Verb.UNKNOWN, verbOf("MAI FROM:<a@b>"));
+        assertEquals(CommandLine.Verb.UNKNOWN, verbOf("QUITS"));
+        assertEquals(CommandLine.Verb.UNKNOWN, verbOf("STARTTL"));
+        assertEquals(CommandLine.Verb.UNKNOWN, verbOf("STARTTLSX"));
+        assertEquals(CommandLine.Verb.UNKNOWN, verbOf("HELO host"));
+        // a verb isn't found in a longer word
+        assertEquals(CommandLine.Verb.UNKNOWN, verbOf("NOOPNOOP"));
+        assertEquals("mai", parsed("MAI FROM:<a@b>").verbText());
+    }
+
+    @Test
+    void unknownAfterAKnownVerb() {
+        // the session reuses one CommandLine, so nothing may carry over from the line before
+        CommandLine c = new CommandLine();
+        assertTrue(c.parse(padded("NOOP"), 3, 4));
+        assertEquals(CommandLine.Verb.NOOP, c.verb());
+        assertTrue(c.parse(padded("XYZZY"), 3, 5));
+        assertEquals(CommandLine.Verb.UNKNOWN, c.verb());
+        assertFalse(c.parse(padded(""), 3, 0));
+        assertEquals(CommandLine.Verb.UNKNOWN, c.verb());
+    }
+
+    @Test
+    void surroundingWhitespaceIsIgnored() {
+        CommandLine c = parsed("  \tLHLO   host.example.com  \r");
+        assertEquals(CommandLine.Verb.LHLO, c.verb());
+        assertEquals("lhlo", c.verbText());
+        assertEquals("host.example.com", c.argument());
+    }
+
+    @Test
+    void argumentIsTheWordAfterTheVerb() {
+        assertNull(parsed("DATA").argument());
+        assertNull(parsed("DATA   ").argument());
+        assertEquals("host", parsed("LHLO host").argument());
+        assertEquals("host", parsed("LHLO  host  more words").argument());
+        assertEquals("FROM:<a@b>", parsed("MAIL FROM:<a@b> SIZE=10").argument());
+    }
+
+    @Test
+    void wordsAfterTheVerb() {
+        CommandLine c = parsed("MAIL FROM:<a@b>  SIZE=1024 BODY=8bitmime");
+        assertTrue(c.nextWord());
+        assertTrue(c.wordHasPrefix(ascii("from:")));
+        assertTrue(c.nextWord());
+        assertTrue(c.wordHasPrefix(ascii("size=")));
+        assertEquals(1024, c.wordNumber(5));
+        assertTrue(c.nextWord());
+        assertTrue(c.wordHasPrefix(ascii("body=")));
+        assertTrue(c.wordIs(5, ascii("8bitmime")));
+        assertFalse(c.wordIs(5, ascii("7bit")));
+        assertFalse(c.nextWord());
+        assertFalse(c.nextWord());
+
+        // parse() starts the words again
+        c.parse(padded("BDAT 3"), 3, 6);
+        assertTrue(c.nextWord());
+        assertEquals(3, c.wordNumber(0));
+        assertFalse(c.nextWord());
+    }
+
+    @Test
+    void wordPrefixNeedsSomethingAfterIt() {
+        CommandLine c = parsed("MAIL FROM:<a@b> SIZE= Size=5");
+        c.nextWord();
+        c.nextWord();
+        assertFalse(c.wordHasPrefix(ascii("size=")));
+        c.nextWord();
+        assertTrue(c.wordHasPrefix(ascii("size=")));
+        assertFalse(c.wordHasPrefix(ascii("size=5")));
+    }
+
+    @Test
+    void wordIsComparesTheWholeRest() {
+        CommandLine c = parsed("BDAT 10 LAST");
+        c.nextWord();
+        c.nextWord();
+        assertTrue(c.wordIs(0, ascii("last")));
+        assertFalse(c.wordIs(0, ascii("las")));
+        assertFalse(c.wordIs(0, ascii("lastly")));
+        assertTrue(c.wordIs(2, ascii("st")));
+    }
+
+    @Test
+    void wordNumbers() {
+        CommandLine c = parsed("BDAT 0 007 12a -5 +5 9223372036854775807 9223372036854775808 99999999999999999999");
+        long[] expected = { 0, 7, -1, -1, -1, Long.MAX_VALUE, -1, -1 };
+        for (int i = 0; i < expected.length; i++) {
+            assertTrue(c.nextWord());
+            assertEquals(expected[i], c.wordNumber(0), "word "+i);
+        }
+        assertFalse(c.nextWord());
+
+        // nothing left after the skip
+        c = parsed("MAIL FROM:<> SIZE=");
+        c.nextWord();
+        c.nextWord();
+        assertEquals(-1, c.wordNumber(5));
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.charset.Charset;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Reloading a configuration file: the hosts, domains and inactivity timeout it sets are in force for new connections
+ * at once and for a running session from its next transaction, and each reload is applied to the configuration the
+ * server was made with, so a setting taken out of the file goes back to what it was at startup.
+ */
+class ConfigReloadTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String OTHER = "other.test";
+
+    @TempDir
+    File dir;
+
+    private SessionDriver d;
+    private File file;
+    private ConfigWatcher watcher;
+
+
+    @BeforeEach
+    void setUp()
+    throws IOException {
+        d = new SessionDriver();
+        file = new File(dir, "lmtp.properties");
+        watcher = new ConfigWatcher(d.server, file);
+        d.line("LHLO client.test");
+        d.said();
+    }
+
+    @AfterEach
+    void tearDown() {
+        d.stop();
+    }
+
+
+    private void write(String _settings)
+    throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(_settings.getBytes(ASCII));
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private boolean approves(String _host)
+    throws IOException {
+        return d.server.getConfig().approvedHosts.contains(InetAddress.getByName(_host));
+    }
+
+
+    @Test
+    void reloadTakesEffectAtTheNextTransaction()
+    throws IOException, InterruptedException {
+        d.lines("MAIL FROM:<sender@example.com>", "RCPT TO:<user@"+SessionDriver.DOMAIN+">");
+        d.said();
+
+        write("APPROVED_HOSTS = 10.0.0.1\nDOMAINS_SERVED = "+OTHER+"\nINACTIVITY_TIMEOUT_MSEC = 50\n");
+        assertTrue(watcher.reload());
+        // new connections are checked against it at once
+        assertTrue(approves("10.0.0.1"));
+        assertFalse(approves("127.0.0.1"));
+
+        // the transaction under way finishes under the rules it started with
+        d.line("RCPT TO:<user@"+OTHER+">");
+        assertEquals("551 We do not relay and we do not accept mail for "+OTHER, d.said());
+        Thread.sleep(100);
+        d.session.process(null);
+        assertEquals("", d.said());
+        d.lines("DATA", "kept", ".");
+        assertEquals("[user@"+SessionDriver.DOMAIN+": kept\n]", d.delivered().toString());
+        d.said();
+
+        // and the next one runs under the new ones
+        d.lines("MAIL FROM:<sender@example.com>", "RCPT TO:<user@"+SessionDriver.DOMAIN+">", "RCPT TO:<user@"+OTHER+">");
+        String said = d.said();
+        assertTrue(said.endsWith("|551 We do not relay and we do not accept mail for "+SessionDriver.DOMAIN+"|250 user@"+OTHER+" Recipient ok"), said);
+        Thread.sleep(100);
+        d.session.process(null);
+        assertEquals("500 Timeout|221 localhost closing connection", d.said());
+    }
+
+    @Test
+    void settingsLeftOutGoBackToTheirStartupValues()
+    throws IOException {
+        ServerConfig startup = d.server.getConfig();
+        write("DOMAINS_SERVED = "+OTHER+"\nINACTIVITY_TIMEOUT_MSEC = 50\nMAX_RECIPIENTS = 5\n");
+        assertTrue(watcher.reload());
+        assertEquals(50, d.server.getConfig().inactivityTimeoutMsec);
+        assertEquals("["+OTHER+"]", d.server.getConfig().getDomainsServed().toString());
+
+        // the domains and the timeout are no longer in the file: the server's own come back, not the last reload's
+        write("MAX_RECIPIENTS = 7\n");
+        assertTrue(watcher.reload());
+        assertEquals(startup.inactivityTimeoutMsec, d.server.getConfig().inactivityTimeoutMsec);
+        assertEquals(startup.getDomainsServed(), d.server.getConfig().getDomainsServed());
+        assertEquals(7, d.server.getConfig().maxRecipients);
+
+        d.lines("RSET", "MAIL FROM:<sender@example.com>", "RCPT TO:<user@"+SessionDriver.DOMAIN+">");
+        assertTrue(d.said().endsWith("|250 user@"+SessionDriver.DOMAIN+" Recipient ok"));
+
+        // a file that can't be read changes nothing
+        assertTrue(file.delete());
+        ServerConfig before = d.server.getConfig();
+        assertFalse(watcher.reload());
+        assertTrue(before == d.server.getConfig());
+    }
+
+}
@@ -0,0 +1,132 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * The domains served: the three kinds of rule on their own, and what happens when rules for the same domain, or for
+ * a domain and one under it, are mixed.
+ */
+class DomainIndexTest {
+
+    private static DomainIndex index(String... _rules) {
+        DomainIndex d = new DomainIndex();
+        for (int i = 0; i < _rules.length; i++)
+            d.add(_rules[i]);
+        return d;
+    }
+
+
+    @Test
+    void exactRuleIsJustThatDomain() {
+        DomainIndex d = index("example.com");
+        assertTrue(d.contains("example.com"));
+        assertFalse(d.contains("mail.example.com"));
+        assertFalse(d.contains("com"));
+        assertFalse(d.contains("example.org"));
+        // a label has to match whole, not just end the same
+        assertFalse(d.contains("anexample.com"));
+        assertFalse(d.contains("example.community"));
+    }
+
+    @Test
+    void wildcardRuleIsTheDomainsUnderIt() {
+        DomainIndex d = index("*.example.com");
+        assertFalse(d.contains("example.com"));
+        assertTrue(d.contains("mail.example.com"));
+        assertTrue(d.contains("a.b.example.com"));
+        assertFalse(d.contains("mail.example.org"));
+        assertFalse(d.contains("anexample.com"));
+    }
+
+    @Test
+    void dotRuleIsTheDomainAndTheOnesUnderIt() {
+        DomainIndex d = index(".example.com");
+        assertTrue(d.contains("example.com"));
+        assertTrue(d.contains("mail.example.com"));
+        assertTrue(d.contains("a.b.example.com"));
+        assertFalse(d.contains("com"));
+        assertFalse(d.contains("anexample.com"));
+    }
+
+    @Test
+    void exactAndWildcardTogetherAreTheDotRule() {
+        // in either order
+        DomainIndex d = index("example.com", "*.example.com");
+        DomainIndex e = index("*.example.com", "example.com");
+        String[] domains = { "example.com", "mail.example.com", "a.b.example.com" };
+        for (int i = 0; i < domains.length; i++) {
+            assertTrue(d.contains(domains[i]), domains[i]);
+            assertTrue(e.contains(domains[i]), domains[i]);
+        }
+    }
+
+    @Test
+    void ruleForAParentCoversMoreSpecificRules() {
+        // the wildcard on example.com settles anything under it before the rule for mail.example.com is reached
+        DomainIndex d = index("*.example.com", "mail.example.com");
+        assertTrue(d.contains("mail.example.com"));
+        assertTrue(d.contains("x.mail.example.com"));
+        assertTrue(d.contains("other.example.com"));
+        assertFalse(d.contains("example.com"));
+    }
+
+    @Test
+    void exactRuleForASubdomainDoesNotServeItsParent() {
+        DomainIndex d = index("mail.example.com", "*.lists.example.com");
+        assertTrue(d.contains("mail.example.com"));
+        assertFalse(d.contains("example.com"));
+        assertFalse(d.contains("www.example.com"));
+        assertFalse(d.contains("x.mail.example.com"));
+        assertTrue(d.contains("dev.lists.example.com"));
+        assertFalse(d.contains("lists.example.com"));
+    }
+
+    @Test
+    void singleLabelDomains() {
+        DomainIndex d = index("localhost", ".test");
+        assertTrue(d.contains("localhost"));
+        assertFalse(d.contains("a.localhost"));
+        assertTrue(d.contains("test"));
+        assertTrue(d.contains("bench.test"));
+    }
+
+    @Test
+    void rulesAreTrimmedAndLowercased() {
+        DomainIndex d = index("  Example.COM ", " *.Example.Org");
+        assertTrue(d.contains("example.com"));
+        assertTrue(d.contains("mail.example.org"));
+    }
+
+    @Test
+    void emptyAndMalformedDomainsAreNotServed() {
+        DomainIndex d = index(".example.com");
+        assertFalse(d.contains(""));
+        assertFalse(d.contains("."));
+        assertFalse(d.contains("example.com."));
+        assertFalse(d.contains(".example.com.."));
+        assertFalse(index().contains("example.com"));
+    }
+
+    @Test
+    void manySiblingsStillFound() {
+        // enough labels under one node to make its table grow a few times
+        DomainIndex d = new DomainIndex();
+        for (int i = 0; i < 500; i++)
+            d.add("host"+i+".example.com");
+        assertEquals(500, d.size());
+        for (int i = 0; i < 500; i++)
+            assertTrue(d.contains("host"+i+".example.com"));
+        assertFalse(d.contains("host500.example.com"));
+        assertFalse(d.contains("example.com"));
+    }
+
+}
@@ -0,0 +1,241 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Properties;
+import java.util.Vector;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Whole sessions over a real loopback connection, on each engine (ENGINE_THREADS, ENGINE_NIO, ENGINE_VIRTUAL): a
+ * pipelined MAIL/RCPT.../DATA group gets its replies in order and in one write (RFC 2920), the end of the message gets
+ * one status line for each accepted recipient (RFC 2033), lines that arrive split across reads, even between the CR
+ * and the LF, are put back together before the session sees them, and a client that goes quiet for
+ * INACTIVITY_TIMEOUT_MSEC is told so and closed, however the engine waits for its next line (polling, a select()
+ * sweep, or a blocking read with SO_TIMEOUT).
+ */
+class EngineLoopbackTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String RCPT = "user@"+SessionDriver.DOMAIN;
+    private static final String RCPT2 = "other@"+SessionDriver.DOMAIN;
+    private static final String SENDER_OK = "250 sender@example.com Sender ok";
+    private static final String START_DATA = "354 Start mail input; end with <CRLF>.<CRLF>";
+
+    private LMTPEngine engine;
+    private SessionDriver.KeepingLMTP server;
+    private Socket socket;
+
+
+    @AfterEach
+    void tearDown()
+    throws IOException {
+        if (socket != null)
+            socket.close();
+        if (engine != null)
+            engine.stop();
+    }
+
+
+    /**
+     * A server on _engineType with a port of its own, and a client connected to it that has had its greeting
+     * @param _settings more settings for the server's ServerConfig, as in a configuration file
+     */
+    private void connect(int _engineType, Properties _settings)
+    throws IOException {
+        engine = new LMTPEngine(_engineType);
+        Vector <String> hosts = new Vector <String> ();
+        hosts.add("127.0.0.1");
+        Properties p = new Properties();
+        p.setProperty("MY_HOST", "localhost");
+        p.setProperty("LIVE_NET_LOOKUPS", "false");
+        p.setProperty("DOMAINS_SERVED", SessionDriver.DOMAIN);
+        p.putAll(_settings);
+        server = new SessionDriver.KeepingLMTP(engine, ServerConfig.fromDefaults(hosts, new Vector <String> ()).with(p));
+        server.start();
+        socket = new Socket(InetAddress.getByName("127.0.0.1"), server.getPort());
+        socket.setSoTimeout(5000);
+        assertTrue(readLine().startsWith("220 "));
+    }
+
+    private void connect(int _engineType)
+    throws IOException {
+        connect(_engineType, new Properties());
+    }
+
+
+    /**
+     * Send _s as it is, in one write
+     */
+    private void send(String _s)
+    throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(_s.getBytes(ASCII));
+        out.flush();
+    }
+
+    /**
+     * @return the next line from the server, without its line ending
+     */
+    private String readLine()
+    throws IOException {
+        InputStream in = socket.getInputStream();
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while (((c = in.read()) >= 0) && (c != '\n')) {
+            if (c != '\r')
+                sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the next _n lines from the server, joined with | so a test can compare them in one go
+     */
+    private String readLines(int _n)
+    throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < _n; i++) {
+            if (i > 0)
+                sb.append('|');
+            sb.append(readLine());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return what one read() gets, once there's something to get: what the server wrote, in one write or several,
+     * that has reached the socket by then
+     */
+    private String readOnce()
+    throws IOException {
+        byte[] b = new byte[8192];
+        int n = socket.getInputStream().read(b);
+        return (n < 0) ? "" : new String(b, 0, n, ASCII);
+    }
+
+    /**
+     * Send LHLO and read its reply, every line of it
+     */
+    private void lhlo()
+    throws IOException {
+        send("LHLO client.test\r\n");
+        String line;
+        do {
+            line = readLine();
+        } while (line.startsWith("250-"));
+        assertTrue(line.startsWith("250 "), line);
+    }
+
+
+    @ParameterizedTest
+    @ValueSource(ints = { LMTP.ENGINE_THREADS, LMTP.ENGINE_NIO, LMTP.ENGINE_VIRTUAL })
+    void pipelinedGroupsAndPerRecipientReplies(int _engineType)
+    throws IOException {
+        connect(_engineType);
+        lhlo();
+        // the whole group in one write, with a recipient that's refused in the middle of it
+        send("MAIL FROM:<sender@example.com>\r\nRCPT TO:<"+RCPT+">\r\nRCPT TO:<nobody@elsewhere.test>\r\nRCPT TO:<"+RCPT2+">\r\nDATA\r\n");
+        // a reply written on its own would reach the client first, and this read would stop there
+        assertEquals(SENDER_OK+"\r\n"
+                +"250 "+RCPT+" Recipient ok\r\n"
+                +"551 We do not relay and we do not accept mail for elsewhere.test\r\n"
+                +"250 "+RCPT2+" Recipient ok\r\n"
+                +START_DATA+"\r\n", readOnce());
+
+        // one status line for each accepted recipient, in the order they were accepted, and nothing else
+        send("Subject: pipelined\r\n\r\nbody\r\n.\r\n");
+        assertEquals("250 "+RCPT+" delivered|250 "+RCPT2+" delivered", readLines(2));
+        send("NOOP\r\n");
+        assertEquals("250 OK", readLine());
+        // delivered in parallel on the delivery pool, if there is one, so in either order
+        assertEquals(2, server.delivered.size());
+        assertTrue(server.delivered.contains(RCPT+": Subject: pipelined\n\nbody\n"));
+        assertTrue(server.delivered.contains(RCPT2+": Subject: pipelined\n\nbody\n"));
+
+        // and a whole second transaction sent in one go, the QUIT included
+        send("MAIL FROM:<sender@example.com>\r\nRCPT TO:<"+RCPT2+">\r\nDATA\r\nsecond\r\n.\r\nQUIT\r\n");
+        assertEquals(SENDER_OK+"|250 "+RCPT2+" Recipient ok|"+START_DATA+"|250 "+RCPT2+" delivered|221 localhost closing connection",
+                readLines(5));
+        assertEquals(-1, socket.getInputStream().read());
+        assertEquals(RCPT2+": second\n", server.delivered.get(2));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { LMTP.ENGINE_THREADS, LMTP.ENGINE_NIO, LMTP.ENGINE_VIRTUAL })
+    void linesSplitAcrossReads(int _engineType)
+    throws IOException, InterruptedException {
+        connect(_engineType);
+        lhlo();
+        // each piece goes in a write of its own, with time for the server to read it before the next
+        String[] pieces = { "MAIL FR", "OM:<sender@example.com>\r", "\nRCPT TO:<", RCPT+">\r\nDA", "TA\r\n",
+                "Subject: split\r\n\r\nfir", "st line\r\nsecond", " line\r", "\n.", "\r\n" };
+        for (int i = 0; i < pieces.length; i++) {
+            send(pieces[i]);
+            Thread.sleep(20);
+        }
+        assertEquals(SENDER_OK+"|250 "+RCPT+" Recipient ok|"+START_DATA+"|250 "+RCPT+" delivered", readLines(4));
+        assertEquals(1, server.delivered.size());
+        assertEquals(RCPT+": Subject: split\n\nfirst line\nsecond line\n", server.delivered.get(0));
+
+        send("QUIT\r\n");
+        assertTrue(readLine().startsWith("221 "));
+        assertEquals(-1, socket.getInputStream().read());
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { LMTP.ENGINE_THREADS, LMTP.ENGINE_NIO, LMTP.ENGINE_VIRTUAL })
+    void quietClientTimesOut(int _engineType)
+    throws IOException {
+        Properties p = new Properties();
+        p.setProperty("INACTIVITY_TIMEOUT_MSEC", "300");
+        connect(_engineType, p);
+        lhlo();
+        send("MAIL FROM:<sender@example.com>\r\n");
+        assertEquals(SENDER_OK, readLine());
+        long start = System.currentTimeMillis();
+        // then nothing. the NIO loops only look every SWEEP_INTERVAL_MSEC, so it may take a while longer than 300
+        assertEquals("500 Timeout|221 localhost closing connection", readLines(2));
+        // the server's clock started when it read the MAIL FROM, a little before this one did
+        assertTrue(System.currentTimeMillis() - start >= 250);
+        assertEquals(-1, socket.getInputStream().read());
+        assertEquals(1, engine.getMetrics().get(Metrics.Counter.DISCONNECT_TIMEOUT));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { LMTP.ENGINE_THREADS, LMTP.ENGINE_NIO, LMTP.ENGINE_VIRTUAL })
+    void activeClientDoesNotTimeOut(int _engineType)
+    throws IOException, InterruptedException {
+        Properties p = new Properties();
+        p.setProperty("INACTIVITY_TIMEOUT_MSEC", "300");
+        connect(_engineType, p);
+        lhlo();
+        // every line starts the timeout over: well over 300 msec in all, but never 300 between two lines
+        send("MAIL FROM:<sender@example.com>\r\n");
+        assertEquals(SENDER_OK, readLine());
+        for (int i = 0; i < 8; i++) {
+            Thread.sleep(100);
+            send("RCPT TO:<"+RCPT+">\r\n");
+            assertEquals("250 "+RCPT+" Recipient ok", readLine());
+        }
+        send("QUIT\r\n");
+        assertTrue(readLine().startsWith("221 "));
+        assertEquals(0, engine.getMetrics().get(Metrics.Counter.DISCONNECT_TIMEOUT));
+    }
+
+}
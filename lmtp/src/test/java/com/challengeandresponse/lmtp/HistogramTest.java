@@ -0,0 +1,154 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+
+import javax.management.AttributeNotFoundException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Histogram's buckets at the edges (exact up to 16, then 16 to each power of two, up to Long.MAX_VALUE), its
+ * percentiles on values whose answers are known, and the Metrics snapshot they end up in.
+ */
+class HistogramTest {
+
+    @Test
+    void bucketEdges() {
+        assertEquals(0, Histogram.bucket(0));
+        assertEquals(15, Histogram.bucket(15));
+        // from 16 the buckets follow the powers of two, 16 to each, and are still exact up to 31
+        assertEquals(16, Histogram.bucket(16));
+        assertEquals(17, Histogram.bucket(17));
+        assertEquals(31, Histogram.bucket(31));
+        // then two values a bucket, four...
+        assertEquals(32, Histogram.bucket(32));
+        assertEquals(32, Histogram.bucket(33));
+        assertEquals(33, Histogram.bucket(34));
+        assertEquals(48, Histogram.bucket(64));
+        assertEquals(48, Histogram.bucket(67));
+        assertEquals(49, Histogram.bucket(68));
+
+        int last = Histogram.bucket(Long.MAX_VALUE);
+        assertEquals(959, last);
+        assertEquals(Long.MAX_VALUE, Histogram.highestValue(last));
+        assertEquals(last, Histogram.bucket(Long.MAX_VALUE - (1L << 58) + 1));
+        assertEquals(last - 1, Histogram.bucket(Long.MAX_VALUE - (1L << 58)));
+    }
+
+    @Test
+    void eachBucketHoldsUpToItsHighestValue() {
+        long[] values = { 0, 1, 15, 16, 17, 31, 32, 33, 34, 100, 1000, 123456789, 1L << 40, Long.MAX_VALUE / 3, Long.MAX_VALUE };
+        for (int i = 0; i < values.length; i++) {
+            int b = Histogram.bucket(values[i]);
+            assertTrue(Histogram.highestValue(b) >= values[i], Long.toString(values[i]));
+            if (b > 0)
+                assertTrue(Histogram.highestValue(b - 1) < values[i], Long.toString(values[i]));
+            // no bigger than 1/16 of the value
+            assertTrue(Histogram.highestValue(b) - values[i] <= values[i] / 16, Long.toString(values[i]));
+        }
+    }
+
+    @Test
+    void percentilesOfKnownValues() {
+        Histogram h = new Histogram("test");
+        assertEquals(0, h.getPercentile(50));
+        assertEquals(0, h.getMean());
+        for (long v = 1; v <= 100; v++)
+            h.record(v);
+        assertEquals(100, h.getCount());
+        assertEquals(50, h.getMean());
+        assertEquals(100, h.getMax());
+        assertEquals(1, h.getPercentile(0));
+        assertEquals(10, h.getPercentile(10));
+        // 50 shares a bucket with 51, 90 one with 88 to 91, and 99 is the top of its own
+        assertEquals(51, h.getPercentile(50));
+        assertEquals(91, h.getPercentile(90));
+        assertEquals(99, h.getPercentile(99));
+        // the top bucket goes up to 103, but nothing over 100 was recorded
+        assertEquals(100, h.getPercentile(100));
+    }
+
+    @Test
+    void extremeValues() {
+        Histogram h = new Histogram("test");
+        h.record(-5);
+        h.record(Long.MAX_VALUE);
+        assertEquals(2, h.getCount());
+        assertEquals(0, h.getPercentile(50));
+        assertEquals(Long.MAX_VALUE, h.getPercentile(100));
+        assertEquals(Long.MAX_VALUE, h.getMax());
+    }
+
+
+    /**
+     * @return the snapshot's lines, by name
+     */
+    private static HashMap <String, String> parse(String _snapshot) {
+        HashMap <String, String> m = new HashMap <String, String> ();
+        String[] lines = _snapshot.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            int space = lines[i].indexOf(' ');
+            m.put(lines[i].substring(0, space), lines[i].substring(space + 1));
+        }
+        return m;
+    }
+
+    @Test
+    void metricsSnapshot()
+    throws AttributeNotFoundException {
+        LMTPEngine engine = new LMTPEngine(LMTP.ENGINE_THREADS);
+        try {
+            final Metrics m = engine.getMetrics();
+            m.count(Metrics.Counter.TLS_HANDSHAKES);
+            m.count(Metrics.Counter.TLS_HANDSHAKES);
+            m.add(Metrics.Counter.BYTES_RECEIVED, 12345);
+            // times are in nanoseconds, and in microseconds in the snapshot
+            m.get(Metrics.Phase.DELIVER_RECIPIENT).record(2000000);
+            m.get(Metrics.Phase.DELIVER_RECIPIENT).record(4000000);
+            m.timeState(LMTPSession.STATE_DATA, 7000);
+
+            HashMap <String, String> s = parse(m.snapshot());
+            assertEquals("0", s.get("SESSIONS_ACTIVE"));
+            assertEquals("0", s.get("CONNECTIONS_WAITING"));
+            assertEquals("2", s.get("TLS_HANDSHAKES"));
+            assertEquals("0", s.get("TLS_RESUMED"));
+            assertEquals("12345", s.get("BYTES_RECEIVED"));
+            assertEquals("2", s.get("DELIVER_RECIPIENT.count"));
+            assertEquals("3000", s.get("DELIVER_RECIPIENT.mean"));
+            assertEquals("4000", s.get("DELIVER_RECIPIENT.max"));
+            assertEquals("4000", s.get("DELIVER_RECIPIENT.p99"));
+            assertEquals("1", s.get("STATE_DATA.count"));
+            assertEquals("7", s.get("STATE_DATA.max"));
+            assertEquals("0", s.get("STATE_BDAT.count"));
+            assertEquals("0", s.get("TLS_HANDSHAKE.p50"));
+            // everything there is, once each
+            assertEquals(7 + Metrics.Counter.values().length + (Metrics.Phase.values().length + LMTPSession.allStates().length) * 6, s.size());
+            assertNull(s.get("nonsense"));
+
+            // the same, one attribute at a time over JMX
+            assertEquals(Long.valueOf(2), m.getAttribute("TLS_HANDSHAKES"));
+            assertEquals(Long.valueOf(4000), m.getAttribute("DELIVER_RECIPIENT.max"));
+            assertThrows(AttributeNotFoundException.class, new Executable() {
+                public void execute()
+                throws AttributeNotFoundException {
+                    m.getAttribute("DELIVER_RECIPIENT.p42");
+                }
+            });
+        }
+        finally {
+            engine.stop();
+        }
+    }
+
+}
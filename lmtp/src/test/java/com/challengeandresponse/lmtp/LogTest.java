@@ -0,0 +1,216 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * The log: messages from many threads all written, each thread's in the order it logged them, flush() returning
+ * once they're out, and the messages that didn't fit in the ring counted and reported. Only the lines with this
+ * test's marker are looked at, in case something else logs meanwhile.
+ */
+class LogTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String MARKER = "logtest";
+    private static final Pattern LINE = Pattern.compile(MARKER+" (\\d+) (\\d+)$");
+    private static final Pattern DROPPED = Pattern.compile(" (\\d+) log messages dropped");
+
+    private PrintStream saved;
+    private int savedLevel;
+
+
+    @BeforeEach
+    void setUp() {
+        savedLevel = LMTP.LOG_LEVEL;
+        LMTP.LOG_LEVEL = Log.INFO;
+    }
+
+    @AfterEach
+    void tearDown() {
+        Log.flush();
+        if (saved != null)
+            Log.setOut(saved);
+        LMTP.LOG_LEVEL = savedLevel;
+    }
+
+
+    /**
+     * @return the lines written to _bytes
+     */
+    private static String[] lines(ByteArrayOutputStream _bytes) {
+        return new String(_bytes.toByteArray(), ASCII).split("\n");
+    }
+
+    /**
+     * @return for each thread, the message numbers it logged that were written, in the order they were written
+     */
+    private static Vector <Vector <Integer>> written(String[] _lines, int _threads) {
+        Vector <Vector <Integer>> w = new Vector <Vector <Integer>> ();
+        for (int i = 0; i < _threads; i++)
+            w.add(new Vector <Integer> ());
+        for (int i = 0; i < _lines.length; i++) {
+            Matcher m = LINE.matcher(_lines[i]);
+            if (m.find())
+                w.get(Integer.parseInt(m.group(1))).add(Integer.valueOf(m.group(2)));
+        }
+        return w;
+    }
+
+
+    @Test
+    void everyThreadsMessagesAreWrittenInOrder()
+    throws InterruptedException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        saved = Log.setOut(new PrintStream(bytes, false));
+        final int threads = 4;
+        final int each = 1000;
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] t = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            final Integer thread = Integer.valueOf(i);
+            t[i] = new Thread() {
+                public void run() {
+                    try {
+                        go.await();
+                    }
+                    catch (InterruptedException ie) {
+                        return;
+                    }
+                    for (int j = 0; j < each; j++)
+                        Log.info(MARKER+" {} {}", thread, Integer.valueOf(j));
+                }
+            };
+            t[i].start();
+        }
+        go.countDown();
+        for (int i = 0; i < threads; i++)
+            t[i].join();
+        // nothing more is written after flush() returns
+        Log.flush();
+        String[] lines = lines(bytes);
+        Vector <Vector <Integer>> w = written(lines, threads);
+        for (int i = 0; i < threads; i++) {
+            assertEquals(each, w.get(i).size(), "thread "+i);
+            for (int j = 0; j < each; j++)
+                assertEquals(j, w.get(i).get(j).intValue(), "thread "+i);
+        }
+        assertTrue(lines[0].matches("\\d\\d:\\d\\d:\\d\\d\\.\\d\\d\\d INFO  \\[.*\\] .*"), lines[0]);
+    }
+
+    @Test
+    void flushWaitsForTheWriter()
+    throws InterruptedException {
+        // a stream that holds the writer up until it's let go
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch letGo = new CountDownLatch(1);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        saved = Log.setOut(new PrintStream(new OutputStream() {
+            public void write(int _b)
+            throws IOException {
+                write(new byte[] { (byte) _b }, 0, 1);
+            }
+            public void write(byte[] _b, int _off, int _len)
+            throws IOException {
+                writing.countDown();
+                try {
+                    letGo.await();
+                }
+                catch (InterruptedException ie) {
+                    throw new IOException(ie);
+                }
+                synchronized (bytes) {
+                    bytes.write(_b, _off, _len);
+                }
+            }
+        }, false));
+        Log.info(MARKER+" {} {}", Integer.valueOf(0), Integer.valueOf(0));
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+
+        final CountDownLatch flushed = new CountDownLatch(1);
+        Thread flusher = new Thread() {
+            public void run() {
+                Log.flush();
+                flushed.countDown();
+            }
+        };
+        flusher.start();
+        // the writer has the message out of the ring, but it isn't written yet
+        assertTrue(! flushed.await(200, TimeUnit.MILLISECONDS));
+        letGo.countDown();
+        assertTrue(flushed.await(5, TimeUnit.SECONDS));
+        synchronized (bytes) {
+            assertEquals(1, written(lines(bytes), 1).get(0).size());
+        }
+        flusher.join();
+    }
+
+    @Test
+    void droppedMessagesAreCounted()
+    throws InterruptedException {
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch letGo = new CountDownLatch(1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        saved = Log.setOut(new PrintStream(new OutputStream() {
+            public void write(int _b) {
+                bytes.write(_b);
+            }
+            public void write(byte[] _b, int _off, int _len)
+            throws IOException {
+                writing.countDown();
+                try {
+                    letGo.await();
+                }
+                catch (InterruptedException ie) {
+                    throw new IOException(ie);
+                }
+                bytes.write(_b, _off, _len);
+            }
+        }, false));
+        // the writer takes the first message and is held up writing it. then the ring fills up behind it
+        Log.info(MARKER+" {} {}", Integer.valueOf(0), Integer.valueOf(0));
+        assertTrue(writing.await(5, TimeUnit.SECONDS));
+        int ring = 16;
+        while (ring < LMTP.LOG_BUFFER_SIZE)
+            ring <<= 1;
+        int logged = 1;
+        for (; logged < ring + 1 + 500; logged++)
+            Log.info(MARKER+" {} {}", Integer.valueOf(0), Integer.valueOf(logged));
+        letGo.countDown();
+        Log.flush();
+
+        String[] lines = lines(bytes);
+        Vector <Integer> w = written(lines, 1).get(0);
+        // the one being written, and a ring's worth behind it
+        assertEquals(ring + 1, w.size());
+        for (int i = 0; i < w.size(); i++)
+            assertEquals(i, w.get(i).intValue());
+        long dropped = 0;
+        for (int i = 0; i < lines.length; i++) {
+            Matcher m = DROPPED.matcher(lines[i]);
+            if (m.find())
+                dropped += Long.parseLong(m.group(1));
+        }
+        assertEquals(logged - w.size(), dropped);
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Closing a MaildirStore: what was queued before close() is all written by the time it returns, and what comes
+ * after is refused. And a mailbox removed while the store runs is made again for its next message.
+ */
+class MaildirStoreTest {
+
+    @TempDir
+    File root;
+
+
+    private static MessageBody body(String _text)
+    throws IOException {
+        MessageBody b = new MessageBody(Integer.MAX_VALUE, null, null);
+        byte[] bytes = _text.getBytes(Charset.forName("US-ASCII"));
+        b.write(bytes, 0, bytes.length);
+        return b;
+    }
+
+    /**
+     * @return how many messages are in the new/ directories under _dir
+     */
+    private static int countNew(File _dir) {
+        int n = 0;
+        File[] files = _dir.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++) {
+            if (files[i].getName().equals("new"))
+                n += files[i].list().length;
+            else if (files[i].isDirectory())
+                n += countNew(files[i]);
+        }
+        return n;
+    }
+
+
+    private static void delete(File _f) {
+        File[] files = _f.listFiles();
+        for (int i = 0; (files != null) && (i < files.length); i++)
+            delete(files[i]);
+        _f.delete();
+    }
+
+
+    @Test
+    void closeWritesWhatWasQueued()
+    throws IOException {
+        MaildirStore store = new MaildirStore(root, MaildirStore.DURABILITY_NONE, 2, 1000);
+        Vector <CompletableFuture <String>> results = new Vector <CompletableFuture <String>> ();
+        for (int i = 0; i < 200; i++)
+            results.add(store.store("user"+(i % 7)+"@store.test", body("message "+i)));
+        store.close();
+        for (int i = 0; i < results.size(); i++) {
+            assertTrue(results.get(i).isDone(), "message "+i+" not written before close() returned");
+            assertTrue(results.get(i).join().startsWith("250 "), results.get(i).join());
+        }
+        assertEquals(200, countNew(root));
+
+        assertEquals("451 Mailbox store closed, try again later", store.store("user0@store.test", body("late")).join());
+        assertEquals(200, countNew(root));
+    }
+
+    @Test
+    void closeWithNothingQueued() {
+        MaildirStore store = new MaildirStore(root, MaildirStore.DURABILITY_BATCH, 3, 10);
+        store.close();
+        // and again, which does nothing
+        store.close();
+        assertEquals(0, countNew(root));
+    }
+
+    @Test
+    void removedMailboxIsMadeAgain()
+    throws IOException {
+        MaildirStore store = new MaildirStore(root, MaildirStore.DURABILITY_MESSAGE, 1, 10);
+        try {
+            assertTrue(store.store("user@store.test", body("first")).join().startsWith("250 "));
+            assertEquals(1, countNew(root));
+            // a cleanup tool takes the whole mailbox, shard directories and all
+            File[] shards = root.listFiles();
+            for (int i = 0; i < shards.length; i++)
+                delete(shards[i]);
+            assertEquals(0, root.list().length);
+
+            assertTrue(store.store("user@store.test", body("second")).join().startsWith("250 "));
+            assertTrue(store.store("user@store.test", body("third")).join().startsWith("250 "));
+            assertEquals(2, countNew(root));
+        }
+        finally {
+            store.close();
+        }
+    }
+
+}
@@ -0,0 +1,224 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * MessageBody: in memory up to the spool threshold and on disk past it, on disk early when the ByteBudget won't give
+ * it the memory, buffers leased from the BufferPool and given back, and a spool file that can't be read is an error,
+ * not an empty message.
+ */
+class MessageBodyTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    @TempDir
+    File spool;
+
+
+    private static void write(MessageBody _body, String _text)
+    throws IOException {
+        byte[] b = _text.getBytes(ASCII);
+        _body.write(b, 0, b.length);
+    }
+
+    private static String repeat(char _c, int _n) {
+        StringBuilder sb = new StringBuilder(_n);
+        for (int i = 0; i < _n; i++)
+            sb.append(_c);
+        return sb.toString();
+    }
+
+    private static byte[] read(MessageBody _body)
+    throws IOException {
+        InputStream in = _body.openStream();
+        try {
+            return in.readAllBytes();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+
+    @Test
+    void spillsPastTheThreshold()
+    throws IOException {
+        MessageBody body = new MessageBody(100, spool, null);
+        write(body, repeat('a', 60));
+        write(body, repeat('b', 40));
+        // exactly the threshold still fits in memory
+        assertFalse(body.isSpooled());
+        assertEquals(0, spool.list().length);
+        write(body, "c");
+        assertTrue(body.isSpooled());
+        assertEquals(1, spool.list().length);
+        write(body, "d");
+        assertEquals(102, body.length());
+        // what was in memory went to the file first, and read back it's all there, in order
+        assertArrayEquals((repeat('a', 60)+repeat('b', 40)+"cd").getBytes(ASCII), read(body));
+        assertArrayEquals((repeat('a', 60)+repeat('b', 40)+"cd").getBytes(ASCII), read(body));
+
+        body.dispose();
+        assertEquals(0, spool.list().length);
+    }
+
+    @Test
+    void resetStartsOverInMemory()
+    throws IOException {
+        MessageBody body = new MessageBody(10, spool, null);
+        write(body, "more than ten");
+        assertTrue(body.isSpooled());
+        body.reset();
+        assertEquals(0, spool.list().length);
+        assertEquals(0, body.length());
+        write(body, "short");
+        assertFalse(body.isSpooled());
+        assertEquals("short", body.toString());
+        body.dispose();
+    }
+
+    @Test
+    void spillsEarlyWhenTheBudgetSaysNo()
+    throws IOException {
+        ByteBudget budget = new ByteBudget(MessageBody.INITIAL_BUFFER_SIZE);
+        MessageBody first = new MessageBody(1024 * 1024, spool, budget);
+        write(first, "takes the whole budget");
+        assertFalse(first.isSpooled());
+        assertEquals(MessageBody.INITIAL_BUFFER_SIZE, budget.inUse());
+
+        // far under the threshold, but there's no memory left for it
+        MessageBody second = new MessageBody(1024 * 1024, spool, budget);
+        write(second, "small");
+        assertTrue(second.isSpooled());
+        assertEquals("small", second.toString());
+        assertEquals(MessageBody.INITIAL_BUFFER_SIZE, budget.inUse());
+
+        // the first can't grow either: it goes to disk, and gives its memory back
+        write(first, repeat('x', MessageBody.INITIAL_BUFFER_SIZE));
+        assertTrue(first.isSpooled());
+        assertEquals(0, budget.inUse());
+        assertEquals("takes the whole budget"+repeat('x', MessageBody.INITIAL_BUFFER_SIZE), first.toString());
+
+        // with the memory back, the next body stays in it
+        MessageBody third = new MessageBody(1024 * 1024, spool, budget);
+        write(third, "fits");
+        assertFalse(third.isSpooled());
+        first.dispose();
+        second.dispose();
+        third.dispose();
+        assertEquals(0, budget.inUse());
+        assertEquals(0, spool.list().length);
+    }
+
+    @Test
+    void leasesGoBackToThePool()
+    throws IOException {
+        Metrics m = new Metrics(null);
+        BufferPool pool = new BufferPool(BufferPool.doubling(MessageBody.INITIAL_BUFFER_SIZE, 64 * 1024), 1024 * 1024, m,
+                Metrics.Counter.BUFFERS_REUSED, Metrics.Counter.BUFFERS_ALLOCATED);
+        ByteBudget budget = new ByteBudget(0);
+        MessageBody body = new MessageBody(64 * 1024, spool, budget, pool);
+        // the buffer is leased in the pool's sizes, and counted in the budget at that size
+        write(body, repeat('a', 10000));
+        assertEquals(16384, budget.inUse());
+        assertEquals(0, pool.pooledBytes());
+
+        body.reset();
+        assertEquals(0, budget.inUse());
+        assertEquals(16384, pool.pooledBytes());
+
+        // the next message starts small, and gets the pooled buffer when it grows
+        write(body, "b");
+        assertEquals(MessageBody.INITIAL_BUFFER_SIZE, budget.inUse());
+        write(body, repeat('c', 10000));
+        assertEquals(16384, budget.inUse());
+        assertEquals(MessageBody.INITIAL_BUFFER_SIZE, pool.pooledBytes());
+        assertEquals(1, m.get(Metrics.Counter.BUFFERS_REUSED));
+        assertEquals(2, m.get(Metrics.Counter.BUFFERS_ALLOCATED));
+        assertEquals("b"+repeat('c', 10000), body.toString());
+
+        // spilling gives the buffer back as well
+        write(body, repeat('d', 64 * 1024));
+        assertTrue(body.isSpooled());
+        assertEquals(0, budget.inUse());
+        assertEquals(16384 + MessageBody.INITIAL_BUFFER_SIZE, pool.pooledBytes());
+
+        body.reset();
+        write(body, "e");
+        assertEquals(16384, pool.pooledBytes());
+        body.dispose();
+        assertEquals(0, budget.inUse());
+        assertEquals(16384 + MessageBody.INITIAL_BUFFER_SIZE, pool.pooledBytes());
+        assertEquals(0, spool.list().length);
+    }
+
+    @Test
+    void unreadableSpoolFileIsAnError()
+    throws IOException {
+        MessageBody body = new MessageBody(0, spool, null);
+        write(body, "spooled at once");
+        assertTrue(body.isSpooled());
+        File[] files = spool.listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].delete());
+        assertThrows(UncheckedIOException.class, new Executable() {
+            public void execute() {
+                body.toString();
+            }
+        });
+        body.dispose();
+    }
+
+    @Test
+    void unreadableBodyGetsA451()
+    throws IOException {
+        LMTPEngine engine = new LMTPEngine(LMTP.ENGINE_THREADS);
+        try {
+            Vector <String> hosts = new Vector <String> ();
+            hosts.add("127.0.0.1");
+            Vector <String> domains = new Vector <String> ();
+            domains.add(SessionDriver.DOMAIN);
+            // a server that delivers with toString()
+            LMTP server = new SessionDriver.KeepingLMTP(engine, ServerConfig.fromDefaults(hosts, domains)) {
+                protected CompletableFuture <String> deliverAsync(String _mailFrom, String _mailTo, MessageBody _message) {
+                    delivered.add(_mailTo+": "+_message.toString());
+                    return CompletableFuture.completedFuture("250 "+_mailTo+" delivered");
+                }
+            };
+            MessageBody body = new MessageBody(0, spool, null);
+            write(body, "lost");
+            spool.listFiles()[0].delete();
+            Vector <String> rcpts = new Vector <String> ();
+            rcpts.add("user@"+SessionDriver.DOMAIN);
+            String[] status = server.deliverToAll("sender@example.com", rcpts, body).join();
+            assertEquals(1, status.length);
+            assertEquals("451 Error delivering message", status[0]);
+            body.dispose();
+        }
+        finally {
+            engine.stop();
+        }
+    }
+
+}
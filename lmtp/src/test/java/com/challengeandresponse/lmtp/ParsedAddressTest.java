@@ -0,0 +1,111 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * The hand-written address parser gives the same String[5] as the regular expression version it replaced (kept here
+ * as regexParse(), exactly as it was in Utils), for a set of typical arguments and for random strings made of the
+ * characters that matter to them. The seed is fixed, so a failure is the same failure every time.
+ */
+class ParsedAddressTest {
+
+    private static final String[] SAMPLES = {
+        "FROM:<jim@agentzero.com>",
+        "TO:<Jim+Electric@AgentZero.com>",
+        "FROM:<bounce-12345-user=example.org@lists.example.net> SIZE=20480",
+        "<postmaster@mail.example.com>",
+        "cvhaos <jim+electric@agentzero.com>",
+        "TO:jim@agentzero.com",
+        "FROM:<>",
+        "TO:<a b@c.d>",
+    };
+
+    private static final int RANDOM_COUNT = 200000;
+    private static final long SEED = 42;
+
+
+    /**
+     * Utils.parseEmailAddress() as it was, with its patterns compiled on every call
+     */
+    static String[] regexParse(String _fullEmailAddress) {
+        String[] result = new String[5];
+
+        _fullEmailAddress=_fullEmailAddress.trim().toLowerCase();
+
+        final Pattern EMAIL_ADDRESS_PATTERN = Pattern.compile(".*?<(.*?)@(.*?)>.*");
+        final Pattern EMAIL_COMMAND_PATTERN = Pattern.compile("(.*?)\\+(.*?)");
+        final Pattern EMAIL_AROUND_ATSIGN = Pattern.compile(".*?(<|\\s)([a-zA-Z_0-9\\+\\-\\.]*?@[a-zA-Z_0-9\\.]*?)(\\s|>)");
+
+        Matcher m = EMAIL_ADDRESS_PATTERN.matcher(_fullEmailAddress);
+        if (m.matches()) {
+            result[0] = m.group(1);
+            result[3] = m.group(2);
+
+            Matcher m2 = EMAIL_COMMAND_PATTERN.matcher(result[0]);
+            if (m2.matches()) {
+                result[1] = m2.group(1);
+                result[2] = m2.group(2);
+            }
+            else {
+                result[1] = result[0];
+                result[2] = null;
+            }
+
+            Matcher mm = EMAIL_AROUND_ATSIGN.matcher(_fullEmailAddress);
+            if (mm.find()) {
+                result[4] = mm.group(2);
+            }
+            else
+                result = null;
+        }
+        else result = null;
+
+        return result;
+    }
+
+
+    @Test
+    void samples() {
+        assertArrayEquals(new String[] { "jim+electric", "jim", "electric", "agentzero.com", "jim+electric@agentzero.com" },
+                Utils.parseEmailAddress("TO:<Jim+Electric@AgentZero.com>"));
+        assertNull(Utils.parseEmailAddress("TO:jim@agentzero.com"));
+        for (int i = 0; i < SAMPLES.length; i++)
+            assertArrayEquals(regexParse(SAMPLES[i]), Utils.parseEmailAddress(SAMPLES[i]), SAMPLES[i]);
+    }
+
+    @Test
+    void randomStringsParseAsTheRegexDid() {
+        String alphabet = "<>@+-._ \t\naBz09:,\u000B=";
+        Random random = new Random(SEED);
+        int mismatches = 0;
+        StringBuilder first = new StringBuilder();
+        for (int i = 0; i < RANDOM_COUNT; i++) {
+            char[] c = new char[random.nextInt(16)];
+            for (int j = 0; j < c.length; j++)
+                c[j] = alphabet.charAt(random.nextInt(alphabet.length()));
+            String s = new String(c);
+            String[] expected = regexParse(s);
+            String[] actual = Utils.parseEmailAddress(s);
+            if (! Arrays.equals(expected, actual)) {
+                if (mismatches++ < 10)
+                    first.append("\n["+s+"]: regex "+Arrays.toString(expected)+", parser "+Arrays.toString(actual));
+            }
+        }
+        assertEquals(0, mismatches, first.toString());
+    }
+
+}
@@ -0,0 +1,80 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * Every recipient gets exactly one well-formed status line (RFC 2033), whatever deliver() returns: a null, an empty
+ * string, something that isn't a status or runs to several lines is a 451, and a trailing line ending is dropped.
+ */
+class RecipientStatusTest {
+
+    @Test
+    void statusLines() {
+        assertEquals("250 ok", LMTP.statusLine("250 ok"));
+        assertEquals("550", LMTP.statusLine("550"));
+        assertEquals("250 ok", LMTP.statusLine("250 ok\r\n"));
+        assertNull(LMTP.statusLine(null));
+        assertNull(LMTP.statusLine(""));
+        assertNull(LMTP.statusLine("\r\n"));
+        assertNull(LMTP.statusLine("ok"));
+        assertNull(LMTP.statusLine("25"));
+        assertNull(LMTP.statusLine("150 not a final reply"));
+        assertNull(LMTP.statusLine("650 no such class"));
+        assertNull(LMTP.statusLine("2x0 ok"));
+        assertNull(LMTP.statusLine("250ok"));
+        assertNull(LMTP.statusLine("250-first\n250 second"));
+        assertNull(LMTP.statusLine("250 first\n250 second"));
+    }
+
+    @Test
+    void eachRecipientGetsOneLine()
+    throws IOException {
+        final String[] given = { null, "", "delivered", "250 ok\n", "250 one\n250 two", "550 no such user" };
+        LMTPEngine engine = new LMTPEngine(LMTP.ENGINE_THREADS);
+        try {
+            Vector <String> hosts = new Vector <String> ();
+            hosts.add("127.0.0.1");
+            Vector <String> domains = new Vector <String> ();
+            domains.add(SessionDriver.DOMAIN);
+            LMTP server = new SessionDriver.KeepingLMTP(engine, ServerConfig.fromDefaults(hosts, domains)) {
+                protected CompletableFuture <String> deliverAsync(String _mailFrom, String _mailTo, MessageBody _message) {
+                    return CompletableFuture.completedFuture(given[Integer.parseInt(_mailTo.substring(0, 1))]);
+                }
+            };
+            Vector <String> rcpts = new Vector <String> ();
+            for (int i = 0; i < given.length; i++)
+                rcpts.add(i+"@"+SessionDriver.DOMAIN);
+            MessageBody body = new MessageBody(1024, null, null);
+            String[] status = server.deliverToAll("sender@example.com", rcpts, body).join();
+            assertEquals(given.length, status.length);
+            assertEquals("451 Error delivering message", status[0]);
+            assertEquals("451 Error delivering message", status[1]);
+            assertEquals("451 Error delivering message", status[2]);
+            assertEquals("250 ok", status[3]);
+            assertEquals("451 Error delivering message", status[4]);
+            assertEquals("550 no such user", status[5]);
+            body.dispose();
+
+            Metrics m = engine.getMetrics();
+            assertEquals(1, m.get(Metrics.Counter.DELIVERIES_OK));
+            assertEquals(4, m.get(Metrics.Counter.DELIVERIES_TEMPFAIL));
+            assertEquals(1, m.get(Metrics.Counter.DELIVERIES_PERMFAIL));
+        }
+        finally {
+            engine.stop();
+        }
+    }
+
+}
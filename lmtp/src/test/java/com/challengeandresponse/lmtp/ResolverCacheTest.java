@@ -0,0 +1,106 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * The lookups waiting for a thread are bounded: with the resolver stalled, a lookup that doesn't fit fails at once
+ * as a try-again-later, and isn't remembered as a host that doesn't exist.
+ */
+class ResolverCacheTest {
+
+    /** a resolver that holds every lookup until it's let go, and counts them */
+    private static class StalledResolver implements DomainResolver {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch letGo = new CountDownLatch(1);
+        final AtomicInteger lookups = new AtomicInteger(0);
+
+        public InetAddress resolve(String _host)
+        throws UnknownHostException {
+            lookups.incrementAndGet();
+            started.countDown();
+            try {
+                letGo.await();
+            }
+            catch (InterruptedException ie) {
+                throw new UnknownHostException(_host+" (interrupted)");
+            }
+            return InetAddress.getByAddress(_host, new byte[] { 127, 0, 0, 1 });
+        }
+    }
+
+
+    private static Throwable failureOf(CompletableFuture <InetAddress> _f)
+    throws InterruptedException {
+        try {
+            _f.get(5, TimeUnit.SECONDS);
+            fail("the lookup succeeded");
+            return null;
+        }
+        catch (ExecutionException ee) {
+            return ee.getCause();
+        }
+        catch (TimeoutException te) {
+            fail("the lookup never finished");
+            return null;
+        }
+    }
+
+
+    @Test
+    void lookupsThatDontFitTheQueueFailAtOnce()
+    throws Exception {
+        StalledResolver r = new StalledResolver();
+        // one thread and room for two more, and no deadline, so nothing fails unless it's refused
+        ResolverCache cache = new ResolverCache(r, 60000, 60000, 100, 0, 1, 2);
+        try {
+            CompletableFuture <InetAddress> a = cache.lookup("a.test");
+            assertTrue(r.started.await(5, TimeUnit.SECONDS));
+            CompletableFuture <InetAddress> b = cache.lookup("b.test");
+            CompletableFuture <InetAddress> c = cache.lookup("c.test");
+            // the same host again shares the lookup already queued, so it takes no room
+            CompletableFuture <InetAddress> c2 = cache.lookup("c.test");
+            CompletableFuture <InetAddress> d = cache.lookup("d.test");
+            assertTrue(d.isDone());
+            assertTrue(failureOf(d) instanceof TimeoutException);
+            assertFalse(a.isDone() || b.isDone() || c.isDone() || c2.isDone());
+
+            r.letGo.countDown();
+            assertEquals("a.test", a.get(5, TimeUnit.SECONDS).getHostName());
+            assertEquals("b.test", b.get(5, TimeUnit.SECONDS).getHostName());
+            assertEquals("c.test", c.get(5, TimeUnit.SECONDS).getHostName());
+            assertEquals("c.test", c2.get(5, TimeUnit.SECONDS).getHostName());
+            assertEquals(3, r.lookups.get());
+
+            // the refused host wasn't cached as unknown: asking again looks it up
+            assertEquals("d.test", cache.lookup("d.test").get(5, TimeUnit.SECONDS).getHostName());
+            assertEquals(4, r.lookups.get());
+            // and the others are answered from the cache
+            cache.lookup("a.test").get(5, TimeUnit.SECONDS);
+            assertEquals(4, r.lookups.get());
+        }
+        finally {
+            r.letGo.countDown();
+            cache.shutdown();
+        }
+    }
+
+}
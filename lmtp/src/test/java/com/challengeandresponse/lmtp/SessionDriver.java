@@ -0,0 +1,165 @@
+package com.challengeandresponse.lmtp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Properties;
+import java.util.Vector;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * An LMTPSession with no sockets, for the session tests, the way SessionBenchmark runs one: lines and chunk bytes
+ * are handed to it directly and its replies are collected, a line each. Its server keeps the messages it's given
+ * instead of delivering them. The engine is never started; call stop() when done with it.
+ */
+class SessionDriver {
+
+    /** a server that keeps what deliver() gets, as "recipient: body" */
+    static class KeepingLMTP extends LMTP {
+        final Vector <String> delivered = new Vector <String> ();
+
+        KeepingLMTP(LMTPEngine _engine, ServerConfig _config) {
+            super(_engine, 0, _config);
+        }
+
+        protected String deliver(String _mailFrom, String _mailTo, String _message) {
+            delivered.add(_mailTo+": "+_message);
+            return "250 "+_mailTo+" delivered";
+        }
+    }
+
+    /** the domain the server takes mail for */
+    static final String DOMAIN = "session.test";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    final LMTPEngine engine;
+    final KeepingLMTP server;
+    final LMTPSession session;
+    /** the replies not yet taken with replies(), a line each */
+    private final Vector <String> replies = new Vector <String> ();
+    /** how many times the session switched the connection to TLS */
+    int tlsStarts = 0;
+
+
+    /**
+     * A session that has had its greeting sent, which is taken off the replies
+     * @param _settings settings for the server's ServerConfig, as in a configuration file. Lookups are always off
+     */
+    SessionDriver(Properties _settings)
+    throws IOException {
+        Vector <String> hosts = new Vector <String> ();
+        hosts.add("127.0.0.1");
+        // the domain is given with the settings, so it's never looked up
+        Properties p = new Properties();
+        p.setProperty("MY_HOST", "localhost");
+        p.setProperty("LIVE_NET_LOOKUPS", "false");
+        p.setProperty("DOMAINS_SERVED", DOMAIN);
+        p.putAll(_settings);
+        engine = new LMTPEngine(LMTP.ENGINE_THREADS);
+        server = new KeepingLMTP(engine, ServerConfig.fromDefaults(hosts, new Vector <String> ()).with(p));
+        session = new LMTPSession(server, 0, new LMTPSession.ReplySink() {
+            public void send(String _s) {
+                String[] lines = _s.split("\n");
+                for (int i = 0; i < lines.length; i++)
+                    replies.add(lines[i]);
+            }
+            public void flush() {
+            }
+            public void startTls() {
+                tlsStarts++;
+            }
+            public void configChanged(ServerConfig _config) {
+            }
+        });
+        session.process(null);
+        replies();
+    }
+
+    SessionDriver()
+    throws IOException {
+        this(new Properties());
+    }
+
+
+    void stop() {
+        engine.stop();
+    }
+
+
+    /**
+     * Hand the session one line, as the engines do, without its line ending
+     */
+    void line(String _line)
+    throws IOException {
+        byte[] b = _line.getBytes(ASCII);
+        session.processLine(b, 0, b.length);
+    }
+
+    /**
+     * Hand the session several lines, one after the other
+     */
+    void lines(String... _lines)
+    throws IOException {
+        for (int i = 0; i < _lines.length; i++)
+            line(_lines[i]);
+    }
+
+    /**
+     * Hand the session the bytes of a BDAT chunk, or part of one. Only as many as it wants are taken
+     * @return the bytes left over
+     */
+    int bytes(String _bytes)
+    throws IOException {
+        ByteBuffer b = ByteBuffer.wrap(_bytes.getBytes(ASCII));
+        while (b.hasRemaining() && (session.bytesWanted() > 0))
+            session.processBytes(b);
+        return b.remaining();
+    }
+
+    /**
+     * The engine found a line longer than the session takes, and threw it away
+     */
+    void lineTooLong()
+    throws IOException {
+        session.lineTooLong();
+    }
+
+
+    /**
+     * @return the replies since the last call, a line each
+     */
+    Vector <String> replies() {
+        Vector <String> r = new Vector <String> (replies);
+        replies.clear();
+        return r;
+    }
+
+    /**
+     * @return the replies since the last call, joined with | so a test can compare them in one go
+     */
+    String said() {
+        Vector <String> r = replies();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < r.size(); i++) {
+            if (i > 0)
+                sb.append('|');
+            sb.append(r.get(i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the messages delivered so far, as "recipient: body", and forget them
+     */
+    Vector <String> delivered() {
+        Vector <String> d = new Vector <String> (server.delivered);
+        server.delivered.clear();
+        return d;
+    }
+
+}
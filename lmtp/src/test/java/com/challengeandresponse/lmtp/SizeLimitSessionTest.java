@@ -0,0 +1,172 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * MAX_MESSAGE_SIZE and MAX_LINE_LENGTH in the session: a SIZE= that's too big is refused at MAIL FROM (RFC 1870), a
+ * DATA that grows too big is read to its dot and refused for every recipient, and a line the engine threw away for
+ * being too long is a 500 for a command and refuses the message in a DATA.
+ */
+class SizeLimitSessionTest {
+
+    private static final String RCPT = "user@"+SessionDriver.DOMAIN;
+    private static final String RCPT2 = "other@"+SessionDriver.DOMAIN;
+    private static final String TOO_BIG = "552 Message exceeds fixed maximum message size";
+
+    private SessionDriver d;
+
+
+    @BeforeEach
+    void setUp()
+    throws IOException {
+        Properties p = new Properties();
+        p.setProperty("MAX_MESSAGE_SIZE", "100");
+        p.setProperty("MAX_LINE_LENGTH", "200");
+        d = new SessionDriver(p);
+        d.line("LHLO client.test");
+        d.said();
+    }
+
+    @AfterEach
+    void tearDown() {
+        d.stop();
+    }
+
+
+    /**
+     * MAIL FROM and RCPT TO both recipients, all accepted, then DATA
+     */
+    private void startData()
+    throws IOException {
+        d.lines("MAIL FROM:<sender@example.com>", "RCPT TO:<"+RCPT+">", "RCPT TO:<"+RCPT2+">", "DATA");
+        String said = d.said();
+        assertTrue(said.endsWith("|354 Start mail input; end with <CRLF>.<CRLF>"), said);
+    }
+
+    private static String repeat(char _c, int _n) {
+        StringBuilder sb = new StringBuilder(_n);
+        for (int i = 0; i < _n; i++)
+            sb.append(_c);
+        return sb.toString();
+    }
+
+
+    @Test
+    void sizeIsAdvertised()
+    throws IOException {
+        d.line("LHLO client.test");
+        assertTrue(d.said().endsWith("|250 SIZE 100"));
+    }
+
+    @Test
+    void declaredSizeOverTheLimitIsRefusedAtMail()
+    throws IOException {
+        d.line("MAIL FROM:<sender@example.com> SIZE=101");
+        assertEquals("552 Message size exceeds fixed maximum message size", d.said());
+        // no sender was taken, so the message can't be sent
+        d.lines("RCPT TO:<"+RCPT+">", "DATA");
+        assertEquals("250 "+RCPT+" Recipient ok|503 need MAIL FROM", d.said());
+
+        // up to the limit is fine
+        d.line("MAIL FROM:<sender@example.com> SIZE=100");
+        assertEquals("250 sender@example.com Sender ok", d.said());
+    }
+
+    @Test
+    void badSizeIsASyntaxError()
+    throws IOException {
+        d.line("MAIL FROM:<sender@example.com> SIZE=lots");
+        assertEquals("501 Syntax error in SIZE parameter", d.said());
+        d.line("MAIL FROM:<sender@example.com> SIZE=-1");
+        assertEquals("501 Syntax error in SIZE parameter", d.said());
+    }
+
+    @Test
+    void dataOverTheLimitIsReadToTheDotAndRefused()
+    throws IOException {
+        startData();
+        // 60 and 60 goes over 100 on the second line. the lines after it are read and dropped
+        String line = repeat('x', 60);
+        d.lines(line, line, "MAIL FROM:<not@a.command>", line);
+        assertEquals("", d.said());
+        assertFalse(d.session.isStopped());
+        d.line(".");
+        assertEquals(TOO_BIG+"|"+TOO_BIG, d.said());
+        assertEquals(0, d.delivered().size());
+
+        // the next message is fine
+        startData();
+        d.lines("small", ".");
+        assertEquals("250 "+RCPT+" delivered|250 "+RCPT2+" delivered", d.said());
+        assertEquals(RCPT+": small\n", d.delivered().get(0));
+    }
+
+    @Test
+    void dataUpToTheLimitIsDelivered()
+    throws IOException {
+        startData();
+        // the body keeps a newline at the end of each line, so this is 100 bytes
+        d.lines(repeat('y', 99), ".");
+        assertEquals("250 "+RCPT+" delivered|250 "+RCPT2+" delivered", d.said());
+        assertEquals(2, d.delivered().size());
+    }
+
+    @Test
+    void maxLineLengthIsTakenFromTheConfig()
+    throws IOException {
+        assertEquals(LMTPSession.MAX_COMMAND_LENGTH, d.session.maxLineLength());
+        startData();
+        assertEquals(200, d.session.maxLineLength());
+        d.line(".");
+        d.said();
+        assertEquals(LMTPSession.MAX_COMMAND_LENGTH, d.session.maxLineLength());
+    }
+
+    @Test
+    void commandTooLongIsA500()
+    throws IOException {
+        d.lineTooLong();
+        assertEquals("500 Line too long", d.said());
+        // and it's an error, like any other: one more than MAX_ERRORS_BEFORE_DISCONNECT ends the session
+        for (int i = 1; i < LMTP.MAX_ERRORS_BEFORE_DISCONNECT; i++) {
+            d.lineTooLong();
+            assertEquals("500 Line too long", d.said());
+        }
+        d.lineTooLong();
+        assertEquals("500 Line too long|500 Too many errors|221 localhost closing connection", d.said());
+        assertTrue(d.session.isStopped());
+    }
+
+    @Test
+    void bodyLineTooLongRefusesTheMessage()
+    throws IOException {
+        startData();
+        d.line("first");
+        // nothing is said until the end of the message
+        d.lineTooLong();
+        assertEquals("", d.said());
+        d.lines("last", ".");
+        assertEquals(TOO_BIG+"|"+TOO_BIG, d.said());
+        assertEquals(0, d.delivered().size());
+
+        // and the next message is fine
+        startData();
+        d.lines("fine", ".");
+        assertEquals("250 "+RCPT+" delivered|250 "+RCPT2+" delivered", d.said());
+    }
+
+}
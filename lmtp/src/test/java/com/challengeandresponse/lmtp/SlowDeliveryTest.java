@@ -0,0 +1,176 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * A slow deliver() on ENGINE_NIO with DELIVERY_THREADS left at 0: the engine makes a delivery pool for its loop, so
+ * while one connection's delivery is stuck, another connection on the same loop is served all the way through.
+ */
+class SlowDeliveryTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String SLOW = "slow@"+SessionDriver.DOMAIN;
+    private static final String FAST = "fast@"+SessionDriver.DOMAIN;
+
+    private int savedLoops;
+    private int savedThreads;
+    private LMTPEngine engine;
+    /** holds up the deliveries to SLOW until it's counted down */
+    private final CountDownLatch letGo = new CountDownLatch(1);
+    /** the threads deliver() was called on */
+    private final Vector <String> deliveredOn = new Vector <String> ();
+
+
+    @BeforeEach
+    void setUp() {
+        savedLoops = LMTP.NIO_LOOPS;
+        savedThreads = LMTP.DELIVERY_THREADS;
+        // one loop, so both connections are on it
+        LMTP.NIO_LOOPS = 1;
+        LMTP.DELIVERY_THREADS = 0;
+    }
+
+    @AfterEach
+    void tearDown() {
+        letGo.countDown();
+        if (engine != null)
+            engine.stop();
+        LMTP.NIO_LOOPS = savedLoops;
+        LMTP.DELIVERY_THREADS = savedThreads;
+    }
+
+
+    private LMTP start()
+    throws IOException {
+        engine = new LMTPEngine(LMTP.ENGINE_NIO);
+        Vector <String> hosts = new Vector <String> ();
+        hosts.add("127.0.0.1");
+        Properties p = new Properties();
+        p.setProperty("MY_HOST", "localhost");
+        p.setProperty("LIVE_NET_LOOKUPS", "false");
+        p.setProperty("DOMAINS_SERVED", SessionDriver.DOMAIN);
+        LMTP server = new SessionDriver.KeepingLMTP(engine, ServerConfig.fromDefaults(hosts, new Vector <String> ()).with(p)) {
+            protected String deliver(String _mailFrom, String _mailTo, String _message) {
+                deliveredOn.add(Thread.currentThread().getName());
+                if (_mailTo.equals(SLOW)) {
+                    try {
+                        letGo.await();
+                    }
+                    catch (InterruptedException ie) {
+                        return "451 interrupted";
+                    }
+                }
+                return super.deliver(_mailFrom, _mailTo, _message);
+            }
+        };
+        server.start();
+        return server;
+    }
+
+
+    /**
+     * @return the next line from _in, without its line ending
+     */
+    private static String readLine(InputStream _in)
+    throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while (((c = _in.read()) >= 0) && (c != '\n')) {
+            if (c != '\r')
+                sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    private static void send(Socket _s, String _lines)
+    throws IOException {
+        OutputStream out = _s.getOutputStream();
+        out.write(_lines.getBytes(ASCII));
+        out.flush();
+    }
+
+    /**
+     * Connect and send a message to _rcpt, without waiting for the replies
+     */
+    private static Socket sendMessage(int _port, String _rcpt)
+    throws IOException {
+        Socket s = new Socket(InetAddress.getByName("127.0.0.1"), _port);
+        s.setSoTimeout(5000);
+        send(s, "LHLO client.test\r\nMAIL FROM:<sender@example.com>\r\nRCPT TO:<"+_rcpt+">\r\nDATA\r\n");
+        send(s, "Subject: test\r\n\r\nbody\r\n.\r\n");
+        return s;
+    }
+
+    /**
+     * @return the last reply line, which is the one after the message
+     */
+    private static String lastReply(Socket _s, String _expected)
+    throws IOException {
+        InputStream in = _s.getInputStream();
+        String line;
+        do {
+            line = readLine(in);
+        } while ((line.length() > 0) && (! line.equals(_expected)));
+        return line;
+    }
+
+
+    @Test
+    void slowDeliveryDoesNotHoldUpTheLoop()
+    throws IOException, InterruptedException {
+        LMTP server = start();
+        assertNotNull(engine.deliveryPool);
+        Socket slow = sendMessage(server.getPort(), SLOW);
+        try {
+            // wait until the slow one is stuck in deliver()
+            long deadline = System.currentTimeMillis() + 5000;
+            while (deliveredOn.isEmpty() && (System.currentTimeMillis() < deadline))
+                Thread.sleep(5);
+            assertEquals(1, deliveredOn.size());
+
+            long start = System.nanoTime();
+            Socket fast = sendMessage(server.getPort(), FAST);
+            try {
+                assertEquals("250 "+FAST+" delivered", lastReply(fast, "250 "+FAST+" delivered"));
+                send(fast, "QUIT\r\n");
+                assertTrue(readLine(fast.getInputStream()).startsWith("221 "));
+            }
+            finally {
+                fast.close();
+            }
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+
+            letGo.countDown();
+            assertEquals("250 "+SLOW+" delivered", lastReply(slow, "250 "+SLOW+" delivered"));
+        }
+        finally {
+            slow.close();
+        }
+        // and neither was delivered on the loop
+        for (int i = 0; i < deliveredOn.size(); i++)
+            assertTrue(! deliveredOn.get(i).startsWith("lmtp_io_"), deliveredOn.get(i));
+    }
+
+}
@@ -0,0 +1,128 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+
+import javax.net.ssl.SSLContext;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * STARTTLS in the session: it starts the conversation over, as RFC 3207 says, without being counted as a RSET the
+ * client asked for. The connection itself isn't switched to TLS here, the sink only counts the switches.
+ */
+class StartTlsSessionTest {
+
+    private SSLContext savedContext;
+    private SessionDriver d;
+
+
+    @BeforeEach
+    void setUp()
+    throws IOException, NoSuchAlgorithmException {
+        // the engine offers STARTTLS when it has a context. the default one has no certificate, but the handshake
+        // never happens here
+        savedContext = LMTP.TLS_CONTEXT;
+        LMTP.TLS_CONTEXT = SSLContext.getDefault();
+        Properties p = new Properties();
+        p.setProperty("MAX_RSETS_BEFORE_DISCONNECT", "3");
+        d = new SessionDriver(p);
+    }
+
+    @AfterEach
+    void tearDown() {
+        d.stop();
+        LMTP.TLS_CONTEXT = savedContext;
+    }
+
+
+    private void startTls()
+    throws IOException {
+        d.line("LHLO client.test");
+        assertTrue(d.said().contains("250-STARTTLS"));
+        d.line("STARTTLS");
+        assertEquals("220 Ready to start TLS", d.said());
+        assertEquals(1, d.tlsStarts);
+    }
+
+    /**
+     * Send messages on _driver's session until it hangs up
+     * @return how many were delivered
+     */
+    private static int messagesUntilDisconnect(SessionDriver _driver)
+    throws IOException {
+        _driver.line("LHLO client.test");
+        for (int i = 0; (i < 100) && (! _driver.session.isStopped()); i++)
+            _driver.lines("MAIL FROM:<sender@example.com>", "RCPT TO:<user@"+SessionDriver.DOMAIN+">", "DATA", "message "+i, ".");
+        assertTrue(_driver.session.isStopped());
+        assertTrue(_driver.said().endsWith("|500 Too many RSETs|221 localhost closing connection"));
+        return _driver.delivered().size();
+    }
+
+
+    @Test
+    void startTlsIsNotCountedAsARset()
+    throws IOException {
+        Properties p = new Properties();
+        p.setProperty("MAX_RSETS_BEFORE_DISCONNECT", "3");
+        SessionDriver clear = new SessionDriver(p);
+        try {
+            int inTheClear = messagesUntilDisconnect(clear);
+            assertTrue(inTheClear > 0);
+            // a connection that starts TLS gets as many messages
+            startTls();
+            assertEquals(inTheClear, messagesUntilDisconnect(d));
+        }
+        finally {
+            clear.stop();
+        }
+    }
+
+    @Test
+    void clientRsetsAreStillCounted()
+    throws IOException {
+        startTls();
+        d.line("LHLO client.test");
+        d.said();
+        d.lines("RSET", "RSET");
+        assertEquals("250 OK|250 OK", d.said());
+        d.line("RSET");
+        assertEquals("250 OK|500 Too many RSETs|221 localhost closing connection", d.said());
+        assertTrue(d.session.isStopped());
+    }
+
+    @Test
+    void startTlsForgetsTheConversation()
+    throws IOException {
+        d.line("LHLO client.test");
+        d.said();
+        d.lines("MAIL FROM:<sender@example.com>", "RCPT TO:<user@"+SessionDriver.DOMAIN+">");
+        d.said();
+        d.line("STARTTLS");
+        d.said();
+        // LHLO again, and the transaction started in the clear is gone
+        d.line("NOOP");
+        assertEquals("503 Please say LHLO first", d.said());
+        d.line("LHLO client.test");
+        String capabilities = d.said();
+        assertTrue(capabilities.startsWith("250-localhost"));
+        assertTrue(! capabilities.contains("STARTTLS"), capabilities);
+        d.line("DATA");
+        assertEquals("503 need RCPT (recipient)", d.said());
+        d.line("STARTTLS");
+        assertEquals("503 TLS already started", d.said());
+        assertEquals(1, d.tlsStarts);
+    }
+
+}
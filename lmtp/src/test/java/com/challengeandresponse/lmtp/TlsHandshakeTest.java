@@ -0,0 +1,214 @@
+package com.challengeandresponse.lmtp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Properties;
+import java.util.Vector;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * (c) 2005 Challenge/Response, LLC
+ * @author Jim
+ */
+
+/**
+ * STARTTLS on a real connection, on each engine: the handshake is done (its slow steps on the TLS task threads), the
+ * session goes on over TLS, and a client that comes back resumes its TLS session. The metrics count the full
+ * handshakes and the resumed ones apart. The server's certificate is a throwaway one made with keytool.
+ */
+class TlsHandshakeTest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String PASSWORD = "changeit";
+
+    @TempDir
+    static File dir;
+    private static SSLContext serverContext;
+
+    private SSLContext savedContext;
+    private LMTPEngine engine;
+
+
+    @BeforeAll
+    static void makeCertificate()
+    throws IOException, InterruptedException, GeneralSecurityException {
+        File keystore = new File(dir, "server.p12");
+        String keytool = System.getProperty("java.home")+File.separator+"bin"+File.separator+"keytool";
+        Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "lmtp", "-keyalg", "EC", "-dname", "CN=localhost",
+                "-validity", "1", "-storetype", "PKCS12", "-keystore", keystore.getPath(), "-storepass", PASSWORD)
+                .redirectErrorStream(true).start();
+        p.getInputStream().readAllBytes();
+        assertEquals(0, p.waitFor(), "keytool failed");
+        KeyStore keys = KeyStore.getInstance("PKCS12");
+        InputStream in = new FileInputStream(keystore);
+        try {
+            keys.load(in, PASSWORD.toCharArray());
+        }
+        finally {
+            in.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keys, PASSWORD.toCharArray());
+        serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(kmf.getKeyManagers(), null, null);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (engine != null)
+            engine.stop();
+        LMTP.TLS_CONTEXT = savedContext;
+    }
+
+
+    /**
+     * A client that takes any certificate. Its session cache is what lets it resume
+     */
+    private static SSLContext clientContext()
+    throws GeneralSecurityException {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, new TrustManager[] { new X509TrustManager() {
+            public void checkClientTrusted(X509Certificate[] _chain, String _authType) {
+            }
+            public void checkServerTrusted(X509Certificate[] _chain, String _authType) {
+            }
+            public X509Certificate[] getAcceptedIssuers() {
+                return new X509Certificate[0];
+            }
+        } }, null);
+        return context;
+    }
+
+    /**
+     * A server on _engineType, listening on a port of its own
+     */
+    private LMTP start(int _engineType)
+    throws IOException {
+        savedContext = LMTP.TLS_CONTEXT;
+        LMTP.TLS_CONTEXT = serverContext;
+        engine = new LMTPEngine(_engineType);
+        Vector <String> hosts = new Vector <String> ();
+        hosts.add("127.0.0.1");
+        Properties p = new Properties();
+        p.setProperty("MY_HOST", "localhost");
+        p.setProperty("LIVE_NET_LOOKUPS", "false");
+        p.setProperty("DOMAINS_SERVED", SessionDriver.DOMAIN);
+        LMTP server = new SessionDriver.KeepingLMTP(engine, ServerConfig.fromDefaults(hosts, new Vector <String> ()).with(p));
+        server.start();
+        return server;
+    }
+
+
+    /**
+     * @return the next line from _in, without its line ending
+     */
+    private static String readLine(InputStream _in)
+    throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while (((c = _in.read()) >= 0) && (c != '\n')) {
+            if (c != '\r')
+                sb.append((char) c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Send a command and read its reply, every line of it
+     * @return the reply's last line
+     */
+    private static String command(Socket _s, String _command)
+    throws IOException {
+        OutputStream out = _s.getOutputStream();
+        out.write((_command+"\r\n").getBytes(ASCII));
+        out.flush();
+        String line;
+        do {
+            line = readLine(_s.getInputStream());
+        } while (line.startsWith("250-"));
+        return line;
+    }
+
+    /**
+     * Connect, start TLS and say LHLO over it, then QUIT
+     */
+    private static void connect(SSLContext _client, int _port)
+    throws IOException {
+        Socket plain = new Socket(InetAddress.getByName("127.0.0.1"), _port);
+        try {
+            assertTrue(readLine(plain.getInputStream()).startsWith("220 "));
+            command(plain, "LHLO client.test");
+            assertEquals("220 Ready to start TLS", command(plain, "STARTTLS"));
+            SSLSocket tls = (SSLSocket) _client.getSocketFactory().createSocket(plain, "localhost", _port, true);
+            tls.startHandshake();
+            // the replies come back through TLS, and with them the session ticket a TLS 1.3 client resumes with
+            assertTrue(command(tls, "LHLO client.test").startsWith("250 "));
+            assertTrue(command(tls, "QUIT").startsWith("221 "));
+            tls.close();
+        }
+        finally {
+            plain.close();
+        }
+    }
+
+    private void fullThenResumed(int _engineType)
+    throws IOException, GeneralSecurityException, InterruptedException {
+        LMTP server = start(_engineType);
+        SSLContext client = clientContext();
+        connect(client, server.getPort());
+        Metrics m = engine.getMetrics();
+        assertEquals(1, m.get(Metrics.Counter.TLS_STARTED));
+        assertEquals(1, m.get(Metrics.Counter.TLS_HANDSHAKES));
+        assertEquals(0, m.get(Metrics.Counter.TLS_RESUMED));
+
+        // a resumed session is told apart by having been made before its handshake started
+        Thread.sleep(10);
+        connect(client, server.getPort());
+        assertEquals(2, m.get(Metrics.Counter.TLS_STARTED));
+        assertEquals(1, m.get(Metrics.Counter.TLS_HANDSHAKES));
+        assertEquals(1, m.get(Metrics.Counter.TLS_RESUMED));
+        assertEquals(0, m.get(Metrics.Counter.TLS_FAILED));
+    }
+
+
+    @Test
+    void nioCountsFullAndResumedHandshakes()
+    throws IOException, GeneralSecurityException, InterruptedException {
+        fullThenResumed(LMTP.ENGINE_NIO);
+    }
+
+    @Test
+    void threadsCountFullAndResumedHandshakes()
+    throws IOException, GeneralSecurityException, InterruptedException {
+        fullThenResumed(LMTP.ENGINE_THREADS);
+    }
+
+    @Test
+    void virtualThreadsCountFullAndResumedHandshakes()
+    throws IOException, GeneralSecurityException, InterruptedException {
+        fullThenResumed(LMTP.ENGINE_VIRTUAL);
+    }
+
+}